@@ -0,0 +1,70 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.Message;
+import org.bitcoinj.core.MessageSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link MessageSerializer#deserialize(ByteBuffer)} of real block messages, including checksum verification,
+ * as a peer receiving them would.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlockDeserializeBenchmark {
+    @Param({ Fixtures.BLOCK_169482, Fixtures.BLOCK_481829 })
+    public String block;
+
+    @Param({ "false", "true" })
+    public boolean parseRetain;
+
+    private MessageSerializer serializer;
+    private byte[] message;
+
+    @Setup
+    public void setUp() throws IOException {
+        Fixtures.propagateContext();
+        serializer = Fixtures.PARAMS.getSerializer(parseRetain);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize("block", Fixtures.loadBlockBytes(block), bos);
+        message = bos.toByteArray();
+    }
+
+    @Benchmark
+    public Message deserialize() throws IOException {
+        return serializer.deserialize(ByteBuffer.wrap(message));
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.BloomFilter;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptPattern;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link BloomFilter#applyAndUpdate(Transaction)} over all transactions of a real block, as a node
+ * serving a filtered block would. The filter holds the given number of wallet keys, plus the pubkey hashes of a few
+ * outputs of the block so that some transactions match. Matching outpoints are inserted on the first invocation, so
+ * later ones see the same filter.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BloomFilterBenchmark {
+    @Param({ "10", "1000" })
+    public int numKeys;
+
+    private List<Transaction> transactions;
+    private BloomFilter filter;
+
+    @Setup
+    public void setUp() throws IOException {
+        Fixtures.propagateContext();
+        Block block = Fixtures.loadBlock(Fixtures.BLOCK_481829);
+        transactions = block.getTransactions();
+        filter = new BloomFilter(numKeys * 2, 0.0001, 1234, BloomFilter.BloomUpdate.UPDATE_P2PUBKEY_ONLY);
+        for (int i = 0; i < numKeys; i++) {
+            ECKey key = ECKey.fromPrivate(BigInteger.valueOf(1000 + i));
+            filter.insert(key.getPubKey());
+            filter.insert(key.getPubKeyHash());
+        }
+        for (int i = 0; i < transactions.size(); i += 100) {
+            for (TransactionOutput output : transactions.get(i).getOutputs()) {
+                Script script = output.getScriptPubKey();
+                if (ScriptPattern.isP2PKH(script)) {
+                    filter.insert(ScriptPattern.extractHashFromP2PKH(script));
+                    break;
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public int applyAndUpdate() {
+        int matched = 0;
+        for (Transaction tx : transactions)
+            if (filter.applyAndUpdate(tx))
+                matched++;
+        return matched;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.params.MainNetParams;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Fixtures shared by the benchmarks. The blocks are copied from the test resources of bitcoinj-core by the build, so
+ * every run measures the same real data.
+ */
+final class Fixtures {
+    static final NetworkParameters PARAMS = MainNetParams.get();
+
+    /** A pre-segwit block with 14 transactions. */
+    static final String BLOCK_169482 = "block169482.dat";
+    /** A full block with 2020 transactions, in the segwit serialization because of its coinbase. */
+    static final String BLOCK_481829 = "block481829.dat";
+
+    private Fixtures() {
+    }
+
+    /** Makes a context current on the calling thread, which parsing transactions needs. */
+    static void propagateContext() {
+        Context.propagate(new Context(PARAMS));
+    }
+
+    static byte[] loadBlockBytes(String name) throws IOException {
+        InputStream stream = Fixtures.class.getResourceAsStream(name);
+        if (stream == null)
+            throw new IOException("Missing fixture " + name);
+        try {
+            return ByteStreams.toByteArray(stream);
+        } finally {
+            stream.close();
+        }
+    }
+
+    static Block loadBlock(String name) throws IOException {
+        return PARAMS.getDefaultSerializer().makeBlock(loadBlockBytes(name));
+    }
+}
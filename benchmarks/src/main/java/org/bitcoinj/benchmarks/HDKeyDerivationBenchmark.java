@@ -0,0 +1,89 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.crypto.ChildNumber;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.crypto.HDKeyDerivation;
+import org.bitcoinj.utils.Threading;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link HDKeyDerivation#deriveChildKey(DeterministicKey, ChildNumber)} from a private parent, hardened and
+ * not, and from a watching parent. The batch benchmarks derive a lookahead zone of 100 keys with
+ * {@link HDKeyDerivation#deriveChildKeys}, which is how the key chains derive their lookahead, on the calling thread
+ * only and in parallel on {@link Threading#THREAD_POOL}. The seed is fixed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HDKeyDerivationBenchmark {
+    private static final ChildNumber CHILD = new ChildNumber(7, false);
+    private static final ChildNumber HARDENED_CHILD = new ChildNumber(7, true);
+    private static final int LOOKAHEAD_SIZE = 100;
+
+    private DeterministicKey parent;
+    private DeterministicKey watchingParent;
+
+    @Setup
+    public void setUp() {
+        byte[] seed = new byte[32];
+        Arrays.fill(seed, (byte) 42);
+        parent = HDKeyDerivation.createMasterPrivateKey(seed);
+        watchingParent = parent.dropPrivateBytes();
+    }
+
+    @Benchmark
+    public DeterministicKey derivePrivate() {
+        return HDKeyDerivation.deriveChildKey(parent, CHILD);
+    }
+
+    @Benchmark
+    public DeterministicKey derivePrivateHardened() {
+        return HDKeyDerivation.deriveChildKey(parent, HARDENED_CHILD);
+    }
+
+    @Benchmark
+    public DeterministicKey derivePublic() {
+        return HDKeyDerivation.deriveChildKey(watchingParent, CHILD);
+    }
+
+    @Benchmark
+    public List<DeterministicKey> deriveLookahead() {
+        return HDKeyDerivation.deriveChildKeys(watchingParent, 0, LOOKAHEAD_SIZE, null);
+    }
+
+    @Benchmark
+    public List<DeterministicKey> deriveLookaheadParallel() {
+        return HDKeyDerivation.deriveChildKeys(watchingParent, 0, LOOKAHEAD_SIZE, Threading.THREAD_POOL);
+    }
+}
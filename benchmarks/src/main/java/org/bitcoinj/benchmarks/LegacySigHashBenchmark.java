@@ -0,0 +1,109 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link Transaction#hashForSignature(int, byte[], byte)}, which streams the simplified transaction into a
+ * digest, with the approach it replaced: reparse the whole transaction, modify the copy and serialize it again. Each
+ * invocation hashes every input of a transaction with SIGHASH_ALL, as signing or verifying it would.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LegacySigHashBenchmark {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+
+    @Param({ "1", "10", "100", "500" })
+    public int numInputs;
+
+    private Transaction tx;
+    private byte[] connectedScript;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        tx = new Transaction(PARAMS);
+        ECKey key = ECKey.fromPrivate(BigInteger.TEN);
+        connectedScript = ScriptBuilder.createP2PKHOutputScript(key).getProgram();
+        byte[] scriptSig = new byte[107]; // typical size of a P2PKH input script
+        for (int i = 0; i < numInputs; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            tx.addInput(Sha256Hash.wrap(hash), i, new ScriptBuilder().data(scriptSig).build());
+        }
+        tx.addOutput(Coin.COIN, key);
+        tx.addOutput(Coin.CENT, key);
+    }
+
+    @Benchmark
+    public void streaming(Blackhole blackhole) {
+        for (int i = 0; i < numInputs; i++)
+            blackhole.consume(tx.hashForSignature(i, connectedScript, Transaction.SigHash.ALL.byteValue()));
+    }
+
+    @Benchmark
+    public void copyAndReserialize(Blackhole blackhole) throws IOException {
+        for (int i = 0; i < numInputs; i++)
+            blackhole.consume(copyBasedHashForSignature(i));
+    }
+
+    /** SIGHASH_ALL the way hashForSignature used to compute it, limited to the public API. */
+    private Sha256Hash copyBasedHashForSignature(int inputIndex) throws IOException {
+        Transaction copy = PARAMS.getDefaultSerializer().makeTransaction(tx.bitcoinSerialize());
+        for (TransactionInput input : copy.getInputs()) {
+            input.clearScriptBytes();
+            input.setWitness(null);
+        }
+        copy.getInput(inputIndex).setScriptSig(new Script(connectedScript));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(copy.getMessageSize() + 4);
+        bos.write(copy.bitcoinSerialize());
+        Utils.uint32ToByteStreamLE(Transaction.SigHash.ALL.value, bos);
+        return Sha256Hash.twiceOf(bos.toByteArray());
+    }
+}
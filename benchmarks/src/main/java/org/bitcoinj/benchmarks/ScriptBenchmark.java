@@ -0,0 +1,95 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.SegwitAddress;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.TransactionWitness;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Script#correctlySpends(Transaction, int, TransactionWitness, Coin, Script,
+ * java.util.Set)} of a P2PKH and a P2WPKH input, including the signature check. The spending transaction is signed
+ * with a fixed key, and signatures are deterministic, so every run verifies the same bytes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScriptBenchmark {
+    @Param({ "P2PKH", "P2WPKH" })
+    public Script.ScriptType scriptType;
+
+    private Transaction tx;
+    private TransactionInput input;
+    private TransactionOutput connectedOutput;
+
+    @Setup
+    public void setUp() {
+        Fixtures.propagateContext();
+        ECKey key = ECKey.fromPrivate(BigInteger.valueOf(1234567));
+        Transaction fundingTx = new Transaction(Fixtures.PARAMS);
+        fundingTx.addInput(Sha256Hash.of(new byte[] { 1 }), 0, new Script(new byte[0]));
+        if (scriptType == Script.ScriptType.P2PKH)
+            fundingTx.addOutput(Coin.COIN, LegacyAddress.fromKey(Fixtures.PARAMS, key));
+        else
+            fundingTx.addOutput(Coin.COIN, SegwitAddress.fromKey(Fixtures.PARAMS, key));
+        connectedOutput = fundingTx.getOutput(0);
+        tx = new Transaction(Fixtures.PARAMS);
+        tx.addOutput(Coin.CENT, LegacyAddress.fromKey(Fixtures.PARAMS, key));
+        if (scriptType == Script.ScriptType.P2PKH) {
+            input = tx.addSignedInput(connectedOutput, key);
+        } else {
+            input = tx.addInput(new TransactionInput(Fixtures.PARAMS, tx, new byte[0], connectedOutput.getOutPointFor(),
+                    connectedOutput.getValue()));
+            Script scriptCode = new ScriptBuilder().data(ScriptBuilder.createP2PKHOutputScript(key).getProgram())
+                    .build();
+            TransactionSignature signature = tx.calculateWitnessSignature(0, key, scriptCode,
+                    connectedOutput.getValue(), Transaction.SigHash.ALL, false);
+            input.setWitness(TransactionWitness.redeemP2WPKH(signature, key));
+        }
+    }
+
+    @Benchmark
+    public void correctlySpends() {
+        input.getScriptSig().correctlySpends(tx, 0, input.getWitness(), connectedOutput.getValue(),
+                connectedOutput.getScriptPubKey(), Script.ALL_VERIFY_FLAGS);
+    }
+}
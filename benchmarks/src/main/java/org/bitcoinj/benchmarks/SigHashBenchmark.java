@@ -0,0 +1,82 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.script.ScriptBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Transaction#hashForSignature(int, byte[], byte)} and
+ * {@link Transaction#hashForWitnessSignature(int, byte[], Coin, byte)} of a real transaction with ten or more inputs.
+ * Each invocation hashes every input with SIGHASH_ALL, as signing or verifying the transaction would.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SigHashBenchmark {
+    private Transaction tx;
+    private byte[] scriptCode;
+
+    @Setup
+    public void setUp() throws IOException {
+        Fixtures.propagateContext();
+        Block block = Fixtures.loadBlock(Fixtures.BLOCK_481829);
+        for (Transaction candidate : block.getTransactions()) {
+            if (candidate.getInputs().size() >= 10) {
+                tx = candidate;
+                break;
+            }
+        }
+        if (tx == null)
+            throw new IllegalStateException("No suitable transaction in " + Fixtures.BLOCK_481829);
+        // The hashes don't depend on whether the script code is the right one.
+        scriptCode = ScriptBuilder.createP2PKHOutputScript(ECKey.fromPrivate(BigInteger.TEN)).getProgram();
+    }
+
+    @Benchmark
+    public void legacy(Blackhole blackhole) {
+        for (int i = 0; i < tx.getInputs().size(); i++)
+            blackhole.consume(tx.hashForSignature(i, scriptCode, Transaction.SigHash.ALL.byteValue()));
+    }
+
+    @Benchmark
+    public void witness(Blackhole blackhole) {
+        for (int i = 0; i < tx.getInputs().size(); i++)
+            blackhole.consume(tx.hashForWitnessSignature(i, scriptCode, Coin.COIN,
+                    Transaction.SigHash.ALL.byteValue()));
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.wallet.Wallet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Wallet#getBalance(Wallet.BalanceType)} of a wallet holding the given number of unspent outputs,
+ * received in blocks of ten transactions. The transactions are generated from a fixed seed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WalletBalanceBenchmark {
+    private static final int TRANSACTIONS_PER_BLOCK = 10;
+
+    @Param({ "100", "10000" })
+    public int numOutputs;
+
+    @Param({ "ESTIMATED", "AVAILABLE_SPENDABLE" })
+    public Wallet.BalanceType balanceType;
+
+    private Wallet wallet;
+
+    @Setup
+    public void setUp() {
+        Fixtures.propagateContext();
+        wallet = Wallet.createDeterministic(Fixtures.PARAMS, Script.ScriptType.P2PKH);
+        Random random = new Random(1);
+        Block header = Fixtures.PARAMS.getGenesisBlock().cloneAsHeader();
+        for (int height = 1; height <= (numOutputs + TRANSACTIONS_PER_BLOCK - 1) / TRANSACTIONS_PER_BLOCK; height++) {
+            header.setNonce(height);
+            StoredBlock block = new StoredBlock(header, BigInteger.valueOf(height), height);
+            for (int i = 0; i < TRANSACTIONS_PER_BLOCK; i++) {
+                byte[] prevTxHash = new byte[32];
+                random.nextBytes(prevTxHash);
+                Transaction tx = new Transaction(Fixtures.PARAMS);
+                tx.addInput(Sha256Hash.wrap(prevTxHash), 0, new Script(new byte[0]));
+                tx.addOutput(Coin.valueOf(1000 + random.nextInt(1000000)), wallet.freshReceiveAddress());
+                wallet.receiveFromBlock(tx, block, AbstractBlockChain.NewBlockType.BEST_CHAIN, i);
+            }
+            wallet.notifyNewBestBlock(block);
+        }
+    }
+
+    @Benchmark
+    public Coin getBalance() {
+        return wallet.getBalance(balanceType);
+    }
+}
@@ -163,12 +163,24 @@ public class BitcoinSerializer extends MessageSerializer {
      */
     @Override
     public Message deserializePayload(BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
-        byte[] payloadBytes = new byte[header.size];
-        in.get(payloadBytes, 0, header.size);
+        if (in.remaining() < header.size)
+            throw new BufferUnderflowException();
+        boolean inPlace = deserializesInPlace(header, in);
+        byte[] payloadBytes;
+        int offset;
+        if (inPlace) {
+            payloadBytes = in.array();
+            offset = in.arrayOffset() + in.position();
+            in.position(in.position() + header.size);
+        } else {
+            payloadBytes = new byte[header.size];
+            offset = 0;
+            in.get(payloadBytes, 0, header.size);
+        }
 
         // Verify the checksum.
         byte[] hash;
-        hash = Sha256Hash.hashTwice(payloadBytes);
+        hash = Sha256Hash.hashTwice(payloadBytes, offset, header.size);
         if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
                 header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
             throw new ProtocolException("Checksum failed to verify, actual " +
@@ -178,16 +190,38 @@ public class BitcoinSerializer extends MessageSerializer {
 
         if (log.isDebugEnabled()) {
             log.debug("Received {} byte '{}' message: {}", header.size, header.command,
-                    HEX.encode(payloadBytes));
+                    HEX.encode(payloadBytes, offset, header.size));
         }
 
         try {
-            return makeMessage(header.command, header.size, payloadBytes, hash, header.checksum);
+            if (!inPlace)
+                return makeMessage(header.command, header.size, payloadBytes, hash, header.checksum);
+            Message message;
+            if (header.command.equals("block"))
+                message = makeBlock(payloadBytes, offset, header.size);
+            else
+                message = makeTransaction(payloadBytes, offset, header.size, hash);
+            // The parser only checks the bounds of the array, which may hold the following messages as well.
+            if (message.getMessageSize() > header.size)
+                throw new ProtocolException("Message is larger than its header says: " + message.getMessageSize()
+                        + " > " + header.size);
+            return message;
         } catch (Exception e) {
-            throw new ProtocolException("Error deserializing message " + HEX.encode(payloadBytes) + "\n", e);
+            throw new ProtocolException("Error deserializing message " +
+                    HEX.encode(payloadBytes, offset, header.size) + "\n", e);
         }
     }
 
+    /**
+     * Blocks and transactions are parsed straight from the buffer if it is backed by an array, unless the serializer is
+     * in parse-retain mode. Their payload is usually the largest, and retained messages must not keep a reference to the
+     * buffer.
+     */
+    @Override
+    public boolean deserializesInPlace(BitcoinPacketHeader header, ByteBuffer in) {
+        return !parseRetain && in.hasArray() && (header.command.equals("block") || header.command.equals("tx"));
+    }
+
     private Message makeMessage(String command, int length, byte[] payloadBytes, byte[] hash, byte[] checksum) throws ProtocolException {
         // We use an if ladder rather than reflection because reflection is very slow on Android.
         Message message;
@@ -230,7 +230,8 @@ public class Block extends Message {
     protected void parseTransactions(final int transactionsOffset) throws ProtocolException {
         cursor = transactionsOffset;
         optimalEncodingMessageSize = HEADER_SIZE;
-        if (payload.length == cursor) {
+        // The payload may be a slice of a larger buffer, in which case its length is known.
+        if (payload.length == cursor || (length != UNKNOWN_LENGTH && offset + length == cursor)) {
             // This message is just a header, it has no transactions.
             transactionBytesValid = false;
             return;
@@ -17,11 +17,13 @@
 
 package org.bitcoinj.core;
 
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.bitcoinj.script.Script;
 import org.bitcoinj.script.Script.VerifyFlag;
 import org.bitcoinj.script.ScriptPattern;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.FullPrunedBlockStore;
+import org.bitcoinj.store.UTXOPrefetcher;
 import org.bitcoinj.utils.*;
 import org.bitcoinj.wallet.Wallet;
 import org.bitcoinj.wallet.WalletExtension;
@@ -30,13 +32,20 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.io.File;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Locale;
 import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
@@ -148,39 +157,227 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
 
     // TODO: Remove lots of duplicated code in the two connectTransactions
 
-    // TODO: execute in order of largest transaction (by input count) first
-    ExecutorService scriptVerificationExecutor = Executors.newFixedThreadPool(
-            Runtime.getRuntime().availableProcessors(), new ContextPropagatingThreadFactory("Script verification"));
+    /** Default number of inputs verified by one task. */
+    public static final int DEFAULT_SCRIPT_VERIFICATION_BATCH_SIZE = 16;
+
+    private ExecutorService scriptVerificationExecutor = createScriptVerificationExecutor();
+    private int scriptVerificationBatchSize = DEFAULT_SCRIPT_VERIFICATION_BATCH_SIZE;
+    @Nullable private volatile ScriptVerificationStats lastScriptVerificationStats;
+
+    /**
+     * Sets the executor that verifies scripts. Inputs are verified in batches of
+     * {@link #setScriptVerificationBatchSize(int)}, so a block dominated by a single large transaction still uses all
+     * threads of the executor. {@link #importBlocks(Iterator, int)} also uses it to prepare the blocks ahead. The executor
+     * is never shut down by this class, so it can be shared, for example between several chains. By default each chain
+     * uses its own work-stealing pool with one thread per processor.
+     */
+    public void setScriptVerificationExecutor(ExecutorService executor) {
+        this.scriptVerificationExecutor = checkNotNull(executor);
+    }
+
+    /**
+     * Sets how many inputs are verified by one task submitted to the script verification executor. Larger batches
+     * amortize the scheduling overhead, smaller ones spread the work of small blocks more evenly.
+     */
+    public void setScriptVerificationBatchSize(int batchSize) {
+        checkArgument(batchSize > 0, "batch size must be positive");
+        this.scriptVerificationBatchSize = batchSize;
+    }
+
+    /**
+     * Returns statistics about the script verification of the most recently connected block, or null if no scripts
+     * have been verified yet.
+     */
+    @Nullable
+    public ScriptVerificationStats getLastScriptVerificationStats() {
+        return lastScriptVerificationStats;
+    }
+
+    private static ExecutorService createScriptVerificationExecutor() {
+        ForkJoinPool.ForkJoinWorkerThreadFactory threadFactory = new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("Script verification " + thread.getPoolIndex());
+                return thread;
+            }
+        };
+        return new ForkJoinPool(Runtime.getRuntime().availableProcessors(), threadFactory,
+                Threading.uncaughtExceptionHandler, false);
+    }
+
+    /**
+     * Statistics about the script verification of one block.
+     */
+    public static class ScriptVerificationStats {
+        private final int inputs;
+        private final int batches;
+        private final long waitNanos;
+        private final long workerNanos;
+
+        ScriptVerificationStats(int inputs, int batches, long waitNanos, long workerNanos) {
+            this.inputs = inputs;
+            this.batches = batches;
+            this.waitNanos = waitNanos;
+            this.workerNanos = workerNanos;
+        }
+
+        /** Number of inputs whose scripts were verified. */
+        public int getInputs() {
+            return inputs;
+        }
+
+        /** Number of tasks the inputs were split into. */
+        public int getBatches() {
+            return batches;
+        }
+
+        /**
+         * How long connecting the block waited for script verification to finish, after all transactions had been
+         * connected.
+         */
+        public long getWaitTime(TimeUnit unit) {
+            return unit.convert(waitNanos, TimeUnit.NANOSECONDS);
+        }
+
+        /** Time spent verifying scripts, summed over all threads. */
+        public long getWorkerTime(TimeUnit unit) {
+            return unit.convert(workerNanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d inputs in %d batches, %d ms waiting, %d ms worker time", inputs,
+                    batches, getWaitTime(TimeUnit.MILLISECONDS), getWorkerTime(TimeUnit.MILLISECONDS));
+        }
+    }
 
     /**
-     * A job submitted to the executor which verifies signatures.
+     * A job submitted to the executor which verifies the signatures of a batch of inputs, possibly spanning several
+     * transactions. It stops early if any other batch of the same block has already failed.
      */
     private static class Verifier implements Callable<VerificationException> {
-        final Transaction tx;
-        final List<Script> prevOutScripts;
-        final Set<VerifyFlag> verifyFlags;
-
-        public Verifier(final Transaction tx, final List<Script> prevOutScripts, final Set<VerifyFlag> verifyFlags) {
-            this.tx = tx;
-            this.prevOutScripts = prevOutScripts;
-            this.verifyFlags = verifyFlags;
+        private final Context context;
+        private final Transaction[] txs;
+        private final int[] indexes;
+        private final Script[] prevOutScripts;
+        private final List<Set<VerifyFlag>> verifyFlags;
+        private final AtomicBoolean failed;
+        private final AtomicLong workerNanos;
+
+        public Verifier(Context context, int size, AtomicBoolean failed, AtomicLong workerNanos) {
+            this.context = context;
+            this.txs = new Transaction[size];
+            this.indexes = new int[size];
+            this.prevOutScripts = new Script[size];
+            this.verifyFlags = new ArrayList<>(size);
+            this.failed = failed;
+            this.workerNanos = workerNanos;
+        }
+
+        /** Adds an input to this batch, returns true if the batch is now full. */
+        boolean add(Transaction tx, int index, Script prevOutScript, Set<VerifyFlag> flags) {
+            int i = verifyFlags.size();
+            txs[i] = tx;
+            indexes[i] = index;
+            prevOutScripts[i] = prevOutScript;
+            verifyFlags.add(flags);
+            return verifyFlags.size() == txs.length;
+        }
+
+        boolean isEmpty() {
+            return verifyFlags.isEmpty();
         }
 
         @Nullable
         @Override
         public VerificationException call() throws Exception {
+            Context.propagate(context);
+            long start = System.nanoTime();
             try {
-                ListIterator<Script> prevOutIt = prevOutScripts.listIterator();
-                for (int index = 0; index < tx.getInputs().size(); index++) {
-                    tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutIt.next(), verifyFlags);
+                for (int i = 0; i < verifyFlags.size(); i++) {
+                    if (failed.get())
+                        return null; // Another batch failed, so the block is invalid anyway.
+                    Transaction tx = txs[i];
+                    tx.getInput(indexes[i]).getScriptSig().correctlySpends(tx, indexes[i], prevOutScripts[i],
+                            verifyFlags.get(i));
                 }
             } catch (VerificationException e) {
+                failed.set(true);
                 return e;
+            } catch (Exception e) {
+                failed.set(true);
+                throw e;
+            } finally {
+                workerNanos.addAndGet(System.nanoTime() - start);
             }
             return null;
         }
     }
 
+    /**
+     * Collects the inputs of a block into batches and submits each batch as soon as it is full, so that scripts are
+     * verified while the remaining transactions of the block are being connected.
+     */
+    private class BlockScriptVerifier {
+        private final AtomicBoolean failed = new AtomicBoolean();
+        private final AtomicLong workerNanos = new AtomicLong();
+        private final List<FutureTask<VerificationException>> futures = new ArrayList<>();
+        private final Context context = Context.get();
+        private final int batchSize = scriptVerificationBatchSize;
+        private Verifier batch = new Verifier(context, batchSize, failed, workerNanos);
+        private int inputs;
+
+        /** Queues all inputs of the given transaction for verification against the scripts they spend. */
+        void add(Transaction tx, List<Script> prevOutScripts, Set<VerifyFlag> verifyFlags) {
+            for (int index = 0; index < prevOutScripts.size(); index++) {
+                inputs++;
+                if (batch.add(tx, index, prevOutScripts.get(index), verifyFlags))
+                    submitBatch();
+            }
+        }
+
+        private void submitBatch() {
+            FutureTask<VerificationException> future = new FutureTask<>(batch);
+            scriptVerificationExecutor.execute(future);
+            futures.add(future);
+            batch = new Verifier(context, batchSize, failed, workerNanos);
+        }
+
+        /** Waits for all batches and throws the first failure found. */
+        void await() throws VerificationException {
+            if (!batch.isEmpty())
+                submitBatch();
+            long start = System.nanoTime();
+            for (Future<VerificationException> future : futures) {
+                VerificationException e;
+                try {
+                    e = future.get();
+                } catch (InterruptedException thrownE) {
+                    throw new RuntimeException(thrownE); // Shouldn't happen
+                } catch (ExecutionException thrownE) {
+                    log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
+                    throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
+                }
+                if (e != null)
+                    throw e;
+            }
+            if (inputs > 0) {
+                ScriptVerificationStats stats = new ScriptVerificationStats(inputs, futures.size(),
+                        System.nanoTime() - start, workerNanos.get());
+                lastScriptVerificationStats = stats;
+                log.debug("Script verification: {}", stats);
+            }
+        }
+
+        /** Stops all outstanding work, because the block has turned out to be invalid. */
+        void cancel() {
+            failed.set(true);
+            for (Future<VerificationException> future : futures)
+                future.cancel(false);
+        }
+    }
+
     /**
      * Get the {@link Script} from the script bytes or return Script of empty byte array.
      */
@@ -209,6 +406,121 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         return address;
     }
 
+    // Blocks prepared by importBlocks, by hash. Entries are removed when the block is connected.
+    private final ConcurrentHashMap<Sha256Hash, PreparedBlock> preparedBlocks = new ConcurrentHashMap<>();
+
+    /** The scripts and addresses of the outputs of a block, by transaction and output index. */
+    private static class PreparedBlock {
+        final Block block;
+        final Script[][] scripts;
+        final String[][] addresses;
+
+        PreparedBlock(Block block, Script[][] scripts, String[][] addresses) {
+            this.block = block;
+            this.scripts = scripts;
+            this.addresses = addresses;
+        }
+    }
+
+    /**
+     * <p>Adds the given blocks in order, like {@link #add(Block)} does, and returns how many of them were added. This
+     * is meant for importing blocks that are already on disk, for example from a
+     * {@link org.bitcoinj.utils.BlockFileLoader}.</p>
+     *
+     * <p>Each block is still connected and committed to the store before the next one, because the next block can
+     * spend its outputs. The work that doesn't depend on the chain is done for up to {@code lookahead} blocks ahead on
+     * the script verification executor, see {@link #setScriptVerificationExecutor(ExecutorService)}: hashing the
+     * transactions, parsing the scripts of their outputs and, if the store is a {@link UTXOPrefetcher}, loading the
+     * outputs they spend from previous blocks.</p>
+     */
+    public int importBlocks(Iterator<Block> blocks, int lookahead) throws VerificationException, PrunedException {
+        checkArgument(lookahead > 0, "lookahead must be positive");
+        Context context = Context.get();
+        ArrayDeque<FutureTask<Block>> pending = new ArrayDeque<>();
+        int added = 0;
+        try {
+            while (true) {
+                while (pending.size() < lookahead && blocks.hasNext()) {
+                    FutureTask<Block> future = new FutureTask<>(new BlockPreparer(context, blocks.next()));
+                    scriptVerificationExecutor.execute(future);
+                    pending.add(future);
+                }
+                FutureTask<Block> future = pending.poll();
+                if (future == null)
+                    return added;
+                Block block;
+                try {
+                    block = Uninterruptibles.getUninterruptibly(future);
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+                if (add(block))
+                    added++;
+                // In case the block wasn't connected, as an orphan or on a side chain.
+                preparedBlocks.remove(block.getHash());
+            }
+        } finally {
+            // The executor is shared, so instead of stopping it, let the blocks still being prepared finish before
+            // forgetting them.
+            for (FutureTask<Block> future : pending) {
+                try {
+                    Uninterruptibles.getUninterruptibly(future);
+                } catch (ExecutionException e) {
+                    // Only the blocks that are added matter.
+                }
+            }
+            preparedBlocks.clear();
+        }
+    }
+
+    private class BlockPreparer implements Callable<Block> {
+        private final Context context;
+        private final Block block;
+
+        BlockPreparer(Context context, Block block) {
+            this.context = context;
+            this.block = block;
+        }
+
+        @Override
+        public Block call() {
+            Context.propagate(context);
+            List<Transaction> transactions = block.getTransactions();
+            if (transactions == null)
+                return block;
+            Script[][] scripts = new Script[transactions.size()][];
+            String[][] addresses = new String[transactions.size()][];
+            Set<Sha256Hash> txIds = new HashSet<>();
+            for (int i = 0; i < transactions.size(); i++) {
+                List<TransactionOutput> outputs = transactions.get(i).getOutputs();
+                scripts[i] = new Script[outputs.size()];
+                addresses[i] = new String[outputs.size()];
+                for (int j = 0; j < outputs.size(); j++) {
+                    scripts[i][j] = getScript(outputs.get(j).getScriptBytes());
+                    addresses[i][j] = getScriptAddress(scripts[i][j]);
+                }
+                txIds.add(transactions.get(i).getTxId());
+            }
+            preparedBlocks.put(block.getHash(), new PreparedBlock(block, scripts, addresses));
+            if (blockStore instanceof UTXOPrefetcher) {
+                // Outputs created within the block aren't in the store yet.
+                List<TransactionOutPoint> outPoints = new ArrayList<>();
+                for (Transaction tx : transactions)
+                    if (!tx.isCoinBase())
+                        for (TransactionInput input : tx.getInputs())
+                            if (!txIds.contains(input.getOutpoint().getHash()))
+                                outPoints.add(input.getOutpoint());
+                try {
+                    ((UTXOPrefetcher) blockStore).prefetchTransactionOutputs(outPoints);
+                } catch (BlockStoreException e) {
+                    // Only slows down connecting the block, which will fail properly if the store is broken.
+                    log.warn("Failed to prefetch the outputs spent by block {}", block.getHash(), e);
+                }
+            }
+            return block;
+        }
+    }
+
     @Override
     protected TransactionOutputChanges connectTransactions(int height, Block block)
             throws VerificationException, BlockStoreException {
@@ -224,10 +536,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         LinkedList<UTXO> txOutsCreated = new LinkedList<>();
         long sigOps = 0;
 
-        if (scriptVerificationExecutor.isShutdown())
-            scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-
-        List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<>(block.getTransactions().size());
+        BlockScriptVerifier scriptVerifier = new BlockScriptVerifier();
         try {
             if (!params.isCheckpoint(height)) {
                 // BIP30 violator blocks are ones that contain a duplicated transaction. They are all in the
@@ -246,11 +555,15 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             }
             Coin totalFees = Coin.ZERO;
             Coin coinbaseValue = null;
+            PreparedBlock prepared = preparedBlocks.remove(block.getHash());
+            if (prepared != null && prepared.block != block)
+                prepared = null;
+            int txIndex = 0;
             for (final Transaction tx : block.getTransactions()) {
                 boolean isCoinBase = tx.isCoinBase();
                 Coin valueIn = Coin.ZERO;
                 Coin valueOut = Coin.ZERO;
-                final List<Script> prevOutScripts = new LinkedList<>();
+                final List<Script> prevOutScripts = new ArrayList<>(tx.getInputs().size());
                 final Set<VerifyFlag> verifyFlags = params.getTransactionVerificationFlags(block, tx, getVersionTally(), height);
                 if (!isCoinBase) {
                     // For each input of the transaction remove the corresponding output from the set of unspent
@@ -287,13 +600,21 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 for (TransactionOutput out : tx.getOutputs()) {
                     valueOut = valueOut.add(out.getValue());
                     // For each output, add it to the set of unspent outputs so it can be consumed in future.
-                    Script script = getScript(out.getScriptBytes());
+                    Script script;
+                    String address;
+                    if (prepared != null) {
+                        script = prepared.scripts[txIndex][out.getIndex()];
+                        address = prepared.addresses[txIndex][out.getIndex()];
+                    } else {
+                        script = getScript(out.getScriptBytes());
+                        address = getScriptAddress(script);
+                    }
                     UTXO newOut = new UTXO(hash,
                             out.getIndex(),
                             out.getValue(),
                             height, isCoinBase,
                             script,
-                            getScriptAddress(script));
+                            address);
                     blockStore.addUnspentTransactionOutput(newOut);
                     txOutsCreated.add(newOut);
                 }
@@ -309,34 +630,19 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     totalFees = totalFees.add(valueIn.subtract(valueOut));
                 }
 
-                if (!isCoinBase && runScripts) {
-                    // Because correctlySpends modifies transactions, this must come after we are done with tx
-                    FutureTask<VerificationException> future = new FutureTask<>(new Verifier(tx, prevOutScripts, verifyFlags));
-                    scriptVerificationExecutor.execute(future);
-                    listScriptVerificationResults.add(future);
-                }
+                if (!isCoinBase && runScripts)
+                    scriptVerifier.add(tx, prevOutScripts, verifyFlags);
+                txIndex++;
             }
             if (totalFees.compareTo(params.getMaxMoney()) > 0 || block.getBlockInflation(height).add(totalFees).compareTo(coinbaseValue) < 0)
                 throw new VerificationException("Transaction fees out of range");
-            for (Future<VerificationException> future : listScriptVerificationResults) {
-                VerificationException e;
-                try {
-                    e = future.get();
-                } catch (InterruptedException thrownE) {
-                    throw new RuntimeException(thrownE); // Shouldn't happen
-                } catch (ExecutionException thrownE) {
-                    log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                    throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                }
-                if (e != null)
-                    throw e;
-            }
+            scriptVerifier.await();
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scriptVerifier.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scriptVerifier.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
@@ -361,6 +667,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             throw new PrunedException(newBlock.getHeader().getHash());
         }
         TransactionOutputChanges txOutChanges;
+        BlockScriptVerifier scriptVerifier = new BlockScriptVerifier();
         try {
             List<Transaction> transactions = block.getTransactions();
             if (transactions != null) {
@@ -378,16 +685,13 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 Coin totalFees = Coin.ZERO;
                 Coin coinbaseValue = null;
 
-                if (scriptVerificationExecutor.isShutdown())
-                    scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-                List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<>(transactions.size());
                 for (final Transaction tx : transactions) {
                     final Set<VerifyFlag> verifyFlags =
                         params.getTransactionVerificationFlags(newBlock.getHeader(), tx, getVersionTally(), Integer.SIZE);
                     boolean isCoinBase = tx.isCoinBase();
                     Coin valueIn = Coin.ZERO;
                     Coin valueOut = Coin.ZERO;
-                    final List<Script> prevOutScripts = new LinkedList<>();
+                    final List<Script> prevOutScripts = new ArrayList<>(tx.getInputs().size());
 
                     if (!isCoinBase) {
                         for (int index = 0; index < tx.getInputs().size(); index++) {
@@ -440,30 +744,14 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                         totalFees = totalFees.add(valueIn.subtract(valueOut));
                     }
 
-                    if (!isCoinBase) {
-                        // Because correctlySpends modifies transactions, this must come after we are done with tx
-                        FutureTask<VerificationException> future = new FutureTask<>(new Verifier(tx, prevOutScripts, verifyFlags));
-                        scriptVerificationExecutor.execute(future);
-                        listScriptVerificationResults.add(future);
-                    }
+                    if (!isCoinBase)
+                        scriptVerifier.add(tx, prevOutScripts, verifyFlags);
                 }
                 if (totalFees.compareTo(params.getMaxMoney()) > 0 ||
                         newBlock.getHeader().getBlockInflation(newBlock.getHeight()).add(totalFees).compareTo(coinbaseValue) < 0)
                     throw new VerificationException("Transaction fees out of range");
                 txOutChanges = new TransactionOutputChanges(txOutsCreated, txOutsSpent);
-                for (Future<VerificationException> future : listScriptVerificationResults) {
-                    VerificationException e;
-                    try {
-                        e = future.get();
-                    } catch (InterruptedException thrownE) {
-                        throw new RuntimeException(thrownE); // Shouldn't happen
-                    } catch (ExecutionException thrownE) {
-                        log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                        throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                    }
-                    if (e != null)
-                        throw e;
-                }
+                scriptVerifier.await();
             } else {
                 txOutChanges = block.getTxOutChanges();
                 if (!params.isCheckpoint(newBlock.getHeight()))
@@ -478,11 +766,11 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     blockStore.removeUnspentTransactionOutput(out);
             }
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scriptVerifier.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scriptVerifier.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
@@ -0,0 +1,166 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.core.Transaction.SigHash;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptOpCodes;
+
+import java.security.MessageDigest;
+import java.util.List;
+
+/**
+ * <p>Computes pre-segwit signature hashes by writing the simplified form of a transaction straight into a digest.
+ * The result is identical to serializing a modified copy of the transaction, as Bitcoin Core's SignatureHash does,
+ * but nothing is copied or reparsed. Signing or verifying all inputs of a transaction is therefore linear in its
+ * size rather than quadratic.</p>
+ *
+ * <p>Each thread reuses its own writer, so instances are never shared.</p>
+ */
+final class LegacySigHashWriter {
+    /**
+     * What Bitcoin Core returns for SIGHASH_SINGLE when there is no output at the index of the input. It is an error
+     * code that was never checked for, so it has become part of consensus.
+     */
+    static final Sha256Hash SIGHASH_SINGLE_BUG_HASH =
+            Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000");
+
+    private static final ThreadLocal<LegacySigHashWriter> WRITERS = new ThreadLocal<LegacySigHashWriter>() {
+        @Override
+        protected LegacySigHashWriter initialValue() {
+            return new LegacySigHashWriter();
+        }
+    };
+
+    private static final byte[] EMPTY_ARRAY = new byte[0];
+
+    private final MessageDigest digest = Sha256Hash.newDigest();
+    private final byte[] scratch = new byte[Sha256Hash.LENGTH];
+
+    private LegacySigHashWriter() {
+    }
+
+    /**
+     * Calculates the legacy signature hash of the given input. See
+     * {@link Transaction#hashForSignature(int, byte[], byte)} for the meaning of the parameters.
+     */
+    static Sha256Hash hashForSignature(Transaction tx, int inputIndex, byte[] connectedScript, byte sigHashType) {
+        return WRITERS.get().hash(tx, inputIndex, connectedScript, sigHashType);
+    }
+
+    private Sha256Hash hash(Transaction tx, int inputIndex, byte[] connectedScript, byte sigHashType) {
+        List<TransactionInput> inputs = tx.getInputs();
+        List<TransactionOutput> outputs = tx.getOutputs();
+        int basicSigHashType = sigHashType & 0x1f;
+        boolean hashNone = basicSigHashType == SigHash.NONE.value;
+        boolean hashSingle = basicSigHashType == SigHash.SINGLE.value;
+        boolean anyoneCanPay = (sigHashType & SigHash.ANYONECANPAY.value) == SigHash.ANYONECANPAY.value;
+        TransactionInput signedInput = inputs.get(inputIndex);
+        // OP_CODESEPARATOR is deleted from the connected script to stay in sync with Bitcoin Core, see the comment in
+        // Transaction.hashForSignature() for the history.
+        byte[] scriptCode = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
+        if (hashSingle && inputIndex >= outputs.size())
+            return SIGHASH_SINGLE_BUG_HASH;
+
+        digest.reset();
+        writeUint32(tx.getVersion());
+        if (anyoneCanPay) {
+            writeVarInt(1);
+            writeInput(signedInput, scriptCode, signedInput.getSequenceNumber());
+        } else {
+            writeVarInt(inputs.size());
+            for (int i = 0; i < inputs.size(); i++) {
+                TransactionInput input = inputs.get(i);
+                if (i == inputIndex)
+                    writeInput(input, scriptCode, input.getSequenceNumber());
+                else
+                    // With NONE and SINGLE other parties may issue new versions of their inputs.
+                    writeInput(input, EMPTY_ARRAY,
+                            hashNone || hashSingle ? 0 : input.getSequenceNumber());
+            }
+        }
+        if (hashNone) {
+            writeVarInt(0);
+        } else if (hashSingle) {
+            // Outputs before the one matching the input are "nulled out" with a value of -1 and an empty script,
+            // outputs after it are dropped.
+            writeVarInt(inputIndex + 1);
+            for (int i = 0; i < inputIndex; i++) {
+                writeInt64(-1);
+                writeVarInt(0);
+            }
+            writeOutput(outputs.get(inputIndex));
+        } else {
+            writeVarInt(outputs.size());
+            for (TransactionOutput output : outputs)
+                writeOutput(output);
+        }
+        writeUint32(tx.getLockTime());
+        // The hash type is actually an unsigned char, but is written as a uint32.
+        writeUint32(0x000000ff & sigHashType);
+
+        byte[] first = digest.digest();
+        return Sha256Hash.wrap(digest.digest(first));
+    }
+
+    private void writeInput(TransactionInput input, byte[] scriptBytes, long sequence) {
+        TransactionOutPoint outpoint = input.getOutpoint();
+        byte[] hash = outpoint.getHash().getBytes();
+        for (int i = 0; i < Sha256Hash.LENGTH; i++)
+            scratch[i] = hash[Sha256Hash.LENGTH - 1 - i];
+        digest.update(scratch, 0, Sha256Hash.LENGTH);
+        writeUint32(outpoint.getIndex());
+        writeVarInt(scriptBytes.length);
+        digest.update(scriptBytes);
+        writeUint32(sequence);
+    }
+
+    private void writeOutput(TransactionOutput output) {
+        writeInt64(output.getValue().value);
+        byte[] scriptBytes = output.getScriptBytes();
+        writeVarInt(scriptBytes.length);
+        digest.update(scriptBytes);
+    }
+
+    private void writeUint32(long val) {
+        Utils.uint32ToByteArrayLE(val, scratch, 0);
+        digest.update(scratch, 0, 4);
+    }
+
+    private void writeInt64(long val) {
+        Utils.int64ToByteArrayLE(val, scratch, 0);
+        digest.update(scratch, 0, 8);
+    }
+
+    private void writeVarInt(long val) {
+        if (val < 0xfd) {
+            digest.update((byte) val);
+        } else if (val <= 0xffff) {
+            scratch[0] = (byte) 0xfd;
+            Utils.uint16ToByteArrayLE((int) val, scratch, 1);
+            digest.update(scratch, 0, 3);
+        } else if (val <= 0xffffffffL) {
+            scratch[0] = (byte) 0xfe;
+            Utils.uint32ToByteArrayLE(val, scratch, 1);
+            digest.update(scratch, 0, 5);
+        } else {
+            scratch[0] = (byte) 0xff;
+            Utils.int64ToByteArrayLE(val, scratch, 1);
+            digest.update(scratch, 0, 9);
+        }
+    }
+}
@@ -46,6 +46,15 @@ public abstract class MessageSerializer {
      */
     public abstract Message deserializePayload(BitcoinSerializer.BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException, UnsupportedOperationException;
 
+    /**
+     * Whether {@link #deserializePayload(BitcoinSerializer.BitcoinPacketHeader, ByteBuffer)} parses the payload of the
+     * given message straight from the array backing the buffer, rather than copying it first. The returned message
+     * doesn't refer to the buffer either way, so the buffer can be reused as soon as the message was deserialized.
+     */
+    public boolean deserializesInPlace(BitcoinSerializer.BitcoinPacketHeader header, ByteBuffer in) {
+        return false;
+    }
+
     /**
      * Whether the serializer will produce cached mode Messages
      */
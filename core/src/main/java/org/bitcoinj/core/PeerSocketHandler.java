@@ -20,6 +20,7 @@ import org.bitcoinj.net.AbstractTimeoutHandler;
 import org.bitcoinj.net.MessageWriteTarget;
 import org.bitcoinj.net.NioClient;
 import org.bitcoinj.net.NioClientManager;
+import org.bitcoinj.net.QueuedMessageWriteTarget;
 import org.bitcoinj.net.StreamConnection;
 import org.bitcoinj.utils.Threading;
 import com.google.common.annotations.VisibleForTesting;
@@ -33,6 +34,7 @@ import java.net.InetSocketAddress;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.NotYetConnectedException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 
 import static com.google.common.base.Preconditions.*;
@@ -53,11 +55,18 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
 
     // The ByteBuffers passed to us from the writeTarget are static in size, and usually smaller than some messages we
     // will receive. For SPV clients, this should be rare (ie we're mostly dealing with small transactions), but for
-    // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes.
+    // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes. It is taken
+    // from the pool shared by all peers, and given back once the message is parsed.
     private byte[] largeReadBuffer;
     private int largeReadBufferPos;
     private BitcoinSerializer.BitcoinPacketHeader header;
 
+    // Counters of the received messages and the payload bytes copied or allocated for them, see the getters.
+    private final AtomicLong messagesReceived = new AtomicLong();
+    private final AtomicLong messagesParsedInPlace = new AtomicLong();
+    private final AtomicLong payloadBytesCopied = new AtomicLong();
+    private final AtomicLong readBufferBytesAllocated = new AtomicLong();
+
     private Lock lock = Threading.lock("PeerSocketHandler");
 
     public PeerSocketHandler(NetworkParameters params, InetSocketAddress remoteIp) {
@@ -95,6 +104,21 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         }
     }
 
+    /**
+     * Returns how many bytes of the messages sent to the peer are still queued, waiting for the network to take them.
+     * A queue that keeps growing means the peer doesn't read as fast as we send.
+     */
+    public long getOutboundQueueBytes() {
+        lock.lock();
+        try {
+            // Write targets that don't report their queue are taken to have none.
+            return writeTarget instanceof QueuedMessageWriteTarget
+                    ? ((QueuedMessageWriteTarget) writeTarget).getOutboundQueueBytes() : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Closes the connection to the peer if one exists, or immediately closes the connection as soon as it opens
      */
@@ -135,15 +159,23 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                     // This can only happen in the first iteration
                     checkState(firstMessage);
                     // Read new bytes into the largeReadBuffer
-                    int bytesToGet = Math.min(buff.remaining(), largeReadBuffer.length - largeReadBufferPos);
+                    int bytesToGet = Math.min(buff.remaining(), header.size - largeReadBufferPos);
                     buff.get(largeReadBuffer, largeReadBufferPos, bytesToGet);
                     largeReadBufferPos += bytesToGet;
                     // Check the largeReadBuffer's status
-                    if (largeReadBufferPos == largeReadBuffer.length) {
+                    if (largeReadBufferPos == header.size) {
                         // ...processing a message if one is available
-                        processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
+                        byte[] buffer = largeReadBuffer;
                         largeReadBuffer = null;
+                        Message message;
+                        try {
+                            message = deserializePayload(header, ByteBuffer.wrap(buffer, 0, header.size));
+                        } finally {
+                            // Parsed messages don't refer to the buffer, see BitcoinSerializer.
+                            ReadBufferPool.SHARED.give(buffer);
+                        }
                         header = null;
+                        processMessage(message);
                         firstMessage = false;
                     } else // ...or just returning if we don't have enough bytes yet
                         return buff.position();
@@ -152,7 +184,8 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                 Message message;
                 int preSerializePosition = buff.position();
                 try {
-                    message = serializer.deserialize(buff);
+                    serializer.seekPastMagicBytes(buff);
+                    message = deserializePayload(serializer.deserializeHeader(buff), buff);
                 } catch (BufferUnderflowException e) {
                     // If we went through the whole buffer without a full message, we need to use the largeReadBuffer
                     if (firstMessage && buff.limit() == buff.capacity()) {
@@ -163,7 +196,7 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                             header = serializer.deserializeHeader(buff);
                             // Initialize the largeReadBuffer with the next message's size and fill it with any bytes
                             // left in buff
-                            largeReadBuffer = new byte[header.size];
+                            largeReadBuffer = takeReadBuffer(header.size);
                             largeReadBufferPos = buff.remaining();
                             buff.get(largeReadBuffer, 0, largeReadBufferPos);
                         } catch (BufferUnderflowException e1) {
@@ -190,6 +223,53 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         }
     }
 
+    private Message deserializePayload(BitcoinSerializer.BitcoinPacketHeader header, ByteBuffer buff) throws Exception {
+        boolean inPlace = serializer.deserializesInPlace(header, buff);
+        Message message = serializer.deserializePayload(header, buff);
+        messagesReceived.incrementAndGet();
+        if (inPlace)
+            messagesParsedInPlace.incrementAndGet();
+        else
+            payloadBytesCopied.addAndGet(header.size);
+        return message;
+    }
+
+    /** Returns a buffer for a message of the given size, from the shared pool if it has one large enough. */
+    private byte[] takeReadBuffer(int size) {
+        byte[] buffer = ReadBufferPool.SHARED.take(size);
+        if (buffer != null)
+            return buffer;
+        readBufferBytesAllocated.addAndGet(size);
+        return new byte[size];
+    }
+
+    /** Returns the number of messages received from the peer so far. */
+    public long getMessagesReceived() {
+        return messagesReceived.get();
+    }
+
+    /**
+     * Returns the number of received messages that were parsed straight from the receive buffers, without copying
+     * their payload. See {@link MessageSerializer#deserializesInPlace(BitcoinSerializer.BitcoinPacketHeader, ByteBuffer)}.
+     */
+    public long getMessagesParsedInPlace() {
+        return messagesParsedInPlace.get();
+    }
+
+    /** Returns the number of payload bytes of received messages that were copied into arrays of their own. */
+    public long getPayloadBytesCopied() {
+        return payloadBytesCopied.get();
+    }
+
+    /**
+     * Returns the number of bytes this peer allocated for buffers holding messages larger than the receive buffer.
+     * Such buffers are shared with other peers through a bounded pool, so this grows by less than the size of the large
+     * messages received.
+     */
+    public long getReadBufferBytesAllocated() {
+        return readBufferBytesAllocated.get();
+    }
+
     /**
      * Sets the {@link MessageWriteTarget} used to write messages to the peer. This should almost never be called, it is
      * called automatically by {@link NioClient} or
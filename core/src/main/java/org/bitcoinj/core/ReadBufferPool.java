@@ -0,0 +1,99 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.utils.Threading;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A pool of the buffers that {@link PeerSocketHandler} uses for messages larger than the receive buffer, shared by
+ * all peers. A buffer is taken when such a message starts and given back as soon as it has been parsed, so the number
+ * of buffers needed depends on how many peers are in the middle of a large message at the same time, not on the number
+ * of peers.</p>
+ *
+ * <p>The pool keeps at most a given number of bytes, and no buffer larger than a given size. Buffers that don't fit
+ * are left to the garbage collector.</p>
+ */
+class ReadBufferPool {
+    /** The pool shared by all peers, which keeps enough for a few blocks. */
+    static final ReadBufferPool SHARED = new ReadBufferPool(Block.MAX_BLOCK_SIZE * 4, Block.MAX_BLOCK_SIZE * 16);
+
+    private final ReentrantLock lock = Threading.lock("ReadBufferPool");
+    private final int maxBufferSize;
+    private final long maxPooledBytes;
+    // Small, so searched linearly.
+    private final List<byte[]> buffers = new ArrayList<>();
+    private long pooledBytes;
+
+    ReadBufferPool(int maxBufferSize, long maxPooledBytes) {
+        checkArgument(maxBufferSize > 0 && maxPooledBytes >= maxBufferSize);
+        this.maxBufferSize = maxBufferSize;
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    /** Takes the smallest pooled buffer of at least the given size, or returns null if there is none. */
+    @Nullable
+    byte[] take(int size) {
+        lock.lock();
+        try {
+            int best = -1;
+            for (int i = 0; i < buffers.size(); i++) {
+                int length = buffers.get(i).length;
+                if (length >= size && (best < 0 || length < buffers.get(best).length))
+                    best = i;
+            }
+            if (best < 0)
+                return null;
+            byte[] buffer = buffers.remove(best);
+            pooledBytes -= buffer.length;
+            return buffer;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Gives back a buffer for reuse. It must not be used by the caller anymore. */
+    void give(byte[] buffer) {
+        if (buffer.length > maxBufferSize)
+            return;
+        lock.lock();
+        try {
+            if (pooledBytes + buffer.length > maxPooledBytes)
+                return;
+            buffers.add(buffer);
+            pooledBytes += buffer.length;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of bytes held by the pool. */
+    long getPooledBytes() {
+        lock.lock();
+        try {
+            return pooledBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -134,6 +134,9 @@ public class Transaction extends ChildMessage {
     // These are in memory helpers only. They contain the transaction hashes without and with witness.
     private Sha256Hash cachedTxId;
     private Sha256Hash cachedWTxId;
+    // Shared BIP143 digests, computed on demand. Unlike the ids above this survives changes to input scripts and
+    // witnesses, because signing would otherwise throw it away after every input.
+    @Nullable private volatile WitnessSigHashContext witnessSigHashContext;
 
     // Data about how confirmed this tx is. Serialized, may be null.
     @Nullable private TransactionConfidence confidence;
@@ -906,6 +909,7 @@ public class Transaction extends ChildMessage {
      */
     public void clearInputs() {
         unCache();
+        clearWitnessSigHashContext();
         for (TransactionInput input : inputs) {
             input.setParent(null);
         }
@@ -931,6 +935,7 @@ public class Transaction extends ChildMessage {
      */
     public TransactionInput addInput(TransactionInput input) {
         unCache();
+        clearWitnessSigHashContext();
         input.setParent(this);
         inputs.add(input);
         adjustLength(inputs.size(), input.length);
@@ -1013,6 +1018,7 @@ public class Transaction extends ChildMessage {
      */
     public void clearOutputs() {
         unCache();
+        clearWitnessSigHashContext();
         for (TransactionOutput output : outputs) {
             output.setParent(null);
         }
@@ -1026,6 +1032,7 @@ public class Transaction extends ChildMessage {
      */
     public TransactionOutput addOutput(TransactionOutput to) {
         unCache();
+        clearWitnessSigHashContext();
         to.setParent(this);
         outputs.add(to);
         adjustLength(outputs.size(), to.length);
@@ -1187,87 +1194,22 @@ public class Transaction extends ChildMessage {
         // the purposes of the code in this method:
         //
         //   https://en.bitcoin.it/wiki/Contracts
-
-        try {
-            // Create a copy of this transaction to operate upon because we need make changes to the inputs and outputs.
-            // It would not be thread-safe to change the attributes of the transaction object itself.
-            Transaction tx = this.params.getDefaultSerializer().makeTransaction(this.bitcoinSerialize());
-
-            // Clear input scripts in preparation for signing. If we're signing a fresh
-            // transaction that step isn't very helpful, but it doesn't add much cost relative to the actual
-            // EC math so we'll do it anyway.
-            for (int i = 0; i < tx.inputs.size(); i++) {
-                TransactionInput input = tx.inputs.get(i);
-                input.clearScriptBytes();
-                input.setWitness(null);
-            }
-
-            // This step has no purpose beyond being synchronized with Bitcoin Core's bugs. OP_CODESEPARATOR
-            // is a legacy holdover from a previous, broken design of executing scripts that shipped in Bitcoin 0.1.
-            // It was seriously flawed and would have let anyone take anyone elses money. Later versions switched to
-            // the design we use today where scripts are executed independently but share a stack. This left the
-            // OP_CODESEPARATOR instruction having no purpose as it was only meant to be used internally, not actually
-            // ever put into scripts. Deleting OP_CODESEPARATOR is a step that should never be required but if we don't
-            // do it, we could split off the best chain.
-            connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
-
-            // Set the input to the script of its output. Bitcoin Core does this but the step has no obvious purpose as
-            // the signature covers the hash of the prevout transaction which obviously includes the output script
-            // already. Perhaps it felt safer to him in some way, or is another leftover from how the code was written.
-            TransactionInput input = tx.inputs.get(inputIndex);
-            input.setScriptBytes(connectedScript);
-
-            if ((sigHashType & 0x1f) == SigHash.NONE.value) {
-                // SIGHASH_NONE means no outputs are signed at all - the signature is effectively for a "blank cheque".
-                tx.outputs = new ArrayList<>(0);
-                // The signature isn't broken by new versions of the transaction issued by other parties.
-                for (int i = 0; i < tx.inputs.size(); i++)
-                    if (i != inputIndex)
-                        tx.inputs.get(i).setSequenceNumber(0);
-            } else if ((sigHashType & 0x1f) == SigHash.SINGLE.value) {
-                // SIGHASH_SINGLE means only sign the output at the same index as the input (ie, my output).
-                if (inputIndex >= tx.outputs.size()) {
-                    // The input index is beyond the number of outputs, it's a buggy signature made by a broken
-                    // Bitcoin implementation. Bitcoin Core also contains a bug in handling this case:
-                    // any transaction output that is signed in this case will result in both the signed output
-                    // and any future outputs to this public key being steal-able by anyone who has
-                    // the resulting signature and the public key (both of which are part of the signed tx input).
-
-                    // Bitcoin Core's bug is that SignatureHash was supposed to return a hash and on this codepath it
-                    // actually returns the constant "1" to indicate an error, which is never checked for. Oops.
-                    return Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000");
-                }
-                // In SIGHASH_SINGLE the outputs after the matching input index are deleted, and the outputs before
-                // that position are "nulled out". Unintuitively, the value in a "null" transaction is set to -1.
-                tx.outputs = new ArrayList<>(tx.outputs.subList(0, inputIndex + 1));
-                for (int i = 0; i < inputIndex; i++)
-                    tx.outputs.set(i, new TransactionOutput(tx.params, tx, Coin.NEGATIVE_SATOSHI, new byte[] {}));
-                // The signature isn't broken by new versions of the transaction issued by other parties.
-                for (int i = 0; i < tx.inputs.size(); i++)
-                    if (i != inputIndex)
-                        tx.inputs.get(i).setSequenceNumber(0);
-            }
-
-            if ((sigHashType & SigHash.ANYONECANPAY.value) == SigHash.ANYONECANPAY.value) {
-                // SIGHASH_ANYONECANPAY means the signature in the input is not broken by changes/additions/removals
-                // of other inputs. For example, this is useful for building assurance contracts.
-                tx.inputs = new ArrayList<>();
-                tx.inputs.add(input);
-            }
-
-            ByteArrayOutputStream bos = new ByteArrayOutputStream(tx.length);
-            tx.bitcoinSerializeToStream(bos, false);
-            // We also have to write a hash type (sigHashType is actually an unsigned char)
-            uint32ToByteStreamLE(0x000000ff & sigHashType, bos);
-            // Note that this is NOT reversed to ensure it will be signed correctly. If it were to be printed out
-            // however then we would expect that it is IS reversed.
-            Sha256Hash hash = Sha256Hash.twiceOf(bos.toByteArray());
-            bos.close();
-
-            return hash;
-        } catch (IOException e) {
-            throw new RuntimeException(e);  // Cannot happen.
-        }
+        //
+        // Conceptually, input scripts are cleared and the given input is set to the script of its output. Bitcoin
+        // Core does this but the step has no obvious purpose as the signature covers the hash of the prevout
+        // transaction which obviously includes the output script already. SIGHASH_NONE then drops all outputs,
+        // SIGHASH_SINGLE keeps only the output at the same index as the input and SIGHASH_ANYONECANPAY keeps only the
+        // input being signed. The simplified transaction is written directly into the digest rather than into a
+        // modified copy, so this transaction is never changed.
+        //
+        // Before that, OP_CODESEPARATOR is deleted from the connected script. This step has no purpose beyond being
+        // synchronized with Bitcoin Core's bugs. OP_CODESEPARATOR is a legacy holdover from a previous, broken design
+        // of executing scripts that shipped in Bitcoin 0.1. It was seriously flawed and would have let anyone take
+        // anyone elses money. Later versions switched to the design we use today where scripts are executed
+        // independently but share a stack. This left the OP_CODESEPARATOR instruction having no purpose as it was
+        // only meant to be used internally, not actually ever put into scripts. Deleting OP_CODESEPARATOR is a step
+        // that should never be required but if we don't do it, we could split off the best chain.
+        return LegacySigHashWriter.hashForSignature(this, inputIndex, connectedScript, sigHashType);
     }
 
     public TransactionSignature calculateWitnessSignature(
@@ -1314,7 +1256,7 @@ public class Transaction extends ChildMessage {
         return calculateWitnessSignature(inputIndex, key, aesKey, scriptCode.getProgram(), value, hashType, anyoneCanPay);
     }
 
-    public synchronized Sha256Hash hashForWitnessSignature(
+    public Sha256Hash hashForWitnessSignature(
             int inputIndex,
             byte[] scriptCode,
             Coin prevValue,
@@ -1339,7 +1281,7 @@ public class Transaction extends ChildMessage {
      * @param type         Should be SigHash.ALL
      * @param anyoneCanPay should be false.
      */
-    public synchronized Sha256Hash hashForWitnessSignature(
+    public Sha256Hash hashForWitnessSignature(
             int inputIndex,
             Script scriptCode,
             Coin prevValue,
@@ -1348,12 +1290,12 @@ public class Transaction extends ChildMessage {
         return hashForWitnessSignature(inputIndex, scriptCode.getProgram(), prevValue, type, anyoneCanPay);
     }
 
-    public synchronized Sha256Hash hashForWitnessSignature(
+    public Sha256Hash hashForWitnessSignature(
             int inputIndex,
             byte[] scriptCode,
             Coin prevValue,
             byte sigHashType){
-        ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(length == UNKNOWN_LENGTH ? 256 : length + 4);
+        ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(156 + scriptCode.length);
         try {
             byte[] hashPrevouts = new byte[32];
             byte[] hashSequence = new byte[32];
@@ -1362,52 +1304,29 @@ public class Transaction extends ChildMessage {
             boolean anyoneCanPay = (sigHashType & SigHash.ANYONECANPAY.value) == SigHash.ANYONECANPAY.value;
             boolean signAll = (basicSigHashType != SigHash.SINGLE.value) && (basicSigHashType != SigHash.NONE.value);
 
-            if (!anyoneCanPay) {
-                ByteArrayOutputStream bosHashPrevouts = new UnsafeByteArrayOutputStream(256);
-                for (int i = 0; i < this.inputs.size(); ++i) {
-                    bosHashPrevouts.write(this.inputs.get(i).getOutpoint().getHash().getReversedBytes());
-                    uint32ToByteStreamLE(this.inputs.get(i).getOutpoint().getIndex(), bosHashPrevouts);
-                }
-                hashPrevouts = Sha256Hash.hashTwice(bosHashPrevouts.toByteArray());
+            if (!anyoneCanPay || signAll) {
+                WitnessSigHashContext context = getWitnessSigHashContext();
+                if (!anyoneCanPay)
+                    hashPrevouts = context.getHashPrevouts();
+                if (!anyoneCanPay && signAll)
+                    hashSequence = context.getHashSequence();
+                if (signAll)
+                    hashOutputs = context.getHashOutputs();
             }
-
-            if (!anyoneCanPay && signAll) {
-                ByteArrayOutputStream bosSequence = new UnsafeByteArrayOutputStream(256);
-                for (int i = 0; i < this.inputs.size(); ++i) {
-                    uint32ToByteStreamLE(this.inputs.get(i).getSequenceNumber(), bosSequence);
-                }
-                hashSequence = Sha256Hash.hashTwice(bosSequence.toByteArray());
-            }
-
-            if (signAll) {
-                ByteArrayOutputStream bosHashOutputs = new UnsafeByteArrayOutputStream(256);
-                for (int i = 0; i < this.outputs.size(); ++i) {
-                    uint64ToByteStreamLE(
-                            BigInteger.valueOf(this.outputs.get(i).getValue().getValue()),
-                            bosHashOutputs
-                    );
-                    bosHashOutputs.write(new VarInt(this.outputs.get(i).getScriptBytes().length).encode());
-                    bosHashOutputs.write(this.outputs.get(i).getScriptBytes());
-                }
-                hashOutputs = Sha256Hash.hashTwice(bosHashOutputs.toByteArray());
-            } else if (basicSigHashType == SigHash.SINGLE.value && inputIndex < outputs.size()) {
-                ByteArrayOutputStream bosHashOutputs = new UnsafeByteArrayOutputStream(256);
-                uint64ToByteStreamLE(
-                        BigInteger.valueOf(this.outputs.get(inputIndex).getValue().getValue()),
-                        bosHashOutputs
-                );
-                bosHashOutputs.write(new VarInt(this.outputs.get(inputIndex).getScriptBytes().length).encode());
-                bosHashOutputs.write(this.outputs.get(inputIndex).getScriptBytes());
+            if (basicSigHashType == SigHash.SINGLE.value && inputIndex < outputs.size()) {
+                UnsafeByteArrayOutputStream bosHashOutputs = new UnsafeByteArrayOutputStream(256);
+                WitnessSigHashContext.writeOutput(this.outputs.get(inputIndex), bosHashOutputs);
                 hashOutputs = Sha256Hash.hashTwice(bosHashOutputs.toByteArray());
             }
+            TransactionInput input = inputs.get(inputIndex);
             uint32ToByteStreamLE(version, bos);
             bos.write(hashPrevouts);
             bos.write(hashSequence);
-            bos.write(inputs.get(inputIndex).getOutpoint().getHash().getReversedBytes());
-            uint32ToByteStreamLE(inputs.get(inputIndex).getOutpoint().getIndex(), bos);
+            bos.write(input.getOutpoint().getHash().getReversedBytes());
+            uint32ToByteStreamLE(input.getOutpoint().getIndex(), bos);
             bos.write(scriptCode);
-            uint64ToByteStreamLE(BigInteger.valueOf(prevValue.getValue()), bos);
-            uint32ToByteStreamLE(inputs.get(inputIndex).getSequenceNumber(), bos);
+            int64ToByteStreamLE(prevValue.getValue(), bos);
+            uint32ToByteStreamLE(input.getSequenceNumber(), bos);
             bos.write(hashOutputs);
             uint32ToByteStreamLE(this.lockTime, bos);
             uint32ToByteStreamLE(0x000000ff & sigHashType, bos);
@@ -1418,6 +1337,27 @@ public class Transaction extends ChildMessage {
         return Sha256Hash.twiceOf(bos.toByteArray());
     }
 
+    /**
+     * Returns the BIP143 digests shared by all inputs, computing them if they haven't been yet. Concurrent callers may
+     * both compute it, but since the result is immutable and identical that is harmless.
+     */
+    WitnessSigHashContext getWitnessSigHashContext() {
+        WitnessSigHashContext context = witnessSigHashContext;
+        if (context == null) {
+            context = WitnessSigHashContext.of(this);
+            witnessSigHashContext = context;
+        }
+        return context;
+    }
+
+    /**
+     * Drops the cached BIP143 digests. Must be called whenever an outpoint, a sequence number or an output of this
+     * transaction changes.
+     */
+    void clearWitnessSigHashContext() {
+        witnessSigHashContext = null;
+    }
+
     @Override
     protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
         boolean useSegwit = hasWitnesses()
@@ -1528,6 +1468,8 @@ public class Transaction extends ChildMessage {
 
     /** Randomly re-orders the transaction outputs: good for privacy */
     public void shuffleOutputs() {
+        unCache();
+        clearWitnessSigHashContext();
         Collections.shuffle(outputs);
     }
 
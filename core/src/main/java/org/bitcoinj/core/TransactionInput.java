@@ -100,6 +100,10 @@ public class TransactionInput extends ChildMessage {
         super(params);
         this.scriptBytes = scriptBytes;
         this.outpoint = outpoint;
+        // So that changes to the outpoint reach the transaction, see TransactionOutPoint.setIndex(). An outpoint shared
+        // with another input stays with that one, as moving it would uncache the other transaction and its block.
+        if (outpoint.parent == null)
+            outpoint.setParent(this);
         this.sequence = NO_SEQUENCE;
         this.value = value;
         setParent(parentTransaction);
@@ -117,6 +121,7 @@ public class TransactionInput extends ChildMessage {
         } else {
             outpoint = new TransactionOutPoint(params, output);
         }
+        outpoint.setParent(this);
         scriptBytes = EMPTY_ARRAY;
         sequence = NO_SEQUENCE;
         setParent(parentTransaction);
@@ -224,6 +229,8 @@ public class TransactionInput extends ChildMessage {
      */
     public void setSequenceNumber(long sequence) {
         unCache();
+        if (parent != null)
+            getParentTransaction().clearWitnessSigHashContext();
         this.sequence = sequence;
     }
 
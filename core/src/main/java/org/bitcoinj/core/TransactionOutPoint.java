@@ -198,6 +198,8 @@ public class TransactionOutPoint extends ChildMessage {
     }
 
     void setHash(Sha256Hash hash) {
+        unCache();
+        clearWitnessSigHashContext();
         this.hash = hash;
     }
 
@@ -206,9 +208,20 @@ public class TransactionOutPoint extends ChildMessage {
     }
     
     public void setIndex(long index) {
+        unCache();
+        clearWitnessSigHashContext();
         this.index = index;
     }
 
+    // Outpoints are part of the BIP143 hashPrevouts cached by the spending transaction.
+    private void clearWitnessSigHashContext() {
+        if (parent instanceof TransactionInput) {
+            Transaction tx = ((TransactionInput) parent).getParentTransaction();
+            if (tx != null)
+                tx.clearWitnessSigHashContext();
+        }
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
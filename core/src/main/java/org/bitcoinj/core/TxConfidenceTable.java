@@ -21,6 +21,8 @@ import org.bitcoinj.utils.*;
 import javax.annotation.*;
 import java.lang.ref.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.concurrent.locks.*;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -35,19 +37,87 @@ import static com.google.common.base.Preconditions.checkNotNull;
  *
  * <p>It is <b>not</b> at this time directly equivalent to the Bitcoin Core memory pool, which tracks
  * all transactions not currently included in the best chain - it's simply a cache.</p>
+ *
+ * <p>The table is split into shards by transaction hash. Lookups don't take any lock, and adding a transaction only
+ * locks its shard, so peers announcing different transactions don't wait for each other. When the table is full, the
+ * transaction that was used least recently is dropped, whichever shard holds it.</p>
  */
 public class TxConfidenceTable {
+    /**
+     * @deprecated The table is no longer guarded by a single lock. This one only keeps threads from evicting
+     * transactions at the same time.
+     */
+    @Deprecated
     protected ReentrantLock lock = Threading.lock("txconfidencetable");
 
     private static class WeakConfidenceReference extends WeakReference<TransactionConfidence> {
         public Sha256Hash hash;
+        // When the confidence was last returned, and when the reference was last put at the end of the order of its
+        // shard, in ticks of the clock of the table. The latter is guarded by the lock of the shard.
+        private volatile long lastUsed;
+        private long queued;
         public WeakConfidenceReference(TransactionConfidence confidence, ReferenceQueue<TransactionConfidence> queue) {
             super(confidence, queue);
             hash = confidence.getTransactionHash();
         }
     }
-    private final Map<Sha256Hash, WeakConfidenceReference> table;
+
+    private static class Shard {
+        private final ReentrantLock lock = Threading.lock("txconfidencetable-shard");
+        private final ConcurrentHashMap<Sha256Hash, WeakConfidenceReference> table = new ConcurrentHashMap<>();
+        // The references in the order they were queued, guarded by the lock. References that were removed from the
+        // table already are skipped when evicting, and dropped once they make up half of the queue.
+        private final ArrayDeque<WeakConfidenceReference> order = new ArrayDeque<>();
+
+        /** Adds a reference that was just created. Must hold the lock. */
+        void add(WeakConfidenceReference reference, long now) {
+            reference.lastUsed = now;
+            reference.queued = now;
+            table.put(reference.hash, reference);
+            order.add(reference);
+            if (order.size() > 2 * table.size() + MIN_COMPACTION) {
+                Iterator<WeakConfidenceReference> it = order.iterator();
+                while (it.hasNext()) {
+                    WeakConfidenceReference queued = it.next();
+                    if (table.get(queued.hash) != queued)
+                        it.remove();
+                }
+            }
+        }
+
+        /** Returns the least recently used reference of the shard, or null if it is empty. Must hold the lock. */
+        @Nullable
+        WeakConfidenceReference eldest() {
+            // References used since they were queued go to the end of the queue again, until the head is one that
+            // wasn't. Each reference is moved at most once, in case others keep using them.
+            int moves = order.size();
+            WeakConfidenceReference head;
+            while ((head = order.peek()) != null) {
+                if (table.get(head.hash) != head) {
+                    order.poll();
+                } else if (head.lastUsed != head.queued && moves-- > 0) {
+                    order.poll();
+                    head.queued = head.lastUsed;
+                    order.add(head);
+                } else {
+                    return head;
+                }
+            }
+            return null;
+        }
+    }
+
+    // The number of shards of a table that tracks enough transactions, a power of two.
+    private static final int MAX_SHARDS = 16;
+    // How many removed references a shard lets pile up in its queue before dropping them, beyond those it holds.
+    private static final int MIN_COMPACTION = 16;
+
+    private final Shard[] shards;
+    private final int maxSize;
     private final TransactionConfidence.Factory confidenceFactory;
+    // Ticks whenever a transaction is added, to order the uses of the transactions.
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
 
     // This ReferenceQueue gets entries added to it when they are only weakly reachable, ie, the TxConfidenceTable is the
     // only thing that is tracking the confidence data anymore. We check it from time to time and delete table entries
@@ -69,14 +139,14 @@ public class TxConfidenceTable {
     }
 
     TxConfidenceTable(final int size, TransactionConfidence.Factory confidenceFactory){
-        table = new LinkedHashMap<Sha256Hash, WeakConfidenceReference>() {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, WeakConfidenceReference> entry) {
-                // An arbitrary choice to stop the memory used by tracked transactions getting too huge in the event
-                // of some kind of DoS attack.
-                return size() > size;
-            }
-        };
+        // A small table doesn't need many shards, and evicting a transaction looks at each of them.
+        int numShards = 1;
+        while (numShards < MAX_SHARDS && numShards * 2 * 8 <= size)
+            numShards *= 2;
+        shards = new Shard[numShards];
+        for (int i = 0; i < numShards; i++)
+            shards[i] = new Shard();
+        maxSize = size;
         referenceQueue = new ReferenceQueue<>();
         this.confidenceFactory = confidenceFactory;
     }
@@ -89,6 +159,11 @@ public class TxConfidenceTable {
         this(MAX_SIZE);
     }
 
+    private Shard shardFor(Sha256Hash hash) {
+        // Sha256Hash.hashCode() is taken from the hash itself, so its low bits are evenly spread.
+        return shards[hash.hashCode() & (shards.length - 1)];
+    }
+
     /**
      * If any transactions have expired due to being only weakly reachable through us, go ahead and delete their
      * table entries - it means we downloaded the transaction and sent it to various event listeners, none of
@@ -96,17 +171,13 @@ public class TxConfidenceTable {
      * are relevant to any of our wallets.
      */
     private void cleanTable() {
-        lock.lock();
-        try {
-            Reference<? extends TransactionConfidence> ref;
-            while ((ref = referenceQueue.poll()) != null) {
-                // Find which transaction got deleted by the GC.
-                WeakConfidenceReference txRef = (WeakConfidenceReference) ref;
-                // And remove the associated map entry so the other bits of memory can also be reclaimed.
-                table.remove(txRef.hash);
-            }
-        } finally {
-            lock.unlock();
+        Reference<? extends TransactionConfidence> ref;
+        while ((ref = referenceQueue.poll()) != null) {
+            // Find which transaction got deleted by the GC.
+            WeakConfidenceReference txRef = (WeakConfidenceReference) ref;
+            // And remove the associated map entry so the other bits of memory can also be reclaimed. A newer entry
+            // for the same hash is kept.
+            shardFor(txRef.hash).table.remove(txRef.hash, txRef);
         }
     }
 
@@ -114,24 +185,20 @@ public class TxConfidenceTable {
      * Returns the number of peers that have seen the given hash recently.
      */
     public int numBroadcastPeers(Sha256Hash txHash) {
-        lock.lock();
-        try {
-            cleanTable();
-            WeakConfidenceReference entry = table.get(txHash);
-            if (entry == null) {
-                return 0;  // No such TX known.
+        cleanTable();
+        Shard shard = shardFor(txHash);
+        WeakConfidenceReference entry = shard.table.get(txHash);
+        if (entry == null) {
+            return 0;  // No such TX known.
+        } else {
+            TransactionConfidence confidence = entry.get();
+            if (confidence == null) {
+                // Such a TX hash was seen, but nothing seemed to care so we ended up throwing away the data.
+                shard.table.remove(txHash, entry);
+                return 0;
             } else {
-                TransactionConfidence confidence = entry.get();
-                if (confidence == null) {
-                    // Such a TX hash was seen, but nothing seemed to care so we ended up throwing away the data.
-                    table.remove(txHash);
-                    return 0;
-                } else {
-                    return confidence.numBroadcastPeers();
-                }
+                return confidence.numBroadcastPeers();
             }
-        } finally {
-            lock.unlock();
         }
     }
 
@@ -142,16 +209,9 @@ public class TxConfidenceTable {
      * @return the number of peers that have now announced this hash (including the caller)
      */
     public TransactionConfidence seen(Sha256Hash hash, PeerAddress byPeer) {
-        TransactionConfidence confidence;
-        boolean fresh = false;
-        lock.lock();
-        try {
-            cleanTable();
-            confidence = getOrCreate(hash);
-            fresh = confidence.markBroadcastBy(byPeer);
-        } finally {
-            lock.unlock();
-        }
+        cleanTable();
+        TransactionConfidence confidence = getOrCreate(hash);
+        boolean fresh = confidence.markBroadcastBy(byPeer);
         if (fresh)
             confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.SEEN_PEERS);
         return confidence;
@@ -163,17 +223,66 @@ public class TxConfidenceTable {
      */
     public TransactionConfidence getOrCreate(Sha256Hash hash) {
         checkNotNull(hash);
+        Shard shard = shardFor(hash);
+        TransactionConfidence confidence = get(shard, hash);
+        if (confidence != null)
+            return confidence;
+        TransactionConfidence newConfidence;
+        shard.lock.lock();
+        try {
+            // Another thread may have created it in the meantime.
+            confidence = get(shard, hash);
+            if (confidence != null)
+                return confidence;
+            newConfidence = confidenceFactory.createConfidence(hash);
+            shard.add(new WeakConfidenceReference(newConfidence, referenceQueue), clock.incrementAndGet());
+        } finally {
+            shard.lock.unlock();
+        }
+        // An arbitrary choice to stop the memory used by tracked transactions getting too huge in the event
+        // of some kind of DoS attack.
+        if (size() > maxSize)
+            evict();
+        return newConfidence;
+    }
+
+    /**
+     * Drops the least recently used transactions, whichever shards hold them, until the table is no longer over its
+     * max size. The shards are locked one at a time, so that adding transactions to other shards can go on.
+     */
+    private void evict() {
         lock.lock();
         try {
-            WeakConfidenceReference reference = table.get(hash);
-            if (reference != null) {
-                TransactionConfidence confidence = reference.get();
-                if (confidence != null)
-                    return confidence;
+            while (size() > maxSize) {
+                Shard victim = null;
+                long eldest = Long.MAX_VALUE;
+                for (Shard shard : shards) {
+                    shard.lock.lock();
+                    try {
+                        WeakConfidenceReference reference = shard.eldest();
+                        if (reference != null && reference.queued < eldest) {
+                            victim = shard;
+                            eldest = reference.queued;
+                        }
+                    } finally {
+                        shard.lock.unlock();
+                    }
+                }
+                if (victim == null)
+                    return;
+                victim.lock.lock();
+                try {
+                    // The shard may have changed since it was looked at, but its eldest is still a good choice.
+                    WeakConfidenceReference reference = victim.eldest();
+                    if (reference != null) {
+                        victim.order.poll();
+                        if (victim.table.remove(reference.hash, reference))
+                            evictions.incrementAndGet();
+                    }
+                } finally {
+                    victim.lock.unlock();
+                }
             }
-            TransactionConfidence newConfidence = confidenceFactory.createConfidence(hash);
-            table.put(hash, new WeakConfidenceReference(newConfidence, referenceQueue));
-            return newConfidence;
         } finally {
             lock.unlock();
         }
@@ -185,18 +294,37 @@ public class TxConfidenceTable {
      */
     @Nullable
     public TransactionConfidence get(Sha256Hash hash) {
-        lock.lock();
-        try {
-            WeakConfidenceReference ref = table.get(hash);
-            if (ref == null)
-                return null;
-            TransactionConfidence confidence = ref.get();
-            if (confidence != null)
-                return confidence;
-            else
-                return null;
-        } finally {
-            lock.unlock();
+        return get(shardFor(hash), hash);
+    }
+
+    @Nullable
+    private TransactionConfidence get(Shard shard, Sha256Hash hash) {
+        WeakConfidenceReference ref = shard.table.get(hash);
+        if (ref == null)
+            return null;
+        TransactionConfidence confidence = ref.get();
+        if (confidence != null) {
+            // Only reads the clock, so that lookups don't contend on it.
+            long now = clock.get();
+            if (ref.lastUsed != now)
+                ref.lastUsed = now;
         }
+        return confidence;
+    }
+
+    /**
+     * Returns the number of transactions that are tracked. This includes the ones that were only weakly reachable and
+     * are about to be removed.
+     */
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards)
+            size += shard.table.size();
+        return size;
+    }
+
+    /** Returns how many transactions were dropped because the table was full. */
+    public long getEvictions() {
+        return evictions.get();
     }
 }
@@ -0,0 +1,89 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.bitcoinj.core.Utils.int64ToByteStreamLE;
+import static org.bitcoinj.core.Utils.uint32ToByteStreamLE;
+
+/**
+ * <p>Holds the parts of a <a href="https://github.com/bitcoin/bips/blob/master/bip-0143.mediawiki">BIP143</a>
+ * signature hash that are shared by every input of a transaction: hashPrevouts, hashSequence and hashOutputs. Without
+ * it, signing or verifying all inputs of a transaction is quadratic in the number of inputs and outputs.</p>
+ *
+ * <p>Instances are immutable and therefore safe to share between threads. A {@link Transaction} creates its context
+ * lazily on first use and drops it whenever an outpoint, sequence number or output changes.</p>
+ */
+final class WitnessSigHashContext {
+    private final byte[] hashPrevouts;
+    private final byte[] hashSequence;
+    private final byte[] hashOutputs;
+
+    private WitnessSigHashContext(byte[] hashPrevouts, byte[] hashSequence, byte[] hashOutputs) {
+        this.hashPrevouts = hashPrevouts;
+        this.hashSequence = hashSequence;
+        this.hashOutputs = hashOutputs;
+    }
+
+    /** Computes the shared digests for the current inputs and outputs of the given transaction. */
+    static WitnessSigHashContext of(Transaction tx) {
+        List<TransactionInput> inputs = tx.getInputs();
+        List<TransactionOutput> outputs = tx.getOutputs();
+        UnsafeByteArrayOutputStream bosPrevouts = new UnsafeByteArrayOutputStream(inputs.size() * 36);
+        UnsafeByteArrayOutputStream bosSequence = new UnsafeByteArrayOutputStream(inputs.size() * 4);
+        UnsafeByteArrayOutputStream bosOutputs = new UnsafeByteArrayOutputStream(outputs.size() * 34);
+        try {
+            for (TransactionInput input : inputs) {
+                TransactionOutPoint outpoint = input.getOutpoint();
+                bosPrevouts.write(outpoint.getHash().getReversedBytes());
+                uint32ToByteStreamLE(outpoint.getIndex(), bosPrevouts);
+                uint32ToByteStreamLE(input.getSequenceNumber(), bosSequence);
+            }
+            for (TransactionOutput output : outputs)
+                writeOutput(output, bosOutputs);
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Cannot happen.
+        }
+        return new WitnessSigHashContext(Sha256Hash.hashTwice(bosPrevouts.toByteArray()),
+                Sha256Hash.hashTwice(bosSequence.toByteArray()), Sha256Hash.hashTwice(bosOutputs.toByteArray()));
+    }
+
+    /** Double SHA-256 of all outpoints, used unless ANYONECANPAY is set. */
+    byte[] getHashPrevouts() {
+        return hashPrevouts;
+    }
+
+    /** Double SHA-256 of all sequence numbers, used for SIGHASH_ALL without ANYONECANPAY. */
+    byte[] getHashSequence() {
+        return hashSequence;
+    }
+
+    /** Double SHA-256 of all outputs, used for SIGHASH_ALL. */
+    byte[] getHashOutputs() {
+        return hashOutputs;
+    }
+
+    /** Writes an output in its wire format: 8 byte value followed by the length prefixed script. */
+    static void writeOutput(TransactionOutput output, UnsafeByteArrayOutputStream stream) throws IOException {
+        int64ToByteStreamLE(output.getValue().getValue(), stream);
+        byte[] scriptBytes = output.getScriptBytes();
+        stream.write(new VarInt(scriptBytes.length).encode());
+        stream.write(scriptBytes);
+    }
+}
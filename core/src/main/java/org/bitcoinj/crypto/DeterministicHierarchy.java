@@ -19,9 +19,11 @@ package org.bitcoinj.crypto;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Maps;
 
+import javax.annotation.Nullable;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
@@ -118,6 +120,30 @@ public class DeterministicHierarchy {
         throw new HDDerivationException("Maximum number of child derivation attempts reached, this is probably an indication of a bug.");
     }
 
+    /**
+     * Extends the tree by calculating the given number of keys that hang off the given parent path, after its last
+     * child. The keys are derived by {@link HDKeyDerivation#deriveChildKeys(DeterministicKey, int, int, Executor)},
+     * in parallel on the given executor unless it is null.
+     *
+     * @param parentPath the path to the parent
+     * @param relative whether the path is relative to the root path
+     * @param createParent whether the parent corresponding to path should be created (with any necessary ancestors) if it doesn't exist already
+     * @param privateDerivation whether to use private or public derivation
+     * @param count the number of keys to derive
+     * @param executor the executor to derive keys on besides the calling thread, or null
+     * @return the newly created keys, in child number order
+     * @throws IllegalArgumentException if the parent doesn't exist and createParent is false.
+     */
+    public List<DeterministicKey> deriveNextChildren(ImmutableList<ChildNumber> parentPath, boolean relative,
+            boolean createParent, boolean privateDerivation, int count, @Nullable Executor executor) {
+        DeterministicKey parent = get(parentPath, relative, createParent);
+        ChildNumber first = new ChildNumber(getNumChildren(parent.getPath()), privateDerivation);
+        List<DeterministicKey> children = HDKeyDerivation.deriveChildKeys(parent, first.i(), count, executor);
+        for (DeterministicKey child : children)
+            putKey(child);
+        return children;
+    }
+
     private ChildNumber getNextChildNumberToDerive(ImmutableList<ChildNumber> path, boolean privateDerivation) {
         ChildNumber lastChildNumber = lastChildNumbers.get(path);
         ChildNumber nextChildNumber = new ChildNumber(lastChildNumber != null ? lastChildNumber.num() + 1 : 0, privateDerivation);
@@ -16,14 +16,22 @@
 
 package org.bitcoinj.crypto;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.*;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.bitcoinj.core.*;
 import org.bouncycastle.math.ec.*;
 
+import javax.annotation.Nullable;
 import java.math.*;
 import java.nio.*;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -133,6 +141,107 @@ public final class HDKeyDerivation {
 
     }
 
+    /**
+     * <p>Derives the given number of consecutive children of the parent, starting at the "extended" child number, as
+     * {@link #deriveThisOrNextChildKey(DeterministicKey, int)} would one after the other: children that can't be
+     * derived are skipped. The keys are returned in child number order.</p>
+     *
+     * <p>The children are split into ranges that are derived in parallel, one on the calling thread and the others on
+     * the given executor, or all on the calling thread if it is null or there are only a few children. All ranges use
+     * the parent's encoded public key and the precomputed multiples of the generator, and children derived from a
+     * public parent are converted to affine coordinates in one go per range.</p>
+     */
+    public static List<DeterministicKey> deriveChildKeys(final DeterministicKey parent, int childNumber, int count,
+            @Nullable Executor executor) throws HDDerivationException {
+        checkArgument(count >= 0, "Negative count: %s", count);
+        final ChildNumber first = new ChildNumber(childNumber);
+        checkArgument(parent.hasPrivKey() || !first.isHardened(), "Hardened derivation is unsupported (%s).", first);
+        final byte[] parentPublicKey = parent.getPubKeyPoint().getEncoded(true);
+        checkState(parentPublicKey.length == 33, "Parent pubkey must be 33 bytes, but is " + parentPublicKey.length);
+        final DeterministicKey[] keys = new DeterministicKey[count];
+
+        int numRanges = executor == null ? 1
+                : Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), count / MIN_KEYS_PER_RANGE));
+        List<ListenableFuture<Object>> futures = new ArrayList<>(numRanges - 1);
+        for (int r = 1; r < numRanges; r++) {
+            final int from = (int) ((long) count * r / numRanges);
+            final int to = (int) ((long) count * (r + 1) / numRanges);
+            ListenableFutureTask<Object> task = ListenableFutureTask.create(new Runnable() {
+                @Override
+                public void run() {
+                    deriveRange(parent, parentPublicKey, first, keys, from, to);
+                }
+            }, null);
+            futures.add(task);
+            executor.execute(task);
+        }
+        deriveRange(parent, parentPublicKey, first, keys, 0, count / numRanges);
+        try {
+            Uninterruptibles.getUninterruptibly(Futures.allAsList(futures));
+        } catch (ExecutionException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new RuntimeException(e.getCause());
+        }
+
+        List<DeterministicKey> result = new ArrayList<>(count);
+        for (DeterministicKey key : keys)
+            if (key != null)
+                result.add(key);
+        // Make up for skipped children after the end of the range.
+        int next = first.num() + count;
+        while (result.size() < count) {
+            DeterministicKey key = deriveThisOrNextChildKey(parent, new ChildNumber(next, first.isHardened()).i());
+            result.add(key);
+            next = key.getChildNumber().num() + 1;
+        }
+        return result;
+    }
+
+    // Below this many children per range, parallel derivation isn't worth handing work to other threads.
+    private static final int MIN_KEYS_PER_RANGE = 16;
+
+    // Derives children [from, to) of the batch into keys, leaving null for those that can't be derived.
+    private static void deriveRange(DeterministicKey parent, byte[] parentPublicKey, ChildNumber first,
+            DeterministicKey[] keys, int from, int to) {
+        if (parent.hasPrivKey()) {
+            for (int k = from; k < to; k++) {
+                try {
+                    keys[k] = deriveChildKeyFromPrivate(parent, new ChildNumber(first.num() + k, first.isHardened()));
+                } catch (HDDerivationException ignore) { }
+            }
+            return;
+        }
+        ECPoint parentPoint = parent.getPubKeyPoint();
+        ECCurve curve = ECKey.CURVE.getCurve();
+        ECPoint[] points = new ECPoint[to - from];
+        byte[][] chainCodes = new byte[to - from][];
+        ByteBuffer data = ByteBuffer.allocate(37);
+        for (int k = from; k < to; k++) {
+            data.clear();
+            data.put(parentPublicKey);
+            data.putInt(first.num() + k);
+            byte[] i = HDUtils.hmacSha512(parent.getChainCode(), data.array());
+            BigInteger ilInt = new BigInteger(1, Arrays.copyOfRange(i, 0, 32));
+            if (ilInt.compareTo(ECKey.CURVE.getN()) > 0)
+                continue;
+            ECPoint Ki = ECKey.publicPointFromPrivate(ilInt).add(parentPoint);
+            if (Ki.isInfinity())
+                continue;
+            points[k - from] = Ki;
+            chainCodes[k - from] = Arrays.copyOfRange(i, 32, 64);
+        }
+        // A single field inversion for the whole range, instead of one per key.
+        curve.normalizeAll(points);
+        for (int k = from; k < to; k++) {
+            ECPoint Ki = points[k - from];
+            if (Ki == null)
+                continue;
+            ChildNumber childNumber = new ChildNumber(first.num() + k, false);
+            keys[k] = new DeterministicKey(HDUtils.append(parent.getPath(), childNumber), chainCodes[k - from],
+                    new LazyECPoint(curve, Ki.getEncoded(true)), null, parent);
+        }
+    }
+
     /**
      * @throws HDDerivationException if private derivation is attempted for a public-only parent key, or
      * if the resulting derived key is invalid (eg. private key == 0).
@@ -0,0 +1,132 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.crypto;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Remembers which signatures were found to be valid, so that they aren't verified again. A transaction is usually
+ * verified when it is relayed to us and again when it is included in a block, and the second time all of its
+ * signatures are found here. Script execution uses the cache returned by {@link #get()}.</p>
+ *
+ * <p>Only valid signatures are remembered, as the result for a valid signature never changes, and so that invalid
+ * signatures sent by an attacker can't push the valid ones out of the cache. Entries are keyed on a hash of the
+ * signature hash, public key and signature, salted with a random value so that nobody can craft colliding keys.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ */
+public class SignatureCache {
+    /** The number of signatures that the shared cache remembers. */
+    public static final int DEFAULT_MAX_SIZE = 100000;
+
+    private static final SignatureCache DEFAULT = new SignatureCache(DEFAULT_MAX_SIZE);
+
+    private final Cache<Sha256Hash, Boolean> validSignatures;
+    // A SHA-256 digest that has already been fed the salt, cloned for each key.
+    private final MessageDigest saltedDigest;
+
+    /** Creates a cache that remembers at most the given number of valid signatures. */
+    public SignatureCache(int maxSize) {
+        checkArgument(maxSize >= 0, "maxSize must not be negative");
+        validSignatures = CacheBuilder.newBuilder().maximumSize(maxSize).recordStats().build();
+        byte[] salt = new byte[32];
+        new SecureRandom().nextBytes(salt);
+        saltedDigest = Sha256Hash.newDigest();
+        saltedDigest.update(salt);
+    }
+
+    /** Returns the cache shared by all script executions. */
+    public static SignatureCache get() {
+        return DEFAULT;
+    }
+
+    /**
+     * Verifies the given signature against the signature hash using the public key, like
+     * {@link ECKey#verify(byte[], ECKey.ECDSASignature, byte[])}, unless it was found to be valid before.
+     */
+    public boolean verify(Sha256Hash sigHash, ECKey.ECDSASignature signature, byte[] pubKey) {
+        // Fake signatures are all valid, but mustn't be remembered as such once they are disabled again.
+        if (ECKey.FAKE_SIGNATURES)
+            return ECKey.verify(sigHash.getBytes(), signature, pubKey);
+        Sha256Hash key = key(sigHash, signature, pubKey);
+        if (validSignatures.getIfPresent(key) != null)
+            return true;
+        boolean valid = ECKey.verify(sigHash.getBytes(), signature, pubKey);
+        if (valid)
+            validSignatures.put(key, Boolean.TRUE);
+        return valid;
+    }
+
+    private Sha256Hash key(Sha256Hash sigHash, ECKey.ECDSASignature signature, byte[] pubKey) {
+        MessageDigest digest;
+        try {
+            digest = (MessageDigest) saltedDigest.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        digest.update(sigHash.getBytes());
+        // The public key and DER encoded signature are prefixed with their lengths, so that their bytes can't be
+        // shifted from one to the other.
+        digest.update((byte) pubKey.length);
+        digest.update(pubKey);
+        byte[] der = signature.encodeToDER();
+        digest.update((byte) der.length);
+        digest.update(der);
+        return Sha256Hash.wrap(digest.digest());
+    }
+
+    /** Returns the number of signatures remembered. */
+    public long size() {
+        return validSignatures.size();
+    }
+
+    /** Forgets all signatures, without resetting the statistics. */
+    public void clear() {
+        validSignatures.invalidateAll();
+    }
+
+    /** Returns how many signatures were found in the cache. */
+    public long getHits() {
+        return validSignatures.stats().hitCount();
+    }
+
+    /** Returns how many signatures had to be verified. */
+    public long getMisses() {
+        return validSignatures.stats().missCount();
+    }
+
+    /** Returns the share of signatures that were found in the cache, or 1 if none were looked up yet. */
+    public double getHitRate() {
+        return validSignatures.stats().hitRate();
+    }
+
+    @Override
+    public String toString() {
+        CacheStats stats = validSignatures.stats();
+        return "SignatureCache{size=" + size() + ", hits=" + stats.hitCount() + ", misses=" + stats.missCount()
+                + ", evictions=" + stats.evictionCount() + "}";
+    }
+}
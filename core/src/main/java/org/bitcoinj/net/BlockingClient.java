@@ -36,7 +36,7 @@ import static com.google.common.base.Preconditions.*;
  * and {@link BlockingClientManager}, unless you wish to connect over a proxy or use some other network settings that
  * cannot be set using NIO.</p>
  */
-public class BlockingClient implements MessageWriteTarget {
+public class BlockingClient implements QueuedMessageWriteTarget {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(BlockingClient.class);
 
     private static final int BUFFER_SIZE_LOWER_BOUND = 4096;
@@ -106,15 +106,15 @@ public class BlockingClient implements MessageWriteTarget {
      * and feeds them to the provided {@link StreamConnection}, for example, a {@link Peer}.
      */
     public static void runReadLoop(InputStream stream, StreamConnection connection) throws Exception {
-        ByteBuffer dbuf = ByteBuffer.allocateDirect(Math.min(Math.max(connection.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
-        byte[] readBuff = new byte[dbuf.capacity()];
+        // A heap buffer, so that the stream can read into it directly and messages can be parsed from its array.
+        ByteBuffer dbuf = ByteBuffer.allocate(Math.min(Math.max(connection.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
         while (true) {
-            // TODO Kill the message duplication here
-            checkState(dbuf.remaining() > 0 && dbuf.remaining() <= readBuff.length);
-            int read = stream.read(readBuff, 0, Math.max(1, Math.min(dbuf.remaining(), stream.available())));
+            checkState(dbuf.remaining() > 0);
+            int read = stream.read(dbuf.array(), dbuf.arrayOffset() + dbuf.position(),
+                    Math.max(1, Math.min(dbuf.remaining(), stream.available())));
             if (read == -1)
                 return;
-            dbuf.put(readBuff, 0, read);
+            dbuf.position(dbuf.position() + read);
             // "flip" the buffer - setting the limit to the current position and setting position to 0
             dbuf.flip();
             // Use connection.receiveBytes's return value as a double-check that it stopped reading at the right
@@ -155,6 +155,11 @@ public class BlockingClient implements MessageWriteTarget {
         }
     }
 
+    @Override
+    public long getOutboundQueueBytes() {
+        return 0; // writeBytes() blocks until the bytes are written
+    }
+
     /** Returns a future that completes once connection has occurred at the socket level or with an exception if failed to connect. */
     public ListenableFuture<SocketAddress> getConnectFuture() {
         return connectFuture;
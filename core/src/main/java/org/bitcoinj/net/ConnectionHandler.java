@@ -28,10 +28,12 @@ import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.Arrays;
+import java.util.ArrayDeque;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -43,7 +45,7 @@ import static com.google.common.base.Preconditions.checkState;
  * A simple NIO MessageWriteTarget which handles all the business logic of a connection (reading+writing bytes).
  * Used only by the NioClient and NioServer classes
  */
-class ConnectionHandler implements MessageWriteTarget {
+class ConnectionHandler implements QueuedMessageWriteTarget {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(ConnectionHandler.class);
 
     private static final int BUFFER_SIZE_LOWER_BOUND = 4096;
@@ -51,6 +53,16 @@ class ConnectionHandler implements MessageWriteTarget {
 
     private static final int OUTBOUND_BUFFER_BYTE_COUNT = Message.MAX_SIZE + 24; // 24 byte message header
 
+    // Outbound messages are copied into chunks of this size, so that small messages share a chunk and large ones span
+    // several. The chunks are direct buffers, which the channel writes without copying them again, and are reused by
+    // all connections.
+    private static final int WRITE_CHUNK_SIZE = 16 * 1024;
+    private static final int MAX_POOLED_CHUNKS = 256;
+    // The number of chunks passed to a single gathering write.
+    private static final int MAX_GATHERED_CHUNKS = 64;
+    private static final Queue<ByteBuffer> chunkPool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooledChunks = new AtomicInteger();
+
     // We lock when touching local flags and when writing data, but NEVER when calling any methods which leave this
     // class into non-Java classes.
     private final ReentrantLock lock = Threading.lock("nioConnectionHandler");
@@ -61,9 +73,11 @@ class ConnectionHandler implements MessageWriteTarget {
     @GuardedBy("lock") private boolean closeCalled = false;
 
     @GuardedBy("lock") private long bytesToWriteRemaining = 0;
-    @GuardedBy("lock") private final LinkedList<ByteBuffer> bytesToWrite = new LinkedList<>();
+    // Chunks ready to be written, each flipped so that the bytes between its position and limit are still to be written.
+    @GuardedBy("lock") private final ArrayDeque<ByteBuffer> bytesToWrite = new ArrayDeque<>();
 
     private Set<ConnectionHandler> connectedHandlers;
+    @Nullable private NioClientManager.SelectorStats stats;
 
     public ConnectionHandler(StreamConnectionFactory connectionFactory, SelectionKey key) throws IOException {
         this(connectionFactory.getNewConnection(((SocketChannel) key.channel()).socket().getInetAddress(), ((SocketChannel) key.channel()).socket().getPort()), key);
@@ -79,13 +93,17 @@ class ConnectionHandler implements MessageWriteTarget {
             return;
         }
         this.connection = connection;
-        readBuff = ByteBuffer.allocateDirect(Math.min(Math.max(connection.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
+        // A heap buffer, so that messages can be parsed from its array without copying their payload first. The channel
+        // still reads through a direct buffer, which the JDK keeps per thread.
+        readBuff = ByteBuffer.allocate(Math.min(Math.max(connection.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
         connection.setWriteTarget(this); // May callback into us (eg closeConnection() now)
         connectedHandlers = null;
     }
 
-    public ConnectionHandler(StreamConnection connection, SelectionKey key, Set<ConnectionHandler> connectedHandlers) {
+    public ConnectionHandler(StreamConnection connection, SelectionKey key, Set<ConnectionHandler> connectedHandlers,
+                             @Nullable NioClientManager.SelectorStats stats) {
         this(checkNotNull(connection), key);
+        this.stats = stats;
 
         // closeConnection() may have already happened because we invoked the other c'tor above, which called
         // connection.setWriteTarget which might have re-entered already. In this case we shouldn't add ourselves
@@ -108,26 +126,71 @@ class ConnectionHandler implements MessageWriteTarget {
         key.selector().wakeup();
     }
 
-    // Tries to write any outstanding write bytes, runs in any thread (possibly unlocked)
+    private static ByteBuffer takeChunk() {
+        ByteBuffer chunk = chunkPool.poll();
+        if (chunk == null)
+            return ByteBuffer.allocateDirect(WRITE_CHUNK_SIZE);
+        pooledChunks.decrementAndGet();
+        chunk.clear();
+        return chunk;
+    }
+
+    private static void releaseChunk(ByteBuffer chunk) {
+        if (pooledChunks.incrementAndGet() <= MAX_POOLED_CHUNKS)
+            chunkPool.offer(chunk);
+        else
+            pooledChunks.decrementAndGet();
+    }
+
+    // Appends the message to the outbound chunks, filling up the last one first
+    @GuardedBy("lock")
+    private void enqueue(byte[] message) {
+        int offset = 0;
+        ByteBuffer last = bytesToWrite.peekLast();
+        if (last != null && last.limit() < last.capacity()) {
+            int length = Math.min(message.length, last.capacity() - last.limit());
+            // Write behind the limit through a duplicate, leaving the bytes still to be written in place.
+            ByteBuffer tail = last.duplicate();
+            tail.limit(last.limit() + length);
+            tail.position(last.limit());
+            tail.put(message, 0, length);
+            last.limit(last.limit() + length);
+            offset = length;
+        }
+        while (offset < message.length) {
+            ByteBuffer chunk = takeChunk();
+            int length = Math.min(message.length - offset, chunk.capacity());
+            chunk.put(message, offset, length);
+            chunk.flip();
+            bytesToWrite.offer(chunk);
+            offset += length;
+        }
+    }
+
+    // Tries to write any outstanding write bytes, runs on the selector thread
     private void tryWriteBytes() throws IOException {
         lock.lock();
         try {
-            // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
-            Iterator<ByteBuffer> bytesIterator = bytesToWrite.iterator();
-            while (bytesIterator.hasNext()) {
-                ByteBuffer buff = bytesIterator.next();
-                bytesToWriteRemaining -= channel.write(buff);
-                if (!buff.hasRemaining())
-                    bytesIterator.remove();
-                else {
-                    setWriteOps();
-                    break;
-                }
+            // Push as much of the outbound chunks as possible into the OS' network buffer, with one gathering write
+            // for up to MAX_GATHERED_CHUNKS of them.
+            while (!bytesToWrite.isEmpty()) {
+                ByteBuffer[] buffs = new ByteBuffer[Math.min(bytesToWrite.size(), MAX_GATHERED_CHUNKS)];
+                Iterator<ByteBuffer> bytesIterator = bytesToWrite.iterator();
+                for (int i = 0; i < buffs.length; i++)
+                    buffs[i] = bytesIterator.next();
+                long written = channel.write(buffs);
+                bytesToWriteRemaining -= written;
+                if (stats != null)
+                    stats.bytesWritten.addAndGet(written);
+                while (!bytesToWrite.isEmpty() && !bytesToWrite.peek().hasRemaining())
+                    releaseChunk(bytesToWrite.poll());
+                if (buffs[buffs.length - 1].hasRemaining())
+                    break; // The network buffer is full, we'll be selected again when there is room
             }
-            // If we are done writing, clear the OP_WRITE interestOps
+            // If we are done writing, clear the OP_WRITE interestOps. Otherwise it is still set, and as we are on the
+            // selector thread, there is no need to wake it up.
             if (bytesToWrite.isEmpty())
                 key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
-            // Don't bother waking up the selector here, since we're just removing an op, not adding
         } finally {
             lock.unlock();
         }
@@ -139,17 +202,18 @@ class ConnectionHandler implements MessageWriteTarget {
         lock.lock();
         try {
             // Network buffers are not unlimited (and are often smaller than some messages we may wish to send), and
-            // thus we have to buffer outbound messages sometimes. To do this, we use a queue of ByteBuffers and just
-            // append to it when we want to send a message. We then let tryWriteBytes() either send the message or
-            // register our SelectionKey to wakeup when we have free outbound buffer space available.
+            // thus we have to buffer outbound messages sometimes. To do this, we copy them into a queue of chunks and
+            // let tryWriteBytes() send as much as it can once the selector finds the channel writable.
 
             if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
                 throw new IOException("Outbound buffer overflowed");
-            // Just dump the message onto the write buffer and call tryWriteBytes
-            // TODO: Kill the needless message duplication when the write completes right away
-            bytesToWrite.offer(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
+            // OP_WRITE is set whenever there are bytes to write, so only the first message queued needs to set it and
+            // wake up the selector. The ones that follow are written along with it.
+            boolean wasEmpty = bytesToWriteRemaining == 0;
+            enqueue(message);
             bytesToWriteRemaining += message.length;
-            setWriteOps();
+            if (wasEmpty)
+                setWriteOps();
         } catch (IOException e) {
             lock.unlock();
             andUnlock = false;
@@ -168,6 +232,16 @@ class ConnectionHandler implements MessageWriteTarget {
         }
     }
 
+    @Override
+    public long getOutboundQueueBytes() {
+        lock.lock();
+        try {
+            return bytesToWriteRemaining;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     // May NOT be called with lock held
     @Override
     public void closeConnection() {
@@ -186,6 +260,11 @@ class ConnectionHandler implements MessageWriteTarget {
         try {
             callClosed = !closeCalled;
             closeCalled = true;
+            // Nothing more will be written, so let other connections reuse the chunks.
+            ByteBuffer chunk;
+            while ((chunk = bytesToWrite.poll()) != null)
+                releaseChunk(chunk);
+            bytesToWriteRemaining = 0;
         } finally {
             lock.unlock();
         }
@@ -217,6 +296,8 @@ class ConnectionHandler implements MessageWriteTarget {
                     handler.closeConnection();
                     return;
                 }
+                if (handler.stats != null)
+                    handler.stats.bytesRead.addAndGet(read);
                 // "flip" the buffer - setting the limit to the current position and setting position to 0
                 handler.readBuff.flip();
                 // Use connection.receiveBytes's return value as a check that it stopped reading at the right location
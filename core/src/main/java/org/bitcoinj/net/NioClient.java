@@ -28,7 +28,7 @@ import java.nio.*;
 /**
  * Creates a simple connection to a server using a {@link StreamConnection} to process data.
  */
-public class NioClient implements MessageWriteTarget {
+public class NioClient implements QueuedMessageWriteTarget {
     private static final Logger log = LoggerFactory.getLogger(NioClient.class);
 
     private final Handler handler;
@@ -123,4 +123,11 @@ public class NioClient implements MessageWriteTarget {
     public synchronized void writeBytes(byte[] message) throws IOException {
         handler.writeTarget.writeBytes(message);
     }
+
+    @Override
+    public long getOutboundQueueBytes() {
+        MessageWriteTarget writeTarget = handler.writeTarget;
+        return writeTarget instanceof QueuedMessageWriteTarget
+                ? ((QueuedMessageWriteTarget) writeTarget).getOutboundQueueBytes() : 0;
+    }
 }
@@ -28,15 +28,19 @@ import java.nio.channels.*;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * A class which manages a set of client connections. Uses Java NIO to select network events and processes them in a
- * single network processing thread.
+ * fixed number of network processing threads, each with its own selector. New connections go to the thread that
+ * services the fewest connections, and stay on it until they are closed.
  */
 public class NioClientManager extends AbstractExecutionThreadService implements ClientConnectionManager {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioClientManager.class);
 
-    private final Selector selector;
+    private final SelectorLoop[] loops;
 
     class PendingConnect {
         SocketChannel sc;
@@ -46,44 +50,175 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
         PendingConnect(SocketChannel sc, StreamConnection connection, SocketAddress address) { this.sc = sc; this.connection = connection; this.address = address; }
     }
-    final Queue<PendingConnect> newConnectionChannels = new LinkedBlockingQueue<>();
-
-    // Added to/removed from by the individual ConnectionHandler's, thus must by synchronized on its own.
-    private final Set<ConnectionHandler> connectedHandlers = Collections.synchronizedSet(new HashSet<ConnectionHandler>());
-
-    // Handle a SelectionKey which was selected
-    private void handleKey(SelectionKey key) throws IOException {
-        // We could have a !isValid() key here if the connection is already closed at this point
-        if (key.isValid() && key.isConnectable()) { // ie a client connection which has finished the initial connect process
-            // Create a ConnectionHandler and hook everything together
-            PendingConnect data = (PendingConnect) key.attachment();
-            StreamConnection connection = data.connection;
-            SocketChannel sc = (SocketChannel) key.channel();
-            ConnectionHandler handler = new ConnectionHandler(connection, key, connectedHandlers);
+
+    /**
+     * Counters of the work done by one network processing thread of a {@link NioClientManager}. They only ever grow,
+     * so rates are found by sampling them.
+     */
+    public static class SelectorStats {
+        final AtomicLong bytesRead = new AtomicLong();
+        final AtomicLong bytesWritten = new AtomicLong();
+        final AtomicLong selects = new AtomicLong();
+        final AtomicLong selectedKeys = new AtomicLong();
+        final AtomicLong handlingNanos = new AtomicLong();
+        final AtomicLong maxHandlingNanos = new AtomicLong();
+
+        /** Returns how many bytes were read from the connections of the thread. */
+        public long getBytesRead() {
+            return bytesRead.get();
+        }
+
+        /** Returns how many bytes were written to the connections of the thread. */
+        public long getBytesWritten() {
+            return bytesWritten.get();
+        }
+
+        /** Returns how many times the thread woke up from selecting. */
+        public long getSelects() {
+            return selects.get();
+        }
+
+        /** Returns how many selected keys the thread handled. */
+        public long getSelectedKeys() {
+            return selectedKeys.get();
+        }
+
+        /**
+         * Returns how long the thread spent handling the selected keys, in nanoseconds. Incoming messages are parsed
+         * and processed during this time, so events of the other connections of the thread wait for it.
+         */
+        public long getHandlingNanos() {
+            return handlingNanos.get();
+        }
+
+        /** Returns the longest time the thread spent handling the keys selected at once, in nanoseconds. */
+        public long getMaxHandlingNanos() {
+            return maxHandlingNanos.get();
+        }
+
+        private void recordHandling(long nanos) {
+            handlingNanos.addAndGet(nanos);
+            long max = maxHandlingNanos.get();
+            while (nanos > max && !maxHandlingNanos.compareAndSet(max, nanos))
+                max = maxHandlingNanos.get();
+        }
+
+        @Override
+        public String toString() {
+            return "read " + getBytesRead() + " bytes, wrote " + getBytesWritten() + " bytes, " + getSelectedKeys()
+                    + " keys in " + getSelects() + " selects, handled in " + getHandlingNanos() / 1000000 + " ms (max "
+                    + getMaxHandlingNanos() / 1000000 + " ms)";
+        }
+    }
+
+    /** A selector and the connections registered with it, serviced by one thread. */
+    private class SelectorLoop implements Runnable {
+        private final Selector selector;
+        final Queue<PendingConnect> newConnectionChannels = new LinkedBlockingQueue<>();
+
+        // Added to/removed from by the individual ConnectionHandler's, thus must by synchronized on its own.
+        private final Set<ConnectionHandler> connectedHandlers = Collections.synchronizedSet(new HashSet<ConnectionHandler>());
+        private final SelectorStats stats = new SelectorStats();
+
+        SelectorLoop() {
             try {
-                if (sc.finishConnect()) {
-                    log.info("Connected to {}", sc.socket().getRemoteSocketAddress());
-                    key.interestOps((key.interestOps() | SelectionKey.OP_READ) & ~SelectionKey.OP_CONNECT).attach(handler);
-                    connection.connectionOpened();
-                    data.future.set(data.address);
-                } else {
-                    log.warn("Failed to connect to {}", sc.socket().getRemoteSocketAddress());
-                    handler.closeConnection(); // Failed to connect for some reason
-                    data.future.setException(new ConnectException("Unknown reason"));
+                selector = SelectorProvider.provider().openSelector();
+            } catch (IOException e) {
+                throw new RuntimeException(e); // Shouldn't ever happen
+            }
+        }
+
+        // The number of connections this loop services or is about to.
+        int load() {
+            return connectedHandlers.size() + newConnectionChannels.size();
+        }
+
+        // Handle a SelectionKey which was selected
+        private void handleKey(SelectionKey key) throws IOException {
+            // We could have a !isValid() key here if the connection is already closed at this point
+            if (key.isValid() && key.isConnectable()) { // ie a client connection which has finished the initial connect process
+                // Create a ConnectionHandler and hook everything together
+                PendingConnect data = (PendingConnect) key.attachment();
+                StreamConnection connection = data.connection;
+                SocketChannel sc = (SocketChannel) key.channel();
+                ConnectionHandler handler = new ConnectionHandler(connection, key, connectedHandlers, stats);
+                try {
+                    if (sc.finishConnect()) {
+                        log.info("Connected to {}", sc.socket().getRemoteSocketAddress());
+                        key.interestOps((key.interestOps() | SelectionKey.OP_READ) & ~SelectionKey.OP_CONNECT).attach(handler);
+                        connection.connectionOpened();
+                        data.future.set(data.address);
+                    } else {
+                        log.warn("Failed to connect to {}", sc.socket().getRemoteSocketAddress());
+                        handler.closeConnection(); // Failed to connect for some reason
+                        data.future.setException(new ConnectException("Unknown reason"));
+                        data.future = null;
+                    }
+                } catch (Exception e) {
+                    // If e is a CancelledKeyException, there is a race to get to interestOps after finishConnect() which
+                    // may cause this. Otherwise it may be any arbitrary kind of connection failure.
+                    // Calling sc.socket().getRemoteSocketAddress() here throws an exception, so we can only log the error itself
+                    Throwable cause = Throwables.getRootCause(e);
+                    log.warn("Failed to connect with exception: {}: {}", cause.getClass().getName(), cause.getMessage(), e);
+                    handler.closeConnection();
+                    data.future.setException(cause);
                     data.future = null;
                 }
+            } else // Process bytes read
+                ConnectionHandler.handleKey(key);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (isRunning()) {
+                    PendingConnect conn;
+                    while ((conn = newConnectionChannels.poll()) != null) {
+                        try {
+                            SelectionKey key = conn.sc.register(selector, SelectionKey.OP_CONNECT);
+                            key.attach(conn);
+                        } catch (ClosedChannelException e) {
+                            log.warn("SocketChannel was closed before it could be registered");
+                        }
+                    }
+
+                    selector.select();
+                    stats.selects.incrementAndGet();
+
+                    long start = System.nanoTime();
+                    Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+                    while (keyIterator.hasNext()) {
+                        SelectionKey key = keyIterator.next();
+                        keyIterator.remove();
+                        stats.selectedKeys.incrementAndGet();
+                        handleKey(key);
+                    }
+                    stats.recordHandling(System.nanoTime() - start);
+                }
             } catch (Exception e) {
-                // If e is a CancelledKeyException, there is a race to get to interestOps after finishConnect() which
-                // may cause this. Otherwise it may be any arbitrary kind of connection failure.
-                // Calling sc.socket().getRemoteSocketAddress() here throws an exception, so we can only log the error itself
-                Throwable cause = Throwables.getRootCause(e);
-                log.warn("Failed to connect with exception: {}: {}", cause.getClass().getName(), cause.getMessage(), e);
-                handler.closeConnection();
-                data.future.setException(cause);
-                data.future = null;
+                log.warn("Error trying to open/read from connection: ", e);
+                // Like with a single thread, an error stops the whole manager.
+                if (isRunning())
+                    stopAsync();
+            } finally {
+                // Go through and close everything, without letting IOExceptions get in our way
+                for (SelectionKey key : selector.keys()) {
+                    try {
+                        key.channel().close();
+                    } catch (IOException e) {
+                        log.warn("Error closing channel", e);
+                    }
+                    key.cancel();
+                    if (key.attachment() instanceof ConnectionHandler)
+                        ConnectionHandler.handleKey(key); // Close connection if relevant
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    log.warn("Error closing client manager selector", e);
+                }
             }
-        } else // Process bytes read
-            ConnectionHandler.handleKey(key);
+        }
     }
 
     /**
@@ -91,57 +226,37 @@ public class NioClientManager extends AbstractExecutionThreadService implements
      * calls.
      */
     public NioClientManager() {
-        try {
-            selector = SelectorProvider.provider().openSelector();
-        } catch (IOException e) {
-            throw new RuntimeException(e); // Shouldn't ever happen
-        }
+        this(1);
+    }
+
+    /**
+     * Creates a new client manager which uses Java NIO for socket management, with the given number of threads to
+     * handle select calls. Each connection is serviced by one of them, so messages are still processed in order.
+     */
+    public NioClientManager(int threads) {
+        checkArgument(threads > 0, "threads must be positive");
+        loops = new SelectorLoop[threads];
+        for (int i = 0; i < threads; i++)
+            loops[i] = new SelectorLoop();
     }
 
     @Override
     public void run() {
-        try {
-            Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
-            while (isRunning()) {
-                PendingConnect conn;
-                while ((conn = newConnectionChannels.poll()) != null) {
-                    try {
-                        SelectionKey key = conn.sc.register(selector, SelectionKey.OP_CONNECT);
-                        key.attach(conn);
-                    } catch (ClosedChannelException e) {
-                        log.warn("SocketChannel was closed before it could be registered");
-                    }
-                }
-
-                selector.select();
-
-                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    keyIterator.remove();
-                    handleKey(key);
-                }
-            }
-        } catch (Exception e) {
-            log.warn("Error trying to open/read from connection: ", e);
-        } finally {
-            // Go through and close everything, without letting IOExceptions get in our way
-            for (SelectionKey key : selector.keys()) {
-                try {
-                    key.channel().close();
-                } catch (IOException e) {
-                    log.warn("Error closing channel", e);
-                }
-                key.cancel();
-                if (key.attachment() instanceof ConnectionHandler)
-                    ConnectionHandler.handleKey(key); // Close connection if relevant
-            }
-            try {
-                selector.close();
-            } catch (IOException e) {
-                log.warn("Error closing client manager selector", e);
-            }
+        Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+        ThreadFactory threadFactory = new ContextPropagatingThreadFactory("NioClientManager", Thread.MIN_PRIORITY);
+        List<Thread> threads = new ArrayList<>(loops.length - 1);
+        for (int i = 1; i < loops.length; i++) {
+            Thread thread = threadFactory.newThread(loops[i]);
+            thread.start();
+            threads.add(thread);
         }
+        // The first loop runs on the service thread itself.
+        loops[0].run();
+        // Wait for the other loops to close their connections too.
+        for (SelectorLoop loop : loops)
+            loop.selector.wakeup();
+        for (Thread thread : threads)
+            Uninterruptibles.joinUninterruptibly(thread);
     }
 
     @Override
@@ -154,30 +269,61 @@ public class NioClientManager extends AbstractExecutionThreadService implements
             sc.configureBlocking(false);
             sc.connect(serverAddress);
             PendingConnect data = new PendingConnect(sc, connection, serverAddress);
-            newConnectionChannels.offer(data);
-            selector.wakeup();
+            SelectorLoop loop = leastLoadedLoop();
+            loop.newConnectionChannels.offer(data);
+            loop.selector.wakeup();
             return data.future;
         } catch (Throwable e) {
             return Futures.immediateFailedFuture(e);
         }
     }
 
+    private SelectorLoop leastLoadedLoop() {
+        SelectorLoop best = loops[0];
+        int bestLoad = best.load();
+        for (int i = 1; i < loops.length; i++) {
+            int load = loops[i].load();
+            if (load < bestLoad) {
+                best = loops[i];
+                bestLoad = load;
+            }
+        }
+        return best;
+    }
+
     @Override
     public void triggerShutdown() {
-        selector.wakeup();
+        for (SelectorLoop loop : loops)
+            loop.selector.wakeup();
     }
 
     @Override
     public int getConnectedClientCount() {
-        return connectedHandlers.size();
+        int count = 0;
+        for (SelectorLoop loop : loops)
+            count += loop.connectedHandlers.size();
+        return count;
+    }
+
+    /** Returns the counters of each network processing thread. */
+    public List<SelectorStats> getSelectorStats() {
+        List<SelectorStats> stats = new ArrayList<>(loops.length);
+        for (SelectorLoop loop : loops)
+            stats.add(loop.stats);
+        return stats;
     }
 
     @Override
     public void closeConnections(int n) {
         while (n-- > 0) {
+            // Close the connections of the busiest thread first.
+            SelectorLoop busiest = loops[0];
+            for (int i = 1; i < loops.length; i++)
+                if (loops[i].connectedHandlers.size() > busiest.connectedHandlers.size())
+                    busiest = loops[i];
             ConnectionHandler handler;
-            synchronized (connectedHandlers) {
-                handler = connectedHandlers.iterator().next();
+            synchronized (busiest.connectedHandlers) {
+                handler = busiest.connectedHandlers.iterator().next();
             }
             if (handler != null)
                 handler.closeConnection(); // Removes handler from connectedHandlers before returning
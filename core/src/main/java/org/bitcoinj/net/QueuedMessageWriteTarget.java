@@ -0,0 +1,28 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+/**
+ * A {@link MessageWriteTarget} that can tell how much of what was written to it is still waiting to be sent. It is
+ * separate so that existing implementations of {@link MessageWriteTarget} don't have to change.
+ */
+public interface QueuedMessageWriteTarget extends MessageWriteTarget {
+    /**
+     * Returns how many of the bytes given to {@link #writeBytes(byte[])} are queued and not yet handed to the network.
+     */
+    long getOutboundQueueBytes();
+}
@@ -0,0 +1,958 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.crypto.SignatureCache;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.script.Script.VerifyFlag;
+import org.bouncycastle.crypto.digests.RIPEMD160Digest;
+
+import javax.annotation.Nullable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import static org.bitcoinj.script.ScriptOpCodes.*;
+
+/**
+ * <p>The script interpreter used by {@link Script#correctlySpends(Transaction, long, Script, Set)}. It gives the same
+ * result and {@link ScriptError} as {@link Script#executeScript(Transaction, long, Script, java.util.LinkedList, Set)}
+ * for every program, but runs directly on the program bytes instead of parsed {@link ScriptChunk}s.</p>
+ *
+ * <p>Stack elements are slices of the arrays they come from, so pushing data doesn't copy it. The stacks are
+ * array-backed and kept between executions and script numbers are handled as longs, which is enough because
+ * operands are limited to 4 bytes, or 5 bytes for CHECKLOCKTIMEVERIFY and CHECKSEQUENCEVERIFY. Each thread uses its
+ * own interpreter, so instances are never shared.</p>
+ */
+final class ScriptInterpreter {
+    private static final ThreadLocal<ScriptInterpreter> INTERPRETERS = new ThreadLocal<ScriptInterpreter>() {
+        @Override
+        protected ScriptInterpreter initialValue() {
+            return new ScriptInterpreter();
+        }
+    };
+
+    private static final byte[] FALSE = new byte[0];
+    private static final byte[] TRUE = new byte[] { 1 };
+    // Encodings of -1 to 16, the values of OP_1NEGATE and OP_1 to OP_16.
+    private static final byte[][] SMALL_NUMBERS = new byte[18][];
+    static {
+        for (int i = 0; i < SMALL_NUMBERS.length; i++)
+            SMALL_NUMBERS[i] = encodeLargeNumber(i - 1);
+    }
+
+    private final Stack stack = new Stack();
+    private final Stack altStack = new Stack();
+    private final Stack p2shStack = new Stack();
+    // Execution state of the nested OP_IF/OP_NOTIF branches, innermost last.
+    private boolean[] conditions = new boolean[16];
+    private int conditionDepth;
+    private int falseConditions;
+
+    private final MessageDigest sha256 = Sha256Hash.newDigest();
+    private final MessageDigest sha1;
+    private final RIPEMD160Digest ripemd160 = new RIPEMD160Digest();
+
+    private ScriptInterpreter() {
+        try {
+            sha1 = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    /**
+     * Verifies that the scriptSig correctly spends the scriptPubKey, including the BIP16 redeem script if
+     * {@link VerifyFlag#P2SH} is set. See {@link Script#correctlySpends(Transaction, long, Script, Set)}.
+     */
+    static void correctlySpends(Transaction txContainingThis, int scriptSigIndex, Script scriptSig,
+                                Script scriptPubKey, Set<VerifyFlag> verifyFlags) throws ScriptException {
+        ScriptInterpreter interpreter = INTERPRETERS.get();
+        try {
+            interpreter.verify(txContainingThis, scriptSigIndex, scriptSig, scriptPubKey, verifyFlags);
+        } finally {
+            interpreter.reset();
+        }
+    }
+
+    private void verify(Transaction tx, int index, Script scriptSig, Script scriptPubKey,
+                        Set<VerifyFlag> verifyFlags) throws ScriptException {
+        byte[] sigProgram = scriptSig.getQuickProgram();
+        byte[] pubKeyProgram = scriptPubKey.getQuickProgram();
+        boolean p2sh = verifyFlags.contains(VerifyFlag.P2SH);
+
+        execute(tx, index, sigProgram, 0, sigProgram.length, stack, verifyFlags);
+        if (p2sh)
+            p2shStack.copyFrom(stack);
+        execute(tx, index, pubKeyProgram, 0, pubKeyProgram.length, stack, verifyFlags);
+
+        if (stack.size == 0)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE, "Stack empty at end of script execution.");
+        if (!castToBool(stack, 0))
+            throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE,
+                    "Script resulted in a non-true stack: " + stack);
+
+        // See Script.correctlySpends() for how pay to script hash works.
+        if (p2sh && ScriptPattern.isP2SH(scriptPubKey)) {
+            int opcode = firstNonPushOpcode(sigProgram);
+            if (opcode >= 0)
+                throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_PUSHONLY,
+                        "Attempted to spend a P2SH scriptPubKey with a script that contained the script op " +
+                        getOpCodeName(opcode));
+
+            byte[] redeemBuf = p2shStack.buf(0);
+            int redeemOff = p2shStack.off(0);
+            int redeemLen = p2shStack.len(0);
+            p2shStack.drop(1);
+            execute(tx, index, redeemBuf, redeemOff, redeemOff + redeemLen, p2shStack, verifyFlags);
+
+            if (p2shStack.size == 0)
+                throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE, "P2SH stack empty at end of script execution.");
+            if (!castToBool(p2shStack, 0))
+                throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE,
+                        "P2SH script execution resulted in a non-true stack: " + p2shStack);
+        }
+    }
+
+    private void reset() {
+        stack.clear();
+        altStack.clear();
+        p2shStack.clear();
+        conditionDepth = 0;
+        falseConditions = 0;
+    }
+
+    /** Executes program[start, end) on the given stack, like {@link Script#executeScript}. */
+    private void execute(@Nullable Transaction tx, int index, byte[] program, int start, int end, Stack stack,
+                         Set<VerifyFlag> verifyFlags) throws ScriptException {
+        checkSyntax(program, start, end);
+        final boolean requireMinimal = verifyFlags.contains(VerifyFlag.MINIMALDATA);
+        final boolean discourageUpgradableNops = verifyFlags.contains(VerifyFlag.DISCOURAGE_UPGRADABLE_NOPS);
+        altStack.clear();
+        conditionDepth = 0;
+        falseConditions = 0;
+        int opCount = 0;
+        int lastCodeSepLocation = start;
+
+        int cursor = start;
+        while (cursor < end) {
+            boolean shouldExecute = falseConditions == 0;
+            int opcode = program[cursor++] & 0xFF;
+            int dataOff = -1;
+            int dataLen = 0;
+            if (opcode < OP_PUSHDATA1) {
+                dataLen = opcode;
+            } else if (opcode == OP_PUSHDATA1) {
+                dataLen = program[cursor] & 0xFF;
+                cursor += 1;
+            } else if (opcode == OP_PUSHDATA2) {
+                dataLen = Utils.readUint16(program, cursor);
+                cursor += 2;
+            } else if (opcode == OP_PUSHDATA4) {
+                dataLen = (int) Utils.readUint32(program, cursor);
+                cursor += 4;
+            }
+            if (opcode <= OP_PUSHDATA4) {
+                dataOff = cursor;
+                cursor += dataLen;
+            }
+
+            // Check stack element size
+            if (dataLen > Script.MAX_SCRIPT_ELEMENT_SIZE)
+                throw new ScriptException(ScriptError.SCRIPT_ERR_PUSH_SIZE, "Attempted to push a data string larger than 520 bytes");
+
+            // Note how OP_RESERVED does not count towards the opcode limit.
+            if (opcode > OP_16) {
+                opCount++;
+                if (opCount > Script.MAX_OPS_PER_SCRIPT)
+                    throw new ScriptException(ScriptError.SCRIPT_ERR_OP_COUNT, "More script operations than is allowed");
+            }
+
+            if (isDisabled(opcode))
+                throw new ScriptException(ScriptError.SCRIPT_ERR_DISABLED_OPCODE, "Script included a disabled Script Op.");
+
+            if (shouldExecute && dataOff >= 0) {
+                if (requireMinimal && !isShortestPossiblePushData(opcode, program, dataOff, dataLen))
+                    throw new ScriptException(ScriptError.SCRIPT_ERR_MINIMALDATA, "Script included a not minimal push operation.");
+                stack.push(program, dataOff, dataLen);
+            } else if (shouldExecute || (OP_IF <= opcode && opcode <= OP_ENDIF)) {
+                switch (opcode) {
+                case OP_IF:
+                case OP_NOTIF:
+                    if (!shouldExecute) {
+                        pushCondition(false);
+                        continue;
+                    }
+                    if (stack.size < 1)
+                        throw new ScriptException(ScriptError.SCRIPT_ERR_UNBALANCED_CONDITIONAL, "Attempted OP_IF/OP_NOTIF on an empty stack");
+                    pushCondition(castToBool(stack, 0) == (opcode == OP_IF));
+                    stack.drop(1);
+                    continue;
+                case OP_ELSE:
+                    if (conditionDepth == 0)
+                        throw new ScriptException(ScriptError.SCRIPT_ERR_UNBALANCED_CONDITIONAL, "Attempted OP_ELSE without OP_IF/NOTIF");
+                    boolean condition = popCondition();
+                    pushCondition(!condition);
+                    continue;
+                case OP_ENDIF:
+                    if (conditionDepth == 0)
+                        throw new ScriptException(ScriptError.SCRIPT_ERR_UNBALANCED_CONDITIONAL, "Attempted OP_ENDIF without OP_IF/NOTIF");
+                    popCondition();
+                    continue;
+
+                case OP_1NEGATE:
+                case OP_1:
+                case OP_2:
+                case OP_3:
+                case OP_4:
+                case OP_5:
+                case OP_6:
+                case OP_7:
+                case OP_8:
+                case OP_9:
+                case OP_10:
+                case OP_11:
+                case OP_12:
+                case OP_13:
+                case OP_14:
+                case OP_15:
+                case OP_16:
+                    stack.push(SMALL_NUMBERS[opcode - OP_1NEGATE]);
+                    break;
+                case OP_NOP:
+                    break;
+                case OP_VERIFY:
+                    requireStack(stack, 1, "OP_VERIFY");
+                    if (!castToBool(stack, 0))
+                        throw new ScriptException(ScriptError.SCRIPT_ERR_VERIFY, "OP_VERIFY failed");
+                    stack.drop(1);
+                    break;
+                case OP_RETURN:
+                    throw new ScriptException(ScriptError.SCRIPT_ERR_OP_RETURN, "Script called OP_RETURN");
+                case OP_TOALTSTACK:
+                    requireStack(stack, 1, "OP_TOALTSTACK");
+                    altStack.pushFrom(stack, 0);
+                    stack.drop(1);
+                    break;
+                case OP_FROMALTSTACK:
+                    if (altStack.size < 1)
+                        throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_ALTSTACK_OPERATION, "Attempted OP_FROMALTSTACK on an empty altstack");
+                    stack.pushFrom(altStack, 0);
+                    altStack.drop(1);
+                    break;
+                case OP_2DROP:
+                    requireStack(stack, 2, "OP_2DROP");
+                    stack.drop(2);
+                    break;
+                case OP_2DUP:
+                    requireStack(stack, 2, "OP_2DUP");
+                    stack.pushFrom(stack, 1);
+                    stack.pushFrom(stack, 1);
+                    break;
+                case OP_3DUP:
+                    requireStack(stack, 3, "OP_3DUP");
+                    stack.pushFrom(stack, 2);
+                    stack.pushFrom(stack, 2);
+                    stack.pushFrom(stack, 2);
+                    break;
+                case OP_2OVER:
+                    requireStack(stack, 4, "OP_2OVER");
+                    stack.pushFrom(stack, 3);
+                    stack.pushFrom(stack, 3);
+                    break;
+                case OP_2ROT:
+                    requireStack(stack, 6, "OP_2ROT");
+                    stack.roll(5);
+                    stack.roll(5);
+                    break;
+                case OP_2SWAP:
+                    requireStack(stack, 4, "OP_2SWAP");
+                    stack.swap(3, 1);
+                    stack.swap(2, 0);
+                    break;
+                case OP_IFDUP:
+                    requireStack(stack, 1, "OP_IFDUP");
+                    if (castToBool(stack, 0))
+                        stack.pushFrom(stack, 0);
+                    break;
+                case OP_DEPTH:
+                    stack.push(encodeNumber(stack.size));
+                    break;
+                case OP_DROP:
+                    requireStack(stack, 1, "OP_DROP");
+                    stack.drop(1);
+                    break;
+                case OP_DUP:
+                    requireStack(stack, 1, "OP_DUP");
+                    stack.pushFrom(stack, 0);
+                    break;
+                case OP_NIP:
+                    requireStack(stack, 2, "OP_NIP");
+                    stack.remove(1);
+                    break;
+                case OP_OVER:
+                    requireStack(stack, 2, "OP_OVER");
+                    stack.pushFrom(stack, 1);
+                    break;
+                case OP_PICK:
+                case OP_ROLL:
+                    requireStack(stack, 1, "OP_PICK/OP_ROLL");
+                    long depth = castToNumber(stack, 0, 4, requireMinimal);
+                    stack.drop(1);
+                    if (depth < 0 || depth >= stack.size)
+                        throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "OP_PICK/OP_ROLL attempted to get data deeper than stack size");
+                    if (opcode == OP_ROLL)
+                        stack.roll((int) depth);
+                    else
+                        stack.pushFrom(stack, (int) depth);
+                    break;
+                case OP_ROT:
+                    requireStack(stack, 3, "OP_ROT");
+                    stack.roll(2);
+                    break;
+                case OP_SWAP:
+                case OP_TUCK:
+                    requireStack(stack, 2, "OP_SWAP");
+                    stack.swap(0, 1);
+                    if (opcode == OP_TUCK)
+                        stack.pushFrom(stack, 1);
+                    break;
+                case OP_SIZE:
+                    requireStack(stack, 1, "OP_SIZE");
+                    stack.push(encodeNumber(stack.len(0)));
+                    break;
+                case OP_EQUAL:
+                    requireStack(stack, 2, "OP_EQUAL");
+                    boolean equal = stack.equal(0, 1);
+                    stack.drop(2);
+                    stack.push(equal ? TRUE : FALSE);
+                    break;
+                case OP_EQUALVERIFY:
+                    requireStack(stack, 2, "OP_EQUALVERIFY");
+                    if (!stack.equal(0, 1))
+                        throw new ScriptException(ScriptError.SCRIPT_ERR_EQUALVERIFY, "OP_EQUALVERIFY: non-equal data");
+                    stack.drop(2);
+                    break;
+                case OP_1ADD:
+                case OP_1SUB:
+                case OP_NEGATE:
+                case OP_ABS:
+                case OP_NOT:
+                case OP_0NOTEQUAL:
+                    requireStack(stack, 1, "a numeric op");
+                    long num = castToNumber(stack, 0, 4, requireMinimal);
+                    stack.drop(1);
+                    switch (opcode) {
+                    case OP_1ADD:
+                        num = num + 1;
+                        break;
+                    case OP_1SUB:
+                        num = num - 1;
+                        break;
+                    case OP_NEGATE:
+                        num = -num;
+                        break;
+                    case OP_ABS:
+                        num = Math.abs(num);
+                        break;
+                    case OP_NOT:
+                        num = num == 0 ? 1 : 0;
+                        break;
+                    case OP_0NOTEQUAL:
+                        num = num == 0 ? 0 : 1;
+                        break;
+                    default:
+                        throw new AssertionError("Unreachable");
+                    }
+                    stack.push(encodeNumber(num));
+                    break;
+                case OP_ADD:
+                case OP_SUB:
+                case OP_BOOLAND:
+                case OP_BOOLOR:
+                case OP_NUMEQUAL:
+                case OP_NUMNOTEQUAL:
+                case OP_LESSTHAN:
+                case OP_GREATERTHAN:
+                case OP_LESSTHANOREQUAL:
+                case OP_GREATERTHANOREQUAL:
+                case OP_MIN:
+                case OP_MAX:
+                    requireStack(stack, 2, "a numeric op");
+                    long num2 = castToNumber(stack, 0, 4, requireMinimal);
+                    long num1 = castToNumber(stack, 1, 4, requireMinimal);
+                    stack.drop(2);
+                    long result;
+                    switch (opcode) {
+                    case OP_ADD:
+                        result = num1 + num2;
+                        break;
+                    case OP_SUB:
+                        result = num1 - num2;
+                        break;
+                    case OP_BOOLAND:
+                        result = num1 != 0 && num2 != 0 ? 1 : 0;
+                        break;
+                    case OP_BOOLOR:
+                        result = num1 != 0 || num2 != 0 ? 1 : 0;
+                        break;
+                    case OP_NUMEQUAL:
+                        result = num1 == num2 ? 1 : 0;
+                        break;
+                    case OP_NUMNOTEQUAL:
+                        result = num1 != num2 ? 1 : 0;
+                        break;
+                    case OP_LESSTHAN:
+                        result = num1 < num2 ? 1 : 0;
+                        break;
+                    case OP_GREATERTHAN:
+                        result = num1 > num2 ? 1 : 0;
+                        break;
+                    case OP_LESSTHANOREQUAL:
+                        result = num1 <= num2 ? 1 : 0;
+                        break;
+                    case OP_GREATERTHANOREQUAL:
+                        result = num1 >= num2 ? 1 : 0;
+                        break;
+                    case OP_MIN:
+                        result = Math.min(num1, num2);
+                        break;
+                    case OP_MAX:
+                        result = Math.max(num1, num2);
+                        break;
+                    default:
+                        throw new RuntimeException("Opcode switched at runtime?");
+                    }
+                    stack.push(encodeNumber(result));
+                    break;
+                case OP_NUMEQUALVERIFY:
+                    requireStack(stack, 2, "OP_NUMEQUALVERIFY");
+                    long numEqualVerify2 = castToNumber(stack, 0, 4, requireMinimal);
+                    long numEqualVerify1 = castToNumber(stack, 1, 4, requireMinimal);
+                    if (numEqualVerify1 != numEqualVerify2)
+                        throw new ScriptException(ScriptError.SCRIPT_ERR_NUMEQUALVERIFY, "OP_NUMEQUALVERIFY failed");
+                    stack.drop(2);
+                    break;
+                case OP_WITHIN:
+                    requireStack(stack, 3, "OP_WITHIN");
+                    long withinMax = castToNumber(stack, 0, 4, requireMinimal);
+                    long withinMin = castToNumber(stack, 1, 4, requireMinimal);
+                    long withinNum = castToNumber(stack, 2, 4, requireMinimal);
+                    stack.drop(3);
+                    stack.push(withinMin <= withinNum && withinNum < withinMax ? TRUE : FALSE);
+                    break;
+                case OP_RIPEMD160:
+                    requireStack(stack, 1, "OP_RIPEMD160");
+                    ripemd160.update(stack.buf(0), stack.off(0), stack.len(0));
+                    stack.drop(1);
+                    stack.push(finishRipemd160());
+                    break;
+                case OP_SHA1:
+                    requireStack(stack, 1, "OP_SHA1");
+                    sha1.update(stack.buf(0), stack.off(0), stack.len(0));
+                    stack.drop(1);
+                    stack.push(sha1.digest());
+                    break;
+                case OP_SHA256:
+                    requireStack(stack, 1, "OP_SHA256");
+                    sha256.update(stack.buf(0), stack.off(0), stack.len(0));
+                    stack.drop(1);
+                    stack.push(sha256.digest());
+                    break;
+                case OP_HASH160:
+                    requireStack(stack, 1, "OP_HASH160");
+                    sha256.update(stack.buf(0), stack.off(0), stack.len(0));
+                    stack.drop(1);
+                    byte[] sha256Hash = sha256.digest();
+                    ripemd160.update(sha256Hash, 0, sha256Hash.length);
+                    stack.push(finishRipemd160());
+                    break;
+                case OP_HASH256:
+                    requireStack(stack, 1, "OP_HASH256");
+                    sha256.update(stack.buf(0), stack.off(0), stack.len(0));
+                    stack.drop(1);
+                    stack.push(sha256.digest(sha256.digest()));
+                    break;
+                case OP_CODESEPARATOR:
+                    lastCodeSepLocation = cursor;
+                    break;
+                case OP_CHECKSIG:
+                case OP_CHECKSIGVERIFY:
+                    if (tx == null)
+                        throw new IllegalStateException("Script attempted signature check but no tx was provided");
+                    executeCheckSig(tx, index, stack, Arrays.copyOfRange(program, lastCodeSepLocation, end),
+                            opcode, verifyFlags);
+                    break;
+                case OP_CHECKMULTISIG:
+                case OP_CHECKMULTISIGVERIFY:
+                    if (tx == null)
+                        throw new IllegalStateException("Script attempted signature check but no tx was provided");
+                    opCount = executeMultiSig(tx, index, stack, Arrays.copyOfRange(program, lastCodeSepLocation, end),
+                            opCount, opcode, verifyFlags);
+                    break;
+                case OP_CHECKLOCKTIMEVERIFY:
+                    if (!verifyFlags.contains(VerifyFlag.CHECKLOCKTIMEVERIFY)) {
+                        // not enabled; treat as a NOP2
+                        if (discourageUpgradableNops)
+                            throw new ScriptException(ScriptError.SCRIPT_ERR_DISCOURAGE_UPGRADABLE_NOPS, "Script used a reserved opcode " + opcode);
+                        break;
+                    }
+                    executeCheckLockTimeVerify(tx, index, stack, requireMinimal);
+                    break;
+                case OP_CHECKSEQUENCEVERIFY:
+                    if (!verifyFlags.contains(VerifyFlag.CHECKSEQUENCEVERIFY)) {
+                        // not enabled; treat as a NOP3
+                        if (discourageUpgradableNops)
+                            throw new ScriptException(ScriptError.SCRIPT_ERR_DISCOURAGE_UPGRADABLE_NOPS, "Script used a reserved opcode " + opcode);
+                        break;
+                    }
+                    executeCheckSequenceVerify(tx, index, stack, requireMinimal);
+                    break;
+                case OP_NOP1:
+                case OP_NOP4:
+                case OP_NOP5:
+                case OP_NOP6:
+                case OP_NOP7:
+                case OP_NOP8:
+                case OP_NOP9:
+                case OP_NOP10:
+                    if (discourageUpgradableNops)
+                        throw new ScriptException(ScriptError.SCRIPT_ERR_DISCOURAGE_UPGRADABLE_NOPS, "Script used a reserved opcode " + opcode);
+                    break;
+
+                default:
+                    throw new ScriptException(ScriptError.SCRIPT_ERR_BAD_OPCODE, "Script used a reserved or disabled opcode: " + opcode);
+                }
+            }
+
+            if (stack.size + altStack.size > Script.MAX_STACK_SIZE)
+                throw new ScriptException(ScriptError.SCRIPT_ERR_STACK_SIZE, "Stack size exceeded range");
+        }
+
+        if (conditionDepth != 0)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_UNBALANCED_CONDITIONAL, "OP_IF/OP_NOTIF without OP_ENDIF");
+    }
+
+    private static void executeCheckSig(Transaction tx, int index, Stack stack, byte[] connectedScript, int opcode,
+                                        Set<VerifyFlag> verifyFlags) throws ScriptException {
+        if (stack.size < 2)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKSIG(VERIFY) on a stack with size < 2");
+        byte[] pubKey = stack.toByteArray(0);
+        byte[] sigBytes = stack.toByteArray(1);
+        stack.drop(2);
+
+        connectedScript = Script.removeSignature(connectedScript, sigBytes);
+        boolean sigValid = Script.checkSignature(tx, index, connectedScript, sigBytes, pubKey, verifyFlags);
+
+        if (opcode == OP_CHECKSIG)
+            stack.push(sigValid ? TRUE : FALSE);
+        else if (!sigValid)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_CHECKSIGVERIFY, "Script failed OP_CHECKSIGVERIFY");
+    }
+
+    private static int executeMultiSig(Transaction tx, int index, Stack stack, byte[] connectedScript, int opCount,
+                                       int opcode, Set<VerifyFlag> verifyFlags) throws ScriptException {
+        final boolean requireCanonical = verifyFlags.contains(VerifyFlag.STRICTENC)
+            || verifyFlags.contains(VerifyFlag.DERSIG)
+            || verifyFlags.contains(VerifyFlag.LOW_S);
+        final boolean requireMinimal = verifyFlags.contains(VerifyFlag.MINIMALDATA);
+        if (stack.size < 1)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < 2");
+        int pubKeyCount = (int) castToNumber(stack, 0, 4, requireMinimal);
+        if (pubKeyCount < 0 || pubKeyCount > Script.MAX_PUBKEYS_PER_MULTISIG)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_PUBKEY_COUNT, "OP_CHECKMULTISIG(VERIFY) with pubkey count out of range");
+        opCount += pubKeyCount;
+        if (opCount > Script.MAX_OPS_PER_SCRIPT)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_OP_COUNT, "Total op count > 201 during OP_CHECKMULTISIG(VERIFY)");
+        if (stack.size < pubKeyCount + 2)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < num_of_pubkeys + 2");
+
+        // The stack holds, from the top: the pubkey count, the pubkeys, the sig count, the sigs and a dummy element.
+        int firstPubKey = 1;
+        int sigCountDepth = firstPubKey + pubKeyCount;
+        int sigCount = (int) castToNumber(stack, sigCountDepth, 4, requireMinimal);
+        if (sigCount < 0 || sigCount > pubKeyCount)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_COUNT, "OP_CHECKMULTISIG(VERIFY) with sig count out of range");
+        int firstSig = sigCountDepth + 1;
+        int nullDummyDepth = firstSig + sigCount;
+        if (stack.size < nullDummyDepth + 1)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < num_of_pubkeys + num_of_signatures + 3");
+
+        byte[][] sigs = new byte[sigCount][];
+        for (int i = 0; i < sigCount; i++) {
+            sigs[i] = stack.toByteArray(firstSig + i);
+            connectedScript = Script.removeSignature(connectedScript, sigs[i]);
+        }
+
+        boolean valid = true;
+        int sig = 0;
+        int pubKey = 0;
+        while (sig < sigCount) {
+            byte[] pubKeyBytes = stack.toByteArray(firstPubKey + pubKey++);
+            // We could reasonably move this out of the loop, but because signature verification is significantly
+            // more expensive than hashing, its not a big deal.
+            try {
+                TransactionSignature signature = TransactionSignature.decodeFromBitcoin(sigs[sig], requireCanonical, false);
+                Sha256Hash hash = tx.hashForSignature(index, connectedScript, (byte) signature.sighashFlags);
+                if (SignatureCache.get().verify(hash, signature, pubKeyBytes))
+                    sig++;
+            } catch (Exception e) {
+                // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
+                // Because I can't verify there aren't more, we use a very generic Exception catch
+            }
+
+            if (sigCount - sig > pubKeyCount - pubKey) {
+                valid = false;
+                break;
+            }
+        }
+
+        // We uselessly remove a stack object to emulate a Bitcoin Core bug.
+        if (verifyFlags.contains(VerifyFlag.NULLDUMMY) && stack.len(nullDummyDepth) > 0)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_NULLFAIL, "OP_CHECKMULTISIG(VERIFY) with non-null nulldummy: " + Arrays.toString(stack.toByteArray(nullDummyDepth)));
+        stack.drop(nullDummyDepth + 1);
+
+        if (opcode == OP_CHECKMULTISIG) {
+            stack.push(valid ? TRUE : FALSE);
+        } else if (!valid) {
+            throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_NULLFAIL, "Script failed OP_CHECKMULTISIGVERIFY");
+        }
+        return opCount;
+    }
+
+    // See Script.executeCheckLockTimeVerify() for the rationale of each check.
+    private static void executeCheckLockTimeVerify(Transaction tx, int index, Stack stack, boolean requireMinimal)
+            throws ScriptException {
+        if (stack.size < 1)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKLOCKTIMEVERIFY on a stack with size < 1");
+        final long nLockTime = castToNumber(stack, 0, 5, requireMinimal);
+        if (nLockTime < 0)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_NEGATIVE_LOCKTIME, "Negative locktime");
+
+        long txLockTime = tx.getLockTime();
+        if (!((txLockTime < Transaction.LOCKTIME_THRESHOLD && nLockTime < Transaction.LOCKTIME_THRESHOLD) ||
+                (txLockTime >= Transaction.LOCKTIME_THRESHOLD && nLockTime >= Transaction.LOCKTIME_THRESHOLD)))
+            throw new ScriptException(ScriptError.SCRIPT_ERR_UNSATISFIED_LOCKTIME, "Locktime requirement type mismatch");
+        if (nLockTime > txLockTime)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_UNSATISFIED_LOCKTIME, "Locktime requirement not satisfied");
+        if (!tx.getInput(index).hasSequence())
+            throw new ScriptException(ScriptError.SCRIPT_ERR_UNSATISFIED_LOCKTIME, "Transaction contains a final transaction input for a CHECKLOCKTIMEVERIFY script.");
+    }
+
+    // See Script.executeCheckSequenceVerify() for the rationale of each check.
+    private static void executeCheckSequenceVerify(Transaction tx, int index, Stack stack, boolean requireMinimal)
+            throws ScriptException {
+        if (stack.size < 1)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKSEQUENCEVERIFY on a stack with size < 1");
+        final long nSequence = castToNumber(stack, 0, 5, requireMinimal);
+        if (nSequence < 0)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_NEGATIVE_LOCKTIME, "Negative sequence");
+        if ((nSequence & TransactionInput.SEQUENCE_LOCKTIME_DISABLE_FLAG) != 0)
+            return;
+        Script.checkSequence(nSequence, tx, index);
+    }
+
+    private void pushCondition(boolean condition) {
+        if (conditionDepth == conditions.length)
+            conditions = Arrays.copyOf(conditions, conditions.length * 2);
+        conditions[conditionDepth++] = condition;
+        if (!condition)
+            falseConditions++;
+    }
+
+    private boolean popCondition() {
+        boolean condition = conditions[--conditionDepth];
+        if (!condition)
+            falseConditions--;
+        return condition;
+    }
+
+    private byte[] finishRipemd160() {
+        byte[] hash = new byte[20];
+        ripemd160.doFinal(hash, 0);
+        return hash;
+    }
+
+    private static void requireStack(Stack stack, int size, String op) throws ScriptException {
+        if (stack.size < size)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION,
+                    "Attempted " + op + " on a stack with size < " + size);
+    }
+
+    private static boolean isDisabled(int opcode) {
+        return opcode == OP_CAT || opcode == OP_SUBSTR || opcode == OP_LEFT || opcode == OP_RIGHT ||
+                opcode == OP_INVERT || opcode == OP_AND || opcode == OP_OR || opcode == OP_XOR ||
+                opcode == OP_2MUL || opcode == OP_2DIV || opcode == OP_MUL || opcode == OP_DIV ||
+                opcode == OP_MOD || opcode == OP_LSHIFT || opcode == OP_RSHIFT;
+    }
+
+    /**
+     * Throws the same exceptions as parsing the program into a {@link Script} would, so that a program is rejected
+     * for the same reason regardless of which interpreter runs it.
+     */
+    private static void checkSyntax(byte[] program, int start, int end) throws ScriptException {
+        int cursor = start;
+        while (cursor < end) {
+            int opcode = program[cursor++] & 0xFF;
+            long dataLen;
+            if (opcode < OP_PUSHDATA1) {
+                dataLen = opcode;
+            } else if (opcode == OP_PUSHDATA1) {
+                if (end - cursor < 1) throw new ScriptException(ScriptError.SCRIPT_ERR_UNKNOWN_ERROR, "Unexpected end of script");
+                dataLen = program[cursor] & 0xFF;
+                cursor += 1;
+            } else if (opcode == OP_PUSHDATA2) {
+                if (end - cursor < 2) throw new ScriptException(ScriptError.SCRIPT_ERR_UNKNOWN_ERROR, "Unexpected end of script");
+                dataLen = Utils.readUint16(program, cursor);
+                cursor += 2;
+            } else if (opcode == OP_PUSHDATA4) {
+                if (end - cursor < 4) throw new ScriptException(ScriptError.SCRIPT_ERR_UNKNOWN_ERROR, "Unexpected end of script");
+                dataLen = Utils.readUint32(program, cursor);
+                cursor += 4;
+            } else {
+                continue;
+            }
+            if (dataLen > end - cursor)
+                throw new ScriptException(ScriptError.SCRIPT_ERR_BAD_OPCODE, "Push of data element that is larger than remaining data");
+            cursor += (int) dataLen;
+        }
+    }
+
+    /** Returns the first opcode that isn't a push, or -1 if the program only pushes data. */
+    private static int firstNonPushOpcode(byte[] program) {
+        int cursor = 0;
+        while (cursor < program.length) {
+            int opcode = program[cursor++] & 0xFF;
+            if (opcode < OP_PUSHDATA1)
+                cursor += opcode;
+            else if (opcode == OP_PUSHDATA1)
+                cursor += 1 + (program[cursor] & 0xFF);
+            else if (opcode == OP_PUSHDATA2)
+                cursor += 2 + Utils.readUint16(program, cursor);
+            else if (opcode == OP_PUSHDATA4)
+                cursor += 4 + (int) Utils.readUint32(program, cursor);
+            else if (opcode > OP_16)
+                return opcode;
+        }
+        return -1;
+    }
+
+    /** Same as {@link ScriptChunk#isShortestPossiblePushData()}, for the data push at the given location. */
+    private static boolean isShortestPossiblePushData(int opcode, byte[] program, int dataOff, int dataLen) {
+        if (dataLen == 0)
+            return opcode == OP_0;
+        if (dataLen == 1) {
+            byte b = program[dataOff];
+            if (b >= 0x01 && b <= 0x10)
+                return false; // should have been OP_1 to OP_16
+            if ((b & 0xFF) == 0x81)
+                return false; // should have been OP_1NEGATE
+        }
+        if (dataLen < OP_PUSHDATA1)
+            return opcode == dataLen;
+        if (dataLen < 256)
+            return opcode == OP_PUSHDATA1;
+        if (dataLen < 65536)
+            return opcode == OP_PUSHDATA2;
+        return opcode == OP_PUSHDATA4;
+    }
+
+    private static boolean castToBool(Stack stack, int depth) {
+        byte[] buf = stack.buf(depth);
+        int off = stack.off(depth);
+        int len = stack.len(depth);
+        for (int i = 0; i < len; i++) {
+            // "Can be negative zero" - Bitcoin Core (see OpenSSL's BN_bn2mpi)
+            if (buf[off + i] != 0)
+                return !(i == len - 1 && (buf[off + i] & 0xFF) == 0x80);
+        }
+        return false;
+    }
+
+    /**
+     * Decodes a little endian sign-magnitude script number. Same as
+     * {@link Script#castToBigInteger(byte[], int, boolean)}, but maxLength must not exceed 7.
+     */
+    private static long castToNumber(Stack stack, int depth, int maxLength, boolean requireMinimal)
+            throws ScriptException {
+        byte[] buf = stack.buf(depth);
+        int off = stack.off(depth);
+        int len = stack.len(depth);
+        if (len > maxLength)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_UNKNOWN_ERROR, "Script attempted to use an integer larger than " + maxLength + " bytes");
+        if (len == 0)
+            return 0;
+        int last = buf[off + len - 1] & 0xFF;
+        // See Script.castToBigInteger() for why this test rejects exactly the non-minimal encodings.
+        if (requireMinimal && (last & 0x7f) == 0 && (len <= 1 || (buf[off + len - 2] & 0x80) == 0))
+            throw new ScriptException(ScriptError.SCRIPT_ERR_UNKNOWN_ERROR, "non-minimally encoded script number");
+
+        long magnitude = last & 0x7f;
+        for (int i = len - 2; i >= 0; i--)
+            magnitude = (magnitude << 8) | (buf[off + i] & 0xFF);
+        return (last & 0x80) != 0 ? -magnitude : magnitude;
+    }
+
+    /** Encodes a script number minimally, like Utils.reverseBytes(Utils.encodeMPI(value, false)). */
+    static byte[] encodeNumber(long value) {
+        if (value >= -1 && value <= 16)
+            return SMALL_NUMBERS[(int) value + 1];
+        return encodeLargeNumber(value);
+    }
+
+    private static byte[] encodeLargeNumber(long value) {
+        if (value == 0)
+            return FALSE;
+        boolean negative = value < 0;
+        long magnitude = Math.abs(value);
+        int length = 0;
+        for (long m = magnitude; m != 0; m >>>= 8)
+            length++;
+        // An extra byte is needed if the most significant byte would collide with the sign bit.
+        boolean extraByte = ((magnitude >>> (8 * (length - 1))) & 0x80) != 0;
+        byte[] result = new byte[extraByte ? length + 1 : length];
+        for (int i = 0; i < length; i++)
+            result[i] = (byte) (magnitude >>> (8 * i));
+        if (negative)
+            result[result.length - 1] |= 0x80;
+        return result;
+    }
+
+    /**
+     * An array-backed stack of byte array slices. Depth 0 is the top of the stack. Slices are never written to, so
+     * they can safely point into programs and into each other.
+     */
+    private static final class Stack {
+        private byte[][] bufs = new byte[64][];
+        private int[] offs = new int[64];
+        private int[] lens = new int[64];
+        int size;
+
+        void push(byte[] buf) {
+            push(buf, 0, buf.length);
+        }
+
+        void push(byte[] buf, int off, int len) {
+            if (size == bufs.length) {
+                bufs = Arrays.copyOf(bufs, size * 2);
+                offs = Arrays.copyOf(offs, size * 2);
+                lens = Arrays.copyOf(lens, size * 2);
+            }
+            bufs[size] = buf;
+            offs[size] = off;
+            lens[size] = len;
+            size++;
+        }
+
+        /** Pushes the element at the given depth of the other stack, which may be this stack. */
+        void pushFrom(Stack other, int depth) {
+            int i = other.size - 1 - depth;
+            push(other.bufs[i], other.offs[i], other.lens[i]);
+        }
+
+        byte[] buf(int depth) {
+            return bufs[size - 1 - depth];
+        }
+
+        int off(int depth) {
+            return offs[size - 1 - depth];
+        }
+
+        int len(int depth) {
+            return lens[size - 1 - depth];
+        }
+
+        /** Returns the element at the given depth as an array of its own length, copying only if needed. */
+        byte[] toByteArray(int depth) {
+            int i = size - 1 - depth;
+            byte[] buf = bufs[i];
+            if (offs[i] == 0 && lens[i] == buf.length)
+                return buf;
+            return Arrays.copyOfRange(buf, offs[i], offs[i] + lens[i]);
+        }
+
+        boolean equal(int depth1, int depth2) {
+            int i = size - 1 - depth1;
+            int j = size - 1 - depth2;
+            if (lens[i] != lens[j])
+                return false;
+            byte[] a = bufs[i];
+            byte[] b = bufs[j];
+            for (int k = 0; k < lens[i]; k++)
+                if (a[offs[i] + k] != b[offs[j] + k])
+                    return false;
+            return true;
+        }
+
+        void drop(int count) {
+            for (int i = 0; i < count; i++)
+                bufs[--size] = null;
+        }
+
+        void swap(int depth1, int depth2) {
+            int i = size - 1 - depth1;
+            int j = size - 1 - depth2;
+            byte[] buf = bufs[i];
+            int off = offs[i];
+            int len = lens[i];
+            bufs[i] = bufs[j];
+            offs[i] = offs[j];
+            lens[i] = lens[j];
+            bufs[j] = buf;
+            offs[j] = off;
+            lens[j] = len;
+        }
+
+        /** Moves the element at the given depth to the top. */
+        void roll(int depth) {
+            for (int d = depth; d > 0; d--)
+                swap(d, d - 1);
+        }
+
+        /** Removes the element at the given depth. */
+        void remove(int depth) {
+            roll(depth);
+            drop(1);
+        }
+
+        void copyFrom(Stack other) {
+            clear();
+            for (int i = 0; i < other.size; i++)
+                push(other.bufs[i], other.offs[i], other.lens[i]);
+        }
+
+        void clear() {
+            Arrays.fill(bufs, 0, size, null);
+            size = 0;
+        }
+
+        @Override
+        public String toString() {
+            List<byte[]> elements = new ArrayList<>(size);
+            for (int i = size - 1; i >= 0; i--)
+                elements.add(toByteArray(i));
+            return Utils.toString(elements);
+        }
+    }
+}
@@ -0,0 +1,546 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.StoredUndoableBlock;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.core.UTXOProviderException;
+import org.bitcoinj.core.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A {@link FullPrunedBlockStore} that keeps unspent outputs in memory in front of another full pruned store, and
+ * writes changes back to it in large batches.</p>
+ *
+ * <p>Changes committed with {@link #commitDatabaseBatchWrite()} are kept in memory until they are flushed, which
+ * happens when there are more than a given number of changed outputs or blocks, when a given time has passed since
+ * the last flush, and on {@link #flush()} and {@link #close()}. All changes are flushed in one batch of the
+ * underlying store, together with the blocks and the chain heads, so it is always left in a consistent state. After a
+ * crash the blocks since the last flush just have to be added again. Outputs that are created and spent between two
+ * flushes are never written to the underlying store at all.</p>
+ *
+ * <p>Outputs read from the underlying store, and outputs that were flushed, are kept in a cache of a given size in
+ * case they are spent soon.</p>
+ */
+public class CachingFullPrunedBlockStore implements FullPrunedBlockStore, UTXOPrefetcher {
+    private static final Logger log = LoggerFactory.getLogger(CachingFullPrunedBlockStore.class);
+
+    public static final int DEFAULT_MAX_CACHED_OUTPUTS = 200000;
+    public static final int DEFAULT_MAX_DIRTY_OUTPUTS = 100000;
+    public static final int DEFAULT_MAX_DIRTY_BLOCKS = 100;
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 60 * 1000;
+
+    private final FullPrunedBlockStore store;
+    private final int maxDirtyOutputs;
+    private final int maxDirtyBlocks;
+    private final long flushIntervalMillis;
+
+    // Outputs that are the same as in the underlying store, least recently used first.
+    private final LinkedHashMap<StoredTransactionOutPoint, UTXO> cleanOutputs;
+    // Changes committed since the last flush.
+    private Changes dirty = new Changes();
+    // Changes since beginDatabaseBatchWrite(), or null if there is no batch.
+    @Nullable private Changes batch;
+    private StoredBlock chainHead, verifiedChainHead;
+    private long lastFlushTime;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong outputsFlushed = new AtomicLong();
+    private final AtomicLong outputsNotFlushed = new AtomicLong();
+
+    /** A changed output, or a spent one if {@link #spent} is set. */
+    private static class OutputEntry {
+        final UTXO output;
+        final boolean spent;
+        // Whether the output is not in the underlying store, so spending it doesn't have to be written back.
+        final boolean fresh;
+
+        OutputEntry(UTXO output, boolean spent, boolean fresh) {
+            this.output = output;
+            this.spent = spent;
+            this.fresh = fresh;
+        }
+    }
+
+    /** A block that was put, with its undo block if it was undoable. */
+    private static class BlockEntry {
+        final StoredBlock block;
+        @Nullable final StoredUndoableBlock undoBlock;
+
+        BlockEntry(StoredBlock block, @Nullable StoredUndoableBlock undoBlock) {
+            this.block = block;
+            this.undoBlock = undoBlock;
+        }
+    }
+
+    /** Changes that weren't written to the underlying store yet, in the order they were made. */
+    private static class Changes {
+        final LinkedHashMap<Sha256Hash, BlockEntry> blocks = new LinkedHashMap<>();
+        final Map<StoredTransactionOutPoint, OutputEntry> outputs = new HashMap<>();
+        // Calls to setChainHead (false) and setVerifiedChainHead (true).
+        final List<StoredBlock> heads = new ArrayList<>();
+        final List<Boolean> verified = new ArrayList<>();
+        // The chain heads before the changes, to restore them on abort.
+        StoredBlock previousChainHead, previousVerifiedChainHead;
+
+        void addHead(StoredBlock head, boolean isVerified) {
+            heads.add(head);
+            verified.add(isVerified);
+        }
+    }
+
+    /**
+     * Wraps the given store with the default cache sizes and flush interval.
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store) throws BlockStoreException {
+        this(store, DEFAULT_MAX_CACHED_OUTPUTS, DEFAULT_MAX_DIRTY_OUTPUTS, DEFAULT_MAX_DIRTY_BLOCKS,
+                DEFAULT_FLUSH_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Wraps the given store. The store must not be used directly any more, except through this one.
+     *
+     * @param store The store to write back to.
+     * @param maxCachedOutputs How many unchanged outputs to keep in memory.
+     * @param maxDirtyOutputs After how many changed outputs to flush.
+     * @param maxDirtyBlocks After how many blocks to flush. Recent blocks are kept with all their transactions, so
+     *                       this bounds their memory.
+     * @param flushIntervalMillis After how much time since the last flush to flush.
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store, final int maxCachedOutputs, int maxDirtyOutputs,
+                                       int maxDirtyBlocks, long flushIntervalMillis) throws BlockStoreException {
+        checkArgument(maxCachedOutputs >= 0 && maxDirtyOutputs > 0 && maxDirtyBlocks > 0 && flushIntervalMillis > 0);
+        this.store = checkNotNull(store);
+        this.maxDirtyOutputs = maxDirtyOutputs;
+        this.maxDirtyBlocks = maxDirtyBlocks;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.cleanOutputs = new LinkedHashMap<StoredTransactionOutPoint, UTXO>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<StoredTransactionOutPoint, UTXO> eldest) {
+                return size() > maxCachedOutputs;
+            }
+        };
+        this.chainHead = store.getChainHead();
+        this.verifiedChainHead = store.getVerifiedChainHead();
+        this.lastFlushTime = Utils.currentTimeMillis();
+    }
+
+    /** Returns the changes that writes go to. */
+    private Changes changes() {
+        return batch != null ? batch : dirty;
+    }
+
+    @Nullable
+    private OutputEntry getOutputEntry(StoredTransactionOutPoint outPoint) {
+        if (batch != null) {
+            OutputEntry entry = batch.outputs.get(outPoint);
+            if (entry != null)
+                return entry;
+        }
+        return dirty.outputs.get(outPoint);
+    }
+
+    @Nullable
+    private BlockEntry getBlockEntry(Sha256Hash hash) {
+        if (batch != null) {
+            BlockEntry entry = batch.blocks.get(hash);
+            if (entry != null)
+                return entry;
+        }
+        return dirty.blocks.get(hash);
+    }
+
+    @Override
+    public synchronized void put(StoredBlock block) throws BlockStoreException {
+        changes().blocks.put(block.getHeader().getHash(), new BlockEntry(block, null));
+        maybeFlush();
+    }
+
+    @Override
+    public synchronized void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        changes().blocks.put(storedBlock.getHeader().getHash(), new BlockEntry(storedBlock, undoableBlock));
+        maybeFlush();
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        BlockEntry entry = getBlockEntry(hash);
+        return entry != null ? entry.block : store.get(hash);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        BlockEntry entry = getBlockEntry(hash);
+        if (entry != null)
+            return entry.undoBlock != null ? entry.block : null;
+        return store.getOnceUndoableStoredBlock(hash);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        BlockEntry entry = getBlockEntry(hash);
+        if (entry != null && entry.undoBlock != null)
+            return entry.undoBlock;
+        return store.getUndoBlock(hash);
+    }
+
+    @Override
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        return chainHead;
+    }
+
+    @Override
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        this.chainHead = chainHead;
+        changes().addHead(chainHead, false);
+        maybeFlush();
+    }
+
+    @Override
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        return verifiedChainHead;
+    }
+
+    @Override
+    public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        // Like all full pruned stores do.
+        this.verifiedChainHead = chainHead;
+        if (this.chainHead.getHeight() < chainHead.getHeight())
+            this.chainHead = chainHead;
+        changes().addHead(chainHead, true);
+        maybeFlush();
+    }
+
+    @Override
+    @Nullable
+    public synchronized UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, index);
+        OutputEntry entry = getOutputEntry(outPoint);
+        if (entry != null) {
+            hits.incrementAndGet();
+            return entry.spent ? null : entry.output;
+        }
+        UTXO output = cleanOutputs.get(outPoint);
+        if (output != null) {
+            hits.incrementAndGet();
+            return output;
+        }
+        misses.incrementAndGet();
+        output = store.getTransactionOutput(hash, index);
+        if (output != null)
+            cleanOutputs.put(outPoint, output);
+        return output;
+    }
+
+    @Override
+    public synchronized void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+        OutputEntry entry = getOutputEntry(outPoint);
+        boolean fresh;
+        if (entry != null)
+            fresh = entry.fresh;
+        else if (out.isCoinbase()) // Duplicate coinbases can overwrite an output, see BIP30.
+            fresh = store.getTransactionOutput(out.getHash(), out.getIndex()) == null;
+        else
+            fresh = true;
+        putOutputEntry(outPoint, new OutputEntry(out, false, fresh));
+    }
+
+    @Override
+    public synchronized void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+        OutputEntry entry = getOutputEntry(outPoint);
+        if (entry != null && entry.spent)
+            throw new BlockStoreException("Tried to remove a UTXO that was already spent: " + outPoint);
+        putOutputEntry(outPoint, new OutputEntry(out, true, entry != null && entry.fresh));
+        cleanOutputs.remove(outPoint);
+    }
+
+    private void putOutputEntry(StoredTransactionOutPoint outPoint, OutputEntry entry) {
+        if (batch != null)
+            batch.outputs.put(outPoint, entry);
+        else
+            putDirtyOutputEntry(outPoint, entry);
+    }
+
+    private void putDirtyOutputEntry(StoredTransactionOutPoint outPoint, OutputEntry entry) {
+        if (entry.spent && entry.fresh) {
+            // Created and spent since the last flush.
+            dirty.outputs.remove(outPoint);
+            outputsNotFlushed.incrementAndGet();
+        } else {
+            dirty.outputs.put(outPoint, entry);
+        }
+    }
+
+    @Override
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        List<Integer> unknown = new ArrayList<>();
+        boolean changed = false;
+        for (int i = 0; i < numOutputs; i++) {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, i);
+            OutputEntry entry = getOutputEntry(outPoint);
+            if (entry != null) {
+                if (!entry.spent)
+                    return true;
+                changed = true;
+            } else if (cleanOutputs.containsKey(outPoint)) {
+                return true;
+            } else {
+                unknown.add(i);
+            }
+        }
+        if (unknown.isEmpty())
+            return false;
+        // The usual case, a transaction that is new to the underlying store too.
+        if (!changed)
+            return store.hasUnspentOutputs(hash, numOutputs);
+        for (int i : unknown)
+            if (getTransactionOutput(hash, i) != null)
+                return true;
+        return false;
+    }
+
+    /**
+     * Loads the given outputs into the cache, or lets the underlying store prefetch them if it can. The underlying
+     * store is read without holding the lock of this store. A {@link DatabaseFullPrunedBlockStore} only uses prefetched
+     * outputs within its batch writes, which this store opens just to flush, so they are loaded into the cache then.
+     */
+    @Override
+    public void prefetchTransactionOutputs(List<TransactionOutPoint> outPoints) throws BlockStoreException {
+        List<TransactionOutPoint> missing = new ArrayList<>();
+        long flushCount;
+        synchronized (this) {
+            flushCount = flushes.get();
+            for (TransactionOutPoint outPoint : outPoints) {
+                StoredTransactionOutPoint key = new StoredTransactionOutPoint(outPoint.getHash(), outPoint.getIndex());
+                if (getOutputEntry(key) == null && !cleanOutputs.containsKey(key))
+                    missing.add(outPoint);
+            }
+        }
+        if (missing.isEmpty())
+            return;
+        if (store instanceof UTXOPrefetcher && !(store instanceof DatabaseFullPrunedBlockStore)) {
+            ((UTXOPrefetcher) store).prefetchTransactionOutputs(missing);
+            return;
+        }
+        List<UTXO> loaded = new ArrayList<>(missing.size());
+        for (TransactionOutPoint outPoint : missing) {
+            UTXO output = store.getTransactionOutput(outPoint.getHash(), outPoint.getIndex());
+            if (output != null)
+                loaded.add(output);
+        }
+        synchronized (this) {
+            // A flush in between could have spent the loaded outputs in the underlying store.
+            if (flushes.get() != flushCount)
+                return;
+            for (UTXO output : loaded) {
+                StoredTransactionOutPoint key = new StoredTransactionOutPoint(output);
+                if (getOutputEntry(key) == null)
+                    cleanOutputs.put(key, output);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        // Like in the other stores, a second call before the batch is committed or aborted is ignored.
+        if (batch != null)
+            return;
+        batch = new Changes();
+        batch.previousChainHead = chainHead;
+        batch.previousVerifiedChainHead = verifiedChainHead;
+    }
+
+    @Override
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        if (batch == null)
+            return;
+        dirty.blocks.putAll(batch.blocks);
+        for (Map.Entry<StoredTransactionOutPoint, OutputEntry> change : batch.outputs.entrySet())
+            putDirtyOutputEntry(change.getKey(), change.getValue());
+        dirty.heads.addAll(batch.heads);
+        dirty.verified.addAll(batch.verified);
+        batch = null;
+        maybeFlush();
+    }
+
+    @Override
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        if (batch == null)
+            return;
+        chainHead = batch.previousChainHead;
+        verifiedChainHead = batch.previousVerifiedChainHead;
+        batch = null;
+    }
+
+    private void maybeFlush() throws BlockStoreException {
+        if (batch != null)
+            return;
+        if (dirty.outputs.size() > maxDirtyOutputs || dirty.blocks.size() > maxDirtyBlocks
+                || Utils.currentTimeMillis() - lastFlushTime > flushIntervalMillis)
+            flush();
+    }
+
+    /**
+     * Writes all committed changes to the underlying store in one batch. Must not be called while a batch of this
+     * store is open.
+     */
+    public synchronized void flush() throws BlockStoreException {
+        checkState(batch == null, "Cannot flush while a batch is open");
+        lastFlushTime = Utils.currentTimeMillis();
+        if (dirty.blocks.isEmpty() && dirty.outputs.isEmpty() && dirty.heads.isEmpty())
+            return;
+        long start = System.nanoTime();
+        int outputs = dirty.outputs.size();
+        store.beginDatabaseBatchWrite();
+        try {
+            for (BlockEntry entry : dirty.blocks.values()) {
+                if (entry.undoBlock != null)
+                    store.put(entry.block, entry.undoBlock);
+                else
+                    store.put(entry.block);
+            }
+            for (OutputEntry entry : dirty.outputs.values()) {
+                // Outputs that aren't fresh are still in the underlying store, unless they were overwritten.
+                if (!entry.fresh)
+                    store.removeUnspentTransactionOutput(entry.output);
+                if (!entry.spent)
+                    store.addUnspentTransactionOutput(entry.output);
+            }
+            // Replayed one by one, because the stores prune the undo blocks of every verified chain head.
+            for (int i = 0; i < dirty.heads.size(); i++) {
+                if (dirty.verified.get(i))
+                    store.setVerifiedChainHead(dirty.heads.get(i));
+                else
+                    store.setChainHead(dirty.heads.get(i));
+            }
+            store.commitDatabaseBatchWrite();
+        } catch (BlockStoreException e) {
+            store.abortDatabaseBatchWrite();
+            throw e;
+        } catch (RuntimeException e) {
+            store.abortDatabaseBatchWrite();
+            throw e;
+        }
+        for (Map.Entry<StoredTransactionOutPoint, OutputEntry> change : dirty.outputs.entrySet()) {
+            if (change.getValue().spent)
+                cleanOutputs.remove(change.getKey());
+            else
+                cleanOutputs.put(change.getKey(), change.getValue().output);
+        }
+        dirty = new Changes();
+        flushes.incrementAndGet();
+        outputsFlushed.addAndGet(outputs);
+        log.info("Flushed {} outputs in {} ms", outputs, (System.nanoTime() - start) / 1000000);
+    }
+
+    /** Returns how many outputs were found in memory. */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** Returns how many outputs had to be read from the underlying store. */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Returns how many times changes were written to the underlying store. */
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    /** Returns how many output changes were written to the underlying store. */
+    public long getOutputsFlushed() {
+        return outputsFlushed.get();
+    }
+
+    /** Returns how many outputs were created and spent between two flushes, and so never written at all. */
+    public long getOutputsNotFlushed() {
+        return outputsNotFlushed.get();
+    }
+
+    /** Returns the underlying store. */
+    public FullPrunedBlockStore getStore() {
+        return store;
+    }
+
+    /**
+     * Flushes and closes the underlying store. A batch that is still open is aborted.
+     */
+    @Override
+    public synchronized void close() throws BlockStoreException {
+        abortDatabaseBatchWrite();
+        flush();
+        store.close();
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return store.getParams();
+    }
+
+    @Override
+    public synchronized int getChainHeadHeight() throws UTXOProviderException {
+        return verifiedChainHead.getHeight();
+    }
+
+    /**
+     * Returns the outputs of the underlying store, updated with the committed changes that weren't flushed yet.
+     */
+    @Override
+    public synchronized List<UTXO> getOpenTransactionOutputs(List<ECKey> keys) throws UTXOProviderException {
+        List<UTXO> outputs = new ArrayList<>();
+        for (UTXO output : store.getOpenTransactionOutputs(keys))
+            if (!dirty.outputs.containsKey(new StoredTransactionOutPoint(output)))
+                outputs.add(output);
+        // TODO switch to pubKeyHash in order to support native segwit addresses, like the other stores
+        Set<String> addresses = new HashSet<>();
+        for (ECKey key : keys)
+            addresses.add(LegacyAddress.fromKey(getParams(), key).toString());
+        for (OutputEntry entry : dirty.outputs.values())
+            if (!entry.spent && addresses.contains(entry.output.getAddress()))
+                outputs.add(entry.output);
+        return outputs;
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.core.VarInt;
+import org.bitcoinj.script.Script;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * <p>The compact encoding of unspent outputs used by {@link LevelDBFullPrunedBlockStore}, similar to the one of
+ * Bitcoin Core. The transaction hash and output index are only part of the key, which ends with the index as a
+ * {@link VarInt}. The value consists of:</p>
+ *
+ * <ul>
+ * <li>the height times two, plus one for coinbase outputs, as a {@link VarInt}</li>
+ * <li>the amount, compressed by {@link #compressAmount(long)}, as a {@link VarInt}</li>
+ * <li>the script: one of the {@code TEMPLATE_} bytes followed by the hash for the usual scripts, or the length plus
+ * {@link #SPECIAL_SCRIPTS} as a {@link VarInt} followed by the script</li>
+ * </ul>
+ */
+final class CompactUTXOEncoding {
+    static final int TEMPLATE_P2PKH = 0;
+    static final int TEMPLATE_P2SH = 1;
+    static final int TEMPLATE_P2WPKH = 2;
+    static final int TEMPLATE_P2WSH = 3;
+    static final int SPECIAL_SCRIPTS = 4;
+
+    private static final byte[] P2PKH_PREFIX = { 0x76, (byte) 0xa9, 0x14 };
+    private static final byte[] P2PKH_SUFFIX = { (byte) 0x88, (byte) 0xac };
+    private static final byte[] P2SH_PREFIX = { (byte) 0xa9, 0x14 };
+    private static final byte[] P2SH_SUFFIX = { (byte) 0x87 };
+    private static final byte[] P2WPKH_PREFIX = { 0x00, 0x14 };
+    private static final byte[] P2WSH_PREFIX = { 0x00, 0x20 };
+    private static final byte[] NO_SUFFIX = {};
+
+    private CompactUTXOEncoding() {
+    }
+
+    /** Returns the key of the output, the given prefix followed by the transaction hash and the output index. */
+    static byte[] encodeKey(byte prefix, Sha256Hash hash, long index) {
+        byte[] encodedIndex = new VarInt(index).encode();
+        byte[] key = new byte[33 + encodedIndex.length];
+        key[0] = prefix;
+        System.arraycopy(hash.getBytes(), 0, key, 1, 32);
+        System.arraycopy(encodedIndex, 0, key, 33, encodedIndex.length);
+        return key;
+    }
+
+    /** Returns the output index of a key made by {@link #encodeKey(byte, Sha256Hash, long)}. */
+    static long decodeIndex(byte[] key, int offset) {
+        return new VarInt(key, offset).value;
+    }
+
+    static byte[] encode(UTXO output) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(32);
+        write(out, new VarInt(output.getHeight() * 2L + (output.isCoinbase() ? 1 : 0)).encode());
+        write(out, new VarInt(compressAmount(output.getValue().value)).encode());
+        byte[] program = output.getScript().getProgram();
+        if (matches(program, P2PKH_PREFIX, 20, P2PKH_SUFFIX)) {
+            out.write(TEMPLATE_P2PKH);
+            out.write(program, P2PKH_PREFIX.length, 20);
+        } else if (matches(program, P2SH_PREFIX, 20, P2SH_SUFFIX)) {
+            out.write(TEMPLATE_P2SH);
+            out.write(program, P2SH_PREFIX.length, 20);
+        } else if (matches(program, P2WPKH_PREFIX, 20, NO_SUFFIX)) {
+            out.write(TEMPLATE_P2WPKH);
+            out.write(program, P2WPKH_PREFIX.length, 20);
+        } else if (matches(program, P2WSH_PREFIX, 32, NO_SUFFIX)) {
+            out.write(TEMPLATE_P2WSH);
+            out.write(program, P2WSH_PREFIX.length, 32);
+        } else {
+            write(out, new VarInt(program.length + SPECIAL_SCRIPTS).encode());
+            write(out, program);
+        }
+        return out.toByteArray();
+    }
+
+    static UTXO decode(Sha256Hash hash, long index, byte[] value) throws ProtocolException {
+        try {
+            VarInt code = new VarInt(value, 0);
+            int cursor = code.getOriginalSizeInBytes();
+            VarInt amount = new VarInt(value, cursor);
+            cursor += amount.getOriginalSizeInBytes();
+            VarInt template = new VarInt(value, cursor);
+            cursor += template.getOriginalSizeInBytes();
+            byte[] program;
+            if (template.value == TEMPLATE_P2PKH)
+                program = expand(P2PKH_PREFIX, value, cursor, 20, P2PKH_SUFFIX);
+            else if (template.value == TEMPLATE_P2SH)
+                program = expand(P2SH_PREFIX, value, cursor, 20, P2SH_SUFFIX);
+            else if (template.value == TEMPLATE_P2WPKH)
+                program = expand(P2WPKH_PREFIX, value, cursor, 20, NO_SUFFIX);
+            else if (template.value == TEMPLATE_P2WSH)
+                program = expand(P2WSH_PREFIX, value, cursor, 32, NO_SUFFIX);
+            else
+                program = Arrays.copyOfRange(value, cursor,
+                        cursor + checkLength(template.value - SPECIAL_SCRIPTS, value.length - cursor));
+            return new UTXO(hash, index, Coin.valueOf(decompressAmount(amount.value)), (int) (code.value >>> 1),
+                    (code.value & 1) == 1, new Script(program));
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new ProtocolException(e);
+        }
+    }
+
+    /**
+     * Compresses an amount like Bitcoin Core does: trailing zeros are moved into the last digit, so round amounts
+     * and amounts with few significant digits become small numbers.
+     */
+    static long compressAmount(long n) {
+        if (n == 0)
+            return 0;
+        int e = 0;
+        while (n % 10 == 0 && e < 9) {
+            n /= 10;
+            e++;
+        }
+        if (e < 9) {
+            long d = n % 10;
+            n /= 10;
+            return 1 + (n * 9 + d - 1) * 10 + e;
+        } else {
+            return 1 + (n - 1) * 10 + 9;
+        }
+    }
+
+    /** Reverses {@link #compressAmount(long)}. */
+    static long decompressAmount(long x) {
+        if (x == 0)
+            return 0;
+        x--;
+        int e = (int) (x % 10);
+        x /= 10;
+        long n;
+        if (e < 9) {
+            long d = x % 9 + 1;
+            x /= 9;
+            n = x * 10 + d;
+        } else {
+            n = x + 1;
+        }
+        for (; e > 0; e--)
+            n *= 10;
+        return n;
+    }
+
+    private static boolean matches(byte[] program, byte[] prefix, int hashLength, byte[] suffix) {
+        if (program.length != prefix.length + hashLength + suffix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++)
+            if (program[i] != prefix[i])
+                return false;
+        for (int i = 0; i < suffix.length; i++)
+            if (program[prefix.length + hashLength + i] != suffix[i])
+                return false;
+        return true;
+    }
+
+    private static byte[] expand(byte[] prefix, byte[] value, int offset, int hashLength, byte[] suffix) {
+        checkLength(hashLength, value.length - offset);
+        byte[] program = new byte[prefix.length + hashLength + suffix.length];
+        System.arraycopy(prefix, 0, program, 0, prefix.length);
+        System.arraycopy(value, offset, program, prefix.length, hashLength);
+        System.arraycopy(suffix, 0, program, prefix.length + hashLength, suffix.length);
+        return program;
+    }
+
+    private static int checkLength(long length, int available) {
+        if (length < 0 || length > available)
+            throw new ProtocolException("Script of " + length + " bytes, but only " + available + " bytes left");
+        return (int) length;
+    }
+
+    private static void write(ByteArrayOutputStream out, byte[] bytes) {
+        out.write(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Utils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A counting Bloom filter of hashes, which supports removing them again. It is sized for a number of entries and a
+ * false positive rate. Every position of the filter is a four bit counter. Counters that reach the maximum stay there,
+ * because their real value isn't known any more, which only causes false positives.</p>
+ *
+ * <p>The hashes are expected to be random already, like transaction hashes are, so the positions are derived from
+ * their first 16 bytes by double hashing. This class is not thread safe.</p>
+ */
+class CountingBloomFilter {
+    private static final int MAX_COUNT = 15;
+    private static final int SERIALIZATION_VERSION = 1;
+
+    private final long size; // number of counters
+    private final int hashFunctions;
+    private final byte[] counters; // two per byte
+
+    long added, removed, returnedTrue, returnedFalse;
+
+    /**
+     * Creates a filter that has the given false positive rate once it holds the given number of entries.
+     */
+    CountingBloomFilter(long expectedEntries, double falsePositiveRate) {
+        checkArgument(expectedEntries > 0, "expectedEntries must be positive");
+        checkArgument(falsePositiveRate > 0 && falsePositiveRate < 1, "falsePositiveRate must be between 0 and 1");
+        double ln2 = Math.log(2);
+        long size = (long) Math.ceil(-expectedEntries * Math.log(falsePositiveRate) / (ln2 * ln2));
+        checkArgument(size <= (long) Integer.MAX_VALUE * 2, "filter too large");
+        this.size = Math.max(size, 2);
+        this.hashFunctions = Math.max(1, (int) Math.round((double) this.size / expectedEntries * ln2));
+        this.counters = new byte[(int) ((this.size + 1) / 2)];
+    }
+
+    private CountingBloomFilter(long size, int hashFunctions, byte[] counters) {
+        this.size = size;
+        this.hashFunctions = hashFunctions;
+        this.counters = counters;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    int getHashFunctions() {
+        return hashFunctions;
+    }
+
+    /**
+     * Returns how many counters reached the maximum. Hashes added that often, like those of transactions with many
+     * outputs, leave them there when removed, so their number only grows until the filter is rebuilt.
+     */
+    long getSaturatedCounters() {
+        long saturated = 0;
+        for (long position = 0; position < size; position++)
+            if (get(position) == MAX_COUNT)
+                saturated++;
+        return saturated;
+    }
+
+    void add(byte[] hash) {
+        added++;
+        long h1 = Utils.readInt64(hash, 0), h2 = Utils.readInt64(hash, 8) | 1;
+        for (int i = 0; i < hashFunctions; i++) {
+            long position = position(h1, h2, i);
+            int count = get(position);
+            if (count < MAX_COUNT)
+                set(position, count + 1);
+        }
+    }
+
+    /** Removes a hash that was added before. */
+    void remove(byte[] hash) {
+        removed++;
+        long h1 = Utils.readInt64(hash, 0), h2 = Utils.readInt64(hash, 8) | 1;
+        for (int i = 0; i < hashFunctions; i++) {
+            long position = position(h1, h2, i);
+            int count = get(position);
+            if (count > 0 && count < MAX_COUNT)
+                set(position, count - 1);
+        }
+    }
+
+    /** Returns false if the hash is not in the filter for sure, true if it might be. */
+    boolean mightContain(byte[] hash) {
+        long h1 = Utils.readInt64(hash, 0), h2 = Utils.readInt64(hash, 8) | 1;
+        for (int i = 0; i < hashFunctions; i++) {
+            if (get(position(h1, h2, i)) == 0) {
+                returnedFalse++;
+                return false;
+            }
+        }
+        returnedTrue++;
+        return true;
+    }
+
+    private long position(long h1, long h2, int i) {
+        long position = (h1 + i * h2) % size;
+        return position < 0 ? position + size : position;
+    }
+
+    private int get(long position) {
+        int b = counters[(int) (position >>> 1)];
+        return (position & 1) == 0 ? b & 0x0F : (b >>> 4) & 0x0F;
+    }
+
+    private void set(long position, int count) {
+        int index = (int) (position >>> 1);
+        int b = counters[index];
+        if ((position & 1) == 0)
+            counters[index] = (byte) ((b & 0xF0) | count);
+        else
+            counters[index] = (byte) ((b & 0x0F) | (count << 4));
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(SERIALIZATION_VERSION);
+        out.writeLong(size);
+        out.writeInt(hashFunctions);
+        out.write(counters);
+    }
+
+    static CountingBloomFilter readFrom(DataInputStream in) throws IOException {
+        if (in.readInt() != SERIALIZATION_VERSION)
+            throw new IOException("Unknown filter version");
+        long size = in.readLong();
+        int hashFunctions = in.readInt();
+        if (size < 2 || size > (long) Integer.MAX_VALUE * 2 || hashFunctions < 1)
+            throw new IOException("Corrupt filter");
+        byte[] counters = new byte[(int) ((size + 1) / 2)];
+        in.readFully(counters);
+        return new CountingBloomFilter(size, hashFunctions, counters);
+    }
+
+    @Override
+    public String toString() {
+        return "Bloom Added: " + added + " Removed: " + removed + " T: " + returnedTrue + " F: " + returnedFalse;
+    }
+}
@@ -33,6 +33,8 @@ import java.math.BigInteger;
 import java.sql.*;
 import java.util.*;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
  * <p>A generic full pruned block store for a relational database.  This generic class requires
  * certain table structures for the block store.</p>
@@ -77,8 +79,14 @@ import java.util.*;
  *     <tr><td>addresstargetable</td><td>integer</td></tr>
  *     <tr><td>coinbase</td><td>boolean</td></tr>
  * </table>
+ *
+ * <p>The unspent outputs added and removed during a batch write are kept in memory and written with JDBC batches when
+ * the batch write is committed, so outputs that are created and spent by the same block are never written at all. The
+ * outputs that the next blocks spend, as given to {@link #prefetchTransactionOutputs(List)}, are loaded with one query
+ * per block when the first of them is looked up. Several batch writes can be committed to the database together, see
+ * {@link #setCommitInterval(int)}.</p>
  */
-public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockStore {
+public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockStore, UTXOPrefetcher {
     private static final Logger log = LoggerFactory.getLogger(DatabaseFullPrunedBlockStore.class);
 
     private static final String CHAIN_HEAD_SETTING                              = "chainhead";
@@ -109,6 +117,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     private static final String SELECT_OPENOUTPUTS_COUNT_SQL                    = "SELECT COUNT(*) FROM openoutputs WHERE hash = ?";
     private static final String INSERT_OPENOUTPUTS_SQL                          = "INSERT INTO openoutputs (hash, index, height, value, scriptbytes, toaddress, addresstargetable, coinbase) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
     private static final String DELETE_OPENOUTPUTS_SQL                          = "DELETE FROM openoutputs WHERE hash = ? AND index = ?";
+    private static final String SELECT_OPENOUTPUTS_BY_HASHES_SQL                = "SELECT hash, index, height, value, scriptbytes, coinbase, toaddress FROM openoutputs WHERE hash IN ";
 
     // Dump table SQL (this is just for data sizing statistics).
     private static final String SELECT_DUMP_SETTINGS_SQL                        = "SELECT name, value FROM settings";
@@ -140,6 +149,31 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     protected String password;
     protected String schemaName;
 
+    // The number of transaction hashes looked up by a single prefetch query.
+    private static final int PREFETCH_QUERY_HASHES = 100;
+    // The number of outputs kept that were passed to prefetchTransactionOutputs() but not looked up yet.
+    private static final int MAX_WANTED_OUTPUTS = 100000;
+
+    // The connection of the last batch writes, while they are uncommitted.
+    @Nullable private Connection batchConnection;
+    private boolean batchOpen;
+    private int uncommittedBatches;
+    private int commitInterval = 1;
+    // Rolled back to when aborting a batch write that follows uncommitted ones.
+    @Nullable private Savepoint batchSavepoint;
+    // The unspent output changes of the open batch write, and the outputs loaded for it. Only used by its thread.
+    private final Map<StoredTransactionOutPoint, UTXO> batchInserts = new LinkedHashMap<>();
+    private final Set<StoredTransactionOutPoint> batchDeletes = new LinkedHashSet<>();
+    private final Map<StoredTransactionOutPoint, UTXO> prefetchedOutputs = new HashMap<>();
+    // Maps the outputs to be prefetched to the list of all outputs that were passed along with them.
+    private final Map<StoredTransactionOutPoint, List<StoredTransactionOutPoint>> wantedOutputs =
+            new LinkedHashMap<StoredTransactionOutPoint, List<StoredTransactionOutPoint>>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<StoredTransactionOutPoint, List<StoredTransactionOutPoint>> eldest) {
+            return size() > MAX_WANTED_OUTPUTS;
+        }
+    };
+
     /**
      * <p>Create a new DatabaseFullPrunedBlockStore, using the full connection URL instead of a hostname and password,
      * and optionally allowing a schema to be specified.</p>
@@ -376,6 +410,15 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         return DELETE_OPENOUTPUTS_SQL;
     }
 
+    /**
+     * Get the SQL to select the openoutputs records of several transactions. The list of hashes, like
+     * {@code (?, ?, ?)}, is appended to it.
+     * @return The SQL select statement, without the list of hashes.
+     */
+    protected String getSelectOpenoutputsByHashesSQL() {
+        return SELECT_OPENOUTPUTS_BY_HASHES_SQL;
+    }
+
     /**
      * Get the SQL to select the setting dump fields for sizing/statistics.
      * @return The SQL select statement.
@@ -415,8 +458,10 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
      */
     protected synchronized final void maybeConnect() throws BlockStoreException {
         try {
-            if (conn.get() != null && !conn.get().isClosed())
+            if (conn.get() != null && !conn.get().isClosed()) {
+                maybeCommitOtherConnection();
                 return;
+            }
 
             if (username == null || password == null) {
                 conn.set(DriverManager.getConnection(connectionURL));
@@ -436,13 +481,52 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
                 }
             }
             log.info("Made a new connection to database " + connectionURL);
+            maybeCommitOtherConnection();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
     }
 
+    /**
+     * Commits the batch writes that are left uncommitted by {@link #setCommitInterval(int)} if they were made with the
+     * connection of another thread, so that this thread sees them.
+     */
+    private void maybeCommitOtherConnection() throws SQLException {
+        if (batchConnection != null && !batchOpen && batchConnection != conn.get())
+            commitBatches();
+    }
+
+    private void commitBatches() throws SQLException {
+        Connection connection = batchConnection;
+        batchConnection = null;
+        batchSavepoint = null;
+        uncommittedBatches = 0;
+        connection.commit();
+        connection.setAutoCommit(true);
+    }
+
+    /**
+     * <p>Sets how many batch writes are committed to the database at once, one by default. Committing less often makes
+     * connecting blocks faster, but the batch writes that are not committed yet are lost if the process dies, and
+     * other connections to the database only see them once they are.</p>
+     *
+     * <p>Aborting a batch write only rolls back that batch write. The uncommitted ones are committed when the store is
+     * closed, or when another thread uses it.</p>
+     */
+    public synchronized void setCommitInterval(int batches) {
+        checkArgument(batches > 0, "batches must be positive");
+        this.commitInterval = batches;
+    }
+
     @Override
     public synchronized void close() {
+        if (batchConnection != null && !batchOpen) {
+            try {
+                commitBatches();
+            } catch (SQLException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
         for (Connection conn : allConnections) {
             try {
                 if (!conn.getAutoCommit()) {
@@ -457,6 +541,13 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             }
         }
         allConnections.clear();
+        batchConnection = null;
+        batchSavepoint = null;
+        batchOpen = false;
+        uncommittedBatches = 0;
+        batchInserts.clear();
+        batchDeletes.clear();
+        prefetchedOutputs.clear();
     }
 
     /**
@@ -900,6 +991,18 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     @Override
     public UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
         maybeConnect();
+        if (inBatchWrite()) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(hash, index);
+            UTXO output = batchInserts.get(key);
+            if (output != null || batchDeletes.contains(key))
+                return output;
+            output = prefetchedOutputs.get(key);
+            if (output != null)
+                return output;
+            List<StoredTransactionOutPoint> wanted = takeWantedOutputs(key);
+            if (wanted != null)
+                return loadOutputs(wanted).get(key);
+        }
         PreparedStatement s = null;
         try {
             s = conn.get()
@@ -941,19 +1044,14 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     @Override
     public void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
         maybeConnect();
+        if (inBatchWrite()) {
+            batchInserts.put(new StoredTransactionOutPoint(out), out);
+            return;
+        }
         PreparedStatement s = null;
         try {
             s = conn.get().prepareStatement(getInsertOpenoutputsSQL());
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int) out.getIndex());
-            s.setInt(3, out.getHeight());
-            s.setLong(4, out.getValue().value);
-            s.setBytes(5, out.getScript().getProgram());
-            s.setString(6, out.getAddress());
-            ScriptType scriptType = out.getScript().getScriptType();
-            s.setInt(7, scriptType != null ? scriptType.id : 0);
-            s.setBoolean(8, out.isCoinbase());
+            setInsertOpenoutputsParameters(s, out);
             s.executeUpdate();
             s.close();
         } catch (SQLException e) {
@@ -976,6 +1074,14 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         // TODO: This should only need one query (maybe a stored procedure)
         if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
             throw new BlockStoreException("Tried to remove a UTXO from DatabaseFullPrunedBlockStore that it didn't have!");
+        if (inBatchWrite()) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+            prefetchedOutputs.remove(key);
+            // Outputs added during this batch write aren't in the database yet.
+            if (batchInserts.remove(key) == null)
+                batchDeletes.add(key);
+            return;
+        }
         try {
             PreparedStatement s = conn.get()
                     .prepareStatement(getDeleteOpenoutputsSQL());
@@ -989,15 +1095,190 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         }
     }
 
+    private void setInsertOpenoutputsParameters(PreparedStatement s, UTXO out) throws SQLException {
+        s.setBytes(1, out.getHash().getBytes());
+        // index is actually an unsigned int
+        s.setInt(2, (int) out.getIndex());
+        s.setInt(3, out.getHeight());
+        s.setLong(4, out.getValue().value);
+        s.setBytes(5, out.getScript().getProgram());
+        s.setString(6, out.getAddress());
+        ScriptType scriptType = out.getScript().getScriptType();
+        s.setInt(7, scriptType != null ? scriptType.id : 0);
+        s.setBoolean(8, out.isCoinbase());
+    }
+
+    /**
+     * Remembers the given outputs, so that they are all loaded with one query per {@link #PREFETCH_QUERY_HASHES}
+     * transactions when the first of them is looked up during a batch write.
+     */
+    @Override
+    public void prefetchTransactionOutputs(List<TransactionOutPoint> outPoints) {
+        List<StoredTransactionOutPoint> wanted = new ArrayList<>(outPoints.size());
+        for (TransactionOutPoint outPoint : outPoints)
+            wanted.add(new StoredTransactionOutPoint(outPoint.getHash(), outPoint.getIndex()));
+        synchronized (wantedOutputs) {
+            for (StoredTransactionOutPoint outPoint : wanted)
+                wantedOutputs.put(outPoint, wanted);
+        }
+    }
+
+    /** Returns the outputs that were passed to {@link #prefetchTransactionOutputs(List)} along with the given one. */
+    @Nullable
+    private List<StoredTransactionOutPoint> takeWantedOutputs(StoredTransactionOutPoint outPoint) {
+        synchronized (wantedOutputs) {
+            List<StoredTransactionOutPoint> wanted = wantedOutputs.get(outPoint);
+            if (wanted != null)
+                for (StoredTransactionOutPoint other : wanted)
+                    if (wantedOutputs.get(other) == wanted)
+                        wantedOutputs.remove(other);
+            return wanted;
+        }
+    }
+
+    /**
+     * Loads the given outputs for the open batch write, and returns the ones that are unspent.
+     */
+    private Map<StoredTransactionOutPoint, UTXO> loadOutputs(List<StoredTransactionOutPoint> outPoints)
+            throws BlockStoreException {
+        Set<StoredTransactionOutPoint> wanted = new HashSet<>(outPoints);
+        Set<Sha256Hash> hashSet = new LinkedHashSet<>();
+        for (StoredTransactionOutPoint outPoint : outPoints)
+            hashSet.add(outPoint.getHash());
+        List<Sha256Hash> hashes = new ArrayList<>(hashSet);
+        Map<StoredTransactionOutPoint, UTXO> loaded = new HashMap<>();
+        try {
+            for (int i = 0; i < hashes.size(); i += PREFETCH_QUERY_HASHES) {
+                List<Sha256Hash> queried = hashes.subList(i, Math.min(i + PREFETCH_QUERY_HASHES, hashes.size()));
+                StringBuilder sql = new StringBuilder(getSelectOpenoutputsByHashesSQL()).append('(');
+                for (int j = 0; j < queried.size(); j++)
+                    sql.append(j == 0 ? "?" : ", ?");
+                sql.append(')');
+                PreparedStatement s = conn.get().prepareStatement(sql.toString());
+                try {
+                    for (int j = 0; j < queried.size(); j++)
+                        s.setBytes(j + 1, queried.get(j).getBytes());
+                    ResultSet results = s.executeQuery();
+                    while (results.next()) {
+                        Sha256Hash hash = Sha256Hash.wrap(results.getBytes(1));
+                        // index is actually an unsigned int
+                        long index = results.getInt(2) & 0xFFFFFFFFL;
+                        StoredTransactionOutPoint key = new StoredTransactionOutPoint(hash, index);
+                        if (!wanted.contains(key) || batchDeletes.contains(key))
+                            continue;
+                        loaded.put(key, new UTXO(hash,
+                                index,
+                                Coin.valueOf(results.getLong(4)),
+                                results.getInt(3),
+                                results.getBoolean(6),
+                                new Script(results.getBytes(5)),
+                                results.getString(7)));
+                    }
+                    results.close();
+                } finally {
+                    s.close();
+                }
+            }
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
+        }
+        prefetchedOutputs.putAll(loaded);
+        return loaded;
+    }
+
+    /** Returns whether the current thread has opened a batch write. */
+    private synchronized boolean inBatchWrite() throws BlockStoreException {
+        return batchOpen && batchConnection == conn.get();
+    }
+
+    /** Writes the unspent outputs added and removed during the open batch write to the database. */
+    private void writeBatch() throws BlockStoreException {
+        try {
+            if (!batchDeletes.isEmpty()) {
+                PreparedStatement s = conn.get().prepareStatement(getDeleteOpenoutputsSQL());
+                try {
+                    for (StoredTransactionOutPoint outPoint : batchDeletes) {
+                        s.setBytes(1, outPoint.getHash().getBytes());
+                        // index is actually an unsigned int
+                        s.setInt(2, (int) outPoint.getIndex());
+                        s.addBatch();
+                    }
+                    s.executeBatch();
+                } finally {
+                    s.close();
+                }
+                batchDeletes.clear();
+            }
+            if (!batchInserts.isEmpty()) {
+                Connection connection = conn.get();
+                PreparedStatement s = connection.prepareStatement(getInsertOpenoutputsSQL());
+                try {
+                    for (UTXO out : batchInserts.values()) {
+                        setInsertOpenoutputsParameters(s, out);
+                        s.addBatch();
+                    }
+                    // Some databases, like PostgreSQL, refuse further statements in a transaction after one failed,
+                    // until it is rolled back to a savepoint from before the failure.
+                    Savepoint savepoint = connection.setSavepoint();
+                    try {
+                        s.executeBatch();
+                        connection.releaseSavepoint(savepoint);
+                    } catch (SQLException e) {
+                        if (!isDuplicateKeyError(e))
+                            throw e;
+                        connection.rollback(savepoint);
+                        // Like addUnspentTransactionOutput(), ignore the outputs that are there already.
+                        s.clearBatch();
+                        for (UTXO out : batchInserts.values()) {
+                            setInsertOpenoutputsParameters(s, out);
+                            savepoint = connection.setSavepoint();
+                            try {
+                                s.executeUpdate();
+                                connection.releaseSavepoint(savepoint);
+                            } catch (SQLException e2) {
+                                if (!isDuplicateKeyError(e2))
+                                    throw e2;
+                                connection.rollback(savepoint);
+                            }
+                        }
+                    }
+                } finally {
+                    s.close();
+                }
+                batchInserts.clear();
+            }
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private boolean isDuplicateKeyError(SQLException e) {
+        for (; e != null; e = e.getNextException())
+            if (getDuplicateKeyErrorCode().equals(e.getSQLState()))
+                return true;
+        return false;
+    }
+
     @Override
     public void beginDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
         if (log.isDebugEnabled())
             log.debug("Starting database batch write with connection: " + conn.get().toString());
-        try {
-            conn.get().setAutoCommit(false);
-        } catch (SQLException e) {
-            throw new BlockStoreException(e);
+        synchronized (this) {
+            if (batchOpen)
+                return;
+            try {
+                if (batchConnection == null) {
+                    conn.get().setAutoCommit(false);
+                    batchConnection = conn.get();
+                } else {
+                    // Follows uncommitted batch writes of this connection.
+                    batchSavepoint = conn.get().setSavepoint();
+                }
+            } catch (SQLException e) {
+                throw new BlockStoreException(e);
+            }
+            batchOpen = true;
         }
     }
 
@@ -1006,11 +1287,21 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         maybeConnect();
         if (log.isDebugEnabled())
             log.debug("Committing database batch write with connection: " + conn.get().toString());
-        try {
-            conn.get().commit();
-            conn.get().setAutoCommit(true);
-        } catch (SQLException e) {
-            throw new BlockStoreException(e);
+        synchronized (this) {
+            try {
+                if (inBatchWrite()) {
+                    writeBatch();
+                    batchOpen = false;
+                    batchSavepoint = null;
+                    prefetchedOutputs.clear();
+                    if (++uncommittedBatches < commitInterval)
+                        return;
+                }
+                if (batchConnection != null)
+                    commitBatches();
+            } catch (SQLException e) {
+                throw new BlockStoreException(e);
+            }
         }
     }
 
@@ -1019,21 +1310,37 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         maybeConnect();
         if (log.isDebugEnabled())
             log.debug("Rollback database batch write with connection: " + conn.get().toString());
-        try {
-            if (!conn.get().getAutoCommit()) {
-                conn.get().rollback();
-                conn.get().setAutoCommit(true);
-            } else {
+        synchronized (this) {
+            if (!inBatchWrite()) {
                 log.warn("Warning: Rollback attempt without transaction");
+                return;
+            }
+            batchOpen = false;
+            batchInserts.clear();
+            batchDeletes.clear();
+            prefetchedOutputs.clear();
+            try {
+                if (batchSavepoint != null) {
+                    // Keep the batch writes before this one.
+                    conn.get().rollback(batchSavepoint);
+                    batchSavepoint = null;
+                } else {
+                    batchConnection = null;
+                    uncommittedBatches = 0;
+                    conn.get().rollback();
+                    conn.get().setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                throw new BlockStoreException(e);
             }
-        } catch (SQLException e) {
-            throw new BlockStoreException(e);
         }
     }
 
     @Override
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
         maybeConnect();
+        if (inBatchWrite())
+            writeBatch();
         PreparedStatement s = null;
         try {
             s = conn.get().prepareStatement(getSelectOpenoutputsCountSQL());
@@ -1119,6 +1426,8 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
      */
     public BigInteger calculateBalanceForAddress(Address address) throws BlockStoreException {
         maybeConnect();
+        if (inBatchWrite())
+            writeBatch();
         PreparedStatement s = null;
         try {
             s = conn.get().prepareStatement(getBalanceSelectSQL());
@@ -1148,6 +1457,8 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         List<UTXO> outputs = new ArrayList<>();
         try {
             maybeConnect();
+            if (inBatchWrite())
+                writeBatch();
             s = conn.get().prepareStatement(getTransactionOutputSelectSQL());
             for (ECKey key : keys) {
                 // TODO switch to pubKeyHash in order to support native segwit addresses
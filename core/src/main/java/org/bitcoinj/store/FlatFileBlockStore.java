@@ -0,0 +1,779 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A block store that keeps every header it is given, in a directory of append-only files. Unlike
+ * {@link SPVBlockStore} it never forgets headers, and unlike {@link MemoryBlockStore} it keeps them on disk. Besides
+ * lookups by hash it can return the headers of the best chain by height, see {@link #get(int)}.</p>
+ *
+ * <p>Headers are appended, together with their hash, chain work and height, to segment files holding
+ * {@link #SEGMENT_RECORDS} records each. Appends are buffered, so that syncing the chain results in large sequential
+ * writes. The best chain is described by a dense index that maps each height to the record of its header, kept in a
+ * file of its own. A re-org truncates this index to the fork point and appends the new branch. Records of headers
+ * that are no longer on the best chain stay where they are, so switching back to them is cheap.</p>
+ *
+ * <p>Lookups by hash go through a hash table that is kept in memory. The table is saved to a file of its own when the
+ * store is closed and every {@link #HASH_INDEX_INTERVAL} records, so opening the store only has to read the records
+ * appended after it was last saved. A record that was only partially written is truncated when the store is
+ * opened.</p>
+ */
+public class FlatFileBlockStore implements BlockStore {
+    private static final Logger log = LoggerFactory.getLogger(FlatFileBlockStore.class);
+
+    /** Number of records in each segment file. */
+    public static final int SEGMENT_RECORDS = 1 << 17;
+    /** Number of records after which the hash index is saved again. */
+    public static final int HASH_INDEX_INTERVAL = 1 << 16;
+    private static final String HEIGHTS_MAGIC = "FFBH";
+    private static final String HASHES_MAGIC = "FFBX";
+
+    // Record format (128 bytes):
+    //   32 bytes hash of the header
+    //   12 bytes of chain work
+    //    4 bytes of height
+    //   80 bytes of block header data
+    static final int RECORD_SIZE = Sha256Hash.LENGTH + StoredBlock.COMPACT_SERIALIZED_SIZE;
+    // Height index file format:
+    //   4 header bytes = "FFBH"
+    //   4 bytes height of the first entry
+    //   8 reserved bytes
+    //   for each height, 4 bytes number of the record of the header at that height
+    static final int HEIGHTS_PROLOGUE_BYTES = 16;
+    // Hash index file format:
+    //   4 header bytes = "FFBX"
+    //   4 bytes number of records that were indexed
+    //   4 bytes number of slots of the hash table
+    //   4 reserved bytes
+    //   for each slot, 8 bytes key and 4 bytes number of the record plus one, or zero if the slot is empty
+    static final int HASHES_PROLOGUE_BYTES = 16;
+    private static final int HASHES_SLOT_BYTES = 8 + 4;
+    // Twice the number of records that the store can address.
+    private static final int MAX_HASH_SLOTS = 1 << 30;
+    private static final String HEIGHTS_FILE_NAME = "heights.dat";
+    static final String HASHES_FILE_NAME = "hashes.dat";
+    private static final String SEGMENT_FILE_FORMAT = "headers-%05d.dat";
+    private static final int WRITE_BUFFER_RECORDS = 1024;
+    private static final int READ_BUFFER_RECORDS = 8192;
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+
+    private final NetworkParameters params;
+    private final File directory;
+    private final int segmentRecords;
+    private final ReentrantLock lock = Threading.lock("FlatFileBlockStore");
+
+    // Used to stop other applications/processes from opening the store.
+    private FileLock fileLock;
+    private RandomAccessFile heightsFile;
+    private final List<RandomAccessFile> segmentFiles = new ArrayList<>();
+    private boolean closed;
+
+    // Records that have been appended but not written yet.
+    private final ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_RECORDS * RECORD_SIZE);
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(RECORD_SIZE);
+    private int recordCount;
+    private int writtenRecordCount;
+    private long lastFlushTime;
+
+    // Open addressing hash table from the last 8 bytes of a hash to the number of its record plus one.
+    private long[] hashKeys = new long[1024];
+    private int[] hashRecords = new int[1024];
+    private int hashCount;
+    // Number of records covered by the saved hash index.
+    private int savedHashRecordCount;
+
+    // Record numbers of the best chain, by height starting at baseHeight.
+    private int baseHeight;
+    private int[] heights = new int[1024];
+    private int heightCount;
+    // Entries below this index and below writtenHeightCount are on disk.
+    private int firstDirtyHeight;
+    private int writtenHeightCount;
+    private boolean baseHeightDirty;
+
+    private StoredBlock chainHead;
+
+    // Most lookups are for recent headers, for example the previous block or the last difficulty transition.
+    private final LinkedHashMap<Sha256Hash, StoredBlock> blockCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
+            return size() > 2050;  // Slightly more than the difficulty transition period.
+        }
+    };
+
+    /**
+     * Opens the block store in the given directory, or creates a new one holding just the genesis block if the
+     * directory doesn't contain a store. This operation will block on disk, and reads the headers appended after the
+     * hash index was last saved.
+     * @param directory directory to keep the store files in, will be created if missing
+     * @throws BlockStoreException if something goes wrong
+     */
+    public FlatFileBlockStore(NetworkParameters params, File directory) throws BlockStoreException {
+        this(params, directory, SEGMENT_RECORDS);
+    }
+
+    FlatFileBlockStore(NetworkParameters params, File directory, int segmentRecords) throws BlockStoreException {
+        checkArgument(segmentRecords > 0);
+        this.params = checkNotNull(params);
+        this.directory = checkNotNull(directory);
+        this.segmentRecords = segmentRecords;
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new BlockStoreException("Could not create directory " + directory);
+            File heightsFileName = new File(directory, HEIGHTS_FILE_NAME);
+            boolean exists = heightsFileName.exists();
+            heightsFile = new RandomAccessFile(heightsFileName, "rw");
+            fileLock = heightsFile.getChannel().tryLock();
+            if (fileLock == null)
+                throw new ChainFileLockedException("Store directory is already locked by another process");
+
+            openSegments();
+            if (exists) {
+                readHeights();
+            } else {
+                log.info("Creating new block store in " + directory);
+                Block genesis = params.getGenesisBlock().cloneAsHeader();
+                StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
+                put(storedGenesis);
+                setChainHead(storedGenesis);
+                flush();
+            }
+            if (recordCount - savedHashRecordCount >= HASH_INDEX_INTERVAL)
+                saveHashIndex();
+            lastFlushTime = Utils.currentTimeMillis();
+        } catch (Exception e) {
+            closeFiles();
+            if (e instanceof BlockStoreException)
+                throw (BlockStoreException) e;
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void openSegments() throws IOException, BlockStoreException {
+        for (int segment = 0; ; segment++) {
+            File file = segmentFile(segment);
+            if (!file.exists())
+                break;
+            if (segment > 0 && recordCount != segment * segmentRecords)
+                throw new BlockStoreException("Segment before " + file + " is incomplete");
+            RandomAccessFile segmentFile = new RandomAccessFile(file, "rw");
+            segmentFiles.add(segmentFile);
+            FileChannel channel = segmentFile.getChannel();
+            long length = channel.size();
+            if (length % RECORD_SIZE != 0) {
+                log.warn("Truncating partially written record at the end of {}", file);
+                length -= length % RECORD_SIZE;
+                channel.truncate(length);
+            }
+            if (length > (long) segmentRecords * RECORD_SIZE)
+                throw new BlockStoreException("Segment too large: " + file);
+            recordCount += (int) (length / RECORD_SIZE);
+        }
+        writtenRecordCount = recordCount;
+        savedHashRecordCount = loadHashIndex();
+        if (savedHashRecordCount < recordCount)
+            log.info("Indexing {} records appended after the hash index was saved", recordCount - savedHashRecordCount);
+        indexRecords(savedHashRecordCount);
+    }
+
+    // Reads the records from the given one to the end sequentially, indexing each record by its hash.
+    private void indexRecords(int from) throws IOException, BlockStoreException {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_RECORDS * RECORD_SIZE);
+        byte[] hash = new byte[Sha256Hash.LENGTH];
+        int record = from;
+        while (record < recordCount) {
+            int segmentRecord = record % segmentRecords;
+            int records = Math.min(Math.min(READ_BUFFER_RECORDS, recordCount - record), segmentRecords - segmentRecord);
+            FileChannel channel = segmentFiles.get(record / segmentRecords).getChannel();
+            long position = (long) segmentRecord * RECORD_SIZE;
+            buffer.clear();
+            buffer.limit(records * RECORD_SIZE);
+            while (buffer.hasRemaining())
+                if (channel.read(buffer, position + buffer.position()) < 0)
+                    throw new BlockStoreException("Unexpected end of segment at record " + record);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                buffer.get(hash);
+                buffer.position(buffer.position() + StoredBlock.COMPACT_SERIALIZED_SIZE);
+                putHash(hash, record++);
+            }
+        }
+    }
+
+    /**
+     * Loads the hash table saved by {@link #saveHashIndex()} and returns the number of records it covers, or returns
+     * zero if there is no usable one. A table that covers records which are missing, for example because they were
+     * lost in a crash, is ignored. Lookups confirm every match against the record, so a bad table can't return wrong
+     * blocks.
+     */
+    private int loadHashIndex() throws IOException {
+        File file = new File(directory, HASHES_FILE_NAME);
+        if (!file.exists())
+            return 0;
+        try (RandomAccessFile hashesFile = new RandomAccessFile(file, "r")) {
+            FileChannel channel = hashesFile.getChannel();
+            long length = channel.size();
+            if (length < HASHES_PROLOGUE_BYTES) {
+                log.warn("Hash index too short, rebuilding it");
+                return 0;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_RECORDS * HASHES_SLOT_BYTES);
+            buffer.limit(HASHES_PROLOGUE_BYTES);
+            long position = readFully(channel, buffer, 0);
+            byte[] header = new byte[4];
+            buffer.get(header);
+            int records = buffer.getInt();
+            int slots = buffer.getInt();
+            buffer.position(HASHES_PROLOGUE_BYTES);
+            if (!new String(header, StandardCharsets.US_ASCII).equals(HASHES_MAGIC) || records < 0
+                    || slots <= 0 || Integer.bitCount(slots) != 1 || slots > MAX_HASH_SLOTS
+                    || length != HASHES_PROLOGUE_BYTES + (long) slots * HASHES_SLOT_BYTES) {
+                log.warn("Hash index is corrupt, rebuilding it");
+                return 0;
+            }
+            if (records > recordCount) {
+                log.warn("Hash index refers to {} records, but only {} exist, rebuilding it", records, recordCount);
+                return 0;
+            }
+            long[] keys = new long[slots];
+            int[] recordNumbers = new int[slots];
+            int count = 0;
+            for (int i = 0; i < slots; i++) {
+                if (!buffer.hasRemaining()) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), length - position));
+                    position = readFully(channel, buffer, position);
+                }
+                keys[i] = buffer.getLong();
+                recordNumbers[i] = buffer.getInt();
+                if (recordNumbers[i] < 0 || recordNumbers[i] > records) {
+                    log.warn("Hash index is corrupt, rebuilding it");
+                    return 0;
+                }
+                if (recordNumbers[i] != 0)
+                    count++;
+            }
+            if (count * 2 > slots) {
+                log.warn("Hash index is corrupt, rebuilding it");
+                return 0;
+            }
+            hashKeys = keys;
+            hashRecords = recordNumbers;
+            hashCount = count;
+            return records;
+        }
+    }
+
+    /**
+     * Saves the hash table, replacing the file atomically so that a crash leaves either the old or the new one.
+     * Records must be written first, so that the table never covers records that are missing on disk.
+     */
+    private void saveHashIndex() throws IOException {
+        File file = new File(directory, HASHES_FILE_NAME);
+        File tempFile = new File(directory, HASHES_FILE_NAME + ".tmp");
+        try (RandomAccessFile hashesFile = new RandomAccessFile(tempFile, "rw")) {
+            hashesFile.setLength(0);
+            FileChannel channel = hashesFile.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_RECORDS * HASHES_SLOT_BYTES);
+            buffer.put(HASHES_MAGIC.getBytes(StandardCharsets.US_ASCII));
+            buffer.putInt(writtenRecordCount);
+            buffer.putInt(hashKeys.length);
+            buffer.putInt(0);
+            for (int i = 0; i < hashKeys.length; i++) {
+                if (buffer.remaining() < HASHES_SLOT_BYTES)
+                    writeFully(channel, buffer);
+                buffer.putLong(hashKeys[i]);
+                buffer.putInt(hashRecords[i]);
+            }
+            writeFully(channel, buffer);
+            channel.force(false);
+        }
+        try {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        savedHashRecordCount = writtenRecordCount;
+    }
+
+    // Fills the buffer from the given position of the channel, flips it and returns the position after what was read.
+    private static long readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException();
+        buffer.flip();
+        return position + buffer.limit();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    private void readHeights() throws IOException, BlockStoreException {
+        FileChannel channel = heightsFile.getChannel();
+        long length = channel.size();
+        if (length < HEIGHTS_PROLOGUE_BYTES)
+            throw new BlockStoreException("Height index too short: " + length);
+        ByteBuffer buffer = ByteBuffer.allocate((int) length);
+        while (buffer.hasRemaining())
+            if (channel.read(buffer, buffer.position()) < 0)
+                throw new BlockStoreException("Unexpected end of height index");
+        buffer.flip();
+        byte[] header = new byte[4];
+        buffer.get(header);
+        if (!new String(header, StandardCharsets.US_ASCII).equals(HEIGHTS_MAGIC))
+            throw new BlockStoreException("Header bytes do not equal " + HEIGHTS_MAGIC);
+        baseHeight = buffer.getInt();
+        buffer.position(HEIGHTS_PROLOGUE_BYTES);
+        int entries = buffer.remaining() / 4;
+        heights = new int[Math.max(entries * 2, 1024)];
+        for (int i = 0; i < entries; i++) {
+            int record = buffer.getInt();
+            if (record < 0 || record >= recordCount) {
+                // The records were lost, for example if the system crashed before they were written.
+                log.warn("Height index refers to missing record {}, truncating it at height {}", record,
+                        baseHeight + i);
+                break;
+            }
+            heights[heightCount++] = record;
+        }
+        if (heightCount == 0)
+            throw new BlockStoreException("Height index is empty");
+        writtenHeightCount = entries;
+        firstDirtyHeight = heightCount;
+        chainHead = readRecord(heights[heightCount - 1]);
+        if (heightCount < entries)
+            flushHeights();
+    }
+
+    @Override
+    public void put(StoredBlock block) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            if (!writeBuffer.hasRemaining())
+                flushRecords();
+            Sha256Hash hash = block.getHeader().getHash();
+            writeBuffer.put(hash.getBytes());
+            block.serializeCompact(writeBuffer);
+            putHash(hash.getBytes(), recordCount++);
+            blockCache.put(hash, block);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            StoredBlock cacheHit = blockCache.get(hash);
+            if (cacheHit != null)
+                return cacheHit;
+            int record = findRecord(hash.getBytes());
+            if (record == -1)
+                return null;
+            StoredBlock block = readRecord(record);
+            blockCache.put(hash, block);
+            return block;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the block of the best chain at the given height, or null if the height is above the chain head or below
+     * the first block of the store, for example when the store was initialized from a checkpoint.
+     */
+    @Nullable
+    public StoredBlock get(int height) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            if (height < baseHeight || height >= baseHeight + heightCount)
+                return null;
+            return readRecord(heights[height - baseHeight]);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the height of the first block of the best chain that this store holds. */
+    public int getFirstHeight() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            return baseHeight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public StoredBlock getChainHead() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            return chainHead;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the chain head, which must have been {@link #put(StoredBlock)} before. If the new head doesn't extend the
+     * current one, the height index is rewound to the fork point and the branch leading to the new head is appended
+     * to it. If that branch doesn't connect to the blocks in the store, the best chain starts over at the earliest
+     * block of the branch that is in the store.
+     */
+    @Override
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            Sha256Hash hash = chainHead.getHeader().getHash();
+            int record = findRecord(hash.getBytes());
+            if (record == -1)
+                throw new BlockStoreException("Chain head was not stored: " + hash);
+            if (this.chainHead != null && heightCount > 0
+                    && chainHead.getHeader().getPrevBlockHash().equals(this.chainHead.getHeader().getHash())
+                    && chainHead.getHeight() == baseHeight + heightCount) {
+                // The common case: the new head extends the best chain.
+                appendHeight(record);
+            } else {
+                rewindTo(chainHead, record);
+            }
+            this.chainHead = chainHead;
+            if (Utils.currentTimeMillis() - lastFlushTime >= FLUSH_INTERVAL_MILLIS)
+                flush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void rewindTo(StoredBlock head, int headRecord) throws BlockStoreException {
+        // Walk back from the new head until we find a block of the best chain.
+        List<Integer> branch = new ArrayList<>();
+        StoredBlock cursor = head;
+        int record = headRecord;
+        boolean connected = false;
+        while (true) {
+            int height = cursor.getHeight();
+            if (height >= baseHeight && height < baseHeight + heightCount && heights[height - baseHeight] == record) {
+                connected = true;
+                break;
+            }
+            branch.add(record);
+            if (height <= baseHeight)
+                break; // the parent is below the indexed part of the best chain
+            int prevRecord = findRecord(cursor.getHeader().getPrevBlockHash().getBytes());
+            if (prevRecord == -1)
+                break;
+            cursor = readRecord(prevRecord);
+            record = prevRecord;
+        }
+        if (connected) {
+            int newCount = cursor.getHeight() - baseHeight + 1;
+            if (newCount < heightCount)
+                log.info("Rewinding best chain from height {} to {}", baseHeight + heightCount - 1,
+                        cursor.getHeight());
+            truncateHeights(newCount);
+        } else {
+            int newBaseHeight = head.getHeight() - branch.size() + 1;
+            if (heightCount > 0)
+                log.info("Best chain now starts at height {}", newBaseHeight);
+            truncateHeights(0);
+            baseHeight = newBaseHeight;
+            baseHeightDirty = true;
+        }
+        for (int i = branch.size() - 1; i >= 0; i--)
+            appendHeight(branch.get(i));
+    }
+
+    private void appendHeight(int record) {
+        if (heightCount == heights.length)
+            heights = Arrays.copyOf(heights, heights.length * 2);
+        heights[heightCount++] = record;
+    }
+
+    private void truncateHeights(int newCount) {
+        heightCount = newCount;
+        firstDirtyHeight = Math.min(firstDirtyHeight, newCount);
+    }
+
+    /**
+     * Writes all buffered headers and changes of the best chain to disk. This happens on its own when the write buffer
+     * is full or a second has passed since the last flush, when the chain head is set.
+     */
+    public void flush() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            flushRecords();
+            flushHeights();
+            if (writtenRecordCount - savedHashRecordCount >= HASH_INDEX_INTERVAL)
+                saveHashIndex();
+            lastFlushTime = Utils.currentTimeMillis();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushRecords() throws IOException {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            int segment = writtenRecordCount / segmentRecords;
+            int segmentRecord = writtenRecordCount % segmentRecords;
+            if (segment == segmentFiles.size())
+                segmentFiles.add(new RandomAccessFile(segmentFile(segment), "rw"));
+            FileChannel channel = segmentFiles.get(segment).getChannel();
+            int records = Math.min(writeBuffer.remaining() / RECORD_SIZE, segmentRecords - segmentRecord);
+            ByteBuffer chunk = writeBuffer.duplicate();
+            chunk.limit(chunk.position() + records * RECORD_SIZE);
+            long position = (long) segmentRecord * RECORD_SIZE;
+            while (chunk.hasRemaining())
+                position += channel.write(chunk, position);
+            writeBuffer.position(chunk.limit());
+            writtenRecordCount += records;
+        }
+        writeBuffer.clear();
+    }
+
+    // Records must be written first, so that the height index never refers to records that are missing on disk.
+    private void flushHeights() throws IOException {
+        FileChannel channel = heightsFile.getChannel();
+        if (baseHeightDirty || writtenHeightCount == 0) {
+            ByteBuffer prologue = ByteBuffer.allocate(HEIGHTS_PROLOGUE_BYTES);
+            prologue.put(HEIGHTS_MAGIC.getBytes(StandardCharsets.US_ASCII));
+            prologue.putInt(baseHeight);
+            prologue.rewind();
+            while (prologue.hasRemaining())
+                channel.write(prologue, prologue.position());
+            baseHeightDirty = false;
+        }
+        if (heightCount < writtenHeightCount)
+            channel.truncate(HEIGHTS_PROLOGUE_BYTES + (long) heightCount * 4);
+        int from = Math.min(firstDirtyHeight, writtenHeightCount);
+        if (from < heightCount) {
+            ByteBuffer entries = ByteBuffer.allocate((heightCount - from) * 4);
+            for (int i = from; i < heightCount; i++)
+                entries.putInt(heights[i]);
+            entries.flip();
+            long position = HEIGHTS_PROLOGUE_BYTES + (long) from * 4;
+            while (entries.hasRemaining())
+                position += channel.write(entries, position);
+        }
+        writtenHeightCount = heightCount;
+        firstDirtyHeight = heightCount;
+    }
+
+    @Override
+    public void close() throws BlockStoreException {
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            try {
+                flushRecords();
+                flushHeights();
+                for (RandomAccessFile segmentFile : segmentFiles)
+                    segmentFile.getChannel().force(false);
+                heightsFile.getChannel().force(false);
+                if (writtenRecordCount != savedHashRecordCount)
+                    saveHashIndex();
+            } catch (IOException e) {
+                throw new BlockStoreException(e);
+            } finally {
+                closeFiles();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void closeFiles() {
+        closed = true;
+        blockCache.clear();
+        try {
+            if (fileLock != null)
+                fileLock.release();
+        } catch (IOException e) {
+            log.warn("Could not release lock of " + directory, e);
+        }
+        for (RandomAccessFile segmentFile : segmentFiles)
+            closeQuietly(segmentFile);
+        if (heightsFile != null)
+            closeQuietly(heightsFile);
+    }
+
+    private static void closeQuietly(RandomAccessFile file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            log.warn("Could not close file", e);
+        }
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return params;
+    }
+
+    private void checkOpen() throws BlockStoreException {
+        if (closed)
+            throw new BlockStoreException("Store closed");
+    }
+
+    private File segmentFile(int segment) {
+        return new File(directory, String.format(Locale.US, SEGMENT_FILE_FORMAT, segment));
+    }
+
+    /** Reads the stored block with the given record number, from the write buffer if it hasn't been written yet. */
+    private StoredBlock readRecord(int record) throws BlockStoreException {
+        readHashAndRecord(record);
+        readBuffer.position(Sha256Hash.LENGTH);
+        try {
+            return StoredBlock.deserializeCompact(params, readBuffer);
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    // Fills readBuffer with the given record.
+    private void readHashAndRecord(int record) throws BlockStoreException {
+        readBuffer.clear();
+        if (record >= writtenRecordCount) {
+            int offset = (record - writtenRecordCount) * RECORD_SIZE;
+            readBuffer.put(writeBuffer.array(), offset, RECORD_SIZE);
+        } else {
+            FileChannel channel = segmentFiles.get(record / segmentRecords).getChannel();
+            long position = (long) (record % segmentRecords) * RECORD_SIZE;
+            try {
+                while (readBuffer.hasRemaining())
+                    if (channel.read(readBuffer, position + readBuffer.position()) < 0)
+                        throw new BlockStoreException("Unexpected end of segment at record " + record);
+            } catch (IOException e) {
+                throw new BlockStoreException(e);
+            }
+        }
+        readBuffer.flip();
+    }
+
+    private boolean recordHasHash(int record, byte[] hash) throws BlockStoreException {
+        readHashAndRecord(record);
+        for (int i = Sha256Hash.LENGTH - 1; i >= 0; i--) // the first bytes are often zeros
+            if (readBuffer.get(i) != hash[i])
+                return false;
+        return true;
+    }
+
+    /** Returns the number of the newest record of the given hash, or -1 if there is none. */
+    private int findRecord(byte[] hash) throws BlockStoreException {
+        long key = key(hash);
+        int mask = hashKeys.length - 1;
+        for (int slot = (int) key & mask; hashRecords[slot] != 0; slot = (slot + 1) & mask)
+            if (hashKeys[slot] == key && recordHasHash(hashRecords[slot] - 1, hash))
+                return hashRecords[slot] - 1;
+        return -1;
+    }
+
+    private void putHash(byte[] hash, int record) throws BlockStoreException {
+        if ((hashCount + 1) * 2 > hashKeys.length)
+            growHashTable();
+        long key = key(hash);
+        int mask = hashKeys.length - 1;
+        int slot = (int) key & mask;
+        for (; hashRecords[slot] != 0; slot = (slot + 1) & mask) {
+            if (hashKeys[slot] == key && recordHasHash(hashRecords[slot] - 1, hash)) {
+                // Stored again, the newer record wins.
+                hashRecords[slot] = record + 1;
+                return;
+            }
+        }
+        hashKeys[slot] = key;
+        hashRecords[slot] = record + 1;
+        hashCount++;
+    }
+
+    private void growHashTable() {
+        long[] oldKeys = hashKeys;
+        int[] oldRecords = hashRecords;
+        hashKeys = new long[oldKeys.length * 2];
+        hashRecords = new int[oldRecords.length * 2];
+        int mask = hashKeys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldRecords[i] == 0)
+                continue;
+            int slot = (int) oldKeys[i] & mask;
+            while (hashRecords[slot] != 0)
+                slot = (slot + 1) & mask;
+            hashKeys[slot] = oldKeys[i];
+            hashRecords[slot] = oldRecords[i];
+        }
+    }
+
+    // Use the last 8 bytes, not the first ones which are often zeros in Bitcoin. Collisions are so unlikely that
+    // comparing keys is almost as good as comparing hashes, but every match is still confirmed against the record.
+    private static long key(byte[] hash) {
+        long key = 0;
+        for (int i = Sha256Hash.LENGTH - 8; i < Sha256Hash.LENGTH; i++)
+            key = (key << 8) | (hash[i] & 0xFF);
+        return key;
+    }
+}
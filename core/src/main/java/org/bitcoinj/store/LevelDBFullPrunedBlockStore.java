@@ -16,6 +16,7 @@
 
 package org.bitcoinj.store;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -33,10 +34,12 @@ import org.bitcoinj.core.AddressFormatException;
 import org.bitcoinj.core.ECKey;
 import org.bitcoinj.core.LegacyAddress;
 import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
 import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.core.StoredUndoableBlock;
 import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutPoint;
 import org.bitcoinj.core.TransactionOutputChanges;
 import org.bitcoinj.core.UTXO;
 import org.bitcoinj.core.UTXOProviderException;
@@ -63,7 +66,7 @@ import com.google.common.collect.Lists;
  * </p>
  */
 
-public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
+public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore, UTXOPrefetcher {
     private static final Logger log = LoggerFactory.getLogger(LevelDBFullPrunedBlockStore.class);
 
     NetworkParameters params;
@@ -116,13 +119,35 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
     // Size of cache for getTransactionOutput
     protected int openOutCache;
-    // Bloomfilter for caching calls to hasUnspentOutputs
-    protected BloomFilter bloom;
+    // Bloomfilter for caching calls to hasUnspentOutputs. It holds the hash
+    // of the transaction once for every unspent output. Outputs spent in a
+    // batch are only removed when it is committed, so that the filter never
+    // misses an output. Outputs added in a batch are removed again on abort.
+    protected CountingBloomFilter bloom;
+    protected long filterEntries;
+    protected double filterFalsePositiveRate;
+    List<Sha256Hash> filterUncommittedAdds;
+    List<Sha256Hash> filterUncommittedRemoves;
 
     // Defaults for cache sizes
     static final long LEVELDB_READ_CACHE_DEFAULT = 100 * 1048576; // 100 meg
     static final int LEVELDB_WRITE_CACHE_DEFAULT = 10 * 1048576; // 10 meg
     static final int OPENOUT_CACHE_DEFAULT = 100000;
+    // Transactions with unspent outputs on mainnet, and the resulting
+    // filter takes about 120 meg.
+    static final long FILTER_ENTRIES_DEFAULT = 40000000;
+    static final double FILTER_FALSE_POSITIVE_RATE_DEFAULT = 0.05;
+    // Written into the database folder on close, and deleted when opened,
+    // so the filter is rebuilt if the store wasn't closed properly.
+    static final String FILTER_FILE_NAME = "utxo.filter";
+    // Share of saturated counters in a read filter above which it is
+    // rebuilt instead, as they are never cleared otherwise.
+    static final double FILTER_MAX_SATURATED = 0.01;
+
+    // Version of the database layout, stored in the VERSION_SETTING.
+    static final int VERSION = 2;
+    // How many entries are moved by one write when migrating.
+    private static final int MIGRATION_BATCH_SIZE = 10000;
 
     // LRUCache
     public class LRUCache extends LinkedHashMap<ByteBuffer, UTXO> {
@@ -140,117 +165,6 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
 
-    // Simple bloomfilter. We take advantage of fact that a Transaction Hash
-    // can be split into 3 30bit numbers that are all random and uncorrelated
-    // so ideal to use as the input to a 3 function bloomfilter. No has function
-    // needed.
-    private class BloomFilter {
-        private byte[] cache;
-        public long returnedTrue;
-        public long returnedFalse;
-        public long added;
-
-        public BloomFilter() {
-            // 2^27 so since 8 bits in a byte this is
-            // 1,073,741,824 bits
-            cache = new byte[134217728];
-            // This size chosen as with 3 functions we should only get 4% errors
-            // with 150m entries.
-        }
-
-        // Called to prime cache.
-        // Might be idea to call periodically to flush out removed keys.
-        // Would need to benchmark 1st though.
-        public void reloadCache(DB db) {
-            // LevelDB is great at scanning consecutive keys.
-            // This take seconds even with 20m keys to add.
-            log.info("Loading Bloom Filter");
-            DBIterator iterator = db.iterator();
-            byte[] key = getKey(KeyType.OPENOUT_ALL);
-            for (iterator.seek(key); iterator.hasNext(); iterator.next()) {
-                ByteBuffer bbKey = ByteBuffer.wrap(iterator.peekNext().getKey());
-                byte firstByte = bbKey.get(); // remove the KeyType.OPENOUT_ALL
-                                              // byte.
-                if (key[0] != firstByte) {
-                    printStat();
-                    return;
-                }
-
-                byte[] hash = new byte[32];
-                bbKey.get(hash);
-                add(hash);
-            }
-            try {
-                iterator.close();
-            } catch (IOException e) {
-                log.error("Error closing iterator", e);
-            }
-            printStat();
-        }
-
-        public void printStat() {
-            log.info("Bloom Added: " + added + " T: " + returnedTrue + " F: " + returnedFalse);
-        }
-
-        // Add a txhash to the filter.
-        public void add(byte[] hash) {
-            byte[] firstHash = new byte[4];
-            added++;
-            for (int i = 0; i < 3; i++) {
-                System.arraycopy(hash, i * 4, firstHash, 0, 4);
-                setBit(firstHash);
-            }
-        }
-
-        public void add(Sha256Hash hash) {
-            add(hash.getBytes());
-        }
-
-        // check if hash was added.
-        // if returns false then 100% sure never added
-        // if returns true need to check what state is in DB as can
-        // not be 100% sure.
-        public boolean wasAdded(Sha256Hash hash) {
-
-            byte[] firstHash = new byte[4];
-            for (int i = 0; i < 3; i++) {
-                System.arraycopy(hash.getBytes(), i * 4, firstHash, 0, 4);
-                boolean result = getBit(firstHash);
-                if (!result) {
-                    returnedFalse++;
-                    return false;
-                }
-            }
-            returnedTrue++;
-            return true;
-        }
-
-        private void setBit(byte[] entry) {
-            int arrayIndex = (entry[0] & 0x3F) << 21 | (entry[1] & 0xFF) << 13 | (entry[2] & 0xFF) << 5
-                    | (entry[3] & 0xFF) >> 3;
-            int bit = (entry[3] & 0x07);
-            int orBit = (0x1 << bit);
-            byte newEntry = (byte) ((int) cache[arrayIndex] | orBit);
-            cache[arrayIndex] = newEntry;
-        }
-
-        private boolean getBit(byte[] entry) {
-            int arrayIndex = (entry[0] & 0x3F) << 21 | (entry[1] & 0xFF) << 13 | (entry[2] & 0xFF) << 5
-                    | (entry[3] & 0xFF) >> 3;
-            int bit = (entry[3] & 0x07);
-            int orBit = (0x1 << bit);
-            byte arrayEntry = cache[arrayIndex];
-
-            int result = arrayEntry & orBit;
-            if (result == 0) {
-                return false;
-
-            } else {
-                return true;
-            }
-        }
-    }
-
     public LevelDBFullPrunedBlockStore(NetworkParameters params, String filename, int blockCount) {
         this(params, filename, blockCount, LEVELDB_READ_CACHE_DEFAULT, LEVELDB_WRITE_CACHE_DEFAULT,
                 OPENOUT_CACHE_DEFAULT, false, Integer.MAX_VALUE);
@@ -258,6 +172,18 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
     public LevelDBFullPrunedBlockStore(NetworkParameters params, String filename, int blockCount, long leveldbReadCache,
             int leveldbWriteCache, int openOutCache, boolean instrument, int exitBlock) {
+        this(params, filename, blockCount, leveldbReadCache, leveldbWriteCache, openOutCache, instrument, exitBlock,
+                FILTER_ENTRIES_DEFAULT, FILTER_FALSE_POSITIVE_RATE_DEFAULT);
+    }
+
+    /**
+     * @param filterEntries The number of transactions with unspent outputs the filter for
+     *            {@link #hasUnspentOutputs(Sha256Hash, int)} is sized for.
+     * @param filterFalsePositiveRate The false positive rate of the filter once it holds that many transactions.
+     */
+    public LevelDBFullPrunedBlockStore(NetworkParameters params, String filename, int blockCount, long leveldbReadCache,
+            int leveldbWriteCache, int openOutCache, boolean instrument, int exitBlock, long filterEntries,
+            double filterFalsePositiveRate) {
         this.params = params;
         fullStoreDepth = blockCount;
         this.instrument = instrument;
@@ -270,10 +196,10 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         this.leveldbReadCache = leveldbReadCache;
         this.leveldbWriteCache = leveldbWriteCache;
         this.openOutCache = openOutCache;
-        bloom = new BloomFilter();
+        this.filterEntries = filterEntries;
+        this.filterFalsePositiveRate = filterFalsePositiveRate;
         totalStopwatch = Stopwatch.createStarted();
         openDB();
-        bloom.reloadCache(db);
 
         // Reset after bloom filter loaded
         totalStopwatch = Stopwatch.createStarted();
@@ -298,10 +224,145 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             if (batchGet(getKey(KeyType.CREATED)) == null) {
                 createNewStore(params);
             } else {
+                if (getVersion() < VERSION)
+                    migrateToCompactOutputs();
                 initFromDb();
             }
         } catch (BlockStoreException e) {
             throw new RuntimeException("Can not init/load db", e);
+        } catch (IOException e) {
+            throw new RuntimeException("Can not migrate db", e);
+        }
+        openFilter();
+    }
+
+    private void openFilter() {
+        File file = new File(filename, FILTER_FILE_NAME);
+        bloom = null;
+        if (file.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                byte[] headHash = new byte[32];
+                in.readFully(headHash);
+                CountingBloomFilter filter = CountingBloomFilter.readFrom(in);
+                CountingBloomFilter sized = new CountingBloomFilter(filterEntries, filterFalsePositiveRate);
+                // In case the database was changed without this store since.
+                if (Arrays.equals(headHash, verifiedChainHeadHash.getBytes()) && filter.getSize() == sized.getSize()
+                        && filter.getHashFunctions() == sized.getHashFunctions()) {
+                    long saturated = filter.getSaturatedCounters();
+                    if (saturated <= filter.getSize() * FILTER_MAX_SATURATED)
+                        bloom = filter;
+                    else
+                        log.info("{} of {} filter counters are saturated, rebuilding it", saturated,
+                                filter.getSize());
+                }
+            } catch (IOException e) {
+                log.warn("Could not read the filter, rebuilding it", e);
+            }
+            if (!file.delete())
+                throw new RuntimeException("Can not delete " + file);
+        }
+        if (bloom == null) {
+            bloom = new CountingBloomFilter(filterEntries, filterFalsePositiveRate);
+            reloadFilter();
+        }
+    }
+
+    // LevelDB is great at scanning consecutive keys.
+    // This take seconds even with 20m keys to add.
+    private void reloadFilter() {
+        log.info("Loading Bloom Filter");
+        DBIterator iterator = db.iterator();
+        byte[] key = getKey(KeyType.OPENOUT_COMPACT);
+        byte[] hash = new byte[32];
+        for (iterator.seek(key); iterator.hasNext(); iterator.next()) {
+            byte[] outKey = iterator.peekNext().getKey();
+            if (outKey[0] != key[0])
+                break;
+            System.arraycopy(outKey, 1, hash, 0, 32);
+            bloom.add(hash);
+        }
+        try {
+            iterator.close();
+        } catch (IOException e) {
+            log.error("Error closing iterator", e);
+        }
+        log.info(bloom.toString());
+    }
+
+    private void saveFilter() throws IOException {
+        File file = new File(filename, FILTER_FILE_NAME);
+        File temp = new File(filename, FILTER_FILE_NAME + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.write(verifiedChainHeadHash.getBytes());
+            bloom.writeTo(out);
+        }
+        if (!temp.renameTo(file))
+            throw new IOException("Can not rename " + temp + " to " + file);
+    }
+
+    // Databases without a version setting are of version 1.
+    private int getVersion() {
+        byte[] version = batchGet(getKey(KeyType.VERSION_SETTING));
+        return version == null ? 1 : ByteBuffer.wrap(version).getInt();
+    }
+
+    private byte[] versionBytes() {
+        return ByteBuffer.allocate(4).putInt(VERSION).array();
+    }
+
+    /**
+     * Moves the unspent outputs of a database of version 1, which were serialized with
+     * {@link UTXO#serializeToStream(OutputStream)} under keys with the index as four bytes, to the compact encoding.
+     * Each write moves a batch of entries, so a migration that was interrupted continues when the store is opened the
+     * next time.
+     */
+    private void migrateToCompactOutputs() throws IOException {
+        log.info("Migrating unspent outputs to the compact encoding");
+        long outputs = migrateEntries(KeyType.OPENOUT_ALL);
+        long addresses = migrateEntries(KeyType.ADDRESS_HASHINDEX);
+        db.put(getKey(KeyType.VERSION_SETTING), versionBytes());
+        log.info("Migrated {} unspent outputs and {} address index entries", outputs, addresses);
+    }
+
+    private long migrateEntries(KeyType keyType) throws IOException {
+        byte[] prefix = getKey(keyType);
+        // Seeking past the entries moved already skips over their deletions.
+        byte[] seekKey = prefix;
+        long migrated = 0;
+        while (true) {
+            int count = 0;
+            WriteBatch writeBatch = db.createWriteBatch();
+            DBIterator iterator = db.iterator();
+            try {
+                for (iterator.seek(seekKey); iterator.hasNext() && count < MIGRATION_BATCH_SIZE; iterator.next()) {
+                    Map.Entry<byte[], byte[]> entry = iterator.peekNext();
+                    seekKey = entry.getKey();
+                    ByteBuffer key = ByteBuffer.wrap(entry.getKey());
+                    if (key.get() != prefix[0])
+                        break;
+                    if (keyType == KeyType.OPENOUT_ALL) {
+                        UTXO out = new UTXO(new ByteArrayInputStream(entry.getValue()));
+                        writeBatch.put(getOutKey(out.getHash(), out.getIndex()), CompactUTXOEncoding.encode(out));
+                    } else {
+                        byte[] addressHash = new byte[20];
+                        key.get(addressHash);
+                        byte[] hash = new byte[32];
+                        key.get(hash);
+                        long index = key.getInt() & 0xFFFFFFFFL;
+                        writeBatch.put(getAddressKey(addressHash, Sha256Hash.wrap(hash), index), entry.getValue());
+                    }
+                    writeBatch.delete(entry.getKey());
+                    count++;
+                }
+                if (count > 0)
+                    db.write(writeBatch);
+            } finally {
+                iterator.close();
+                writeBatch.close();
+            }
+            if (count == 0)
+                return migrated;
+            migrated += count;
         }
     }
 
@@ -338,6 +399,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             put(storedGenesisHeader, storedGenesis);
             setChainHead(storedGenesisHeader);
             setVerifiedChainHead(storedGenesisHeader);
+            batchPut(getKey(KeyType.VERSION_SETTING), versionBytes());
             batchPut(getKey(KeyType.CREATED), bytes("done"));
             commitDatabaseBatchWrite();
         } catch (VerificationException e) {
@@ -377,7 +439,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         double hitrate = (hit + 0.0) / (hit + miss + 0.0);
         log.info("Cache size:" + utxoCache.size() + " hit:" + hit + " miss:" + miss + " rate:"
                 + String.format("%.2f", hitrate));
-        bloom.printStat();
+        log.info(bloom.toString());
         log.info("hasTxOut call:" + hasCall + " True:" + hasTrue + " False:" + hasFalse);
         log.info("Wall:" + totalStopwatch + " percent:" + String.format("%.2f", dbproportion));
         String stats = db.getProperty("leveldb.stats");
@@ -410,6 +472,8 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
     @Override
     public void close() throws BlockStoreException {
         try {
+            if (autoCommit)
+                saveFilter();
             db.close();
         } catch (IOException e) {
             throw new BlockStoreException("Could not close db", e);
@@ -430,7 +494,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         List<UTXO> results = new LinkedList<>();
         for (ECKey key : keys) {
             ByteBuffer bb = ByteBuffer.allocate(21);
-            bb.put((byte) KeyType.ADDRESS_HASHINDEX.ordinal());
+            bb.put((byte) KeyType.ADDRESS_HASHINDEX_COMPACT.ordinal());
             bb.put(key.getPubKeyHash());
 
             ReadOptions ro = new ReadOptions();
@@ -441,8 +505,10 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
             DBIterator iterator = db.iterator(ro);
             for (iterator.seek(bb.array()); iterator.hasNext(); iterator.next()) {
-                ByteBuffer bbKey = ByteBuffer.wrap(iterator.peekNext().getKey());
-                bbKey.get(); // remove the address_hashindex byte.
+                byte[] indexKey = iterator.peekNext().getKey();
+                ByteBuffer bbKey = ByteBuffer.wrap(indexKey);
+                if (bbKey.get() != bb.get(0)) // remove the address_hashindex byte.
+                    break;
                 byte[] addressKey = new byte[20];
                 bbKey.get(addressKey);
                 if (!Arrays.equals(addressKey, key.getPubKeyHash())) {
@@ -450,7 +516,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
                 }
                 byte[] hashBytes = new byte[32];
                 bbKey.get(hashBytes);
-                int index = bbKey.getInt();
+                long index = CompactUTXOEncoding.decodeIndex(indexKey, bbKey.position());
                 Sha256Hash hash = Sha256Hash.wrap(hashBytes);
                 UTXO txout;
                 try {
@@ -559,7 +625,10 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
     // in.
     // Do wonder if grouping each "table" like this is efficient or not...
     enum KeyType {
-        CREATED, CHAIN_HEAD_SETTING, VERIFIED_CHAIN_HEAD_SETTING, VERSION_SETTING, HEADERS_ALL, UNDOABLEBLOCKS_ALL, HEIGHT_UNDOABLEBLOCKS, OPENOUT_ALL, ADDRESS_HASHINDEX
+        CREATED, CHAIN_HEAD_SETTING, VERIFIED_CHAIN_HEAD_SETTING, VERSION_SETTING, HEADERS_ALL, UNDOABLEBLOCKS_ALL, HEIGHT_UNDOABLEBLOCKS, OPENOUT_ALL, ADDRESS_HASHINDEX,
+        // Version 2: unspent outputs in the CompactUTXOEncoding, with the output index as a VarInt in both keys.
+        // OPENOUT_ALL and ADDRESS_HASHINDEX are only read to migrate databases of version 1.
+        OPENOUT_COMPACT, ADDRESS_HASHINDEX_COMPACT
     }
 
     // These helpers just get the key for an input
@@ -587,6 +656,19 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         return key;
     }
 
+    private byte[] getOutKey(Sha256Hash hash, long index) {
+        return CompactUTXOEncoding.encodeKey((byte) KeyType.OPENOUT_COMPACT.ordinal(), hash, index);
+    }
+
+    private byte[] getAddressKey(byte[] addressHash, Sha256Hash hash, long index) {
+        byte[] outKey = CompactUTXOEncoding.encodeKey((byte) KeyType.ADDRESS_HASHINDEX_COMPACT.ordinal(), hash, index);
+        byte[] key = new byte[outKey.length + 20];
+        key[0] = outKey[0];
+        System.arraycopy(addressHash, 0, key, 1, 20);
+        System.arraycopy(outKey, 1, key, 21, outKey.length - 1);
+        return key;
+    }
+
     private byte[] getKey(KeyType keytype, Sha256Hash hash) {
         byte[] key = new byte[29];
 
@@ -706,7 +788,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
         try {
             UTXO result = null;
-            byte[] key = getTxKey(KeyType.OPENOUT_ALL, hash, (int) index);
+            byte[] key = getOutKey(hash, index);
             // Use cache
             if (autoCommit) {
                 // Simple case of auto commit on so cache is consistent.
@@ -741,8 +823,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
                     endMethod("getTransactionOutput");
                 return null;
             }
-            ByteArrayInputStream bis = new ByteArrayInputStream(inbytes);
-            UTXO txout = new UTXO(bis);
+            UTXO txout = CompactUTXOEncoding.decode(hash, index, inbytes);
 
             if (instrument)
                 endMethod("getTransactionOutput");
@@ -751,7 +832,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             log.error("Exception in getTransactionOutput.", e);
             if (instrument)
                 endMethod("getTransactionOutput");
-        } catch (IOException e) {
+        } catch (ProtocolException e) {
             log.error("Exception in getTransactionOutput.", e);
             if (instrument)
                 endMethod("getTransactionOutput");
@@ -759,6 +840,20 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         throw new BlockStoreException("problem");
     }
 
+    /**
+     * Reads the outputs from the database without touching the caches, which aren't thread safe. This brings them into
+     * the caches of the database and of the operating system.
+     */
+    @Override
+    public void prefetchTransactionOutputs(List<TransactionOutPoint> outPoints) throws BlockStoreException {
+        try {
+            for (TransactionOutPoint outPoint : outPoints)
+                db.get(getOutKey(outPoint.getHash(), outPoint.getIndex()));
+        } catch (DBException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
     @Override
     public void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
 
@@ -766,16 +861,11 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             beginMethod("addUnspentTransactionOutput");
 
         // Add to bloom filter - is very fast to add.
-        bloom.add(out.getHash());
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        try {
-            out.serializeToStream(bos);
-        } catch (IOException e) {
-            throw new BlockStoreException("problem serialising utxo", e);
-        }
-
-        byte[] key = getTxKey(KeyType.OPENOUT_ALL, out.getHash(), (int) out.getIndex());
-        batchPut(key, bos.toByteArray());
+        bloom.add(out.getHash().getBytes());
+        if (!autoCommit)
+            filterUncommittedAdds.add(out.getHash());
+        byte[] key = getOutKey(out.getHash(), out.getIndex());
+        batchPut(key, CompactUTXOEncoding.encode(out));
 
         if (autoCommit) {
             utxoCache.put(ByteBuffer.wrap(key), out);
@@ -802,13 +892,8 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
                 return;
             }
         }
-        ByteBuffer bb = ByteBuffer.allocate(57);
-        bb.put((byte) KeyType.ADDRESS_HASHINDEX.ordinal());
-        bb.put(a.getHash());
-        bb.put(out.getHash().getBytes());
-        bb.putInt((int) out.getIndex());
         byte[] value = new byte[0];
-        batchPut(bb.array(), value);
+        batchPut(getAddressKey(a.getHash(), out.getHash(), out.getIndex()), value);
         if (instrument)
             endMethod("addUnspentTransactionOutput");
     }
@@ -866,7 +951,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         if (instrument)
             beginMethod("removeUnspentTransactionOutput");
 
-        byte[] key = getTxKey(KeyType.OPENOUT_ALL, out.getHash(), (int) out.getIndex());
+        byte[] key = getOutKey(out.getHash(), out.getIndex());
 
         if (autoCommit) {
             utxoCache.remove(ByteBuffer.wrap(key));
@@ -876,12 +961,15 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         }
 
         batchDelete(key);
+        if (autoCommit)
+            bloom.remove(out.getHash().getBytes());
+        else
+            filterUncommittedRemoves.add(out.getHash());
         // could run this and the above in parallel
         // Need to update instrumentation to check if worth the effort
 
         // TODO storing as byte[] hash to save space. But think should just
         // store as String of address. Might be faster. Need to test.
-        ByteBuffer bb = ByteBuffer.allocate(57);
         Address a;
         byte[] hashBytes = null;
         try {
@@ -903,11 +991,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
                 endMethod("removeUnspentTransactionOutput");
             return;
         }
-        bb.put((byte) KeyType.ADDRESS_HASHINDEX.ordinal());
-        bb.put(hashBytes);
-        bb.put(out.getHash().getBytes());
-        bb.putInt((int) out.getIndex());
-        batchDelete(bb.array());
+        batchDelete(getAddressKey(hashBytes, out.getHash(), out.getIndex()));
 
         if (instrument)
             endMethod("removeUnspentTransactionOutput");
@@ -925,7 +1009,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         if (instrument)
             beginMethod("hasUnspentOutputs");
         hasCall++;
-        if (!bloom.wasAdded(hash)) {
+        if (!bloom.mightContain(hash.getBytes())) {
             if (instrument)
                 endMethod("hasUnspentOutputs");
             hasFalse++;
@@ -933,7 +1017,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         }
         // no index is fine as will find any entry with any index...
         // TODO should I be checking uncommitted inserts/deletes???
-        byte[] key = getTxKey(KeyType.OPENOUT_ALL, hash);
+        byte[] key = getTxKey(KeyType.OPENOUT_COMPACT, hash);
         byte[] subResult = new byte[key.length];
         DBIterator iterator = db.iterator();
         for (iterator.seek(key); iterator.hasNext();) {
@@ -1042,6 +1126,8 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         uncommitedDeletes = new HashSet<>();
         utxoUncommittedCache = new HashMap<>();
         utxoUncommittedDeletedCache = new HashSet<>();
+        filterUncommittedAdds = new ArrayList<>();
+        filterUncommittedRemoves = new ArrayList<>();
         autoCommit = false;
         if (instrument)
             endMethod("beginDatabaseBatchWrite");
@@ -1067,6 +1153,10 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             utxoCache.remove(entry);
         }
         utxoUncommittedDeletedCache = null;
+        for (Sha256Hash hash : filterUncommittedRemoves)
+            bloom.remove(hash.getBytes());
+        filterUncommittedAdds = null;
+        filterUncommittedRemoves = null;
 
         autoCommit = true;
 
@@ -1098,6 +1188,11 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             uncommitedDeletes = null;
             utxoUncommittedCache = null;
             utxoUncommittedDeletedCache = null;
+            if (filterUncommittedAdds != null)
+                for (Sha256Hash hash : filterUncommittedAdds)
+                    bloom.remove(hash.getBytes());
+            filterUncommittedAdds = null;
+            filterUncommittedRemoves = null;
             autoCommit = true;
             if (batch != null) {
                 batch.close();
@@ -1116,7 +1211,6 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             uncommited = null;
             uncommitedDeletes = null;
             autoCommit = true;
-            bloom = new BloomFilter();
             utxoCache = new LRUCache(openOutCache, 0.75f);
         } catch (IOException e) {
             log.error("Exception in resetStore.", e);
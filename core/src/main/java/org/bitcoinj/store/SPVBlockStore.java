@@ -36,6 +36,9 @@ import static com.google.common.base.Preconditions.*;
  * An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
  * may not be able to process very deep re-orgs and could be disconnected from the chain (requiring a replay),
  * but as they are virtually unheard of this is not a significant risk.
+ *
+ * <p>Headers are looked up by hash through an index that is kept in a second file next to the ring, with the suffix
+ * ".index". The index is rebuilt from the ring if it is missing or wasn't closed together with the ring.</p>
  */
 public class SPVBlockStore implements BlockStore {
     private static final Logger log = LoggerFactory.getLogger(SPVBlockStore.class);
@@ -79,6 +82,7 @@ public class SPVBlockStore implements BlockStore {
     protected FileLock fileLock = null;
     protected RandomAccessFile randomAccessFile = null;
     private int fileLength;
+    private SPVBlockStoreIndex index;
 
     /**
      * Creates and initializes an SPV block store that can hold {@link #DEFAULT_CAPACITY} block headers. Will create the
@@ -139,17 +143,28 @@ public class SPVBlockStore implements BlockStore {
             // the details of mmapping vary between platforms.
             buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileLength);
 
+            index = new SPVBlockStoreIndex(SPVBlockStoreIndex.fileFor(file), capacity);
+
             // Check or initialize the header bytes to ensure we don't try to open some random file.
             if (exists) {
                 byte[] header = new byte[4];
                 buffer.get(header);
                 if (!new String(header, StandardCharsets.US_ASCII).equals(HEADER_MAGIC))
                     throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+                int cursor = getRingCursor(buffer);
+                if (!index.isInSyncWith(buffer, cursor)) {
+                    log.info("Rebuilding index of SPV block chain file " + file);
+                    index.rebuild(buffer, cursor, fileLength);
+                }
+                index.markDirty();
             } else {
+                index.clear();
+                index.markDirty();
                 initNewStore(params);
             }
         } catch (Exception e) {
             try {
+                if (index != null) index.close();
                 if (randomAccessFile != null) randomAccessFile.close();
             } catch (IOException e2) {
                 throw new BlockStoreException(e2);
@@ -192,12 +207,14 @@ public class SPVBlockStore implements BlockStore {
                 // Wrapped around.
                 cursor = FILE_PROLOGUE_BYTES;
             }
+            index.removeRecord(buffer, cursor);
             buffer.position(cursor);
             Sha256Hash hash = block.getHeader().getHash();
             notFoundCache.remove(hash);
             buffer.put(hash.getBytes());
             block.serializeCompact(buffer);
             setRingCursor(buffer, buffer.position());
+            index.put(buffer, hash.getBytes(), cursor);
             blockCache.put(hash, block);
         } finally { lock.unlock(); }
     }
@@ -216,31 +233,15 @@ public class SPVBlockStore implements BlockStore {
             if (notFoundCache.get(hash) != null)
                 return null;
 
-            // Starting from the current tip of the ring work backwards until we have either found the block or
-            // wrapped around.
-            int cursor = getRingCursor(buffer);
-            final int startingPoint = cursor;
-            final byte[] targetHashBytes = hash.getBytes();
-            byte[] scratch = new byte[32];
-            do {
-                cursor -= RECORD_SIZE;
-                if (cursor < FILE_PROLOGUE_BYTES) {
-                    // We hit the start, so wrap around.
-                    cursor = fileLength - RECORD_SIZE;
-                }
-                // Cursor is now at the start of the next record to check, so read the hash and compare it.
-                buffer.position(cursor);
-                buffer.get(scratch);
-                if (Arrays.equals(scratch, targetHashBytes)) {
-                    // Found the target.
-                    StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
-                    blockCache.put(hash, storedBlock);
-                    return storedBlock;
-                }
-            } while (cursor != startingPoint);
-            // Not found.
-            notFoundCache.put(hash, NOT_FOUND_MARKER);
-            return null;
+            int cursor = index.get(buffer, hash.getBytes());
+            if (cursor == -1) {
+                notFoundCache.put(hash, NOT_FOUND_MARKER);
+                return null;
+            }
+            buffer.position(cursor + 32);
+            StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
+            blockCache.put(hash, storedBlock);
+            return storedBlock;
         } catch (ProtocolException e) {
             throw new RuntimeException(e);  // Cannot happen.
         } finally { lock.unlock(); }
@@ -257,7 +258,7 @@ public class SPVBlockStore implements BlockStore {
         try {
             if (lastChainHead == null) {
                 byte[] headHash = new byte[32];
-                buffer.position(8);
+                buffer.position(CHAIN_HEAD_OFFSET);
                 buffer.get(headHash);
                 Sha256Hash hash = Sha256Hash.wrap(headHash);
                 StoredBlock block = get(hash);
@@ -278,7 +279,7 @@ public class SPVBlockStore implements BlockStore {
         try {
             lastChainHead = chainHead;
             byte[] headHash = chainHead.getHeader().getHash().getBytes();
-            buffer.position(8);
+            buffer.position(CHAIN_HEAD_OFFSET);
             buffer.put(headHash);
         } finally { lock.unlock(); }
     }
@@ -287,6 +288,8 @@ public class SPVBlockStore implements BlockStore {
     public void close() throws BlockStoreException {
         try {
             buffer.force();
+            index.markClean(buffer, getRingCursor(buffer));
+            index.close();
             buffer = null;  // Allow it to be GCd and the underlying file mapping to go away.
             fileLock.release();
             randomAccessFile.close();
@@ -314,6 +317,7 @@ public class SPVBlockStore implements BlockStore {
     //    4 bytes of height
     //   80 bytes of block header data
     protected static final int FILE_PROLOGUE_BYTES = 1024;
+    static final int CHAIN_HEAD_OFFSET = 8;
 
     /** Returns the offset from the file start where the latest block should be written (end of prev block). */
     private int getRingCursor(ByteBuffer buffer) {
@@ -330,9 +334,10 @@ public class SPVBlockStore implements BlockStore {
     public void clear() throws Exception {
         lock.lock();
         try {
-            // Clear caches
+            // Clear caches and the index
             blockCache.clear();
             notFoundCache.clear();
+            index.clear();
             // Clear file content
             buffer.position(0);
             long fileLength = randomAccessFile.length();
@@ -0,0 +1,249 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Sha256Hash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <p>A hash index for the ring buffer of an {@link SPVBlockStore}, kept in a memory mapped file next to it. It is an
+ * open addressing hash table with linear probing that maps block hashes to the offsets of their records in the ring,
+ * so that a lookup takes one or two probes instead of a scan of the ring.</p>
+ *
+ * <p>The table has at least twice as many slots as the ring has records. Each slot holds the offset of a record, or
+ * zero if it is empty, and the four bytes of the block hash the slot was chosen by. Every hit is confirmed against
+ * the hash stored in the ring, so a stale index can make a block go missing, but never return the wrong one. Entries
+ * are removed by shifting back later entries of the same probe sequence, so there are no tombstones.</p>
+ *
+ * <p>The header remembers whether the index was closed cleanly, together with the ring cursor and chain head at that
+ * time. If any of it doesn't match the ring, the index is rebuilt from the ring. This class is not thread safe, the
+ * store guards it with its lock.</p>
+ */
+class SPVBlockStoreIndex {
+    private static final String HEADER_MAGIC = "SPVI";
+
+    // File format:
+    //   4 header bytes = "SPVI"
+    //   4 bytes number of slots, a power of two
+    //   4 bytes clean flag, 1 if the index was closed in sync with the ring
+    //   4 bytes ring cursor at the time the index was closed
+    //   32 bytes hash of the chain head at the time the index was closed
+    //
+    // For each slot (8 bytes)
+    //   4 bytes offset of the record in the ring, or 0 if empty
+    //   4 bytes the last four bytes of the block hash
+    private static final int SLOT_COUNT_OFFSET = 4;
+    private static final int CLEAN_OFFSET = 8;
+    private static final int CURSOR_OFFSET = 12;
+    private static final int CHAIN_HEAD_OFFSET = 16;
+    private static final int PROLOGUE_BYTES = 64;
+    private static final int SLOT_SIZE = 8;
+
+    private final RandomAccessFile randomAccessFile;
+    private final MappedByteBuffer buffer;
+    private final int slotCount;
+    private final int mask;
+    private final byte[] scratch = new byte[Sha256Hash.LENGTH];
+
+    /**
+     * Opens the index file, creating or resizing it as needed. A created or resized index has no entries and isn't
+     * {@link #isInSyncWith(ByteBuffer, int) in sync} with any ring.
+     */
+    SPVBlockStoreIndex(File file, int capacity) throws IOException {
+        this.slotCount = slotCount(capacity);
+        this.mask = slotCount - 1;
+        int fileLength = PROLOGUE_BYTES + slotCount * SLOT_SIZE;
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            boolean fresh = randomAccessFile.length() != fileLength;
+            if (fresh)
+                randomAccessFile.setLength(fileLength);
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileLength);
+            byte[] header = new byte[4];
+            buffer.get(header);
+            if (fresh || !new String(header, StandardCharsets.US_ASCII).equals(HEADER_MAGIC)
+                    || buffer.getInt(SLOT_COUNT_OFFSET) != slotCount) {
+                buffer.position(0);
+                buffer.put(HEADER_MAGIC.getBytes(StandardCharsets.US_ASCII));
+                buffer.putInt(SLOT_COUNT_OFFSET, slotCount);
+                clear();
+            }
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    /** Returns the file the index for the given ring file is kept in. */
+    static File fileFor(File ringFile) {
+        return new File(ringFile.getPath() + ".index");
+    }
+
+    /** Returns the number of slots used for the given ring capacity: a power of two, at least twice the capacity. */
+    static int slotCount(int capacity) {
+        return Integer.highestOneBit(Math.max(capacity, 8) * 2 - 1) << 1;
+    }
+
+    /**
+     * Returns true if the index was closed cleanly while the ring had the given cursor and the chain head that is
+     * currently stored in the ring.
+     */
+    boolean isInSyncWith(ByteBuffer ring, int ringCursor) {
+        if (buffer.getInt(CLEAN_OFFSET) != 1 || buffer.getInt(CURSOR_OFFSET) != ringCursor)
+            return false;
+        for (int i = 0; i < Sha256Hash.LENGTH; i++)
+            if (buffer.get(CHAIN_HEAD_OFFSET + i) != ring.get(SPVBlockStore.CHAIN_HEAD_OFFSET + i))
+                return false;
+        return true;
+    }
+
+    /** Marks the index as being modified, so that it is rebuilt if the store isn't closed cleanly. */
+    void markDirty() {
+        buffer.putInt(CLEAN_OFFSET, 0);
+        buffer.force();
+    }
+
+    /** Records that the index matches the given ring, to be called once the ring has been forced to disk. */
+    void markClean(ByteBuffer ring, int ringCursor) {
+        buffer.putInt(CURSOR_OFFSET, ringCursor);
+        for (int i = 0; i < Sha256Hash.LENGTH; i++)
+            buffer.put(CHAIN_HEAD_OFFSET + i, ring.get(SPVBlockStore.CHAIN_HEAD_OFFSET + i));
+        buffer.putInt(CLEAN_OFFSET, 1);
+        buffer.force();
+    }
+
+    /** Removes all entries and marks the index dirty. */
+    void clear() {
+        buffer.putInt(CLEAN_OFFSET, 0);
+        for (int slot = 0; slot < slotCount; slot++)
+            buffer.putLong(slotPosition(slot), 0);
+    }
+
+    /**
+     * Rebuilds the index from the records in the ring, oldest first so that the newest record wins if a block was
+     * stored more than once.
+     */
+    void rebuild(ByteBuffer ring, int ringCursor, int ringLength) {
+        clear();
+        int records = (ringLength - SPVBlockStore.FILE_PROLOGUE_BYTES) / SPVBlockStore.RECORD_SIZE;
+        int offset = ringCursor;
+        for (int i = 0; i < records; i++) {
+            if (offset == ringLength)
+                offset = SPVBlockStore.FILE_PROLOGUE_BYTES;
+            if (readHash(ring, offset))
+                put(ring, scratch, offset);
+            offset += SPVBlockStore.RECORD_SIZE;
+        }
+    }
+
+    /** Returns the offset of the record for the given hash in the ring, or -1 if it isn't indexed. */
+    int get(ByteBuffer ring, byte[] hash) {
+        int key = key(hash);
+        for (int slot = key & mask; ; slot = (slot + 1) & mask) {
+            int position = slotPosition(slot);
+            int offset = buffer.getInt(position);
+            if (offset == 0)
+                return -1;
+            if (buffer.getInt(position + 4) == key && hashEquals(ring, offset, hash))
+                return offset;
+        }
+    }
+
+    /** Indexes the record at the given offset, replacing the entry of an older record of the same block. */
+    void put(ByteBuffer ring, byte[] hash, int offset) {
+        int key = key(hash);
+        for (int slot = key & mask; ; slot = (slot + 1) & mask) {
+            int position = slotPosition(slot);
+            int existing = buffer.getInt(position);
+            if (existing == 0 || (buffer.getInt(position + 4) == key && hashEquals(ring, existing, hash))) {
+                buffer.putInt(position, offset);
+                buffer.putInt(position + 4, key);
+                return;
+            }
+        }
+    }
+
+    /** Removes the entry of the record at the given offset, to be called before the record is overwritten. */
+    void removeRecord(ByteBuffer ring, int offset) {
+        if (!readHash(ring, offset))
+            return; // never written
+        int key = key(scratch);
+        int slot = key & mask;
+        while (true) {
+            int position = slotPosition(slot);
+            int existing = buffer.getInt(position);
+            if (existing == 0)
+                return; // the block was stored again later, so the entry points to the newer record
+            if (existing == offset && buffer.getInt(position + 4) == key)
+                break;
+            slot = (slot + 1) & mask;
+        }
+        // Shift back entries that would become unreachable from their home slot, then empty the last hole.
+        int hole = slot;
+        int next = hole;
+        while (true) {
+            next = (next + 1) & mask;
+            int nextPosition = slotPosition(next);
+            if (buffer.getInt(nextPosition) == 0)
+                break;
+            int home = buffer.getInt(nextPosition + 4) & mask;
+            boolean reachable = hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+            if (!reachable) {
+                buffer.putLong(slotPosition(hole), buffer.getLong(nextPosition));
+                hole = next;
+            }
+        }
+        buffer.putLong(slotPosition(hole), 0);
+    }
+
+    void close() throws IOException {
+        randomAccessFile.close();
+    }
+
+    /** Reads the hash of the record at the given offset into the scratch buffer, returns false for empty records. */
+    private boolean readHash(ByteBuffer ring, int offset) {
+        boolean empty = true;
+        for (int i = 0; i < Sha256Hash.LENGTH; i++) {
+            scratch[i] = ring.get(offset + i);
+            empty &= scratch[i] == 0;
+        }
+        return !empty;
+    }
+
+    private boolean hashEquals(ByteBuffer ring, int offset, byte[] hash) {
+        for (int i = Sha256Hash.LENGTH - 1; i >= 0; i--) // the first bytes are often zeros
+            if (ring.get(offset + i) != hash[i])
+                return false;
+        return true;
+    }
+
+    private int slotPosition(int slot) {
+        return PROLOGUE_BYTES + slot * SLOT_SIZE;
+    }
+
+    // Same as Sha256Hash.hashCode(): use the last 4 bytes, not the first 4 which are often zeros in Bitcoin.
+    private static int key(byte[] hash) {
+        return (hash[28] & 0xFF) << 24 | (hash[29] & 0xFF) << 16 | (hash[30] & 0xFF) << 8 | (hash[31] & 0xFF);
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.TransactionOutPoint;
+
+import java.util.List;
+
+/**
+ * <p>Implemented by a {@link FullPrunedBlockStore} that can load unspent outputs ahead of their lookup by
+ * {@link FullPrunedBlockStore#getTransactionOutput(org.bitcoinj.core.Sha256Hash, long)}, for example into a cache of
+ * the underlying database. {@link org.bitcoinj.core.FullPrunedBlockChain#importBlocks(java.util.Iterator, int)}
+ * prefetches the outputs spent by the next blocks while it connects the current one.</p>
+ *
+ * <p>Prefetching may be called from any thread, concurrently with any other method of the store, and must not change
+ * what the store returns. Outputs that don't exist or are created by uncommitted blocks are ignored.</p>
+ */
+public interface UTXOPrefetcher {
+    /** Loads the given outputs so that looking them up later is faster. */
+    void prefetchTransactionOutputs(List<TransactionOutPoint> outPoints) throws BlockStoreException;
+}
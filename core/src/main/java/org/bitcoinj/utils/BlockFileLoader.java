@@ -22,22 +22,49 @@ import org.bitcoinj.core.Block;
 import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.ProtocolException;
 import org.bitcoinj.core.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <p>This class reads block files stored in the Bitcoin Core format. This is simply a way to concatenate
  * blocks together. Importing block data with this tool can be a lot faster than syncing over the network, if you
  * have the files available.</p>
  * 
+ * <p>Each file is memory mapped and scanned for blocks by a background thread, and the blocks are parsed on a pool of
+ * worker threads. They are still returned in file order. At most a given number of blocks are read ahead of the
+ * consumer, which bounds the memory used, and the arrays holding their bytes are reused once they have been parsed.
+ * The threads are started by {@link #iterator()} or {@link #start()}, and stopped once all blocks were returned, by
+ * {@link #close()}, or soon after the loader is no longer referenced.</p>
+ * 
  * <p>In order to comply with {@link Iterator}, this class swallows a lot of {@link IOException}s, which may result in a few
  * blocks being missed followed by a huge set of orphan blocks.</p>
  * 
@@ -50,7 +77,13 @@ import java.util.NoSuchElementException;
  * }
  * }</p>
  */
-public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
+public class BlockFileLoader implements Iterable<Block>, Iterator<Block>, Closeable {
+    private static final Logger log = LoggerFactory.getLogger(BlockFileLoader.class);
+
+    private static final int DEFAULT_MAX_PENDING_BLOCKS = 32;
+    // Queued after the last block.
+    private static final Future<Block> END = Futures.immediateFuture(null);
+
     /**
      * Gets the list of files which contain blocks from Bitcoin Core.
      */
@@ -84,24 +117,49 @@ public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
         return defaultBlocksDir;
     }
 
-    private Iterator<File> fileIt;
-    private File file = null;
-    private FileInputStream currentFileStream = null;
+    private final NetworkParameters params;
+    private final List<File> files;
+    private final int parserThreads;
+    private final int maxPendingBlocks;
+    @Nullable private Reader reader;
     private Block nextBlock = null;
-    private NetworkParameters params;
+    private boolean finished = false;
 
     public BlockFileLoader(NetworkParameters params, File blocksDir) {
         this(params, getReferenceClientBlockFileList(blocksDir));
     }
 
     public BlockFileLoader(NetworkParameters params, List<File> files) {
-        fileIt = files.iterator();
+        this(params, files, Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_PENDING_BLOCKS);
+    }
+
+    /**
+     * @param parserThreads the number of threads parsing blocks
+     * @param maxPendingBlocks the maximum number of blocks read ahead of the consumer
+     */
+    public BlockFileLoader(NetworkParameters params, List<File> files, int parserThreads, int maxPendingBlocks) {
+        checkArgument(parserThreads > 0, "parserThreads must be positive");
+        checkArgument(maxPendingBlocks > 0, "maxPendingBlocks must be positive");
         this.params = params;
+        this.files = files;
+        this.parserThreads = parserThreads;
+        this.maxPendingBlocks = maxPendingBlocks;
     }
-    
+
+    /**
+     * Starts the threads reading and parsing blocks, unless they were started before. The first call to
+     * {@link #hasNext()} or {@link #iterator()} does this, so it is only needed to start reading ahead earlier. The
+     * threads inherit the context of the calling thread, as parsing transactions needs one.
+     */
+    public void start() {
+        if (reader == null && !finished)
+            reader = new Reader(this);
+    }
+
     @Override
     public boolean hasNext() {
-        if (nextBlock == null)
+        start();
+        if (nextBlock == null && !finished)
             loadNextBlock();
         return nextBlock != null;
     }
@@ -116,73 +174,181 @@ public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
     }
     
     private void loadNextBlock() {
-        while (true) {
-            try {
-                if (!fileIt.hasNext() && (currentFileStream == null || currentFileStream.available() < 1))
-                    break;
-            } catch (IOException e) {
-                currentFileStream = null;
-                if (!fileIt.hasNext())
-                    break;
-            }
+        try {
             while (true) {
-                try {
-                    if (currentFileStream != null && currentFileStream.available() > 0)
-                        break;
-                } catch (IOException e1) {
-                    currentFileStream = null;
-                }
-                if (!fileIt.hasNext()) {
-                    nextBlock = null;
-                    currentFileStream = null;
+                Future<Block> block = reader.pendingBlocks.take();
+                if (block == END) {
+                    close();
                     return;
                 }
-                file = fileIt.next();
-                try {
-                    currentFileStream = new FileInputStream(file);
-                } catch (FileNotFoundException e) {
-                    currentFileStream = null;
-                }
+                nextBlock = block.get();
+                if (nextBlock != null)
+                    return;
             }
+        } catch (InterruptedException e) {
+            close();
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            close();
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * The threads reading and parsing blocks. It doesn't refer to the loader, so that it can notice when the loader is
+     * no longer referenced, because iteration was abandoned without closing it, and stop the threads.
+     */
+    private static class Reader implements Runnable {
+        // How often the scanner checks whether the loader is still referenced, while the consumer doesn't take blocks.
+        private static final long ABANDONED_CHECK_INTERVAL_SECONDS = 1;
+
+        private final NetworkParameters params;
+        private final List<File> files;
+        private final WeakReference<BlockFileLoader> loader;
+        // Blocks that are read ahead of the consumer, in file order. Unparseable blocks complete with null.
+        final BlockingQueue<Future<Block>> pendingBlocks;
+        private final ExecutorService parsers;
+        private final Thread scanner;
+        // Arrays that held the bytes of blocks which have been parsed, for reuse. There are at most as many as there
+        // can be pending blocks, plus the one being filled. Null if parsed blocks keep a reference to their bytes.
+        @Nullable private final Queue<byte[]> spareBuffers;
+
+        Reader(BlockFileLoader loader) {
+            this.params = loader.params;
+            this.files = loader.files;
+            this.loader = new WeakReference<>(loader);
+            this.pendingBlocks = new ArrayBlockingQueue<>(loader.maxPendingBlocks);
+            this.spareBuffers = params.getDefaultSerializer().isParseRetainMode()
+                    ? null : new ConcurrentLinkedQueue<byte[]>();
+            this.parsers = Executors.newFixedThreadPool(loader.parserThreads,
+                    new ContextPropagatingThreadFactory("BlockFileLoader parser"));
+            this.scanner = new ContextPropagatingThreadFactory("BlockFileLoader scanner").newThread(this);
+            scanner.start();
+        }
+
+        /** Runs on the scanner thread. */
+        @Override
+        public void run() {
             try {
-                int nextChar = currentFileStream.read();
-                while (nextChar != -1) {
-                    if (nextChar != ((params.getPacketMagic() >>> 24) & 0xff)) {
-                        nextChar = currentFileStream.read();
-                        continue;
-                    }
-                    nextChar = currentFileStream.read();
-                    if (nextChar != ((params.getPacketMagic() >>> 16) & 0xff))
-                        continue;
-                    nextChar = currentFileStream.read();
-                    if (nextChar != ((params.getPacketMagic() >>> 8) & 0xff))
-                        continue;
-                    nextChar = currentFileStream.read();
-                    if (nextChar == (params.getPacketMagic() & 0xff))
-                        break;
+                for (File file : files)
+                    if (!scanFile(file))
+                        return;
+                put(END);
+            } catch (InterruptedException | RejectedExecutionException e) {
+                // Closed, the consumer doesn't wait for more blocks.
+            } finally {
+                // The blocks that were submitted are still parsed.
+                parsers.shutdown();
+            }
+        }
+
+        /** Finds the blocks in the file, and queues them for parsing. Returns false if the loader was abandoned. */
+        private boolean scanFile(final File file) throws InterruptedException {
+            ByteBuffer buffer;
+            try (FileInputStream stream = new FileInputStream(file)) {
+                FileChannel channel = stream.getChannel();
+                if (channel.size() > Integer.MAX_VALUE) {
+                    log.warn("Skipping {}, it is too large to be mapped", file);
+                    return true;
                 }
-                byte[] bytes = new byte[4];
-                currentFileStream.read(bytes, 0, 4);
-                long size = Utils.readUint32BE(Utils.reverseBytes(bytes), 0);
+                // The mapping stays valid after the channel is closed.
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } catch (IOException e) {
+                log.info("Skipping {}: {}", file, e.getMessage());
+                return true;
+            }
+            while (seekPastMagicBytes(buffer, (int) params.getPacketMagic()) && buffer.remaining() >= 4) {
+                final int size = Integer.reverseBytes(buffer.getInt());
                 // We allow larger than MAX_BLOCK_SIZE because test code uses this as well.
                 if (size > Block.MAX_BLOCK_SIZE*2 || size <= 0)
                     continue;
-                bytes = new byte[(int) size];
-                currentFileStream.read(bytes, 0, (int) size);
-                try {
-                    nextBlock = params.getDefaultSerializer().makeBlock(bytes);
-                } catch (ProtocolException e) {
-                    nextBlock = null;
-                    continue;
-                } catch (Exception e) {
-                    throw new RuntimeException("unexpected problem with block in " + file, e);
+                if (size > buffer.remaining())
+                    break; // truncated
+                final byte[] bytes = takeBuffer(size);
+                buffer.get(bytes, 0, size);
+                if (!put(parsers.submit(new Callable<Block>() {
+                    @Override
+                    public Block call() {
+                        try {
+                            Block block = params.getDefaultSerializer().makeBlock(bytes, 0, size);
+                            // The parser only checks the bounds of the array, which may be larger than the block.
+                            return block.getMessageSize() <= size ? block : null;
+                        } catch (ProtocolException e) {
+                            return null;
+                        } catch (Exception e) {
+                            throw new RuntimeException("unexpected problem with block in " + file, e);
+                        } finally {
+                            if (spareBuffers != null)
+                                spareBuffers.add(bytes);
+                        }
+                    }
+                })))
+                    return false;
+            }
+            return true;
+        }
+
+        /** Returns an array for a block of the given size, reusing the bytes of a parsed block if possible. */
+        private byte[] takeBuffer(int size) {
+            if (spareBuffers == null)
+                return new byte[size];
+            // Spare arrays that are too small are dropped, so that those left over grow to the largest blocks.
+            byte[] bytes;
+            while ((bytes = spareBuffers.poll()) != null)
+                if (bytes.length >= size)
+                    return bytes;
+            return new byte[size];
+        }
+
+        /**
+         * Queues the block for the consumer, waiting for room. Returns false without queueing it if the loader is no
+         * longer referenced.
+         */
+        private boolean put(Future<Block> block) throws InterruptedException {
+            while (!pendingBlocks.offer(block, ABANDONED_CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS)) {
+                if (loader.get() == null) {
+                    log.info("Stopping, blocks were no longer taken");
+                    return false;
                 }
-                break;
-            } catch (IOException e) {
-                currentFileStream = null;
-                continue;
+            }
+            return true;
+        }
+
+        /** Stops the threads, and drops the pending blocks. */
+        void stop() {
+            scanner.interrupt();
+            // Waits for the scanner, so that it doesn't queue any blocks after they were dropped.
+            Uninterruptibles.joinUninterruptibly(scanner);
+            parsers.shutdownNow();
+            pendingBlocks.clear();
+        }
+    }
+
+    /** Positions the big endian buffer after the next occurrence of the magic, and returns whether there was one. */
+    private static boolean seekPastMagicBytes(ByteBuffer buffer, int magic) {
+        byte first = (byte) (magic >>> 24);
+        for (int i = buffer.position(), end = buffer.limit() - 4; i <= end; i++) {
+            if (buffer.get(i) == first && buffer.getInt(i) == magic) {
+                buffer.position(i + 4);
+                return true;
             }
         }
+        buffer.position(buffer.limit());
+        return false;
+    }
+
+    /**
+     * Stops reading and parsing blocks. Afterwards, no more blocks are returned. Called automatically once all blocks
+     * were returned.
+     */
+    @Override
+    public void close() {
+        finished = true;
+        nextBlock = null;
+        if (reader != null)
+            reader.stop();
     }
 
     @Override
@@ -190,8 +356,10 @@ public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
         throw new UnsupportedOperationException();
     }
 
+    /** Starts reading blocks, see {@link #start()}, and returns this loader. */
     @Override
     public Iterator<Block> iterator() {
+        start();
         return this;
     }
 }
@@ -60,26 +60,29 @@ public class DefaultCoinSelector implements CoinSelector {
     }
 
     @VisibleForTesting static void sortOutputs(ArrayList<TransactionOutput> outputs) {
-        Collections.sort(outputs, new Comparator<TransactionOutput>() {
-            @Override
-            public int compare(TransactionOutput a, TransactionOutput b) {
-                int depth1 = a.getParentTransactionDepthInBlocks();
-                int depth2 = b.getParentTransactionDepthInBlocks();
-                Coin aValue = a.getValue();
-                Coin bValue = b.getValue();
-                BigInteger aCoinDepth = BigInteger.valueOf(aValue.value).multiply(BigInteger.valueOf(depth1));
-                BigInteger bCoinDepth = BigInteger.valueOf(bValue.value).multiply(BigInteger.valueOf(depth2));
-                int c1 = bCoinDepth.compareTo(aCoinDepth);
-                if (c1 != 0) return c1;
-                // The "coin*days" destroyed are equal, sort by value alone to get the lowest transaction size.
-                int c2 = bValue.compareTo(aValue);
-                if (c2 != 0) return c2;
-                // They are entirely equivalent (possibly pending) so sort by hash to ensure a total ordering.
-                BigInteger aHash = a.getParentTransactionHash().toBigInteger();
-                BigInteger bHash = b.getParentTransactionHash().toBigInteger();
-                return aHash.compareTo(bHash);
-            }
-        });
+        Collections.sort(outputs, HIGHEST_PRIORITY_FIRST);
+    }
+
+    /** The order in which outputs are selected: highest value times depth first. */
+    static final Comparator<TransactionOutput> HIGHEST_PRIORITY_FIRST = new Comparator<TransactionOutput>() {
+        @Override
+        public int compare(TransactionOutput a, TransactionOutput b) {
+            int c1 = coinDepth(b).compareTo(coinDepth(a));
+            if (c1 != 0) return c1;
+            // The "coin*days" destroyed are equal, sort by value alone to get the lowest transaction size.
+            int c2 = b.getValue().compareTo(a.getValue());
+            if (c2 != 0) return c2;
+            // They are entirely equivalent (possibly pending) so sort by hash to ensure a total ordering.
+            BigInteger aHash = a.getParentTransactionHash().toBigInteger();
+            BigInteger bHash = b.getParentTransactionHash().toBigInteger();
+            return aHash.compareTo(bHash);
+        }
+    };
+
+    /** Returns the value of the output times the depth of its transaction, the "coin*days" spending it destroys. */
+    static BigInteger coinDepth(TransactionOutput output) {
+        return BigInteger.valueOf(output.getValue().value)
+                .multiply(BigInteger.valueOf(output.getParentTransactionDepthInBlocks()));
     }
 
     /** Sub-classes can override this to just customize whether transactions are usable, but keep age sorting. */
@@ -135,6 +135,8 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
     // regenerations, which are expensive and will (in future) trigger chain download stalls/retries. One third
     // is an efficiency tradeoff.
     protected int lookaheadThreshold = calcDefaultLookaheadThreshold();
+    // Lookahead keys are derived in parallel on this executor, or on the calling thread if it is null.
+    @Nullable private Executor lookaheadExecutor;
 
     private int calcDefaultLookaheadThreshold() {
         return lookaheadSize / 3;
@@ -402,6 +404,7 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
 
         this.lookaheadSize = chain.lookaheadSize;
         this.lookaheadThreshold = chain.lookaheadThreshold;
+        this.lookaheadExecutor = chain.lookaheadExecutor;
 
         this.seed = chain.seed.encrypt(crypter, aesKey);
         basicKeyChain = new BasicKeyChain(crypter);
@@ -537,18 +540,23 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
     public DeterministicKey markKeyAsUsed(DeterministicKey k) {
         int numChildren = k.getChildNumber().i() + 1;
 
-        if (k.getParent() == internalParentKey) {
-            if (issuedInternalKeys < numChildren) {
-                issuedInternalKeys = numChildren;
-                maybeLookAhead();
-            }
-        } else if (k.getParent() == externalParentKey) {
-            if (issuedExternalKeys < numChildren) {
-                issuedExternalKeys = numChildren;
-                maybeLookAhead();
+        lock.lock();
+        try {
+            if (k.getParent() == internalParentKey) {
+                if (issuedInternalKeys < numChildren) {
+                    issuedInternalKeys = numChildren;
+                    maybeLookAhead();
+                }
+            } else if (k.getParent() == externalParentKey) {
+                if (issuedExternalKeys < numChildren) {
+                    issuedExternalKeys = numChildren;
+                    maybeLookAhead();
+                }
             }
+            return k;
+        } finally {
+            lock.unlock();
         }
-        return k;
     }
 
     public DeterministicKey findKeyFromPubHash(byte[] pubkeyHash) {
@@ -1021,6 +1029,7 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
         if (!chain.getWatchingKey().getPubKeyPoint().equals(getWatchingKey().getPubKeyPoint()))
             throw new KeyCrypterException.PublicPrivateMismatch("Provided AES key is wrong");
         chain.lookaheadSize = lookaheadSize;
+        chain.lookaheadExecutor = lookaheadExecutor;
         // Now copy the (pubkey only) leaf keys across to avoid rederiving them. The private key bytes are missing
         // anyway so there's nothing to decrypt.
         for (ECKey eckey : basicKeyChain.getKeys()) {
@@ -1133,6 +1142,31 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
         }
     }
 
+    /**
+     * Sets the executor that lookahead keys are derived on, in parallel with the thread that needs them, or null to
+     * derive them on that thread only, which is the default. {@link Threading#THREAD_POOL} is a good choice for chains
+     * with a large lookahead size. The executor is kept when the chain is encrypted or decrypted.
+     */
+    public void setLookaheadExecutor(@Nullable Executor executor) {
+        lock.lock();
+        try {
+            this.lookaheadExecutor = executor;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the executor that lookahead keys are derived on, or null if they are derived on the calling thread. */
+    @Nullable
+    public Executor getLookaheadExecutor() {
+        lock.lock();
+        try {
+            return lookaheadExecutor;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Sets the threshold for the key pre-generation. This is used to avoid adding new keys and thus
      * re-calculating Bloom filters every time a new key is calculated. Without a lookahead threshold, every time we
@@ -1210,13 +1244,10 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
 
         List<DeterministicKey> result  = new ArrayList<>(needed);
         final Stopwatch watch = Stopwatch.createStarted();
-        int nextChild = numChildren;
-        for (int i = 0; i < needed; i++) {
-            DeterministicKey key = HDKeyDerivation.deriveThisOrNextChildKey(parent, nextChild);
+        for (DeterministicKey key : HDKeyDerivation.deriveChildKeys(parent, numChildren, needed, lookaheadExecutor)) {
             key = key.dropPrivateBytes();
             hierarchy.putKey(key);
             result.add(key);
-            nextChild = key.getChildNumber().num() + 1;
         }
         watch.stop();
         log.info("Took {}", watch);
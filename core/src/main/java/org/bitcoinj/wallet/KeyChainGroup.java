@@ -194,6 +194,8 @@ public class KeyChainGroup implements KeyBag {
     @Nullable private KeyCrypter keyCrypter;
     private int lookaheadSize = -1;
     private int lookaheadThreshold = -1;
+    // All keys of basic and the chains, by pubkey hash and pubkey.
+    private final KeyChainGroupIndex keyIndex = new KeyChainGroupIndex();
 
     private final CopyOnWriteArrayList<ListenerRegistration<CurrentKeyChangeEventListener>> currentKeyChangeListeners = new CopyOnWriteArrayList<>();
 
@@ -237,6 +239,7 @@ public class KeyChainGroup implements KeyBag {
                 ? new EnumMap<KeyChain.KeyPurpose, DeterministicKey>(KeyChain.KeyPurpose.class)
                 : currentKeys;
         this.currentAddresses = new EnumMap<>(KeyChain.KeyPurpose.class);
+        indexKeys();
 
         if (isMarried()) {
             maybeLookaheadScripts();
@@ -249,6 +252,15 @@ public class KeyChainGroup implements KeyBag {
         }
     }
 
+    // Rebuilds the key index, to be called whenever basic or the chains are replaced.
+    private void indexKeys() {
+        keyIndex.clear();
+        keyIndex.addChain(basic);
+        if (chains != null)
+            for (DeterministicKeyChain chain : chains)
+                keyIndex.addChain(chain);
+    }
+
     /** Returns true if it contains any deterministic keychain or one could be created. */
     public boolean isSupportsDeterministicChains() {
         return chains != null;
@@ -269,12 +281,14 @@ public class KeyChainGroup implements KeyBag {
         checkState(isSupportsDeterministicChains(), "doesn't support deterministic chains");
         log.info("Activating a new HD chain: {}", chain);
         for (ListenerRegistration<KeyChainEventListener> registration : basic.getListeners())
-            chain.addEventListener(registration.listener, registration.executor);
+            if (!KeyChainGroupIndex.isIndexListener(registration.listener))
+                chain.addEventListener(registration.listener, registration.executor);
         if (lookaheadSize >= 0)
             chain.setLookaheadSize(lookaheadSize);
         if (lookaheadThreshold >= 0)
             chain.setLookaheadThreshold(lookaheadThreshold);
         chains.add(chain);
+        keyIndex.addChain(chain);
         currentKeys.clear();
         currentAddresses.clear();
         queueOnCurrentKeyChanged();
@@ -536,18 +550,14 @@ public class KeyChainGroup implements KeyBag {
     @Nullable
     @Override
     public ECKey findKeyFromPubKeyHash(byte[] pubKeyHash, @Nullable Script.ScriptType scriptType) {
-        ECKey result;
-        // BasicKeyChain can mix output script types.
-        if ((result = basic.findKeyFromPubHash(pubKeyHash)) != null)
-            return result;
-        if (chains != null) {
-            for (DeterministicKeyChain chain : chains) {
-                // This check limits DeterministicKeyChain to specific output script usage.
-                if (scriptType != null && scriptType != chain.getOutputScriptType())
-                    continue;
-                if ((result = chain.findKeyFromPubHash(pubKeyHash)) != null)
-                    return result;
-            }
+        // Entries of the basic chain come first, then those of the deterministic chains in order.
+        for (KeyChainGroupIndex.Entry entry = keyIndex.findByPubKeyHash(pubKeyHash); entry != null; entry = entry.next) {
+            // BasicKeyChain can mix output script types. This check limits DeterministicKeyChain to specific output
+            // script usage.
+            if (scriptType != null && entry.chain instanceof DeterministicKeyChain
+                    && scriptType != ((DeterministicKeyChain) entry.chain).getOutputScriptType())
+                continue;
+            return entry.key;
         }
         return null;
     }
@@ -557,13 +567,17 @@ public class KeyChainGroup implements KeyBag {
      * See {@link DeterministicKeyChain#markKeyAsUsed(DeterministicKey)} for more info on this.
      */
     public void markPubKeyHashAsUsed(byte[] pubKeyHash) {
-        if (chains != null) {
-            for (DeterministicKeyChain chain : chains) {
-                DeterministicKey key;
-                if ((key = chain.markPubHashAsUsed(pubKeyHash)) != null) {
-                    maybeMarkCurrentKeyAsUsed(key);
-                    return;
-                }
+        markKeyAsUsed(keyIndex.findByPubKeyHash(pubKeyHash));
+    }
+
+    // Marks the key as used in the first deterministic chain holding it.
+    private void markKeyAsUsed(@Nullable KeyChainGroupIndex.Entry entry) {
+        for (; entry != null; entry = entry.next) {
+            if (entry.chain instanceof DeterministicKeyChain) {
+                DeterministicKey key = (DeterministicKey) entry.key;
+                ((DeterministicKeyChain) entry.chain).markKeyAsUsed(key);
+                maybeMarkCurrentKeyAsUsed(key);
+                return;
             }
         }
     }
@@ -596,26 +610,14 @@ public class KeyChainGroup implements KeyBag {
     }
 
     public boolean hasKey(ECKey key) {
-        if (basic.hasKey(key))
-            return true;
-        if (chains != null)
-            for (DeterministicKeyChain chain : chains)
-                if (chain.hasKey(key))
-                    return true;
-        return false;
+        return keyIndex.findByPubKey(key.getPubKey()) != null;
     }
 
     @Nullable
     @Override
     public ECKey findKeyFromPubKey(byte[] pubKey) {
-        ECKey result;
-        if ((result = basic.findKeyFromPubKey(pubKey)) != null)
-            return result;
-        if (chains != null)
-            for (DeterministicKeyChain chain : chains)
-                if ((result = chain.findKeyFromPubKey(pubKey)) != null)
-                    return result;
-        return null;
+        KeyChainGroupIndex.Entry entry = keyIndex.findByPubKey(pubKey);
+        return entry != null ? entry.key : null;
     }
 
     /**
@@ -623,15 +625,7 @@ public class KeyChainGroup implements KeyBag {
      * See {@link DeterministicKeyChain#markKeyAsUsed(DeterministicKey)} for more info on this.
      */
     public void markPubKeyAsUsed(byte[] pubkey) {
-        if (chains != null) {
-            for (DeterministicKeyChain chain : chains) {
-                DeterministicKey key;
-                if ((key = chain.markPubKeyAsUsed(pubkey)) != null) {
-                    maybeMarkCurrentKeyAsUsed(key);
-                    return;
-                }
-            }
-        }
+        markKeyAsUsed(keyIndex.findByPubKey(pubkey));
     }
 
     /** Returns the number of keys managed by this group, including the lookahead buffers. */
@@ -650,7 +644,10 @@ public class KeyChainGroup implements KeyBag {
     public boolean removeImportedKey(ECKey key) {
         checkNotNull(key);
         checkArgument(!(key instanceof DeterministicKey));
-        return basic.removeKey(key);
+        if (!basic.removeKey(key))
+            return false;
+        keyIndex.remove(key, basic);
+        return true;
     }
 
     /**
@@ -681,6 +678,7 @@ public class KeyChainGroup implements KeyBag {
             for (DeterministicKeyChain chain : chains)
                 newChains.add(chain.toEncrypted(keyCrypter, aesKey));
         }
+        copyEventListeners(newBasic, newChains);
 
         // Code below this point must be exception safe.
         this.keyCrypter = keyCrypter;
@@ -689,6 +687,7 @@ public class KeyChainGroup implements KeyBag {
             this.chains.clear();
             this.chains.addAll(newChains);
         }
+        indexKeys();
     }
 
     /**
@@ -701,17 +700,33 @@ public class KeyChainGroup implements KeyBag {
         checkNotNull(aesKey);
 
         BasicKeyChain newBasic = basic.toDecrypted(aesKey);
+        List<DeterministicKeyChain> newChains = new ArrayList<>();
         if (chains != null) {
-            List<DeterministicKeyChain> newChains = new ArrayList<>(chains.size());
             for (DeterministicKeyChain chain : chains)
                 newChains.add(chain.toDecrypted(aesKey));
+        }
+        copyEventListeners(newBasic, newChains);
 
-            // Code below this point must be exception safe.
+        // Code below this point must be exception safe.
+        if (chains != null) {
             this.chains.clear();
             this.chains.addAll(newChains);
         }
         this.basic = newBasic;
         this.keyCrypter = null;
+        indexKeys();
+    }
+
+    // Event listeners are registered with every key chain, so they need to be carried over to encrypted and
+    // decrypted copies.
+    private void copyEventListeners(BasicKeyChain newBasic, List<DeterministicKeyChain> newChains) {
+        for (ListenerRegistration<KeyChainEventListener> registration : basic.getListeners()) {
+            if (KeyChainGroupIndex.isIndexListener(registration.listener))
+                continue;
+            newBasic.addEventListener(registration.listener, registration.executor);
+            for (DeterministicKeyChain chain : newChains)
+                chain.addEventListener(registration.listener, registration.executor);
+        }
     }
 
     /** Returns true if the group is encrypted. */
@@ -0,0 +1,279 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.listeners.KeyChainEventListener;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>An index of the keys of all chains in a {@link KeyChainGroup}, by pubkey hash and by pubkey. Finding a key
+ * takes a single lookup instead of one lookup per chain, and the lookup hashes the given byte array directly rather
+ * than wrapping it first.</p>
+ *
+ * <p>Keys added to a chain after it was indexed are picked up through a listener that runs on the thread adding them,
+ * so lookahead keys are found as soon as they are derived. A key held by several chains has an {@link Entry} for each
+ * of them, in the order the chains were added.</p>
+ */
+class KeyChainGroupIndex {
+    /** A key and the chain that holds it. */
+    static class Entry {
+        final ECKey key;
+        final KeyChain chain;
+        // The next chain holding the same key, if any.
+        @Nullable final Entry next;
+        private final int rank;
+
+        private Entry(ECKey key, KeyChain chain, int rank, @Nullable Entry next) {
+            this.key = key;
+            this.chain = chain;
+            this.rank = rank;
+            this.next = next;
+        }
+    }
+
+    private final ReentrantLock lock = Threading.lock("KeyChainGroupIndex");
+    private final Table byPubKeyHash = new Table();
+    private final Table byPubKey = new Table();
+    private final Map<KeyChain, ChainListener> listeners = new IdentityHashMap<>();
+    private int nextRank;
+
+    private class ChainListener implements KeyChainEventListener {
+        private final KeyChain chain;
+        private final int rank;
+
+        ChainListener(KeyChain chain, int rank) {
+            this.chain = chain;
+            this.rank = rank;
+        }
+
+        @Override
+        public void onKeysAdded(List<ECKey> keys) {
+            add(keys, chain, rank);
+        }
+    }
+
+    /** Returns true if the listener was registered by an index, and so must not be copied to other chains. */
+    static boolean isIndexListener(KeyChainEventListener listener) {
+        return listener instanceof ChainListener;
+    }
+
+    /**
+     * Indexes the keys of the given chain, which must be a {@link BasicKeyChain} or a {@link DeterministicKeyChain},
+     * and keeps indexing the keys added to it. Its keys are found after those of the chains added before.
+     */
+    void addChain(KeyChain chain) {
+        ChainListener listener;
+        lock.lock();
+        try {
+            if (listeners.containsKey(chain))
+                return;
+            listener = new ChainListener(chain, nextRank++);
+            listeners.put(chain, listener);
+        } finally {
+            lock.unlock();
+        }
+        // Register before reading the keys, so that none are missed. Keys seen twice are indexed once.
+        chain.addEventListener(listener, Threading.SAME_THREAD);
+        List<? extends ECKey> keys;
+        if (chain instanceof DeterministicKeyChain)
+            keys = ((DeterministicKeyChain) chain).getKeys(true, true);
+        else
+            keys = ((BasicKeyChain) chain).getKeys();
+        add(keys, chain, listener.rank);
+    }
+
+    /** Forgets all chains and keys. */
+    void clear() {
+        List<ChainListener> removed;
+        lock.lock();
+        try {
+            removed = new ArrayList<>(listeners.values());
+            listeners.clear();
+            byPubKeyHash.clear();
+            byPubKey.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (ChainListener listener : removed)
+            listener.chain.removeEventListener(listener);
+    }
+
+    /** To be called after the key was removed from the given chain. */
+    void remove(ECKey key, KeyChain chain) {
+        lock.lock();
+        try {
+            byte[] pubKeyHash = key.getPubKeyHash();
+            byPubKeyHash.put(pubKeyHash, remove(byPubKeyHash.get(pubKeyHash), chain));
+            byte[] pubKey = key.getPubKey();
+            byPubKey.put(pubKey, remove(byPubKey.get(pubKey), chain));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the entries for the key with the given pubkey hash, or null if no chain holds it. */
+    @Nullable
+    Entry findByPubKeyHash(byte[] pubKeyHash) {
+        lock.lock();
+        try {
+            return byPubKeyHash.get(pubKeyHash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the entries for the key with the given pubkey, or null if no chain holds it. */
+    @Nullable
+    Entry findByPubKey(byte[] pubKey) {
+        lock.lock();
+        try {
+            return byPubKey.get(pubKey);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void add(List<? extends ECKey> keys, KeyChain chain, int rank) {
+        lock.lock();
+        try {
+            // The chain may have been dropped while its keys were read.
+            ChainListener listener = listeners.get(chain);
+            if (listener == null || listener.rank != rank)
+                return;
+            for (ECKey key : keys) {
+                byte[] pubKeyHash = key.getPubKeyHash();
+                byPubKeyHash.put(pubKeyHash, insert(byPubKeyHash.get(pubKeyHash), key, chain, rank));
+                byte[] pubKey = key.getPubKey();
+                byPubKey.put(pubKey, insert(byPubKey.get(pubKey), key, chain, rank));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Entries are never modified, so that they can be walked after the lock is released.
+    private static Entry insert(@Nullable Entry head, ECKey key, KeyChain chain, int rank) {
+        if (head == null || rank < head.rank)
+            return new Entry(key, chain, rank, head);
+        if (head.chain == chain)
+            return head;
+        return new Entry(head.key, head.chain, head.rank, insert(head.next, key, chain, rank));
+    }
+
+    @Nullable
+    private static Entry remove(@Nullable Entry head, KeyChain chain) {
+        if (head == null)
+            return null;
+        if (head.chain == chain)
+            return head.next;
+        return new Entry(head.key, head.chain, head.rank, remove(head.next, chain));
+    }
+
+    /** An open addressing hash table with linear probing, keyed on the contents of byte arrays. */
+    private static class Table {
+        private static final int INITIAL_CAPACITY = 64;
+
+        private byte[][] keys = new byte[INITIAL_CAPACITY][];
+        private Entry[] values = new Entry[INITIAL_CAPACITY];
+        private int size;
+
+        private static int hash(byte[] key) {
+            int h = Arrays.hashCode(key);
+            return h ^ (h >>> 16);
+        }
+
+        @Nullable
+        Entry get(byte[] key) {
+            int mask = keys.length - 1;
+            for (int i = hash(key) & mask; keys[i] != null; i = (i + 1) & mask)
+                if (Arrays.equals(keys[i], key))
+                    return values[i];
+            return null;
+        }
+
+        /** Maps the key to the value, or removes it if the value is null. */
+        void put(byte[] key, @Nullable Entry value) {
+            int mask = keys.length - 1;
+            int i = hash(key) & mask;
+            for (; keys[i] != null; i = (i + 1) & mask) {
+                if (Arrays.equals(keys[i], key)) {
+                    if (value != null)
+                        values[i] = value;
+                    else
+                        delete(i);
+                    return;
+                }
+            }
+            if (value == null)
+                return;
+            keys[i] = key;
+            values[i] = value;
+            if (++size * 2 > keys.length)
+                resize(keys.length * 2);
+        }
+
+        // Closes the gap left by the deleted slot, by moving back later keys of the run that can no longer be
+        // reached from their home slot.
+        private void delete(int i) {
+            int mask = keys.length - 1;
+            int hole = i;
+            for (int j = (i + 1) & mask; keys[j] != null; j = (j + 1) & mask) {
+                int home = hash(keys[j]) & mask;
+                if (((j - home) & mask) >= ((j - hole) & mask)) {
+                    keys[hole] = keys[j];
+                    values[hole] = values[j];
+                    hole = j;
+                }
+            }
+            keys[hole] = null;
+            values[hole] = null;
+            size--;
+        }
+
+        private void resize(int capacity) {
+            byte[][] oldKeys = keys;
+            Entry[] oldValues = values;
+            keys = new byte[capacity][];
+            values = new Entry[capacity];
+            int mask = capacity - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldKeys[j] == null)
+                    continue;
+                int i = hash(oldKeys[j]) & mask;
+                while (keys[i] != null)
+                    i = (i + 1) & mask;
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+
+        void clear() {
+            keys = new byte[INITIAL_CAPACITY][];
+            values = new Entry[INITIAL_CAPACITY];
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>An index of the inputs of the transactions in {@link Wallet#transactions}. It maps every outpoint to the
+ * transactions that spend it, which are more than one for double spends, and every transaction hash to the
+ * transactions that spend any of its outputs. The spent transactions don't need to be in the wallet.</p>
+ *
+ * <p>Pool moves don't change it, as it covers all pools. This class is not thread safe, the wallet guards it with its
+ * lock.</p>
+ */
+class SpendingIndex {
+    // Keyed on copies, as TransactionOutPoint is mutable and the outpoints of the inputs could change under the map.
+    private final Map<Key, Set<Transaction>> spenders = new HashMap<>();
+    private final Map<Sha256Hash, Set<Transaction>> children = new HashMap<>();
+
+    void add(Transaction tx) {
+        if (tx.isCoinBase())
+            return;
+        for (TransactionInput input : tx.getInputs()) {
+            TransactionOutPoint outpoint = input.getOutpoint();
+            add(spenders, new Key(outpoint), tx);
+            add(children, outpoint.getHash(), tx);
+        }
+    }
+
+    void remove(Transaction tx) {
+        if (tx.isCoinBase())
+            return;
+        for (TransactionInput input : tx.getInputs()) {
+            TransactionOutPoint outpoint = input.getOutpoint();
+            remove(spenders, new Key(outpoint), tx);
+            remove(children, outpoint.getHash(), tx);
+        }
+    }
+
+    void clear() {
+        spenders.clear();
+        children.clear();
+    }
+
+    /** Returns the transactions that spend the given outpoint. */
+    Set<Transaction> getSpenders(TransactionOutPoint outpoint) {
+        Set<Transaction> txns = spenders.get(new Key(outpoint));
+        return txns != null ? Collections.unmodifiableSet(txns) : Collections.<Transaction>emptySet();
+    }
+
+    /** Returns the transactions that spend outputs of the transaction with the given hash. */
+    Set<Transaction> getChildren(Sha256Hash txId) {
+        Set<Transaction> txns = children.get(txId);
+        return txns != null ? Collections.unmodifiableSet(txns) : Collections.<Transaction>emptySet();
+    }
+
+    /** The hash and index of an outpoint, which is all that tells apart the outputs being spent. */
+    private static final class Key {
+        private final Sha256Hash hash;
+        private final long index;
+
+        Key(TransactionOutPoint outpoint) {
+            this.hash = outpoint.getHash();
+            this.index = outpoint.getIndex();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key other = (Key) o;
+            return index == other.index && hash.equals(other.hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * hash.hashCode() + (int) index;
+        }
+    }
+
+    private static <K> void add(Map<K, Set<Transaction>> map, K key, Transaction tx) {
+        Set<Transaction> txns = map.get(key);
+        if (txns == null) {
+            // Almost every output is spent by one transaction only.
+            txns = new HashSet<>(2);
+            map.put(key, txns);
+        }
+        txns.add(tx);
+    }
+
+    private static <K> void remove(Map<K, Set<Transaction>> map, K key, Transaction tx) {
+        Set<Transaction> txns = map.get(key);
+        if (txns != null && txns.remove(tx) && txns.isEmpty())
+            map.remove(key);
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>An index of the transactions in {@link Wallet#transactions}, ordered like {@link Transaction#SORT_TX_BY_UPDATE_TIME}
+ * and like {@link Transaction#SORT_TX_BY_HEIGHT}. It returns pages of the wallet history without sorting all of it.</p>
+ *
+ * <p>Entries keep the update time and height their transaction had when it was indexed, so the wallet updates the
+ * entry of a transaction whenever it changes its block appearance, its confidence or its pool, which also covers
+ * update times changed by someone else once the next block arrives. Re-orgs mark the index as stale instead, and it
+ * is rebuilt on the next read. Transactions read for a page are checked against their entry, so if one was changed
+ * by someone else it is moved before the page is returned. This class is not thread safe, the wallet
+ * guards it with its lock.</p>
+ */
+class TransactionHistoryIndex {
+    private final Wallet wallet;
+    private final Map<Sha256Hash, Entry> entries = new HashMap<>();
+    private final TreeSet<Entry> byTime = new TreeSet<>(MOST_RECENT_FIRST);
+    private final TreeSet<Entry> byHeight = new TreeSet<>(HIGHEST_FIRST);
+    private boolean stale = true;
+
+    private static class Entry {
+        final Transaction tx;
+        final Sha256Hash txId;
+        final long updateTime;
+        final int height;
+
+        Entry(Transaction tx) {
+            this.tx = tx;
+            this.txId = tx.getTxId();
+            this.updateTime = tx.getUpdateTime().getTime();
+            this.height = heightOf(tx);
+        }
+
+        boolean isCurrent() {
+            return updateTime == tx.getUpdateTime().getTime() && height == heightOf(tx);
+        }
+    }
+
+    private static int heightOf(Transaction tx) {
+        TransactionConfidence confidence = tx.getConfidence();
+        return confidence.getConfidenceType() == ConfidenceType.BUILDING
+                ? confidence.getAppearedAtChainHeight() : Block.BLOCK_HEIGHT_UNKNOWN;
+    }
+
+    private static final Comparator<Entry> MOST_RECENT_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            int c = Long.compare(b.updateTime, a.updateTime);
+            return c != 0 ? c : a.txId.compareTo(b.txId);
+        }
+    };
+
+    private static final Comparator<Entry> HIGHEST_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            int c = Integer.compare(b.height, a.height);
+            return c != 0 ? c : a.txId.compareTo(b.txId);
+        }
+    };
+
+    TransactionHistoryIndex(Wallet wallet) {
+        this.wallet = wallet;
+    }
+
+    /**
+     * To be called after the transaction was added to {@link Wallet#transactions}, or changed its position. Does
+     * nothing for transactions that aren't in the wallet.
+     */
+    void update(Transaction tx) {
+        if (stale || wallet.transactions.get(tx.getTxId()) != tx)
+            return;
+        Entry entry = entries.get(tx.getTxId());
+        if (entry != null && entry.tx == tx && entry.isCurrent())
+            return;
+        remove(tx);
+        insert(tx);
+    }
+
+    /** To be called after the transaction was removed from {@link Wallet#transactions}. */
+    void remove(Transaction tx) {
+        if (stale)
+            return;
+        Entry entry = entries.get(tx.getTxId());
+        if (entry != null)
+            removeEntry(entry);
+    }
+
+    private void removeEntry(Entry entry) {
+        entries.remove(entry.txId);
+        byTime.remove(entry);
+        byHeight.remove(entry);
+    }
+
+    /** Makes the index rebuild itself from {@link Wallet#transactions} on the next read. */
+    void markStale() {
+        stale = true;
+    }
+
+    private void insert(Transaction tx) {
+        Entry entry = new Entry(tx);
+        entries.put(entry.txId, entry);
+        byTime.add(entry);
+        byHeight.add(entry);
+    }
+
+    private void refresh() {
+        if (!stale)
+            return;
+        entries.clear();
+        byTime.clear();
+        byHeight.clear();
+        for (Transaction tx : wallet.transactions.values())
+            insert(tx);
+        stale = false;
+    }
+
+    /**
+     * Returns up to count transactions, most recent or highest first, that follow the transaction with the given hash,
+     * or start at the first one if it is null. Transactions in the excluded map are skipped.
+     */
+    List<Transaction> page(boolean orderByHeight, @Nullable Sha256Hash after, int count,
+                           @Nullable Map<Sha256Hash, Transaction> excluded) {
+        refresh();
+        TreeSet<Entry> order = orderByHeight ? byHeight : byTime;
+        while (true) {
+            Iterable<Entry> entriesAfter;
+            if (after != null) {
+                Entry cursor = entries.get(after);
+                checkArgument(cursor != null, "Transaction %s is not in the wallet", after);
+                entriesAfter = order.tailSet(cursor, false);
+            } else {
+                entriesAfter = order;
+            }
+            List<Transaction> page = new ArrayList<>(Math.min(count, entries.size()));
+            Entry moved = null;
+            for (Entry entry : entriesAfter) {
+                if (page.size() == count)
+                    break;
+                if (!entry.isCurrent()) {
+                    moved = entry;
+                    break;
+                }
+                if (excluded == null || !excluded.containsKey(entry.txId))
+                    page.add(entry.tx);
+            }
+            if (moved == null)
+                return page;
+            // Changed without the wallet knowing, put it in its place and read the page again.
+            removeEntry(moved);
+            update(moved.tx);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.core.TransactionOutput;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * <p>An index of the outputs in {@link Wallet#myUnspents}, which answers {@link Wallet#getBalance(Wallet.BalanceType)}
+ * and selects coins like the {@link DefaultCoinSelector} does without scanning and sorting all outputs.</p>
+ *
+ * <p>Outputs of transactions that are building and mature are settled: they count towards every balance and can be
+ * selected until a re-org. Settled outputs are kept ordered by value, and by the height of the block they appeared in,
+ * which orders them by depth. All other outputs, usually a few of pending transactions and immature coinbases, are
+ * checked whenever the index is read, because their confidence can change without the wallet being involved. They are
+ * settled once their transaction is building and mature.</p>
+ *
+ * <p>Whether the wallet can sign for an output is cached. New keys can only make more outputs signable, so they just
+ * cause the unsignable outputs to be checked again. Re-orgs and removed keys mark the index as stale instead, and it
+ * is rebuilt on the next read. This class is not thread safe, the wallet guards it with its lock. Only
+ * {@link #markStale()} and {@link #keysAdded()} can be called without holding it.</p>
+ */
+class UnspentOutputIndex {
+    private final Wallet wallet;
+    private final Map<TransactionOutput, Entry> entries = new HashMap<>();
+    private final TreeSet<Entry> settledByValue = new TreeSet<>(LARGEST_VALUE_FIRST);
+    private final TreeSet<Entry> settledByHeight = new TreeSet<>(LOWEST_HEIGHT_FIRST);
+    private final Set<Entry> unsettled = new HashSet<>();
+    private final Set<Entry> unsignable = new HashSet<>();
+    // Running totals of all outputs, and of the settled outputs.
+    private long value, signableValue, settledValue, settledSignableValue;
+    private long nextSequence;
+    private volatile boolean stale = true;
+    private volatile boolean keysAdded;
+
+    private static class Entry {
+        final TransactionOutput output;
+        final long value;
+        final long sequence; // orders entries that are otherwise equal
+        boolean signable;
+        int height; // of the block the transaction of a settled output appeared in
+
+        Entry(TransactionOutput output, long sequence) {
+            this.output = output;
+            this.value = output.getValue().value;
+            this.sequence = sequence;
+        }
+    }
+
+    private static final Comparator<Entry> LARGEST_VALUE_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            int c = Long.compare(b.value, a.value);
+            return c != 0 ? c : Long.compare(a.sequence, b.sequence);
+        }
+    };
+
+    private static final Comparator<Entry> LOWEST_HEIGHT_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            int c = Integer.compare(a.height, b.height);
+            return c != 0 ? c : Long.compare(a.sequence, b.sequence);
+        }
+    };
+
+    UnspentOutputIndex(Wallet wallet) {
+        this.wallet = wallet;
+    }
+
+    /** To be called after the output was added to {@link Wallet#myUnspents}. */
+    void add(TransactionOutput output) {
+        if (!stale)
+            insert(output);
+    }
+
+    /** To be called after the output was removed from {@link Wallet#myUnspents}. */
+    void remove(TransactionOutput output) {
+        if (stale)
+            return;
+        Entry entry = entries.remove(output);
+        if (entry == null)
+            return;
+        value -= entry.value;
+        if (entry.signable)
+            signableValue -= entry.value;
+        else
+            unsignable.remove(entry);
+        if (!unsettled.remove(entry)) {
+            settledValue -= entry.value;
+            if (entry.signable)
+                settledSignableValue -= entry.value;
+            settledByValue.remove(entry);
+            settledByHeight.remove(entry);
+        }
+    }
+
+    /** Makes the index rebuild itself from {@link Wallet#myUnspents} on the next read. */
+    void markStale() {
+        stale = true;
+    }
+
+    /** Makes the index check the outputs it can't sign for again on the next read. */
+    void keysAdded() {
+        keysAdded = true;
+    }
+
+    /** Returns the balance of the given type, see {@link Wallet#getBalance(Wallet.BalanceType)}. */
+    Coin getBalance(Wallet.BalanceType balanceType) {
+        refresh();
+        boolean signable = balanceType == Wallet.BalanceType.AVAILABLE_SPENDABLE
+                || balanceType == Wallet.BalanceType.ESTIMATED_SPENDABLE;
+        if (balanceType == Wallet.BalanceType.ESTIMATED || balanceType == Wallet.BalanceType.ESTIMATED_SPENDABLE)
+            return Coin.valueOf(signable ? signableValue : value);
+        long available = signable ? settledSignableValue : settledValue;
+        for (Entry entry : unsettled)
+            if (isSelectable(entry, signable))
+                available += entry.value;
+        return Coin.valueOf(available);
+    }
+
+    /**
+     * Selects outputs for the given target in the same order as the {@link DefaultCoinSelector} does from
+     * {@link Wallet#calculateAllSpendCandidates(boolean, boolean)} without immature coinbases. Settled outputs are
+     * visited by value and by depth at the same time, and the best visited output is selected as soon as no output
+     * that wasn't visited yet can have a higher value times depth, so only the outputs near the top are looked at.
+     */
+    CoinSelection select(Coin target, boolean excludeUnsignable) {
+        refresh();
+        PriorityQueue<TransactionOutput> visited = new PriorityQueue<>(16, DefaultCoinSelector.HIGHEST_PRIORITY_FIRST);
+        for (Entry entry : unsettled)
+            if (isSelectable(entry, excludeUnsignable))
+                visited.add(entry.output);
+        Set<Entry> seen = new HashSet<>();
+        Iterator<Entry> byValue = settledByValue.iterator(), byHeight = settledByHeight.iterator();
+        List<TransactionOutput> selected = new ArrayList<>();
+        long total = 0;
+        // Both iterators cover the same entries, so they run out at the same time.
+        while (total < target.value) {
+            TransactionOutput best = visited.peek();
+            if (byValue.hasNext()) {
+                Entry largest = byValue.next(), deepest = byHeight.next();
+                // No output that wasn't visited yet has a higher value than the largest, or is deeper than the deepest.
+                BigInteger bound = BigInteger.valueOf(largest.value)
+                        .multiply(BigInteger.valueOf(deepest.output.getParentTransactionDepthInBlocks()));
+                if (seen.add(largest) && (!excludeUnsignable || largest.signable))
+                    visited.add(largest.output);
+                if (seen.add(deepest) && (!excludeUnsignable || deepest.signable))
+                    visited.add(deepest.output);
+                if (best == null || DefaultCoinSelector.coinDepth(best).compareTo(bound) <= 0)
+                    continue;
+            } else if (best == null) {
+                break;
+            }
+            visited.remove();
+            selected.add(best);
+            total += best.getValue().value;
+        }
+        return new CoinSelection(Coin.valueOf(total), selected);
+    }
+
+    private void insert(TransactionOutput output) {
+        Entry entry = new Entry(output, nextSequence++);
+        entry.signable = wallet.canSignFor(output.getScriptPubKey());
+        entries.put(output, entry);
+        value += entry.value;
+        if (entry.signable)
+            signableValue += entry.value;
+        else
+            unsignable.add(entry);
+        if (!settle(entry))
+            unsettled.add(entry);
+    }
+
+    /** Settles the entry if its transaction is building and mature, and returns whether it did. */
+    private boolean settle(Entry entry) {
+        Transaction tx = entry.output.getParentTransaction();
+        TransactionConfidence confidence = tx.getConfidence();
+        if (confidence.getConfidenceType() != ConfidenceType.BUILDING || !tx.isMature())
+            return false;
+        entry.height = confidence.getAppearedAtChainHeight();
+        if (entry.height < 0)
+            return false; // can't be ordered by depth
+        settledValue += entry.value;
+        if (entry.signable)
+            settledSignableValue += entry.value;
+        settledByValue.add(entry);
+        settledByHeight.add(entry);
+        return true;
+    }
+
+    /** Returns whether the unsettled entry would be selected by the {@link DefaultCoinSelector}. */
+    private static boolean isSelectable(Entry entry, boolean signableOnly) {
+        Transaction tx = entry.output.getParentTransaction();
+        return (entry.signable || !signableOnly) && tx.isMature() && DefaultCoinSelector.isSelectable(tx);
+    }
+
+    /** Rebuilds a stale index, and brings the unsignable and unsettled entries up to date. */
+    private void refresh() {
+        if (stale) {
+            // Cleared before reading the outputs and keys, in case they change meanwhile.
+            stale = false;
+            keysAdded = false;
+            entries.clear();
+            settledByValue.clear();
+            settledByHeight.clear();
+            unsettled.clear();
+            unsignable.clear();
+            value = signableValue = settledValue = settledSignableValue = 0;
+            for (TransactionOutput output : wallet.myUnspents)
+                insert(output);
+            return;
+        }
+        if (keysAdded) {
+            keysAdded = false;
+            for (Iterator<Entry> i = unsignable.iterator(); i.hasNext();) {
+                Entry entry = i.next();
+                if (wallet.canSignFor(entry.output.getScriptPubKey())) {
+                    i.remove();
+                    entry.signable = true;
+                    signableValue += entry.value;
+                    if (!unsettled.contains(entry))
+                        settledSignableValue += entry.value;
+                }
+            }
+        }
+        for (Iterator<Entry> i = unsettled.iterator(); i.hasNext();)
+            if (settle(i.next()))
+                i.remove();
+    }
+}
@@ -124,6 +124,9 @@ import static com.google.common.base.Preconditions.*;
 public class Wallet extends BaseTaggableObject
     implements NewBestBlockListener, TransactionReceivedInBlockListener, PeerFilterProvider, KeyBag, TransactionBag, ReorganizeListener {
     private static final Logger log = LoggerFactory.getLogger(Wallet.class);
+    // Whether the balances and coin selections of the unspent output index are checked against calculating them from
+    // scratch, which is slow. Enabled along with assertions.
+    private static final boolean CHECK_UNSPENT_INDEX = Wallet.class.desiredAssertionStatus();
     private static final int MINIMUM_BLOOM_DATA_LENGTH = 8;
 
     // Ordering: lock > keyChainGroupLock. KeyChainGroup is protected separately to allow fast querying of current receive address
@@ -159,9 +162,18 @@ public class Wallet extends BaseTaggableObject
     protected final Map<Sha256Hash, Transaction> transactions;
 
     // All the TransactionOutput objects that we could spend (ignoring whether we have the private key or not).
-    // Used to speed up various calculations.
+    // Used to speed up various calculations. Use addUnspent() and removeUnspent() to change it.
     protected final HashSet<TransactionOutput> myUnspents = Sets.newHashSet();
 
+    // Keeps running balances of myUnspents and orders them for coin selection.
+    @GuardedBy("lock") private final UnspentOutputIndex unspentIndex = new UnspentOutputIndex(this);
+
+    // Finds the transactions spending an outpoint or the outputs of a transaction. Covers all of transactions.
+    @GuardedBy("lock") private final SpendingIndex spendingIndex = new SpendingIndex();
+
+    // Orders transactions by update time and by height, for paging through the history.
+    @GuardedBy("lock") private final TransactionHistoryIndex historyIndex = new TransactionHistoryIndex(this);
+
     // Transactions that were dropped by the risk analysis system. These are not in any pools and not serialized
     // to disk. We have to keep them around because if we ignore a tx because we think it will never confirm, but
     // then it actually does confirm and does so within the same network session, remote peers will not resend us
@@ -460,6 +472,13 @@ public class Wallet extends BaseTaggableObject
         this.context = checkNotNull(context);
         this.params = checkNotNull(context.getParams());
         this.keyChainGroup = checkNotNull(keyChainGroup);
+        // New keys can make outputs we are watching spendable.
+        keyChainGroup.addEventListener(new KeyChainEventListener() {
+            @Override
+            public void onKeysAdded(List<ECKey> keys) {
+                unspentIndex.keysAdded();
+            }
+        }, Threading.SAME_THREAD);
         watchedScripts = Sets.newHashSet();
         unspent = new HashMap<>();
         spent = new HashMap<>();
@@ -803,7 +822,11 @@ public class Wallet extends BaseTaggableObject
     public boolean removeKey(ECKey key) {
         keyChainGroupLock.lock();
         try {
-            return keyChainGroup.removeImportedKey(key);
+            boolean removed = keyChainGroup.removeImportedKey(key);
+            // The outputs of the key can no longer be signed for, so the spendable balances have to be recalculated.
+            if (removed)
+                unspentIndex.markStale();
+            return removed;
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -1494,6 +1517,26 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /** Returns a hash that changes when keys are added or key chains change, see {@link WalletJournal}. */
+    long getKeyChainGroupFingerprint() {
+        keyChainGroupLock.lock();
+        try {
+            return WalletJournal.fingerprint(keyChainGroup);
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+    }
+
+    /** Returns the number of issued keys of the deterministic key chains, see {@link WalletJournal}. */
+    int[] getIssuedKeyCounts() {
+        keyChainGroupLock.lock();
+        try {
+            return WalletJournal.issuedKeyCounts(keyChainGroup);
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+    }
+
     /** Saves the wallet first to the given temp file, then renames to the dest file. */
     public void saveToFile(File temp, File destFile) throws IOException {
         FileOutputStream stream = null;
@@ -1706,10 +1749,15 @@ public class Wallet extends BaseTaggableObject
      * <p>Returns a wallet deserialized from the given file. Extensions previously saved with the wallet can be
      * deserialized by calling @{@link WalletExtension#deserializeWalletExtension(Wallet, byte[])}}</p>
      *
+     * <p>If the wallet was auto-saved with a journal, see {@link WalletFiles#setJournalEnabled(boolean)}, the changes
+     * in the journal are applied.</p>
+     *
      * @param file the wallet file to read
      * @param walletExtensions extensions possibly added to the wallet.
      */
     public static Wallet loadFromFile(File file, @Nullable WalletExtension... walletExtensions) throws UnreadableWalletException {
+        if (WalletJournal.fileFor(file).exists())
+            return loadFromFileWithJournal(file, walletExtensions);
         try {
             FileInputStream stream = null;
             try {
@@ -1723,6 +1771,25 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    private static Wallet loadFromFileWithJournal(File file, @Nullable WalletExtension... walletExtensions)
+            throws UnreadableWalletException {
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        Protos.Wallet walletProto;
+        try {
+            walletProto = WalletJournal.readWallet(file, serializer.getKeyChainFactory());
+        } catch (IOException e) {
+            throw new UnreadableWalletException("Could not open file", e);
+        }
+        NetworkParameters params = NetworkParameters.fromID(walletProto.getNetworkIdentifier());
+        if (params == null)
+            throw new UnreadableWalletException("Unknown network parameters ID " + walletProto.getNetworkIdentifier());
+        Wallet wallet = serializer.readWallet(params, walletExtensions, walletProto);
+        if (!wallet.isConsistent()) {
+            log.error("Loaded an inconsistent wallet");
+        }
+        return wallet;
+    }
+
     /**
      * Returns if this wallet is structurally consistent, so e.g. no duplicate transactions. First inconsistency and a
      * dump of the wallet will be logged.
@@ -1777,6 +1844,16 @@ public class Wallet extends BaseTaggableObject
                     throw new IllegalStateException("Inconsistent spent tx: " + tx.getTxId());
                 }
             }
+
+            // Checking the running balances takes as long as not having them, so only do it when debugging.
+            if (CHECK_UNSPENT_INDEX) {
+                for (BalanceType type : BalanceType.values()) {
+                    Coin running = getBalance(type), calculated = calculateBalance(type);
+                    if (!running.equals(calculated))
+                        throw new IllegalStateException("Inconsistent " + type + " balance: " + running.toFriendlyString()
+                                + " instead of " + calculated.toFriendlyString());
+                }
+            }
         } finally {
             lock.unlock();
         }
@@ -2015,24 +2092,14 @@ public class Wallet extends BaseTaggableObject
     private Set<Transaction> findDoubleSpendsAgainst(Transaction tx, Map<Sha256Hash, Transaction> candidates) {
         checkState(lock.isHeldByCurrentThread());
         if (tx.isCoinBase()) return Sets.newHashSet();
-        // Compile a set of outpoints that are spent by tx.
-        HashSet<TransactionOutPoint> outpoints = new HashSet<>();
-        for (TransactionInput input : tx.getInputs()) {
-            outpoints.add(input.getOutpoint());
-        }
-        // Now for each pending transaction, see if it shares any outpoints with this tx.
+        // Look up the wallet transactions that spend any of the outpoints of tx. If one of them is a candidate, it's a
+        // double spend against the candidates, which makes it relevant.
         Set<Transaction> doubleSpendTxns = Sets.newHashSet();
-        for (Transaction p : candidates.values()) {
-            if (p.equals(tx))
-                continue;
-            for (TransactionInput input : p.getInputs()) {
-                // This relies on the fact that TransactionOutPoint equality is defined at the protocol not object
-                // level - outpoints from two different inputs that point to the same output compare the same.
-                TransactionOutPoint outpoint = input.getOutpoint();
-                if (outpoints.contains(outpoint)) {
-                    // It does, it's a double spend against the candidates, which makes it relevant.
+        for (TransactionInput input : tx.getInputs()) {
+            for (Transaction spender : spendingIndex.getSpenders(input.getOutpoint())) {
+                Transaction p = candidates.get(spender.getTxId());
+                if (p != null && !p.equals(tx))
                     doubleSpendTxns.add(p);
-                }
             }
         }
         return doubleSpendTxns;
@@ -2043,23 +2110,25 @@ public class Wallet extends BaseTaggableObject
      * and all txns spending the outputs of those txns, recursively.
      */
     void addTransactionsDependingOn(Set<Transaction> txSet, Set<Transaction> txPool) {
-        Map<Sha256Hash, Transaction> txQueue = new LinkedHashMap<>();
-        for (Transaction tx : txSet) {
-            txQueue.put(tx.getTxId(), tx);
-        }
-        while(!txQueue.isEmpty()) {
-            Transaction tx = txQueue.remove(txQueue.keySet().iterator().next());
-            for (Transaction anotherTx : txPool) {
-                if (anotherTx.equals(tx)) continue;
-                for (TransactionInput input : anotherTx.getInputs()) {
-                    if (input.getOutpoint().getHash().equals(tx.getTxId())) {
-                        if (txQueue.get(anotherTx.getTxId()) == null) {
-                            txQueue.put(anotherTx.getTxId(), anotherTx);
-                            txSet.add(anotherTx);
-                        }
+        lock.lock();
+        try {
+            Map<Sha256Hash, Transaction> txQueue = new LinkedHashMap<>();
+            for (Transaction tx : txSet) {
+                txQueue.put(tx.getTxId(), tx);
+            }
+            while(!txQueue.isEmpty()) {
+                Transaction tx = txQueue.remove(txQueue.keySet().iterator().next());
+                // Only wallet transactions are indexed, which is where the pool comes from.
+                for (Transaction anotherTx : spendingIndex.getChildren(tx.getTxId())) {
+                    if (anotherTx.equals(tx) || !txPool.contains(anotherTx)) continue;
+                    if (txQueue.get(anotherTx.getTxId()) == null) {
+                        txQueue.put(anotherTx.getTxId(), anotherTx);
+                        txSet.add(anotherTx);
                     }
                 }
             }
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -2144,7 +2213,7 @@ public class Wallet extends BaseTaggableObject
                 for (TransactionOutput output : tx.getOutputs()) {
                     final TransactionInput spentBy = output.getSpentBy();
                     if (spentBy != null) {
-                        checkState(myUnspents.add(output));
+                        checkState(addUnspent(output));
                         spentBy.disconnect();
                     }
                 }
@@ -2175,6 +2244,7 @@ public class Wallet extends BaseTaggableObject
             // Mark the tx as appearing in this block so we can find it later after a re-org. This also tells the tx
             // confidence object about the block and sets its depth appropriately.
             tx.setBlockAppearance(block, bestChain, relativityOffset);
+            historyIndex.update(tx);
             if (bestChain) {
                 // Don't notify this tx of work done in notifyNewBestBlock which will be called immediately after
                 // this method has been called by BlockChain for all relevant transactions. Otherwise we'd double
@@ -2217,7 +2287,7 @@ public class Wallet extends BaseTaggableObject
         //    own spends. If users want to know when a broadcast tx becomes confirmed, they need to use tx confidence
         //    listeners.
         if (!insideReorg && bestChain) {
-            Coin newBalance = getBalance();  // This is slow.
+            Coin newBalance = getBalance();
             log.info("Balance is now: " + newBalance.toFriendlyString());
             if (!wasPending) {
                 int diff = valueDifference.signum();
@@ -2291,6 +2361,8 @@ public class Wallet extends BaseTaggableObject
             return;
         for (Map.Entry<Transaction, TransactionConfidence.Listener.ChangeReason> entry : confidenceChanged.entrySet()) {
             final Transaction tx = entry.getKey();
+            // A change of the confidence type can change the height the transaction is ordered by.
+            historyIndex.update(tx);
             tx.getConfidence().queueListeners(entry.getValue());
             queueOnTransactionConfidenceChanged(tx);
         }
@@ -2496,7 +2568,7 @@ public class Wallet extends BaseTaggableObject
                 maybeMovePool(connected, "prevtx");
                 // Just because it's connected doesn't mean it's actually ours: sometimes we have total visibility.
                 if (output.isMineOrWatched(this)) {
-                    checkState(myUnspents.remove(output));
+                    checkState(removeUnspent(output));
                 }
             }
         }
@@ -2519,7 +2591,7 @@ public class Wallet extends BaseTaggableObject
                             pendingTx.getTxId(), pendingTx.getInputs().indexOf(input));
                     // The unspents map might not have it if we never saw this tx until it was included in the chain
                     // and thus becomes spent the moment we become aware of it.
-                    if (myUnspents.remove(input.getConnectedOutput()))
+                    if (removeUnspent(input.getConnectedOutput()))
                         log.info("Removed from UNSPENTS: {}", input.getConnectedOutput());
                 }
             }
@@ -2549,7 +2621,7 @@ public class Wallet extends BaseTaggableObject
                 Transaction connected = deadInput.getConnectedTransaction();
                 if (connected == null) continue;
                 if (connected.getConfidence().getConfidenceType() != ConfidenceType.DEAD && deadInput.getConnectedOutput().getSpentBy() != null && deadInput.getConnectedOutput().getSpentBy().equals(deadInput)) {
-                    checkState(myUnspents.add(deadInput.getConnectedOutput()));
+                    checkState(addUnspent(deadInput.getConnectedOutput()));
                     log.info("Added to UNSPENTS: {} in {}", deadInput.getConnectedOutput(), deadInput.getConnectedOutput().getParentTransaction().getTxId());
                 }
                 deadInput.disconnect();
@@ -2559,7 +2631,7 @@ public class Wallet extends BaseTaggableObject
             confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
             // Now kill any transactions we have that depended on this one.
             for (TransactionOutput deadOutput : tx.getOutputs()) {
-                if (myUnspents.remove(deadOutput))
+                if (removeUnspent(deadOutput))
                     log.info("XX Removed from UNSPENTS: {}", deadOutput);
                 TransactionInput connected = deadOutput.getSpentBy();
                 if (connected == null) continue;
@@ -2575,13 +2647,13 @@ public class Wallet extends BaseTaggableObject
             TransactionInput.ConnectionResult result = input.connect(unspent, TransactionInput.ConnectMode.DISCONNECT_ON_CONFLICT);
             if (result == TransactionInput.ConnectionResult.SUCCESS) {
                 maybeMovePool(input.getConnectedTransaction(), "kill");
-                myUnspents.remove(input.getConnectedOutput());
+                removeUnspent(input.getConnectedOutput());
                 log.info("Removing from UNSPENTS: {}", input.getConnectedOutput());
             } else {
                 result = input.connect(spent, TransactionInput.ConnectMode.DISCONNECT_ON_CONFLICT);
                 if (result == TransactionInput.ConnectionResult.SUCCESS) {
                     maybeMovePool(input.getConnectedTransaction(), "kill");
-                    myUnspents.remove(input.getConnectedOutput());
+                    removeUnspent(input.getConnectedOutput());
                     log.info("Removing from UNSPENTS: {}", input.getConnectedOutput());
                 }
             }
@@ -3069,7 +3141,13 @@ public class Wallet extends BaseTaggableObject
      */
     private void addWalletTransaction(Pool pool, Transaction tx) {
         checkState(lock.isHeldByCurrentThread());
-        transactions.put(tx.getTxId(), tx);
+        Transaction replaced = transactions.put(tx.getTxId(), tx);
+        if (replaced != tx) {
+            if (replaced != null)
+                spendingIndex.remove(replaced);
+            spendingIndex.add(tx);
+        }
+        historyIndex.update(tx);
         switch (pool) {
         case UNSPENT:
             checkState(unspent.put(tx.getTxId(), tx) == null);
@@ -3089,7 +3167,7 @@ public class Wallet extends BaseTaggableObject
         if (pool == Pool.UNSPENT || pool == Pool.PENDING) {
             for (TransactionOutput output : tx.getOutputs()) {
                 if (output.isAvailableForSpending() && output.isMineOrWatched(this))
-                    myUnspents.add(output);
+                    addUnspent(output);
             }
         }
         // This is safe even if the listener has been added before, as TransactionConfidence ignores duplicate
@@ -3107,28 +3185,60 @@ public class Wallet extends BaseTaggableObject
     /**
      * <p>Returns an list of N transactions, ordered by increasing age. Transactions on side chains are not included.
      * Dead transactions (overridden by double spends) are optionally included.</p>
-     * <p>Note: the current implementation is O(num transactions in wallet). Regardless of how many transactions are
-     * requested, the cost is always the same. In future, requesting smaller numbers of transactions may be faster
-     * depending on how the wallet is implemented (eg if backed by a database).</p>
+     * <p>The wallet keeps its transactions ordered, so the cost grows with the number of transactions requested, not
+     * with the size of the wallet. See {@link #getRecentTransactions(Sha256Hash, int, boolean)} to page through
+     * them.</p>
      */
     public List<Transaction> getRecentTransactions(int numTransactions, boolean includeDead) {
         lock.lock();
         try {
             checkArgument(numTransactions >= 0);
-            // Firstly, put all transactions into an array.
             int size = unspent.size() + spent.size() + pending.size();
             if (numTransactions > size || numTransactions == 0) {
                 numTransactions = size;
             }
-            ArrayList<Transaction> all = new ArrayList<>(getTransactions(includeDead));
-            // Order by update time.
-            Collections.sort(all, Transaction.SORT_TX_BY_UPDATE_TIME);
-            if (numTransactions == all.size()) {
-                return all;
-            } else {
-                all.subList(numTransactions, all.size()).clear();
-                return all;
-            }
+            return historyIndex.page(false, null, numTransactions, includeDead ? null : dead);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * <p>Returns a page of at most count transactions, ordered by increasing age like
+     * {@link #getRecentTransactions(int, boolean)}. The page starts after the transaction with the given hash, or at
+     * the most recent transaction if it is null. To get the next page, pass the hash of the last transaction of this
+     * one.</p>
+     *
+     * <p>The cost grows with the size of the page, not with the size of the wallet. Transactions that get updated
+     * between two calls move in the order, so they can be missed or returned twice. An update time set directly with
+     * {@link Transaction#setUpdateTime(Date)} moves the transaction the next time the wallet updates it, for example
+     * when a new block arrives.</p>
+     *
+     * @throws IllegalArgumentException if there is no transaction with the given hash in the wallet.
+     */
+    public List<Transaction> getRecentTransactions(@Nullable Sha256Hash after, int count, boolean includeDead) {
+        lock.lock();
+        try {
+            checkArgument(count >= 0);
+            return historyIndex.page(false, after, count, includeDead ? null : dead);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * <p>Returns a page of at most count transactions, ordered by the height of the block they appeared in like
+     * {@link Transaction#SORT_TX_BY_HEIGHT}, highest first and then the ones that aren't in the best chain. The page
+     * starts after the transaction with the given hash, or at the first transaction if it is null. To get the next
+     * page, pass the hash of the last transaction of this one.</p>
+     *
+     * @throws IllegalArgumentException if there is no transaction with the given hash in the wallet.
+     */
+    public List<Transaction> getTransactionsByHeight(@Nullable Sha256Hash after, int count, boolean includeDead) {
+        lock.lock();
+        try {
+            checkArgument(count >= 0);
+            return historyIndex.page(true, after, count, includeDead ? null : dead);
         } finally {
             lock.unlock();
         }
@@ -3212,7 +3322,10 @@ public class Wallet extends BaseTaggableObject
         pending.clear();
         dead.clear();
         transactions.clear();
+        spendingIndex.clear();
+        historyIndex.markStale();
         myUnspents.clear();
+        unspentIndex.markStale();
     }
 
     /**
@@ -3263,14 +3376,16 @@ public class Wallet extends BaseTaggableObject
                             TransactionOutput output = input.getConnectedOutput();
                             if (output == null) continue;
                             if (output.isMineOrWatched(this))
-                                checkState(myUnspents.add(output));
+                                checkState(addUnspent(output));
                             input.disconnect();
                         }
                         for (TransactionOutput output : tx.getOutputs())
-                            myUnspents.remove(output);
+                            removeUnspent(output);
 
                         i.remove();
                         transactions.remove(tx.getTxId());
+                        spendingIndex.remove(tx);
+                        historyIndex.remove(tx);
                         dirty = true;
                         log.info("Removed transaction {} from pending pool during cleanup.", tx.getTxId());
                     } else {
@@ -3703,9 +3818,25 @@ public class Wallet extends BaseTaggableObject
     }
 
     /**
-     * Returns the balance of this wallet as calculated by the provided balanceType.
+     * Returns the balance of this wallet as calculated by the provided balanceType. Unless a {@link UTXOProvider} or
+     * a custom {@link CoinSelector} is used, this takes constant time for all but pending transactions and immature
+     * coinbases.
      */
     public Coin getBalance(BalanceType balanceType) {
+        lock.lock();
+        try {
+            if (vUTXOProvider != null || insideReorg
+                    || (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE)
+                            && coinSelector.getClass() != DefaultCoinSelector.class)
+                return calculateBalance(balanceType);
+            return unspentIndex.getBalance(balanceType);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Calculates the balance from scratch, see {@link #getBalance(BalanceType)}. */
+    private Coin calculateBalance(BalanceType balanceType) {
         lock.lock();
         try {
             if (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE) {
@@ -3725,6 +3856,22 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /** Adds the output to myUnspents and the index. Returns false if it was already there. */
+    private boolean addUnspent(TransactionOutput output) {
+        if (!myUnspents.add(output))
+            return false;
+        unspentIndex.add(output);
+        return true;
+    }
+
+    /** Removes the output from myUnspents and the index. Returns false if it wasn't there. */
+    private boolean removeUnspent(TransactionOutput output) {
+        if (!myUnspents.remove(output))
+            return false;
+        unspentIndex.remove(output);
+        return true;
+    }
+
     /**
      * Returns the balance that would be considered spendable by the given coin selector, including watched outputs
      * (i.e. balance includes outputs we don't have the private keys for). Just asks it to select as many coins as
@@ -4199,8 +4346,12 @@ public class Wallet extends BaseTaggableObject
             // Calculate a list of ALL potential candidates for spending and then ask a coin selector to provide us
             // with the actual outputs that'll be used to gather the required amount of value. In this way, users
             // can customize coin selection policies. The call below will ignore immature coinbases and outputs
-            // we don't have the keys for.
-            List<TransactionOutput> candidates = calculateAllSpendCandidates(true, req.missingSigsMode == MissingSigsMode.THROW);
+            // we don't have the keys for. The default coin selector is instead run on the index of our outputs,
+            // which doesn't need to list them all.
+            CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
+            List<TransactionOutput> candidates = null;
+            if (req.emptyWallet || vUTXOProvider != null || selector.getClass() != DefaultCoinSelector.class)
+                candidates = calculateAllSpendCandidates(true, req.missingSigsMode == MissingSigsMode.THROW);
 
             CoinSelection bestCoinSelection;
             TransactionOutput bestChangeOutput = null;
@@ -4215,7 +4366,6 @@ public class Wallet extends BaseTaggableObject
                 // We're being asked to empty the wallet. What this means is ensuring "tx" has only a single output
                 // of the total value we can currently spend as determined by the selector, and then subtracting the fee.
                 checkState(req.tx.getOutputs().size() == 1, "Empty wallet TX must have a single output only.");
-                CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
                 bestCoinSelection = selector.select(params.getMaxMoney(), candidates);
                 candidates = null;  // Selector took ownership and might have changed candidates. Don't access again.
                 req.tx.getOutput(0).setValue(bestCoinSelection.valueGathered);
@@ -4651,6 +4801,8 @@ public class Wallet extends BaseTaggableObject
             checkState(confidenceChanged.size() == 0);
             checkState(!insideReorg);
             insideReorg = true;
+            unspentIndex.markStale();
+            historyIndex.markStale();
             checkState(onWalletChangedSuppressions == 0);
             onWalletChangedSuppressions++;
 
@@ -4701,7 +4853,7 @@ public class Wallet extends BaseTaggableObject
                             TransactionInput input = output.getSpentBy();
                             if (input != null) {
                                 if (output.isMineOrWatched(this))
-                                    checkState(myUnspents.add(output));
+                                    checkState(addUnspent(output));
                                 input.disconnect();
                             }
                         }
@@ -5071,8 +5223,9 @@ public class Wallet extends BaseTaggableObject
 
     //region Fee calculation code
 
+    // Candidates are null to select from the unspent output index.
     private FeeCalculation calculateFee(SendRequest req, Coin value, List<TransactionInput> originalInputs,
-                                       boolean needAtLeastReferenceFee, List<TransactionOutput> candidates) throws InsufficientMoneyException {
+                                       boolean needAtLeastReferenceFee, @Nullable List<TransactionOutput> candidates) throws InsufficientMoneyException {
         checkState(lock.isHeldByCurrentThread());
         FeeCalculation result;
         Coin fee = Coin.ZERO;
@@ -5106,9 +5259,22 @@ public class Wallet extends BaseTaggableObject
                 }
                 tx.addOutput(output);
             }
-            CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
-            // selector is allowed to modify candidates list.
-            CoinSelection selection = selector.select(valueNeeded, new LinkedList<>(candidates));
+            CoinSelection selection;
+            if (candidates != null) {
+                CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
+                // selector is allowed to modify candidates list.
+                selection = selector.select(valueNeeded, new LinkedList<>(candidates));
+            } else {
+                selection = unspentIndex.select(valueNeeded, req.missingSigsMode == MissingSigsMode.THROW);
+                if (CHECK_UNSPENT_INDEX) {
+                    // Outputs that are equal for the selector can be selected in any order.
+                    CoinSelection calculated = new DefaultCoinSelector().select(valueNeeded, calculateAllSpendCandidates(true,
+                            req.missingSigsMode == MissingSigsMode.THROW));
+                    checkState(selection.valueGathered.equals(calculated.valueGathered)
+                            && selection.gathered.size() == calculated.gathered.size(),
+                            "Inconsistent coin selection: %s instead of %s", selection.gathered, calculated.gathered);
+                }
+            }
             result.bestCoinSelection = selection;
             // Can we afford this?
             if (selection.valueGathered.compareTo(valueNeeded) < 0) {
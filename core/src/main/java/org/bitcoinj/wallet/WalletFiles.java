@@ -49,6 +49,7 @@ public class WalletFiles {
     private final Callable<Void> saver;
 
     private volatile Listener vListener;
+    private volatile WalletJournal vJournal;
 
     /**
      * Implementors can do pre/post treatment of the wallet file. Useful for adjusting permissions and other things.
@@ -114,6 +115,17 @@ public class WalletFiles {
         this.vListener = checkNotNull(listener);
     }
 
+    /**
+     * Enables or disables journaling. With a journal, saves append the transactions that changed since the previous
+     * save to a file next to the wallet file, instead of rewriting the whole wallet. The first save after enabling
+     * the journal, and every save after the journal grew to half the size of the wallet file, write the whole wallet
+     * and start a new journal. The listener is only called for those. {@link Wallet#loadFromFile(File,
+     * WalletExtension...)} applies the journal when loading the wallet, see {@link WalletJournal}.
+     */
+    public void setJournalEnabled(boolean enabled) {
+        this.vJournal = enabled ? new WalletJournal(file) : null;
+    }
+
     /** Actually write the wallet file to disk, using an atomic rename when possible. Runs on the current thread. */
     public void saveNow() throws IOException {
         // Can be called by any thread. However the wallet is locked whilst saving, so we can have two saves in flight
@@ -129,12 +141,21 @@ public class WalletFiles {
 
     private void saveNowInternal() throws IOException {
         final Stopwatch watch = Stopwatch.createStarted();
+        final WalletJournal journal = vJournal;
+        if (journal != null && journal.append(wallet)) {
+            watch.stop();
+            log.info("Save to journal completed in {}", watch);
+            return;
+        }
         File directory = file.getAbsoluteFile().getParentFile();
         File temp = File.createTempFile("wallet", null, directory);
         final Listener listener = vListener;
         if (listener != null)
             listener.onBeforeAutoSave(temp);
-        wallet.saveToFile(temp, file);
+        if (journal != null)
+            journal.compact(wallet, temp);
+        else
+            wallet.saveToFile(temp, file);
         if (listener != null)
             listener.onAfterAutoSave(file);
         watch.stop();
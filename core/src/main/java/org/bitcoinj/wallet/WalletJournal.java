@@ -0,0 +1,517 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.crypto.KeyCrypterScrypt;
+import org.bitcoinj.utils.ExchangeRate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * <p>An append-only journal of the changes to a wallet since it was last saved in full. Rewriting the whole wallet
+ * file on every change gets expensive for wallets with many transactions, so {@link WalletFiles} can instead append
+ * the transactions that changed since its previous save to a journal file next to the wallet file. From time to time
+ * the wallet is saved in full again, which starts a new, empty journal. See {@link WalletFiles#setJournalEnabled(boolean)}.
+ * </p>
+ *
+ * <p>Each save appends one record to the journal. A record is a {@link Protos.Wallet} with all the fields of the wallet
+ * except the transactions and keys, plus the transactions that were added or changed since the previous save. If keys
+ * were only issued, the record holds the number of issued keys of each key chain, and the keys are derived again when
+ * reading the journal. Only other changes to the key chains, like importing keys, make the record hold all keys. Changes are found by comparing a fingerprint of each transaction with the one
+ * taken at the previous save, so nothing needs to be serialized for transactions that didn't change. The depth of a
+ * transaction in the chain grows with every block, so it is fingerprinted relative to the height of the last block
+ * seen and adjusted again when reading the journal. Records are checksummed, so a record that was cut short by a crash
+ * is ignored together with everything after it.</p>
+ *
+ * <p>The journal starts with the hash of the wallet file it applies to, so that a journal is ignored once the wallet
+ * file was replaced, for example by {@link Wallet#saveToFile(File)}. Use {@link #readWallet(File)} to read a wallet
+ * file together with its journal.</p>
+ */
+public class WalletJournal {
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    // File format:
+    //   4 bytes magic = "WJNL"
+    //   4 bytes version
+    //   32 bytes SHA-256 of the wallet file the journal applies to
+    //
+    // For each record:
+    //   4 bytes length of the payload
+    //   4 bytes CRC-32 of the payload
+    //   payload:
+    //     1 byte flags
+    //     if FLAG_ISSUED_KEYS is set, 4 bytes number of counts, then 4 bytes for each count
+    //     the wallet
+    private static final int MAGIC = 0x574a4e4c;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 4 + 4 + Sha256Hash.LENGTH;
+    // The wallet in the record contains all keys.
+    private static final int FLAG_KEYS = 1;
+    // The record contains the number of issued external and internal keys of each deterministic key chain.
+    private static final int FLAG_ISSUED_KEYS = 2;
+
+    /** The journal is compacted into the wallet file once it gets larger than this fraction of the wallet file. */
+    static final double DEFAULT_COMPACTION_RATIO = 0.5;
+
+    private final File walletFile;
+    private final File journalFile;
+    private final double compactionRatio;
+
+    // The wallet file and journal as of the previous save, or -1 if they haven't been written yet.
+    private long walletFileLength = -1;
+    private long walletFileLastModified;
+    private long journalLength;
+
+    // Fingerprints of the transactions and keys, and the issued key counts, as of the previous save.
+    private final Map<Sha256Hash, Long> fingerprints = new HashMap<>();
+    private long keysFingerprint;
+    private int[] issuedKeys;
+
+    WalletJournal(File walletFile) {
+        this(walletFile, DEFAULT_COMPACTION_RATIO);
+    }
+
+    WalletJournal(File walletFile, double compactionRatio) {
+        this.walletFile = walletFile;
+        this.journalFile = fileFor(walletFile);
+        this.compactionRatio = compactionRatio;
+    }
+
+    /** Returns the file the journal for the given wallet file is kept in. */
+    public static File fileFor(File walletFile) {
+        return new File(walletFile.getPath() + ".journal");
+    }
+
+    /**
+     * Appends the changes of the given wallet since the previous save to the journal. Returns false if the wallet
+     * should be saved in full with {@link #compact(Wallet, File)} instead, because there is no journal for the current
+     * wallet file yet, the journal is getting too large or transactions were removed from the wallet.
+     */
+    boolean append(Wallet wallet) throws IOException {
+        wallet.lock.lock();
+        try {
+            if (walletFileLength == -1 || walletFile.length() != walletFileLength
+                    || walletFile.lastModified() != walletFileLastModified)
+                return false; // no journal yet, or the wallet file was replaced since
+            int height = wallet.getLastBlockSeenHeight();
+            Protos.Wallet.Builder record = new WalletProtobufSerializer().walletStateToProto(wallet);
+            Map<Sha256Hash, Long> changed = new HashMap<>();
+            int count = 0;
+            for (WalletTransaction wtx : wallet.getWalletTransactions()) {
+                count++;
+                Transaction tx = wtx.getTransaction();
+                long fingerprint = fingerprint(wtx, height);
+                Long previous = fingerprints.get(tx.getTxId());
+                if (previous == null || previous != fingerprint) {
+                    record.addTransaction(WalletProtobufSerializer.makeTxProto(wtx));
+                    changed.put(tx.getTxId(), fingerprint);
+                }
+            }
+            int added = 0;
+            for (Sha256Hash hash : changed.keySet())
+                if (!fingerprints.containsKey(hash))
+                    added++;
+            if (fingerprints.size() + added != count)
+                return false; // transactions were removed, which records can't express
+            long keys = wallet.getKeyChainGroupFingerprint();
+            int[] issued = wallet.getIssuedKeyCounts();
+            int flags = 0;
+            if (keys != keysFingerprint) {
+                record.addAllKey(wallet.serializeKeyChainGroupToProtobuf());
+                flags |= FLAG_KEYS;
+            } else if (!Arrays.equals(issued, issuedKeys)) {
+                // Only keys were issued, which is repeated when reading the journal instead of storing all keys.
+                flags |= FLAG_ISSUED_KEYS;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream payload = new DataOutputStream(bytes);
+            payload.writeByte(flags);
+            if ((flags & FLAG_ISSUED_KEYS) != 0) {
+                payload.writeInt(issued.length);
+                for (int n : issued)
+                    payload.writeInt(n);
+            }
+            record.build().writeTo(payload);
+            payload.flush();
+            if (journalLength + 8 + bytes.size() > walletFileLength * compactionRatio)
+                return false;
+
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            FileOutputStream stream = new FileOutputStream(journalFile, true);
+            try {
+                DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream));
+                output.writeInt(bytes.size());
+                output.writeInt((int) crc.getValue());
+                bytes.writeTo(output);
+                output.flush();
+                stream.getFD().sync();
+            } finally {
+                stream.close();
+            }
+            journalLength += 8 + bytes.size();
+            fingerprints.putAll(changed);
+            keysFingerprint = keys;
+            issuedKeys = issued;
+            log.info("Journaled {} of {} transactions{}", changed.size(), count,
+                    (flags & FLAG_KEYS) != 0 ? " and keys" : (flags & FLAG_ISSUED_KEYS) != 0 ? " and issued keys" : "");
+            return true;
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    /**
+     * Saves the given wallet in full, via the given temp file, and starts a new journal for it. Fingerprints are taken
+     * while the wallet is locked for saving, so that the next {@link #append(Wallet)} catches all later changes.
+     */
+    void compact(Wallet wallet, File temp) throws IOException {
+        wallet.lock.lock();
+        try {
+            walletFileLength = -1;
+            fingerprints.clear();
+            // Taking the fingerprint of the keys can derive lookahead keys, so it must come before saving them.
+            keysFingerprint = wallet.getKeyChainGroupFingerprint();
+            issuedKeys = wallet.getIssuedKeyCounts();
+            int height = wallet.getLastBlockSeenHeight();
+            for (WalletTransaction wtx : wallet.getWalletTransactions())
+                fingerprints.put(wtx.getTransaction().getTxId(), fingerprint(wtx, height));
+            wallet.saveToFile(temp, walletFile);
+
+            File tempJournal = new File(journalFile.getPath() + ".tmp");
+            FileOutputStream stream = new FileOutputStream(tempJournal);
+            try {
+                DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream));
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                output.write(hash(walletFile));
+                output.flush();
+                stream.getFD().sync();
+            } finally {
+                stream.close();
+            }
+            if (journalFile.exists() && !journalFile.delete())
+                throw new IOException("Failed to delete " + journalFile);
+            if (!tempJournal.renameTo(journalFile))
+                throw new IOException("Failed to rename " + tempJournal + " to " + journalFile);
+            journalLength = HEADER_BYTES;
+            walletFileLength = walletFile.length();
+            walletFileLastModified = walletFile.lastModified();
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the given wallet file and applies the records of its journal, if there is one for it. Use
+     * {@link WalletProtobufSerializer#readWallet(org.bitcoinj.core.NetworkParameters, WalletExtension[], Protos.Wallet)}
+     * to turn the result into a wallet.
+     */
+    public static Protos.Wallet readWallet(File walletFile) throws IOException, UnreadableWalletException {
+        return readWallet(walletFile, new DefaultKeyChainFactory());
+    }
+
+    /**
+     * Like {@link #readWallet(File)}, but uses the given factory to restore the key chains when keys issued since the
+     * wallet file was written are replayed. Pass the factory set with
+     * {@link WalletProtobufSerializer#setKeyChainFactory(KeyChainFactory)}, if any.
+     */
+    public static Protos.Wallet readWallet(File walletFile, KeyChainFactory keyChainFactory)
+            throws IOException, UnreadableWalletException {
+        File journalFile = fileFor(walletFile);
+        boolean hasJournal = journalFile.exists();
+        MessageDigest digest = Sha256Hash.newDigest();
+        Protos.Wallet snapshot;
+        InputStream stream = new BufferedInputStream(new FileInputStream(walletFile));
+        try {
+            snapshot = WalletProtobufSerializer.parseToProto(hasJournal ? new DigestInputStream(stream, digest) : stream);
+        } finally {
+            stream.close();
+        }
+        if (!hasJournal)
+            return snapshot;
+        return replay(snapshot, digest.digest(), journalFile, keyChainFactory);
+    }
+
+    private static Protos.Wallet replay(Protos.Wallet snapshot, byte[] snapshotHash, File journalFile,
+            KeyChainFactory keyChainFactory) throws IOException, UnreadableWalletException {
+        Protos.Wallet state = snapshot;
+        List<Protos.Key> keys = snapshot.getKeyList();
+        int[] issued = null; // issued key counts to apply to the keys
+        LinkedHashMap<ByteString, Protos.Transaction> transactions = new LinkedHashMap<>();
+        for (Protos.Transaction tx : snapshot.getTransactionList())
+            transactions.put(tx.getHash(), tx);
+        // Heights of the last block seen when the transactions were recorded, if after the snapshot.
+        Map<ByteString, Integer> recordHeights = new HashMap<>();
+        int records = 0;
+
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+        try {
+            long remaining = journalFile.length();
+            byte[] hash = new byte[Sha256Hash.LENGTH];
+            if (remaining < HEADER_BYTES || input.readInt() != MAGIC || input.readInt() != VERSION) {
+                log.warn("Ignoring unreadable wallet journal {}", journalFile);
+                return snapshot;
+            }
+            input.readFully(hash);
+            if (!Arrays.equals(hash, snapshotHash)) {
+                log.info("Ignoring wallet journal {}, it is for an older wallet file", journalFile);
+                return snapshot;
+            }
+            remaining -= HEADER_BYTES;
+            while (remaining > 0) {
+                int length = input.readInt();
+                int checksum = input.readInt();
+                if (length < 1 || length > remaining - 8) {
+                    log.warn("Ignoring incomplete record at the end of wallet journal {}", journalFile);
+                    break;
+                }
+                byte[] payload = new byte[length];
+                input.readFully(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    log.warn("Ignoring corrupt record at the end of wallet journal {}", journalFile);
+                    break;
+                }
+                remaining -= 8 + length;
+                ByteBuffer buffer = ByteBuffer.wrap(payload);
+                int flags = buffer.get();
+                if ((flags & FLAG_KEYS) != 0)
+                    issued = null;
+                if ((flags & FLAG_ISSUED_KEYS) != 0) {
+                    issued = new int[buffer.getInt()];
+                    for (int i = 0; i < issued.length; i++)
+                        issued[i] = buffer.getInt();
+                }
+                Protos.Wallet record = Protos.Wallet.parseFrom(
+                        CodedInputStream.newInstance(payload, buffer.position(), buffer.remaining()));
+                state = record;
+                if ((flags & FLAG_KEYS) != 0)
+                    keys = record.getKeyList();
+                int height = record.hasLastSeenBlockHeight() ? record.getLastSeenBlockHeight() : -1;
+                for (Protos.Transaction tx : record.getTransactionList()) {
+                    transactions.put(tx.getHash(), tx);
+                    recordHeights.put(tx.getHash(), height);
+                }
+                records++;
+            }
+        } catch (EOFException x) {
+            log.warn("Ignoring incomplete record at the end of wallet journal {}", journalFile);
+        } finally {
+            input.close();
+        }
+        if (records == 0)
+            return snapshot;
+        log.info("Applied {} records of wallet journal {}", records, journalFile);
+
+        if (issued != null)
+            keys = issueKeys(state, keys, issued, keyChainFactory);
+
+        int snapshotHeight = snapshot.hasLastSeenBlockHeight() ? snapshot.getLastSeenBlockHeight() : -1;
+        int height = state.hasLastSeenBlockHeight() ? state.getLastSeenBlockHeight() : -1;
+        Protos.Wallet.Builder wallet = state.toBuilder().clearTransaction().clearKey().addAllKey(keys);
+        for (Protos.Transaction tx : transactions.values()) {
+            Integer recordHeight = recordHeights.get(tx.getHash());
+            int blocks = height - (recordHeight != null ? recordHeight : snapshotHeight);
+            Protos.TransactionConfidence confidence = tx.getConfidence();
+            if (blocks != 0 && confidence.getType() == Protos.TransactionConfidence.Type.BUILDING
+                    && confidence.hasDepth()) {
+                // The depth grew with the blocks seen since the transaction was recorded, see fingerprint().
+                tx = tx.toBuilder()
+                        .setConfidence(confidence.toBuilder().setDepth(confidence.getDepth() + blocks))
+                        .build();
+            }
+            wallet.addTransaction(tx);
+        }
+        return wallet.build();
+    }
+
+    /**
+     * Returns a hash of everything {@link WalletProtobufSerializer#makeTxProto(WalletTransaction)} writes that can
+     * change once a transaction is in the wallet. The depth is taken relative to the given height of the last block
+     * seen, so that transactions don't change just because another block was added to the chain.
+     */
+    private static long fingerprint(WalletTransaction wtx, int height) {
+        Transaction tx = wtx.getTransaction();
+        long h = mix(wtx.getPool().ordinal(), tx.getVersion());
+        h = mix(h, tx.getLockTime());
+        h = mix(h, tx.getUpdateTime().getTime());
+        for (TransactionInput input : tx.getInputs()) {
+            h = mix(h, input.getSequenceNumber());
+            // Set when the connected output becomes known, and when the input is signed.
+            Coin value = input.getValue();
+            h = mix(h, value != null ? value.value : -1);
+            h = mix(h, Arrays.hashCode(input.getScriptBytes()));
+            h = mix(h, input.hasWitness() ? input.getWitness().hashCode() : 0);
+        }
+        for (TransactionOutput output : tx.getOutputs()) {
+            TransactionInput spentBy = output.getSpentBy();
+            h = mix(h, spentBy != null ? spentBy.getParentTransaction().getTxId().hashCode() : 0);
+            h = mix(h, spentBy != null ? spentBy.getIndex() : -1);
+        }
+        Map<Sha256Hash, Integer> appearsInHashes = tx.getAppearsInHashes();
+        if (appearsInHashes != null) {
+            for (Map.Entry<Sha256Hash, Integer> entry : appearsInHashes.entrySet()) {
+                h = mix(h, entry.getKey().hashCode());
+                h = mix(h, entry.getValue());
+            }
+        }
+        if (tx.hasConfidence()) {
+            TransactionConfidence confidence = tx.getConfidence();
+            synchronized (confidence) {
+                ConfidenceType type = confidence.getConfidenceType();
+                h = mix(h, type.getValue());
+                if (type == ConfidenceType.BUILDING) {
+                    h = mix(h, confidence.getAppearedAtChainHeight());
+                    h = mix(h, confidence.getDepthInBlocks() - height);
+                } else if (type == ConfidenceType.DEAD) {
+                    Transaction overriding = confidence.getOverridingTransaction();
+                    h = mix(h, overriding != null ? overriding.getTxId().hashCode() : 0);
+                }
+                h = mix(h, confidence.getSource().ordinal());
+            }
+            h = mix(h, confidence.getBroadcastBy().hashCode());
+            Date lastBroadcastedAt = confidence.getLastBroadcastedAt();
+            h = mix(h, lastBroadcastedAt != null ? lastBroadcastedAt.getTime() : 0);
+        }
+        h = mix(h, tx.getPurpose().ordinal());
+        ExchangeRate exchangeRate = tx.getExchangeRate();
+        h = mix(h, exchangeRate != null ? exchangeRate.hashCode() : 0);
+        String memo = tx.getMemo();
+        return mix(h, memo != null ? memo.hashCode() : 0);
+    }
+
+    /** Issues keys in the key chains of the given keys until they have issued the given numbers of keys. */
+    private static List<Protos.Key> issueKeys(Protos.Wallet wallet, List<Protos.Key> keys, int[] issued,
+            KeyChainFactory keyChainFactory) throws UnreadableWalletException {
+        NetworkParameters params = NetworkParameters.fromID(wallet.getNetworkIdentifier());
+        if (params == null)
+            throw new UnreadableWalletException("Unknown network parameters ID " + wallet.getNetworkIdentifier());
+        KeyChainGroup keyChainGroup;
+        if (wallet.hasEncryptionParameters()) {
+            KeyCrypterScrypt keyCrypter = new KeyCrypterScrypt(wallet.getEncryptionParameters());
+            keyChainGroup = KeyChainGroup.fromProtobufEncrypted(params, keys, keyCrypter, keyChainFactory);
+        } else {
+            keyChainGroup = KeyChainGroup.fromProtobufUnencrypted(params, keys, keyChainFactory);
+        }
+        int[] current = issuedKeyCounts(keyChainGroup);
+        if (current.length != issued.length)
+            throw new UnreadableWalletException("Wallet journal doesn't match the key chains");
+        List<DeterministicKeyChain> chains = keyChainGroup.getDeterministicKeyChains();
+        for (int i = 0; i < chains.size(); i++) {
+            DeterministicKeyChain chain = chains.get(i);
+            if (issued[i * 2] > current[i * 2])
+                chain.getKeys(KeyChain.KeyPurpose.RECEIVE_FUNDS, issued[i * 2] - current[i * 2]);
+            if (issued[i * 2 + 1] > current[i * 2 + 1])
+                chain.getKeys(KeyChain.KeyPurpose.CHANGE, issued[i * 2 + 1] - current[i * 2 + 1]);
+        }
+        return keyChainGroup.serializeToProtobuf();
+    }
+
+    /**
+     * Returns a hash of the parts of the given key chain group that change when keys are imported, removed or
+     * encrypted, or key chains are added. Issuing keys is tracked by {@link #issuedKeyCounts(KeyChainGroup)} instead,
+     * except for married key chains.
+     */
+    static long fingerprint(KeyChainGroup keyChainGroup) {
+        // The imported keys are summed up, so that their order doesn't matter but replacing one by another does.
+        long imported = 0;
+        for (ECKey key : keyChainGroup.getImportedKeys())
+            imported += mix(Arrays.hashCode(key.getPubKey()), key.getPubKey().length);
+        long h = mix(imported, keyChainGroup.isEncrypted() ? 1 : 0);
+        if (keyChainGroup.isSupportsDeterministicChains()) {
+            boolean married = keyChainGroup.isMarried();
+            for (DeterministicKeyChain chain : keyChainGroup.getDeterministicKeyChains()) {
+                h = mix(h, System.identityHashCode(chain));
+                h = mix(h, chain.getLookaheadSize());
+                h = mix(h, chain.getLookaheadThreshold());
+                if (married) {
+                    h = mix(h, chain.getIssuedExternalKeys());
+                    h = mix(h, chain.getIssuedInternalKeys());
+                }
+            }
+        }
+        return h;
+    }
+
+    /** Returns the number of issued external and internal keys of each deterministic key chain of the given group. */
+    static int[] issuedKeyCounts(KeyChainGroup keyChainGroup) {
+        if (!keyChainGroup.isSupportsDeterministicChains())
+            return new int[0];
+        List<DeterministicKeyChain> chains = keyChainGroup.getDeterministicKeyChains();
+        int[] counts = new int[chains.size() * 2];
+        for (int i = 0; i < chains.size(); i++) {
+            counts[i * 2] = chains.get(i).getIssuedExternalKeys();
+            counts[i * 2 + 1] = chains.get(i).getIssuedInternalKeys();
+        }
+        return counts;
+    }
+
+    private static long mix(long h, long value) {
+        h = (h ^ value) * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 31);
+    }
+
+    private static byte[] hash(File file) throws IOException {
+        MessageDigest digest = Sha256Hash.newDigest();
+        InputStream stream = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = stream.read(buffer)) != -1)
+                digest.update(buffer, 0, read);
+        } finally {
+            stream.close();
+        }
+        return digest.digest();
+    }
+}
@@ -120,6 +120,10 @@ public class WalletProtobufSerializer {
         this.keyChainFactory = keyChainFactory;
     }
 
+    public KeyChainFactory getKeyChainFactory() {
+        return keyChainFactory;
+    }
+
     /**
      * If this property is set to false, then unknown mandatory extensions will be ignored instead of causing load
      * errors. You should only use this if you know exactly what you are doing, as the extension data will NOT be
@@ -173,11 +177,7 @@ public class WalletProtobufSerializer {
      * additional data fields set, before serialization takes place.
      */
     public Protos.Wallet walletToProto(Wallet wallet) {
-        Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
-        walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
-        if (wallet.getDescription() != null) {
-            walletBuilder.setDescription(wallet.getDescription());
-        }
+        Protos.Wallet.Builder walletBuilder = walletStateToProto(wallet);
 
         for (WalletTransaction wtx : wallet.getWalletTransactions()) {
             Protos.Transaction txProto = makeTxProto(wtx);
@@ -186,6 +186,17 @@ public class WalletProtobufSerializer {
 
         walletBuilder.addAllKey(wallet.serializeKeyChainGroupToProtobuf());
 
+        return walletBuilder.build();
+    }
+
+    /** Converts everything but the transactions and keys of the given wallet, for {@link WalletJournal}. */
+    Protos.Wallet.Builder walletStateToProto(Wallet wallet) {
+        Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
+        walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
+        if (wallet.getDescription() != null) {
+            walletBuilder.setDescription(wallet.getDescription());
+        }
+
         for (Script script : wallet.getWatchedScripts()) {
             Protos.Script protoScript =
                     Protos.Script.newBuilder()
@@ -237,7 +248,7 @@ public class WalletProtobufSerializer {
         // Populate the wallet version.
         walletBuilder.setVersion(wallet.getVersion());
 
-        return walletBuilder.build();
+        return walletBuilder;
     }
 
     private static void populateExtensions(Wallet wallet, Protos.Wallet.Builder walletBuilder) {
@@ -250,7 +261,7 @@ public class WalletProtobufSerializer {
         }
     }
 
-    private static Protos.Transaction makeTxProto(WalletTransaction wtx) {
+    static Protos.Transaction makeTxProto(WalletTransaction wtx) {
         Transaction tx = wtx.getTransaction();
         Protos.Transaction.Builder txBuilder = Protos.Transaction.newBuilder();
 
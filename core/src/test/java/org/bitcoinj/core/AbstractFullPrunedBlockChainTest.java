@@ -18,11 +18,14 @@
 package org.bitcoinj.core;
 
 import com.google.common.collect.Lists;
+import com.google.common.primitives.Ints;
 import org.bitcoinj.params.MainNetParams;
 import org.bitcoinj.params.UnitTestParams;
 import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.FullPrunedBlockStore;
+import org.bitcoinj.store.UTXOPrefetcher;
 import org.bitcoinj.utils.BlockFileLoader;
 import org.bitcoinj.utils.BriefLogFormatter;
 import org.bitcoinj.wallet.SendRequest;
@@ -35,11 +38,16 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.bitcoinj.core.Coin.FIFTY_COINS;
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
 import org.junit.rules.ExpectedException;
 
 /**
@@ -73,6 +81,23 @@ public abstract class AbstractFullPrunedBlockChainTest {
 
     public abstract void resetStore(FullPrunedBlockStore store) throws BlockStoreException;
 
+    /**
+     * Creates outputs paying to the given key, each in a transaction of its own. Output {@code i} has index {@code i},
+     * a value of {@code i + 1} satoshis and height {@code i}, and only the first one is a coinbase output.
+     */
+    public static List<UTXO> createOutputs(NetworkParameters params, ECKey key, int count) {
+        LegacyAddress address = LegacyAddress.fromKey(params, key);
+        List<UTXO> outputs = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            outputs.add(new UTXO(Sha256Hash.of(Ints.toByteArray(i)), i, Coin.valueOf(i + 1), i, i == 0,
+                    ScriptBuilder.createOutputScript(address), address.toString()));
+        return outputs;
+    }
+
+    protected UTXO getOutput(UTXO output) throws BlockStoreException {
+        return store.getTransactionOutput(output.getHash(), output.getIndex());
+    }
+
     @Test
     public void testGeneratedChain() throws Exception {
         // Tests various test cases from FullBlockTestGenerator
@@ -161,6 +186,54 @@ public abstract class AbstractFullPrunedBlockChainTest {
         } catch (Exception e) {}
     }
 
+    @Test
+    public void scriptFailureKeepsInjectedExecutor() throws Exception {
+        store = createStore(PARAMS, 10);
+        chain = new FullPrunedBlockChain(PARAMS, store);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        chain.setScriptVerificationExecutor(executor);
+        chain.setScriptVerificationBatchSize(1);
+        assertNull(chain.getLastScriptVerificationStats());
+
+        ECKey outKey = new ECKey();
+        int height = 1;
+        Block rollingBlock = PARAMS.getGenesisBlock().createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height++);
+        chain.add(rollingBlock);
+        TransactionOutput spendableOutput = rollingBlock.getTransactions().get(0).getOutput(0);
+        for (int i = 1; i < PARAMS.getSpendableCoinbaseDepth(); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height++);
+            chain.add(rollingBlock);
+        }
+
+        Block invalidBlock = rollingBlock.createNextBlock(null);
+        Transaction invalid = new Transaction(PARAMS);
+        invalid.addOutput(new TransactionOutput(PARAMS, invalid, FIFTY_COINS, new byte[] {}));
+        invalid.addInput(spendableOutput).clearScriptBytes();
+        invalidBlock.addTransaction(invalid);
+        invalidBlock.solve();
+        try {
+            chain.add(invalidBlock);
+            fail();
+        } catch (VerificationException e) {
+            // expected
+        }
+        assertFalse(executor.isShutdown());
+
+        Block validBlock = rollingBlock.createNextBlock(null);
+        Transaction valid = new Transaction(PARAMS);
+        valid.addOutput(new TransactionOutput(PARAMS, valid, FIFTY_COINS, new byte[] {}));
+        valid.addSignedInput(spendableOutput, outKey);
+        validBlock.addTransaction(valid);
+        validBlock.solve();
+        assertTrue(chain.add(validBlock));
+        assertEquals(1, chain.getLastScriptVerificationStats().getInputs());
+        assertEquals(1, chain.getLastScriptVerificationStats().getBatches());
+        executor.shutdown();
+        try {
+            store.close();
+        } catch (Exception e) {}
+    }
+
     @Test
     public void testFinalizedBlocks() throws Exception {
         final int UNDOABLE_BLOCKS_STORED = 10;
@@ -235,6 +308,154 @@ public abstract class AbstractFullPrunedBlockChainTest {
         } catch (Exception e) {}
     }
 
+    @Test
+    public void importBlocksMatchesAdd() throws Exception {
+        // A chain in which outputs are spent by later blocks and within the same block.
+        ECKey outKey = new ECKey();
+        int height = 1;
+        List<Block> blocks = new ArrayList<>();
+        Block rollingBlock = PARAMS.getGenesisBlock();
+        for (int i = 0; i < PARAMS.getSpendableCoinbaseDepth() + 2; i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height++);
+            blocks.add(rollingBlock);
+        }
+        for (int i = 0; i < 3; i++) {
+            rollingBlock = rollingBlock.createNextBlock(null);
+            Transaction spend = new Transaction(PARAMS);
+            spend.addOutput(FIFTY_COINS.divide(2), outKey);
+            spend.addOutput(FIFTY_COINS.divide(2), outKey);
+            spend.addSignedInput(blocks.get(i).getTransactions().get(0).getOutput(0), outKey);
+            rollingBlock.addTransaction(spend);
+            Transaction spendInBlock = new Transaction(PARAMS);
+            spendInBlock.addOutput(FIFTY_COINS.divide(2), outKey);
+            spendInBlock.addSignedInput(spend.getOutput(1), outKey);
+            rollingBlock.addTransaction(spendInBlock);
+            rollingBlock.solve();
+            blocks.add(rollingBlock);
+        }
+
+        store = createStore(PARAMS, 10);
+        resetStore(store);
+        chain = new FullPrunedBlockChain(PARAMS, store);
+        for (Block block : blocks)
+            assertTrue(chain.add(block));
+        StoredBlock addedHead = store.getVerifiedChainHead();
+        List<Coin> addedOutputs = outputValues(store, blocks);
+        store.close();
+
+        store = createStore(PARAMS, 10);
+        resetStore(store);
+        chain = new FullPrunedBlockChain(PARAMS, store);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        chain.setScriptVerificationExecutor(executor);
+        assertEquals(blocks.size(), chain.importBlocks(blocks.iterator(), 3));
+        assertFalse(executor.isShutdown());
+        executor.shutdown();
+        assertEquals(addedHead, store.getVerifiedChainHead());
+        assertEquals(addedHead, chain.getChainHead());
+        assertEquals(addedOutputs, outputValues(store, blocks));
+        try {
+            store.close();
+        } catch (Exception e) {}
+    }
+
+    /** Returns the values of the unspent outputs of the given blocks, and null for those that were spent. */
+    private static List<Coin> outputValues(FullPrunedBlockStore store, List<Block> blocks) throws BlockStoreException {
+        List<Coin> values = new ArrayList<>();
+        for (Block block : blocks) {
+            for (Transaction tx : block.getTransactions()) {
+                for (TransactionOutput output : tx.getOutputs()) {
+                    UTXO utxo = store.getTransactionOutput(tx.getTxId(), output.getIndex());
+                    values.add(utxo != null ? utxo.getValue() : null);
+                }
+            }
+        }
+        return values;
+    }
+
+    @Test
+    public void batchWriteOfOutputs() throws Exception {
+        store = createStore(PARAMS, 10);
+        try {
+            ECKey key = new ECKey();
+            List<UTXO> outputs = createOutputs(PARAMS, key, 4);
+            store.addUnspentTransactionOutput(outputs.get(0));
+
+            store.beginDatabaseBatchWrite();
+            store.addUnspentTransactionOutput(outputs.get(1));
+            store.addUnspentTransactionOutput(outputs.get(2));
+            store.removeUnspentTransactionOutput(outputs.get(0));
+            store.removeUnspentTransactionOutput(outputs.get(2));
+            // The batch write sees its own changes.
+            assertNull(getOutput(outputs.get(0)));
+            assertEquals(outputs.get(1), getOutput(outputs.get(1)));
+            assertNull(getOutput(outputs.get(2)));
+            store.addUnspentTransactionOutput(outputs.get(3));
+            store.commitDatabaseBatchWrite();
+
+            assertNull(getOutput(outputs.get(0)));
+            assertEquals(outputs.get(1), getOutput(outputs.get(1)));
+            assertNull(getOutput(outputs.get(2)));
+            assertEquals(outputs.get(3), getOutput(outputs.get(3)));
+            // Not every store looks at the uncommitted changes of a batch write for this.
+            assertTrue(store.hasUnspentOutputs(outputs.get(1).getHash(), 2));
+            assertEquals(2, store.getOpenTransactionOutputs(Collections.singletonList(key)).size());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void abortBatchWriteOfOutputs() throws Exception {
+        store = createStore(PARAMS, 10);
+        try {
+            List<UTXO> outputs = createOutputs(PARAMS, new ECKey(), 2);
+            store.addUnspentTransactionOutput(outputs.get(0));
+            store.beginDatabaseBatchWrite();
+            store.removeUnspentTransactionOutput(outputs.get(0));
+            store.addUnspentTransactionOutput(outputs.get(1));
+            store.abortDatabaseBatchWrite();
+            assertEquals(outputs.get(0), getOutput(outputs.get(0)));
+            assertNull(getOutput(outputs.get(1)));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void prefetchedOutputs() throws Exception {
+        store = createStore(PARAMS, 10);
+        try {
+            assumeTrue(store instanceof UTXOPrefetcher);
+            List<UTXO> outputs = createOutputs(PARAMS, new ECKey(), 4);
+            for (UTXO output : outputs.subList(0, 3))
+                store.addUnspentTransactionOutput(output);
+            List<TransactionOutPoint> outPoints = new ArrayList<>();
+            for (UTXO output : outputs)
+                outPoints.add(new TransactionOutPoint(PARAMS, output.getIndex(), output.getHash()));
+            ((UTXOPrefetcher) store).prefetchTransactionOutputs(outPoints);
+
+            // Prefetching doesn't change what is read, within a batch write or after it.
+            store.beginDatabaseBatchWrite();
+            store.removeUnspentTransactionOutput(outputs.get(0));
+            assertEquals(outputs.get(1), getOutput(outputs.get(1)));
+            store.removeUnspentTransactionOutput(outputs.get(1));
+            assertNull(getOutput(outputs.get(0)));
+            assertNull(getOutput(outputs.get(1)));
+            assertEquals(outputs.get(2), getOutput(outputs.get(2)));
+            assertNull(getOutput(outputs.get(3)));
+            store.commitDatabaseBatchWrite();
+
+            assertNull(getOutput(outputs.get(0)));
+            assertNull(getOutput(outputs.get(1)));
+            assertEquals(outputs.get(2), getOutput(outputs.get(2)));
+            assertTrue(store.hasUnspentOutputs(outputs.get(2).getHash(), 3));
+            assertFalse(store.hasUnspentOutputs(outputs.get(1).getHash(), 2));
+        } finally {
+            store.close();
+        }
+    }
+
     @Test
     public void testGetOpenTransactionOutputs() throws Exception {
         final int UNDOABLE_BLOCKS_STORED = 10;
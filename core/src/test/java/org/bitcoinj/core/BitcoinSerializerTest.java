@@ -201,6 +201,49 @@ public class BitcoinSerializerTest {
         assertArrayEquals(headersMessageBytes, serializedBytes);
     }
 
+    @Test
+    public void testParseInPlace() throws Exception {
+        MessageSerializer serializer = MAINNET.getDefaultSerializer();
+        assertFalse(serializer.isParseRetainMode());
+        Context.propagate(new Context(MAINNET));
+        Block genesis = MAINNET.getGenesisBlock();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bos.write(new byte[] { 1, 2, 3 });
+        bos.write(TRANSACTION_MESSAGE_BYTES);
+        serializer.serialize(genesis.cloneAsHeader(), bos);
+        serializer.serialize(genesis, bos);
+        bos.write(new byte[] { 4, 5, 6 });
+        byte[] bytes = bos.toByteArray();
+        // A slice of an array holding other bytes as well.
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 2, bytes.length - 4).slice();
+
+        Transaction transaction = (Transaction) serializer.deserialize(buffer);
+        Transaction copied = (Transaction) serializer.deserialize(ByteBuffer.wrap(TRANSACTION_MESSAGE_BYTES));
+        assertEquals(copied.getTxId(), transaction.getTxId());
+        assertEquals(copied, transaction);
+
+        Block header = (Block) serializer.deserialize(buffer);
+        assertNull(header.getTransactions());
+        assertEquals(genesis.getHash(), header.getHash());
+        Block block = (Block) serializer.deserialize(buffer);
+        assertEquals(genesis, block);
+        assertEquals(1, block.getTransactions().size());
+        assertEquals(1, buffer.remaining());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void testParseInPlaceLargerThanHeader() throws Exception {
+        MessageSerializer serializer = MAINNET.getDefaultSerializer();
+        // The transaction without the last byte of its lock time, followed by that byte.
+        int payloadStart = BitcoinSerializer.BitcoinPacketHeader.HEADER_LENGTH + 4;
+        byte[] payload = Arrays.copyOfRange(TRANSACTION_MESSAGE_BYTES, payloadStart,
+                TRANSACTION_MESSAGE_BYTES.length - 1);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize("tx", payload, bos);
+        bos.write(TRANSACTION_MESSAGE_BYTES[TRANSACTION_MESSAGE_BYTES.length - 1]);
+        serializer.deserialize(ByteBuffer.wrap(bos.toByteArray()));
+    }
+
     @Test(expected = BufferUnderflowException.class)
     public void testBitcoinPacketHeaderTooShort() {
         new BitcoinSerializer.BitcoinPacketHeader(ByteBuffer.wrap(new byte[] { 0 }));
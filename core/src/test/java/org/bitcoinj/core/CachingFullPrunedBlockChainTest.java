@@ -0,0 +1,152 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.CachingFullPrunedBlockStore;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.bitcoinj.store.MemoryFullPrunedBlockStore;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * A CachingFullPrunedBlockStore implementation of the FullPrunedBlockStoreTest, which flushes often
+ */
+public class CachingFullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest {
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException {
+        return new CachingFullPrunedBlockStore(new MemoryFullPrunedBlockStore(params, blockCount), 100, 50, 3,
+                CachingFullPrunedBlockStore.DEFAULT_FLUSH_INTERVAL_MILLIS);
+    }
+
+    @Override
+    public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
+        // No-op for memory store, because it's not persistent
+    }
+
+    // A cache that flushes after three dirty outputs, in front of the given store.
+    private CachingFullPrunedBlockStore createCache(MemoryFullPrunedBlockStore backing) throws BlockStoreException {
+        return new CachingFullPrunedBlockStore(backing, 100, 3, 100,
+                CachingFullPrunedBlockStore.DEFAULT_FLUSH_INTERVAL_MILLIS);
+    }
+
+    private static void add(CachingFullPrunedBlockStore cache, UTXO output) throws BlockStoreException {
+        cache.beginDatabaseBatchWrite();
+        cache.addUnspentTransactionOutput(output);
+        cache.commitDatabaseBatchWrite();
+    }
+
+    private static void remove(CachingFullPrunedBlockStore cache, UTXO output) throws BlockStoreException {
+        cache.beginDatabaseBatchWrite();
+        cache.removeUnspentTransactionOutput(output);
+        cache.commitDatabaseBatchWrite();
+    }
+
+    private static UTXO get(FullPrunedBlockStore store, UTXO output) throws BlockStoreException {
+        return store.getTransactionOutput(output.getHash(), output.getIndex());
+    }
+
+    @Test
+    public void outputsCreatedAndSpentBeforeFlushNeverReachStore() throws Exception {
+        MemoryFullPrunedBlockStore backing = new MemoryFullPrunedBlockStore(PARAMS, 10);
+        CachingFullPrunedBlockStore cache = createCache(backing);
+        UTXO output = createOutputs(PARAMS, new ECKey(), 2).get(1);
+        add(cache, output);
+        assertEquals(output, get(cache, output));
+        assertNull(get(backing, output));
+        assertTrue(cache.hasUnspentOutputs(output.getHash(), 2));
+        remove(cache, output);
+        assertNull(get(cache, output));
+        assertFalse(cache.hasUnspentOutputs(output.getHash(), 2));
+        cache.flush();
+        assertEquals(1, cache.getOutputsNotFlushed());
+        assertEquals(0, cache.getOutputsFlushed());
+        assertEquals(0, cache.getFlushes());
+    }
+
+    @Test
+    public void flushesAfterMaxDirtyOutputs() throws Exception {
+        MemoryFullPrunedBlockStore backing = new MemoryFullPrunedBlockStore(PARAMS, 10);
+        CachingFullPrunedBlockStore cache = createCache(backing);
+        ECKey key = new ECKey();
+        List<UTXO> outputs = createOutputs(PARAMS, key, 5).subList(1, 5);
+        for (int i = 0; i < outputs.size(); i++) {
+            add(cache, outputs.get(i));
+            assertEquals(i < 3 ? 0 : 1, cache.getFlushes());
+        }
+        for (UTXO output : outputs)
+            assertEquals(output, get(backing, output));
+        assertEquals(4, cache.getOutputsFlushed());
+        assertEquals(4, cache.getOpenTransactionOutputs(Collections.singletonList(key)).size());
+
+        // Spending a flushed output is written back on the next flush.
+        long hits = cache.getHits();
+        assertEquals(outputs.get(0), get(cache, outputs.get(0)));
+        assertEquals(hits + 1, cache.getHits());
+        remove(cache, outputs.get(0));
+        assertNotNull(get(backing, outputs.get(0)));
+        assertEquals(3, cache.getOpenTransactionOutputs(Collections.singletonList(key)).size());
+        cache.flush();
+        assertNull(get(backing, outputs.get(0)));
+        assertEquals(3, cache.getOpenTransactionOutputs(Collections.singletonList(key)).size());
+    }
+
+    @Test
+    public void abortDiscardsBatch() throws Exception {
+        CachingFullPrunedBlockStore cache = createCache(new MemoryFullPrunedBlockStore(PARAMS, 10));
+        UTXO output = createOutputs(PARAMS, new ECKey(), 2).get(1);
+        StoredBlock genesis = cache.getVerifiedChainHead();
+        StoredBlock next = genesis.build(PARAMS.getGenesisBlock().createNextBlock(null).cloneAsHeader());
+        cache.beginDatabaseBatchWrite();
+        cache.addUnspentTransactionOutput(output);
+        cache.put(next);
+        cache.setVerifiedChainHead(next);
+        assertEquals(next, cache.getVerifiedChainHead());
+        assertEquals(next, cache.get(next.getHeader().getHash()));
+        cache.abortDatabaseBatchWrite();
+        assertNull(get(cache, output));
+        assertNull(cache.get(next.getHeader().getHash()));
+        assertEquals(genesis, cache.getVerifiedChainHead());
+        assertEquals(genesis, cache.getChainHead());
+    }
+
+    @Test
+    public void chainHeadsAreFlushedWithOutputs() throws Exception {
+        MemoryFullPrunedBlockStore backing = new MemoryFullPrunedBlockStore(PARAMS, 10);
+        CachingFullPrunedBlockStore cache = createCache(backing);
+        UTXO output = createOutputs(PARAMS, new ECKey(), 2).get(1);
+        StoredBlock genesis = cache.getVerifiedChainHead();
+        StoredBlock next = genesis.build(PARAMS.getGenesisBlock().createNextBlock(null).cloneAsHeader());
+        cache.beginDatabaseBatchWrite();
+        cache.addUnspentTransactionOutput(output);
+        cache.put(next);
+        cache.setVerifiedChainHead(next);
+        cache.commitDatabaseBatchWrite();
+        assertEquals(next, cache.getChainHead());
+        assertEquals(genesis, backing.getVerifiedChainHead());
+        assertNull(backing.get(next.getHeader().getHash()));
+        cache.flush();
+        assertEquals(next, backing.getVerifiedChainHead());
+        assertEquals(next, backing.getChainHead());
+        assertEquals(next, backing.get(next.getHeader().getHash()));
+        assertEquals(output, get(backing, output));
+    }
+}
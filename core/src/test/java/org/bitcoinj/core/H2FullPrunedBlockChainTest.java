@@ -17,11 +17,19 @@
 package org.bitcoinj.core;
 
 import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.CachingFullPrunedBlockStore;
 import org.bitcoinj.store.FullPrunedBlockStore;
 import org.bitcoinj.store.H2FullPrunedBlockStore;
 import org.junit.After;
+import org.junit.Test;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 /**
  * An H2 implementation of the FullPrunedBlockStoreTest
@@ -35,6 +43,10 @@ public class H2FullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest
     @Override
     public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException {
         deleteFiles();
+        return openStore(params, blockCount);
+    }
+
+    private H2FullPrunedBlockStore openStore(NetworkParameters params, int blockCount) throws BlockStoreException {
         return new H2FullPrunedBlockStore(params, "test", "sa", "sa", blockCount);
     }
 
@@ -52,4 +64,145 @@ public class H2FullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest
     public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
         ((H2FullPrunedBlockStore)store).resetStore();
     }
+
+    @Test
+    public void prefetchedOutputsAreCachedInFrontOfStore() throws Exception {
+        store = createStore(PARAMS, 10);
+        CachingFullPrunedBlockStore cache = new CachingFullPrunedBlockStore(store);
+        try {
+            List<UTXO> outputs = createOutputs(PARAMS, new ECKey(), 3);
+            for (UTXO output : outputs.subList(0, 2))
+                store.addUnspentTransactionOutput(output);
+            List<TransactionOutPoint> outPoints = new ArrayList<>();
+            for (UTXO output : outputs)
+                outPoints.add(new TransactionOutPoint(PARAMS, output.getIndex(), output.getHash()));
+            cache.prefetchTransactionOutputs(outPoints);
+            assertEquals(outputs.get(1), cache.getTransactionOutput(outputs.get(1).getHash(), 1));
+            assertEquals(1, cache.getHits());
+            assertNull(cache.getTransactionOutput(outputs.get(2).getHash(), 2));
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void batchWriteIsCommitted() throws Exception {
+        store = createStore(PARAMS, 10);
+        ECKey key = new ECKey();
+        List<UTXO> outputs = createOutputs(PARAMS, key, 2);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(outputs.get(0));
+        store.addUnspentTransactionOutput(outputs.get(1));
+        store.removeUnspentTransactionOutput(outputs.get(1));
+        // Queries that can't use the outputs of the batch write see them written already.
+        assertEquals(1, store.getOpenTransactionOutputs(Collections.singletonList(key)).size());
+        store.commitDatabaseBatchWrite();
+
+        store.close();
+        store = openStore(PARAMS, 10);
+        assertEquals(outputs.get(0), getOutput(outputs.get(0)));
+        assertNull(getOutput(outputs.get(1)));
+        assertEquals(1, store.getOpenTransactionOutputs(Collections.singletonList(key)).size());
+        store.close();
+    }
+
+    @Test
+    public void batchWriteIgnoresExistingOutputs() throws Exception {
+        store = createStore(PARAMS, 10);
+        List<UTXO> outputs = createOutputs(PARAMS, new ECKey(), 3);
+        store.addUnspentTransactionOutput(outputs.get(1));
+        store.beginDatabaseBatchWrite();
+        for (UTXO output : outputs)
+            store.addUnspentTransactionOutput(output);
+        store.commitDatabaseBatchWrite();
+        // The rest of the batch write was inserted one by one, and the transaction is still usable.
+        for (UTXO output : outputs)
+            assertEquals(output, getOutput(output));
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(outputs.get(0));
+        store.commitDatabaseBatchWrite();
+        assertNull(getOutput(outputs.get(0)));
+        store.close();
+    }
+
+    @Test
+    public void commitInterval() throws Exception {
+        H2FullPrunedBlockStore h2Store = (H2FullPrunedBlockStore) createStore(PARAMS, 10);
+        store = h2Store;
+        h2Store.setCommitInterval(3);
+        List<UTXO> outputs = createOutputs(PARAMS, new ECKey(), 4);
+        for (int i = 0; i < 2; i++) {
+            store.beginDatabaseBatchWrite();
+            store.addUnspentTransactionOutput(outputs.get(i));
+            store.commitDatabaseBatchWrite();
+        }
+        // Only the last batch write is rolled back.
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(outputs.get(2));
+        store.removeUnspentTransactionOutput(outputs.get(0));
+        store.abortDatabaseBatchWrite();
+        assertEquals(outputs.get(0), getOutput(outputs.get(0)));
+        assertEquals(outputs.get(1), getOutput(outputs.get(1)));
+        assertNull(getOutput(outputs.get(2)));
+
+        // Closing commits the batch writes that are still uncommitted.
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(outputs.get(3));
+        store.commitDatabaseBatchWrite();
+        store.close();
+        store = openStore(PARAMS, 10);
+        assertEquals(outputs.get(0), getOutput(outputs.get(0)));
+        assertEquals(outputs.get(1), getOutput(outputs.get(1)));
+        assertEquals(outputs.get(3), getOutput(outputs.get(3)));
+        store.close();
+    }
+
+    @Test
+    public void commitIntervalOtherThread() throws Exception {
+        H2FullPrunedBlockStore h2Store = (H2FullPrunedBlockStore) createStore(PARAMS, 10);
+        store = h2Store;
+        h2Store.setCommitInterval(10);
+        final UTXO output = createOutputs(PARAMS, new ECKey(), 1).get(0);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(output);
+        store.commitDatabaseBatchWrite();
+        final UTXO[] found = new UTXO[1];
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    found[0] = getOutput(output);
+                } catch (BlockStoreException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+        assertEquals(output, found[0]);
+        store.close();
+    }
+
+    @Test
+    public void prefetchManyTransactions() throws Exception {
+        H2FullPrunedBlockStore h2Store = (H2FullPrunedBlockStore) createStore(PARAMS, 10);
+        store = h2Store;
+        // More than are looked up by one query.
+        List<UTXO> outputs = createOutputs(PARAMS, new ECKey(), 250);
+        List<TransactionOutPoint> outPoints = new ArrayList<>();
+        for (UTXO output : outputs) {
+            store.addUnspentTransactionOutput(output);
+            outPoints.add(new TransactionOutPoint(PARAMS, output.getIndex(), output.getHash()));
+        }
+        h2Store.prefetchTransactionOutputs(outPoints);
+        store.beginDatabaseBatchWrite();
+        for (UTXO output : outputs) {
+            assertEquals(output, getOutput(output));
+            store.removeUnspentTransactionOutput(output);
+        }
+        store.commitDatabaseBatchWrite();
+        for (UTXO output : outputs)
+            assertNull(getOutput(output));
+        store.close();
+    }
 }
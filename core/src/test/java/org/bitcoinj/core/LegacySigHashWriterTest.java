@@ -0,0 +1,138 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.script.ScriptOpCodes;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.bitcoinj.core.Utils.uint32ToByteStreamLE;
+import static org.junit.Assert.assertEquals;
+
+public class LegacySigHashWriterTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    private Random random;
+
+    @Before
+    public void setUp() {
+        random = new Random(42);
+    }
+
+    @Test
+    public void matchesCopyBasedSigHashForAllTypes() throws Exception {
+        byte[] connectedScript = new ScriptBuilder().op(ScriptOpCodes.OP_DUP).op(ScriptOpCodes.OP_CODESEPARATOR)
+                .data(new byte[20]).op(ScriptOpCodes.OP_CODESEPARATOR).op(ScriptOpCodes.OP_CHECKSIG).build()
+                .getProgram();
+        for (int numInputs : new int[] { 1, 3, 7 }) {
+            for (int numOutputs : new int[] { 1, 3, 7 }) {
+                Transaction tx = createTransaction(numInputs, numOutputs, numInputs > 1);
+                for (int inputIndex = 0; inputIndex < numInputs; inputIndex++) {
+                    for (int sigHashType = 0; sigHashType < 256; sigHashType++) {
+                        assertEquals("inputs=" + numInputs + " outputs=" + numOutputs + " sighash=" + sigHashType,
+                                copyBasedHashForSignature(tx, inputIndex, connectedScript, (byte) sigHashType),
+                                tx.hashForSignature(inputIndex, connectedScript, (byte) sigHashType));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void sigHashSingleWithoutMatchingOutput() {
+        Transaction tx = createTransaction(3, 1, false);
+        byte sigHashType = (byte) Transaction.SigHash.SINGLE.value;
+        assertEquals(LegacySigHashWriter.SIGHASH_SINGLE_BUG_HASH, tx.hashForSignature(2, new byte[0], sigHashType));
+    }
+
+    @Test
+    public void manyInputsUseMultiByteVarInts() throws Exception {
+        Transaction tx = createTransaction(300, 260, false);
+        byte[] connectedScript = ScriptBuilder.createP2PKHOutputScript(new ECKey()).getProgram();
+        for (Transaction.SigHash type : Transaction.SigHash.values()) {
+            assertEquals(copyBasedHashForSignature(tx, 259, connectedScript, type.byteValue()),
+                    tx.hashForSignature(259, connectedScript, type.byteValue()));
+        }
+    }
+
+    private Transaction createTransaction(int numInputs, int numOutputs, boolean withWitness) {
+        Transaction tx = new Transaction(UNITTEST);
+        for (int i = 0; i < numInputs; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            TransactionInput input = tx.addInput(Sha256Hash.wrap(hash), random.nextInt(10),
+                    new ScriptBuilder().data(new byte[random.nextInt(100) + 2]).build());
+            input.setSequenceNumber(random.nextInt() & 0xffffffffL);
+            if (withWitness && i % 2 == 0)
+                input.setWitness(TransactionWitness.redeemP2WPKH(null, new ECKey()));
+        }
+        for (int i = 0; i < numOutputs; i++)
+            tx.addOutput(Coin.valueOf(random.nextInt(Integer.MAX_VALUE)), new ECKey());
+        tx.setLockTime(random.nextInt() & 0xffffffffL);
+        return tx;
+    }
+
+    /** The algorithm hashForSignature used before: serialize a modified copy of the transaction. */
+    private static Sha256Hash copyBasedHashForSignature(Transaction original, int inputIndex, byte[] connectedScript,
+                                                         byte sigHashType) throws IOException {
+        Transaction tx = UNITTEST.getDefaultSerializer().makeTransaction(original.bitcoinSerialize());
+        for (TransactionInput input : tx.getInputs()) {
+            input.clearScriptBytes();
+            input.setWitness(null);
+        }
+        connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
+        TransactionInput input = tx.getInput(inputIndex);
+        input.setScriptBytes(connectedScript);
+
+        if ((sigHashType & 0x1f) == Transaction.SigHash.NONE.value) {
+            tx.clearOutputs();
+            for (int i = 0; i < tx.getInputs().size(); i++)
+                if (i != inputIndex)
+                    tx.getInput(i).setSequenceNumber(0);
+        } else if ((sigHashType & 0x1f) == Transaction.SigHash.SINGLE.value) {
+            if (inputIndex >= tx.getOutputs().size())
+                return LegacySigHashWriter.SIGHASH_SINGLE_BUG_HASH;
+            List<TransactionOutput> outputs = new ArrayList<>(tx.getOutputs().subList(0, inputIndex + 1));
+            tx.clearOutputs();
+            for (int i = 0; i < inputIndex; i++)
+                tx.addOutput(new TransactionOutput(UNITTEST, tx, Coin.NEGATIVE_SATOSHI, new byte[] {}));
+            tx.addOutput(outputs.get(inputIndex));
+            for (int i = 0; i < tx.getInputs().size(); i++)
+                if (i != inputIndex)
+                    tx.getInput(i).setSequenceNumber(0);
+        }
+
+        if ((sigHashType & Transaction.SigHash.ANYONECANPAY.value) == Transaction.SigHash.ANYONECANPAY.value) {
+            tx.clearInputs();
+            tx.addInput(input);
+        }
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        tx.bitcoinSerializeToStream(bos, false);
+        uint32ToByteStreamLE(0x000000ff & sigHashType, bos);
+        return Sha256Hash.twiceOf(bos.toByteArray());
+    }
+}
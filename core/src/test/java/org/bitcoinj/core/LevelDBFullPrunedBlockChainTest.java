@@ -20,8 +20,14 @@ import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.FullPrunedBlockStore;
 import org.bitcoinj.store.LevelDBFullPrunedBlockStore;
 import org.junit.After;
+import org.junit.Test;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
 
 /**
  * An H2 implementation of the FullPrunedBlockStoreTest
@@ -54,4 +60,33 @@ public class LevelDBFullPrunedBlockChainTest extends
             throws BlockStoreException {
         ((LevelDBFullPrunedBlockStore) store).resetStore();
     }
+
+    @Test
+    public void compactOutputs() throws Exception {
+        store = createStore(PARAMS, 10);
+        ECKey key = new ECKey();
+        List<UTXO> outputs = new ArrayList<>(createOutputs(PARAMS, key, 5));
+        // An index that doesn't fit the short encoding.
+        UTXO last = outputs.get(4);
+        outputs.set(4, new UTXO(last.getHash(), 100000, last.getValue(), last.getHeight(), false, last.getScript(),
+                last.getAddress()));
+        for (UTXO output : outputs)
+            store.addUnspentTransactionOutput(output);
+        store.removeUnspentTransactionOutput(outputs.get(3));
+        store.close();
+
+        store = new LevelDBFullPrunedBlockStore(PARAMS, "test-leveldb", 10);
+        try {
+            for (UTXO output : outputs) {
+                if (output == outputs.get(3))
+                    continue;
+                assertEquals(output, getOutput(output));
+                assertTrue(store.hasUnspentOutputs(output.getHash(), (int) output.getIndex() + 1));
+            }
+            assertNull(getOutput(outputs.get(3)));
+            assertEquals(4, store.getOpenTransactionOutputs(Collections.singletonList(key)).size());
+        } finally {
+            store.close();
+        }
+    }
 }
@@ -0,0 +1,53 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class ReadBufferPoolTest {
+    @Test
+    public void takesSmallestBufferLargeEnough() {
+        ReadBufferPool pool = new ReadBufferPool(100, 300);
+        byte[] small = new byte[50], medium = new byte[80], large = new byte[100];
+        pool.give(large);
+        pool.give(small);
+        pool.give(medium);
+        assertEquals(230, pool.getPooledBytes());
+
+        assertSame(medium, pool.take(60));
+        assertSame(large, pool.take(60));
+        assertNull(pool.take(60));
+        assertSame(small, pool.take(10));
+        assertEquals(0, pool.getPooledBytes());
+    }
+
+    @Test
+    public void keepsWithinBounds() {
+        ReadBufferPool pool = new ReadBufferPool(100, 150);
+        pool.give(new byte[101]);
+        assertEquals(0, pool.getPooledBytes());
+        pool.give(new byte[100]);
+        pool.give(new byte[60]);
+        assertEquals(100, pool.getPooledBytes());
+        pool.give(new byte[50]);
+        assertEquals(150, pool.getPooledBytes());
+    }
+}
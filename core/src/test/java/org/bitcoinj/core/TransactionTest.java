@@ -459,6 +459,52 @@ public class TransactionTest {
         assertEquals(signedTxHex.length() / 2, tx.getMessageSize());
     }
 
+    @Test
+    public void witnessSigHashContextFollowsMutations() {
+        Transaction tx = new Transaction(TESTNET);
+        tx.addInput(Sha256Hash.of(new byte[] { 1 }), 0, ScriptBuilder.createEmpty());
+        tx.addInput(Sha256Hash.of(new byte[] { 2 }), 1, ScriptBuilder.createEmpty());
+        tx.addOutput(Coin.COIN, new ECKey());
+        tx.addOutput(Coin.CENT, new ECKey());
+        byte[] scriptCode = ScriptBuilder.createP2PKHOutputScript(new ECKey()).getProgram();
+        WitnessSigHashContext context = tx.getWitnessSigHashContext();
+
+        // Setting scripts or witnesses must not drop the shared digests, otherwise signing stays quadratic.
+        tx.getInput(0).setScriptSig(new ScriptBuilder().data(new byte[20]).build());
+        tx.getInput(0).setWitness(TransactionWitness.EMPTY);
+        assertSame(context, tx.getWitnessSigHashContext());
+        assertWitnessSigHashesMatchFreshCopy(tx, scriptCode);
+
+        tx.getInput(1).setSequenceNumber(TransactionInput.NO_SEQUENCE - 1);
+        assertWitnessSigHashesMatchFreshCopy(tx, scriptCode);
+        tx.getInput(1).getOutpoint().setIndex(3);
+        assertWitnessSigHashesMatchFreshCopy(tx, scriptCode);
+        tx.getInput(0).getOutpoint().setHash(Sha256Hash.of(new byte[] { 3 }));
+        assertWitnessSigHashesMatchFreshCopy(tx, scriptCode);
+        tx.getOutput(0).setValue(Coin.FIFTY_COINS);
+        assertWitnessSigHashesMatchFreshCopy(tx, scriptCode);
+        tx.addOutput(Coin.SATOSHI, new ECKey());
+        assertWitnessSigHashesMatchFreshCopy(tx, scriptCode);
+        tx.addInput(Sha256Hash.of(new byte[] { 4 }), 2, ScriptBuilder.createEmpty());
+        assertWitnessSigHashesMatchFreshCopy(tx, scriptCode);
+        tx.clearOutputs();
+        tx.addOutput(Coin.COIN, new ECKey());
+        assertWitnessSigHashesMatchFreshCopy(tx, scriptCode);
+    }
+
+    private void assertWitnessSigHashesMatchFreshCopy(Transaction tx, byte[] scriptCode) {
+        Transaction copy = new Transaction(TESTNET, tx.bitcoinSerialize());
+        for (int i = 0; i < tx.getInputs().size(); i++) {
+            for (Transaction.SigHash type : new Transaction.SigHash[] { Transaction.SigHash.ALL,
+                    Transaction.SigHash.NONE, Transaction.SigHash.SINGLE }) {
+                for (boolean anyoneCanPay : new boolean[] { false, true }) {
+                    assertEquals(copy.hashForWitnessSignature(i, scriptCode, Coin.COIN, type, anyoneCanPay),
+                            tx.hashForWitnessSignature(i, scriptCode, Coin.COIN, type, anyoneCanPay));
+                }
+            }
+        }
+    }
+
     private boolean correctlySpends(TransactionInput txIn, Script scriptPubKey, int inputIndex) {
         try {
             txIn.getScriptSig().correctlySpends(txIn.getParentTransaction(), inputIndex, txIn.getWitness(),
@@ -22,6 +22,7 @@ import org.bitcoinj.utils.*;
 import org.junit.*;
 
 import java.net.*;
+import java.util.*;
 
 import static org.bitcoinj.core.Coin.COIN;
 import static org.easymock.EasyMock.anyObject;
@@ -32,6 +33,7 @@ import static org.easymock.EasyMock.replay;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 
 public class TxConfidenceTableTest {
     private static final NetworkParameters UNITTEST = UnitTestParams.get();
@@ -140,4 +142,39 @@ public class TxConfidenceTableTest {
         assertEquals(3, tx2.getConfidence().numBroadcastPeers());
         assertEquals(3, table.numBroadcastPeers(tx1.getTxId()));
     }
+
+    @Test
+    public void evictsWhenFull() throws Exception {
+        TxConfidenceTable table = new TxConfidenceTable(100);
+        // Hold on to the confidences, so that none of them is dropped by the GC instead.
+        List<TransactionConfidence> confidences = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+            confidences.add(table.seen(Sha256Hash.of(new byte[] { (byte) i, (byte) (i >> 8) }), address1));
+        assertEquals(100, table.size());
+        assertEquals(900, table.getEvictions());
+        // The last one added is always kept.
+        Sha256Hash last = confidences.get(999).getTransactionHash();
+        assertSame(confidences.get(999), table.get(last));
+        assertEquals(1, table.numBroadcastPeers(last));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        TxConfidenceTable table = new TxConfidenceTable(100);
+        List<TransactionConfidence> confidences = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            confidences.add(table.seen(Sha256Hash.of(new byte[] { (byte) i }), address1));
+        // The table fills up to its size, however the transactions are spread over its shards.
+        assertEquals(100, table.size());
+        assertEquals(0, table.getEvictions());
+
+        Sha256Hash first = confidences.get(0).getTransactionHash();
+        assertSame(confidences.get(0), table.get(first));
+        confidences.add(table.seen(Sha256Hash.of(new byte[] { (byte) 100 }), address1));
+        assertEquals(100, table.size());
+        assertEquals(1, table.getEvictions());
+        // The first one was used since, so the second one is dropped.
+        assertSame(confidences.get(0), table.get(first));
+        assertNull(table.get(confidences.get(1).getTransactionHash()));
+    }
 }
@@ -22,8 +22,12 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 import org.bitcoinj.core.Utils;
+import org.bitcoinj.utils.Threading;
 import org.bitcoinj.crypto.HDKeyDerivation.PublicDeriveMode;
 import org.bouncycastle.crypto.params.KeyParameter;
 import org.junit.Test;
@@ -138,4 +142,23 @@ public class HDKeyDerivationTest {
         assertEquals(EXPECTED_CHILD_PRIVATE_KEY, fromPublicWithInversion.getPrivateKeyAsHex());
         assertEquals(EXPECTED_CHILD_PUBLIC_KEY, fromPublicWithInversion.getPublicKeyAsHex());
     }
+
+    @Test
+    public void testDeriveChildKeys() {
+        DeterministicKey parent = new DeterministicKey(ImmutableList.<ChildNumber> of(), new byte[32], BigInteger.TEN,
+                null);
+        for (DeterministicKey p : ImmutableList.of(parent, parent.dropPrivateBytes())) {
+            for (Executor executor : Arrays.asList(null, Threading.THREAD_POOL)) {
+                List<DeterministicKey> keys = HDKeyDerivation.deriveChildKeys(p, 5, 100, executor);
+                assertEquals(100, keys.size());
+                for (int i = 0; i < keys.size(); i++) {
+                    DeterministicKey expected = HDKeyDerivation.deriveChildKey(p, new ChildNumber(5 + i, false));
+                    assertEquals(expected, keys.get(i));
+                    assertEquals(p.isPubKeyOnly(), keys.get(i).isPubKeyOnly());
+                    assertEquals(p, keys.get(i).getParent());
+                }
+            }
+        }
+        assertTrue(HDKeyDerivation.deriveChildKeys(parent, 0, 0, Threading.THREAD_POOL).isEmpty());
+    }
 }
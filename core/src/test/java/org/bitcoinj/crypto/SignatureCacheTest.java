@@ -0,0 +1,81 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.crypto;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SignatureCacheTest {
+    private SignatureCache cache;
+    private ECKey key;
+    private Sha256Hash hash;
+    private ECKey.ECDSASignature signature;
+
+    @Before
+    public void setUp() {
+        cache = new SignatureCache(10);
+        key = new ECKey();
+        hash = Sha256Hash.of(new byte[] { 1, 2, 3 });
+        signature = key.sign(hash);
+    }
+
+    @Test
+    public void remembersValidSignatures() {
+        assertTrue(cache.verify(hash, signature, key.getPubKey()));
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertTrue(cache.verify(hash, signature, key.getPubKey()));
+        assertEquals(1, cache.getHits());
+        assertEquals(0.5, cache.getHitRate(), 0);
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void doesNotRememberInvalidSignatures() {
+        Sha256Hash otherHash = Sha256Hash.of(new byte[] { 4 });
+        assertFalse(cache.verify(otherHash, signature, key.getPubKey()));
+        assertFalse(cache.verify(otherHash, signature, key.getPubKey()));
+        assertFalse(cache.verify(hash, signature, new ECKey().getPubKey()));
+        assertEquals(0, cache.getHits());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void doesNotRememberFakeSignatures() {
+        Sha256Hash otherHash = Sha256Hash.of(new byte[] { 4 });
+        ECKey.FAKE_SIGNATURES = true;
+        try {
+            assertTrue(cache.verify(otherHash, signature, key.getPubKey()));
+        } finally {
+            ECKey.FAKE_SIGNATURES = false;
+        }
+        assertFalse(cache.verify(otherHash, signature, key.getPubKey()));
+    }
+
+    @Test
+    public void bounded() {
+        for (int i = 0; i < 20; i++) {
+            Sha256Hash hash = Sha256Hash.of(new byte[] { (byte) i });
+            assertTrue(cache.verify(hash, key.sign(hash), key.getPubKey()));
+        }
+        assertTrue(cache.size() <= 10);
+    }
+}
@@ -49,7 +49,7 @@ public class NetworkAbstractionTests {
 
     @Parameterized.Parameters
     public static Collection<Integer[]> parameters() {
-        return Arrays.asList(new Integer[]{0}, new Integer[]{1}, new Integer[]{2}, new Integer[]{3});
+        return Arrays.asList(new Integer[]{0}, new Integer[]{1}, new Integer[]{2}, new Integer[]{3}, new Integer[]{4});
     }
 
     public NetworkAbstractionTests(Integer clientType) throws Exception {
@@ -60,12 +60,15 @@ public class NetworkAbstractionTests {
         } else if (clientType == 1) {
             channels = new BlockingClientManager();
             channels.startAsync();
+        } else if (clientType == 4) {
+            channels = new NioClientManager(3);
+            channels.startAsync();
         } else
             channels = null;
     }
 
     private MessageWriteTarget openConnection(SocketAddress addr, ProtobufConnection<TwoWayChannelMessage> parser) throws Exception {
-        if (clientType == 0 || clientType == 1) {
+        if (clientType == 0 || clientType == 1 || clientType == 4) {
             channels.openConnection(addr, parser);
             if (parser.writeTarget.get() == null)
                 Thread.sleep(100);
@@ -483,6 +486,8 @@ public class NetworkAbstractionTests {
         Thread.sleep(10);
         client.writeBytes(Arrays.copyOfRange(messageBytes2, 4, messageBytes2.length));
         assertEquals(msg2, clientMessage4Received.get());
+        // Everything the server received has left the outbound queue.
+        assertEquals(0, ((QueuedMessageWriteTarget) client).getOutboundQueueBytes());
 
         Protos.TwoWayChannelMessage msg5 = Protos.TwoWayChannelMessage.newBuilder()
                 .setType(Protos.TwoWayChannelMessage.MessageType.CHANNEL_OPEN)
@@ -429,6 +429,187 @@ public class ScriptTest {
         }
     }
 
+    @Test
+    public void dataDrivenScriptsMatchReferenceInterpreter() throws Exception {
+        JsonNode json = new ObjectMapper()
+                .readTree(new InputStreamReader(getClass().getResourceAsStream("script_tests.json"), StandardCharsets.UTF_8));
+        for (JsonNode test : json) {
+            if (test.size() == 1)
+                continue; // skip comment
+            Set<VerifyFlag> verifyFlags = parseVerifyFlags(test.get(2).asText());
+            Script scriptSig, scriptPubKey;
+            try {
+                scriptSig = parseScriptString(test.get(0).asText());
+                scriptPubKey = parseScriptString(test.get(1).asText());
+            } catch (ScriptException e) {
+                continue; // doesn't parse, so neither interpreter gets to run it
+            }
+            Transaction txSpend = buildSpendingTransaction(buildCreditingTransaction(scriptPubKey), scriptSig);
+            assertSameOutcome(test.toString(), txSpend, 0, scriptSig, scriptPubKey, verifyFlags);
+        }
+    }
+
+    @Test
+    public void dataDrivenTransactionsMatchReferenceInterpreter() throws Exception {
+        for (String resource : new String[] { "tx_valid.json", "tx_invalid.json" }) {
+            JsonNode json = new ObjectMapper().readTree(new InputStreamReader(getClass().getResourceAsStream(
+                    resource), StandardCharsets.UTF_8));
+            for (JsonNode test : json) {
+                if (test.isArray() && test.size() == 1 && test.get(0).isTextual())
+                    continue; // This is a comment.
+                Map<TransactionOutPoint, Script> scriptPubKeys = parseScriptPubKeys(test.get(0));
+                Transaction transaction = TESTNET.getDefaultSerializer().makeTransaction(HEX.decode(test.get(1).asText().toLowerCase()));
+                Set<VerifyFlag> verifyFlags = parseVerifyFlags(test.get(2).asText());
+                for (int i = 0; i < transaction.getInputs().size(); i++) {
+                    TransactionInput input = transaction.getInputs().get(i);
+                    Script scriptPubKey = scriptPubKeys.get(input.getOutpoint());
+                    if (scriptPubKey == null)
+                        continue;
+                    assertSameOutcome(resource + " " + test, transaction, i, input.getScriptSig(), scriptPubKey,
+                            verifyFlags);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void randomScriptsMatchReferenceInterpreter() throws Exception {
+        Random random = new Random(1);
+        List<VerifyFlag> allFlags = Arrays.asList(VerifyFlag.values());
+        for (int i = 0; i < 20000; i++) {
+            Set<VerifyFlag> verifyFlags = EnumSet.noneOf(VerifyFlag.class);
+            for (VerifyFlag flag : allFlags)
+                if (random.nextBoolean())
+                    verifyFlags.add(flag);
+            byte[] pubKeyProgram = randomProgram(random);
+            Script scriptPubKey;
+            Script scriptSig;
+            try {
+                if (random.nextInt(4) == 0) {
+                    // Spend a P2SH output, so that the random program is run as the redeem script.
+                    scriptPubKey = ScriptBuilder.createP2SHOutputScript(Utils.sha256hash160(pubKeyProgram));
+                    UnsafeByteArrayOutputStream sigProgram = new UnsafeByteArrayOutputStream();
+                    Script.writeBytes(sigProgram, randomProgram(random));
+                    Script.writeBytes(sigProgram, pubKeyProgram);
+                    scriptSig = new Script(sigProgram.toByteArray());
+                } else {
+                    scriptPubKey = new Script(pubKeyProgram);
+                    scriptSig = new Script(randomProgram(random));
+                }
+            } catch (ScriptException e) {
+                continue; // doesn't parse, so neither interpreter gets to run it
+            }
+            Transaction txSpend = buildSpendingTransaction(buildCreditingTransaction(scriptPubKey), scriptSig);
+            assertSameOutcome(scriptSig + " / " + scriptPubKey + " / " + verifyFlags, txSpend, 0, scriptSig,
+                    scriptPubKey, verifyFlags);
+        }
+    }
+
+    @Test
+    public void encodeNumberMatchesMPI() {
+        for (long value = -70000; value <= 70000; value++)
+            assertArrayEquals(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(value), false)),
+                    ScriptInterpreter.encodeNumber(value));
+        for (long value : new long[] { Integer.MAX_VALUE, Integer.MIN_VALUE + 1, 2L * Integer.MAX_VALUE,
+                -2L * Integer.MAX_VALUE, 0xffffffffL, 0x7fffffffffL, -0x7fffffffffL })
+            assertArrayEquals(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(value), false)),
+                    ScriptInterpreter.encodeNumber(value));
+    }
+
+    private static final int[] RANDOM_OPCODES;
+    static {
+        List<Integer> opcodes = new ArrayList<>();
+        for (int opcode = ScriptOpCodes.OP_1NEGATE; opcode <= 0xff; opcode++)
+            opcodes.add(opcode);
+        RANDOM_OPCODES = new int[opcodes.size()];
+        for (int i = 0; i < RANDOM_OPCODES.length; i++)
+            RANDOM_OPCODES[i] = opcodes.get(i);
+    }
+
+    /** A short program of random opcodes and pushes, biased towards numbers and valid structure. */
+    private static byte[] randomProgram(Random random) throws IOException {
+        UnsafeByteArrayOutputStream out = new UnsafeByteArrayOutputStream();
+        int length = random.nextInt(12);
+        for (int i = 0; i < length; i++) {
+            switch (random.nextInt(4)) {
+            case 0:
+                // number or small data push, sometimes not minimally encoded
+                byte[] data = new byte[random.nextInt(6)];
+                random.nextBytes(data);
+                if (random.nextBoolean() && data.length > 0)
+                    data[data.length - 1] &= 0x7f;
+                if (random.nextInt(4) == 0)
+                    out.write(new byte[] { (byte) ScriptOpCodes.OP_PUSHDATA1, (byte) data.length });
+                else
+                    out.write(data.length);
+                out.write(data);
+                break;
+            case 1:
+                out.write(ScriptOpCodes.OP_1NEGATE + random.nextInt(18));
+                break;
+            case 2:
+                // raw byte, which may be a truncated push
+                out.write(random.nextInt(256));
+                break;
+            default:
+                out.write(RANDOM_OPCODES[random.nextInt(RANDOM_OPCODES.length)]);
+                break;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void assertSameOutcome(String message, Transaction tx, int index, Script scriptSig,
+                                          Script scriptPubKey, Set<VerifyFlag> verifyFlags) {
+        String expected = outcome(tx, index, scriptSig, scriptPubKey, verifyFlags, true);
+        String actual = outcome(tx, index, scriptSig, scriptPubKey, verifyFlags, false);
+        assertEquals(message, expected, actual);
+    }
+
+    private static String outcome(Transaction tx, int index, Script scriptSig, Script scriptPubKey,
+                                  Set<VerifyFlag> verifyFlags, boolean reference) {
+        try {
+            if (reference)
+                referenceCorrectlySpends(tx, index, scriptSig, scriptPubKey, verifyFlags);
+            else
+                scriptSig.correctlySpends(tx, index, scriptPubKey, verifyFlags);
+            return ScriptError.SCRIPT_ERR_OK.getMnemonic();
+        } catch (ScriptException e) {
+            return e.getError().getMnemonic();
+        } catch (RuntimeException e) {
+            return e.getClass().getName();
+        }
+    }
+
+    /** Verification on top of the chunk based {@link Script#executeScript}, as correctlySpends used to do it. */
+    private static void referenceCorrectlySpends(Transaction tx, int index, Script scriptSig, Script scriptPubKey,
+                                                 Set<VerifyFlag> verifyFlags) {
+        if (scriptSig.getProgram().length > 10000 || scriptPubKey.getProgram().length > 10000)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_SCRIPT_SIZE, "Script larger than 10,000 bytes");
+        LinkedList<byte[]> stack = new LinkedList<>();
+        Script.executeScript(tx, index, scriptSig, stack, verifyFlags);
+        LinkedList<byte[]> p2shStack = new LinkedList<>(stack);
+        Script.executeScript(tx, index, scriptPubKey, stack, verifyFlags);
+        if (stack.isEmpty() || !castToBool(stack.getLast()))
+            throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE, "false");
+        if (verifyFlags.contains(VerifyFlag.P2SH) && ScriptPattern.isP2SH(scriptPubKey)) {
+            for (ScriptChunk chunk : scriptSig.getChunks())
+                if (!chunk.isPushData())
+                    throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_PUSHONLY, chunk.toString());
+            Script redeemScript = new Script(p2shStack.pollLast());
+            Script.executeScript(tx, index, redeemScript, p2shStack, verifyFlags);
+            if (p2shStack.isEmpty() || !castToBool(p2shStack.getLast()))
+                throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE, "false");
+        }
+    }
+
+    private static boolean castToBool(byte[] data) {
+        for (int i = 0; i < data.length; i++)
+            if (data[i] != 0)
+                return !(i == data.length - 1 && (data[i] & 0xFF) == 0x80);
+        return false;
+    }
+
     @Test
     public void testCLTVPaymentChannelOutput() {
         Script script = ScriptBuilder.createCLTVPaymentChannelOutput(BigInteger.valueOf(20), new ECKey(), new ECKey());
@@ -0,0 +1,114 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.SegwitAddress;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class CompactUTXOEncodingTest {
+    private static final NetworkParameters MAINNET = MainNetParams.get();
+    private static final Sha256Hash HASH = Sha256Hash.of(new byte[] { 1 });
+
+    @Test
+    public void compressAmount() {
+        // Test vectors of Bitcoin Core.
+        assertEquals(0, CompactUTXOEncoding.compressAmount(0));
+        assertEquals(1, CompactUTXOEncoding.compressAmount(1));
+        assertEquals(7, CompactUTXOEncoding.compressAmount(Coin.CENT.value));
+        assertEquals(9, CompactUTXOEncoding.compressAmount(Coin.COIN.value));
+        assertEquals(50, CompactUTXOEncoding.compressAmount(Coin.FIFTY_COINS.value));
+        assertEquals(21000000, CompactUTXOEncoding.compressAmount(MAINNET.getMaxMoney().value));
+        for (long n : new long[] { 0, 1, 9, 10, 123456789, Coin.CENT.value, 4999999999L, MAINNET.getMaxMoney().value })
+            assertEquals(n, CompactUTXOEncoding.decompressAmount(CompactUTXOEncoding.compressAmount(n)));
+    }
+
+    @Test
+    public void templates() {
+        ECKey key = new ECKey();
+        byte[] hash32 = Sha256Hash.hash(key.getPubKey());
+        Script[] scripts = {
+                ScriptBuilder.createOutputScript(LegacyAddress.fromKey(MAINNET, key)),
+                ScriptBuilder.createP2SHOutputScript(key.getPubKeyHash()),
+                ScriptBuilder.createOutputScript(SegwitAddress.fromKey(MAINNET, key)),
+                ScriptBuilder.createOutputScript(SegwitAddress.fromHash(MAINNET, hash32)),
+        };
+        for (int i = 0; i < scripts.length; i++) {
+            UTXO output = new UTXO(HASH, 3, Coin.COIN, 100, false, scripts[i]);
+            byte[] encoded = CompactUTXOEncoding.encode(output);
+            // Height, amount, template and hash.
+            assertEquals(3 + (i == 3 ? 32 : 20), encoded.length);
+            assertEquals(i, encoded[2]);
+            assertDecodes(output, encoded);
+        }
+    }
+
+    @Test
+    public void otherScripts() {
+        Script[] scripts = {
+                ScriptBuilder.createP2PKOutputScript(new ECKey()),
+                new Script(new byte[0]),
+                ScriptBuilder.createOpReturnScript(new byte[80]),
+        };
+        for (Script script : scripts) {
+            UTXO output = new UTXO(HASH, 70000, Coin.valueOf(123456789), 1, true, script);
+            assertDecodes(output, CompactUTXOEncoding.encode(output));
+        }
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void truncated() {
+        UTXO output = new UTXO(HASH, 0, Coin.COIN, 1, false, ScriptBuilder.createP2PKOutputScript(new ECKey()));
+        byte[] encoded = CompactUTXOEncoding.encode(output);
+        CompactUTXOEncoding.decode(HASH, 0, Arrays.copyOf(encoded, encoded.length - 1));
+    }
+
+    @Test
+    public void keys() {
+        for (long index : new long[] { 0, 252, 253, 70000, 0xFFFFFFFFL }) {
+            byte[] key = CompactUTXOEncoding.encodeKey((byte) 9, HASH, index);
+            assertEquals(9, key[0]);
+            assertArrayEquals(HASH.getBytes(), Arrays.copyOfRange(key, 1, 33));
+            assertEquals(index, CompactUTXOEncoding.decodeIndex(key, 33));
+        }
+        assertEquals(34, CompactUTXOEncoding.encodeKey((byte) 9, HASH, 1).length);
+    }
+
+    private static void assertDecodes(UTXO expected, byte[] encoded) {
+        UTXO output = CompactUTXOEncoding.decode(expected.getHash(), expected.getIndex(), encoded);
+        assertEquals(expected.getHash(), output.getHash());
+        assertEquals(expected.getIndex(), output.getIndex());
+        assertEquals(expected.getValue(), output.getValue());
+        assertEquals(expected.getHeight(), output.getHeight());
+        assertEquals(expected.isCoinbase(), output.isCoinbase());
+        assertArrayEquals(expected.getScript().getProgram(), output.getScript().getProgram());
+    }
+}
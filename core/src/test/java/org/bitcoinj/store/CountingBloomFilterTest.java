@@ -0,0 +1,99 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+import static org.junit.Assert.*;
+
+public class CountingBloomFilterTest {
+    private static byte[] hash(int i) {
+        return Sha256Hash.hash(new byte[] { (byte) i, (byte) (i >> 8), (byte) (i >> 16) });
+    }
+
+    @Test
+    public void addAndRemove() {
+        CountingBloomFilter filter = new CountingBloomFilter(1000, 0.01);
+        for (int i = 0; i < 1000; i++)
+            filter.add(hash(i));
+        for (int i = 0; i < 1000; i++)
+            assertTrue(filter.mightContain(hash(i)));
+        for (int i = 0; i < 1000; i++)
+            filter.remove(hash(i));
+        // Every counter is back at zero, unless it was saturated.
+        int found = 0;
+        for (int i = 0; i < 1000; i++)
+            if (filter.mightContain(hash(i)))
+                found++;
+        assertEquals(0, found);
+    }
+
+    @Test
+    public void addedTwice() {
+        CountingBloomFilter filter = new CountingBloomFilter(1000, 0.01);
+        filter.add(hash(1));
+        filter.add(hash(1));
+        filter.remove(hash(1));
+        assertTrue(filter.mightContain(hash(1)));
+        filter.remove(hash(1));
+        assertFalse(filter.mightContain(hash(1)));
+    }
+
+    @Test
+    public void saturatedCountersStay() {
+        CountingBloomFilter filter = new CountingBloomFilter(1000, 0.01);
+        for (int i = 0; i < 20; i++)
+            filter.add(hash(1));
+        for (int i = 0; i < 20; i++)
+            filter.remove(hash(1));
+        assertTrue(filter.mightContain(hash(1)));
+        assertEquals(filter.getHashFunctions(), filter.getSaturatedCounters());
+    }
+
+    @Test
+    public void falsePositiveRate() {
+        CountingBloomFilter filter = new CountingBloomFilter(10000, 0.02);
+        for (int i = 0; i < 10000; i++)
+            filter.add(hash(i));
+        int falsePositives = 0;
+        for (int i = 10000; i < 60000; i++)
+            if (filter.mightContain(hash(i)))
+                falsePositives++;
+        assertTrue("false positives: " + falsePositives, falsePositives < 50000 * 0.03);
+    }
+
+    @Test
+    public void serialization() throws Exception {
+        CountingBloomFilter filter = new CountingBloomFilter(1000, 0.01);
+        for (int i = 0; i < 500; i++)
+            filter.add(hash(i));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        filter.writeTo(new DataOutputStream(bos));
+        CountingBloomFilter read = CountingBloomFilter.readFrom(
+                new DataInputStream(new ByteArrayInputStream(bos.toByteArray())));
+        assertEquals(filter.getSize(), read.getSize());
+        assertEquals(filter.getHashFunctions(), read.getHashFunctions());
+        for (int i = 0; i < 1000; i++)
+            assertEquals(filter.mightContain(hash(i)), read.mightContain(hash(i)));
+    }
+}
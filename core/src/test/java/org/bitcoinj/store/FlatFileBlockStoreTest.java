@@ -0,0 +1,250 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FlatFileBlockStoreTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+    private File directory;
+    private Address to;
+
+    @Before
+    public void setup() throws Exception {
+        directory = Files.createTempDirectory("flatfileblockstore").toFile();
+        to = LegacyAddress.fromKey(UNITTEST, new ECKey());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void basics() throws Exception {
+        FlatFileBlockStore store = new FlatFileBlockStore(UNITTEST, directory);
+        // Check the first block in a new store is the genesis block.
+        StoredBlock genesis = store.getChainHead();
+        assertEquals(UNITTEST.getGenesisBlock(), genesis.getHeader());
+        assertEquals(0, genesis.getHeight());
+        assertEquals(genesis, store.get(0));
+
+        StoredBlock b1 = genesis.build(genesis.getHeader().createNextBlock(to).cloneAsHeader());
+        store.put(b1);
+        store.setChainHead(b1);
+        store.close();
+
+        // Check we can get it back out again if we rebuild the store object.
+        store = new FlatFileBlockStore(UNITTEST, directory);
+        assertEquals(b1, store.get(b1.getHeader().getHash()));
+        assertEquals(b1, store.getChainHead());
+        assertEquals(genesis, store.get(0));
+        assertEquals(b1, store.get(1));
+        assertNull(store.get(2));
+        store.close();
+    }
+
+    @Test(expected = BlockStoreException.class)
+    public void twoStores_onSameDirectory() throws Exception {
+        new FlatFileBlockStore(UNITTEST, directory);
+        new FlatFileBlockStore(UNITTEST, directory);
+    }
+
+    @Test
+    public void getByHeightAcrossSegments() throws Exception {
+        FlatFileBlockStore store = new FlatFileBlockStore(UNITTEST, directory, 7);
+        List<StoredBlock> chain = extend(store, store.getChainHead(), 30);
+        // Blocks are read back from the write buffer before being flushed.
+        for (StoredBlock block : chain)
+            assertEquals(block, store.get(block.getHeight()));
+        store.close();
+
+        store = new FlatFileBlockStore(UNITTEST, directory, 7);
+        assertEquals(chain.get(chain.size() - 1), store.getChainHead());
+        for (StoredBlock block : chain) {
+            assertEquals(block, store.get(block.getHeight()));
+            assertEquals(block, store.get(block.getHeader().getHash()));
+        }
+        store.close();
+        assertEquals(7, directory.listFiles().length); // height and hash indexes and 5 segments for 31 records
+    }
+
+    @Test
+    public void reorgRewindsHeightIndex() throws Exception {
+        FlatFileBlockStore store = new FlatFileBlockStore(UNITTEST, directory);
+        StoredBlock genesis = store.getChainHead();
+        List<StoredBlock> main = extend(store, genesis, 10);
+        store.close();
+
+        // Fork off at height 5 with a longer branch.
+        store = new FlatFileBlockStore(UNITTEST, directory);
+        Address other = LegacyAddress.fromKey(UNITTEST, new ECKey());
+        List<StoredBlock> side = new ArrayList<>();
+        StoredBlock prev = main.get(5);
+        for (int i = 0; i < 7; i++) {
+            StoredBlock block = prev.build(prev.getHeader().createNextBlock(other).cloneAsHeader());
+            store.put(block);
+            side.add(block);
+            prev = block;
+        }
+        store.setChainHead(prev);
+        assertEquals(main.get(5), store.get(5));
+        assertEquals(side.get(0), store.get(6));
+        assertEquals(prev, store.get(12));
+        store.close();
+
+        store = new FlatFileBlockStore(UNITTEST, directory);
+        assertEquals(prev, store.getChainHead());
+        assertEquals(main.get(5), store.get(5));
+        assertEquals(side.get(0), store.get(6));
+        assertEquals(prev, store.get(12));
+        assertNull(store.get(13));
+        // Blocks of the old branch are still there.
+        assertEquals(main.get(10), store.get(main.get(10).getHeader().getHash()));
+
+        // And switching back to a shorter chain truncates the index.
+        store.setChainHead(main.get(8));
+        store.close();
+        store = new FlatFileBlockStore(UNITTEST, directory);
+        assertEquals(main.get(8), store.getChainHead());
+        assertEquals(main.get(6), store.get(6));
+        assertNull(store.get(9));
+        store.close();
+    }
+
+    @Test
+    public void headWithoutAncestors() throws Exception {
+        // Like a store initialized from a checkpoint.
+        FlatFileBlockStore store = new FlatFileBlockStore(UNITTEST, directory);
+        List<StoredBlock> chain = extend(new MemoryBlockStore(UNITTEST), store.getChainHead(), 20);
+        StoredBlock checkpoint = chain.get(15);
+        store.put(checkpoint);
+        store.setChainHead(checkpoint);
+        store.put(chain.get(16));
+        store.setChainHead(chain.get(16));
+        store.close();
+
+        store = new FlatFileBlockStore(UNITTEST, directory);
+        assertEquals(15, store.getFirstHeight());
+        assertNull(store.get(0));
+        assertNull(store.get(14));
+        assertEquals(checkpoint, store.get(15));
+        assertEquals(chain.get(16), store.getChainHead());
+        store.close();
+    }
+
+    @Test
+    public void recoversFromPartialWrite() throws Exception {
+        FlatFileBlockStore store = new FlatFileBlockStore(UNITTEST, directory);
+        List<StoredBlock> chain = extend(store, store.getChainHead(), 5);
+        store.close();
+
+        // Cut the last record in half, as if the system crashed while writing it.
+        File segment = new File(directory, "headers-00000.dat");
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(file.length() - FlatFileBlockStore.RECORD_SIZE / 2);
+        }
+        store = new FlatFileBlockStore(UNITTEST, directory);
+        assertEquals(chain.get(4), store.getChainHead());
+        assertNull(store.get(5));
+        assertNull(store.get(chain.get(5).getHeader().getHash()));
+
+        // The store continues where it lost track.
+        Address other = LegacyAddress.fromKey(UNITTEST, new ECKey());
+        StoredBlock block = chain.get(4).build(chain.get(4).getHeader().createNextBlock(other).cloneAsHeader());
+        store.put(block);
+        store.setChainHead(block);
+        store.close();
+        store = new FlatFileBlockStore(UNITTEST, directory);
+        assertEquals(block, store.get(5));
+        assertEquals(chain.get(4), store.get(chain.get(4).getHeader().getHash()));
+        store.close();
+    }
+
+    @Test
+    public void hashIndexCoversOnlyPartOfTheRecords() throws Exception {
+        FlatFileBlockStore store = new FlatFileBlockStore(UNITTEST, directory, 7);
+        List<StoredBlock> chain = extend(store, store.getChainHead(), 10);
+        store.close();
+        File hashes = new File(directory, FlatFileBlockStore.HASHES_FILE_NAME);
+        byte[] savedHashes = Files.readAllBytes(hashes.toPath());
+
+        store = new FlatFileBlockStore(UNITTEST, directory, 7);
+        chain.addAll(extend(store, store.getChainHead(), 10).subList(1, 11));
+        store.close();
+        // Go back to the hash index of the first ten blocks, as if the store wasn't closed properly.
+        Files.write(hashes.toPath(), savedHashes);
+
+        store = new FlatFileBlockStore(UNITTEST, directory, 7);
+        for (StoredBlock block : chain)
+            assertEquals(block, store.get(block.getHeader().getHash()));
+        assertEquals(chain.get(20), store.getChainHead());
+        store.close();
+    }
+
+    @Test
+    public void rebuildsCorruptHashIndex() throws Exception {
+        FlatFileBlockStore store = new FlatFileBlockStore(UNITTEST, directory);
+        List<StoredBlock> chain = extend(store, store.getChainHead(), 10);
+        store.close();
+        File hashes = new File(directory, FlatFileBlockStore.HASHES_FILE_NAME);
+        try (RandomAccessFile file = new RandomAccessFile(hashes, "rw")) {
+            file.setLength(file.length() - 5);
+        }
+
+        store = new FlatFileBlockStore(UNITTEST, directory);
+        for (StoredBlock block : chain)
+            assertEquals(block, store.get(block.getHeader().getHash()));
+        store.close();
+    }
+
+    // Returns the given start block and the blocks of a chain built on top of it.
+    private List<StoredBlock> extend(BlockStore store, StoredBlock start, int count) throws Exception {
+        List<StoredBlock> chain = new ArrayList<>();
+        chain.add(start);
+        StoredBlock prev = start;
+        for (int i = 0; i < count; i++) {
+            StoredBlock block = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(block);
+            store.setChainHead(block);
+            chain.add(block);
+            prev = block;
+        }
+        return chain;
+    }
+}
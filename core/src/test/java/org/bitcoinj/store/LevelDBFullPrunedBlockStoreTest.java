@@ -0,0 +1,189 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.AbstractFullPrunedBlockChainTest;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.params.UnitTestParams;
+import org.iq80.leveldb.DB;
+import org.iq80.leveldb.Options;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+import static org.fusesource.leveldbjni.JniDBFactory.factory;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the internals of {@link LevelDBFullPrunedBlockStore}, its behavior as a store is tested by
+ * {@link org.bitcoinj.core.LevelDBFullPrunedBlockChainTest}.
+ */
+public class LevelDBFullPrunedBlockStoreTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    private File dir;
+    private ECKey key;
+    private LegacyAddress address;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(UNITTEST));
+        dir = File.createTempFile("leveldbfullprunedblockstore", null);
+        dir.delete();
+        key = new ECKey();
+        address = LegacyAddress.fromKey(UNITTEST, key);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        dir.delete();
+    }
+
+    private List<UTXO> createOutputs(int count) {
+        return AbstractFullPrunedBlockChainTest.createOutputs(UNITTEST, key, count);
+    }
+
+    private LevelDBFullPrunedBlockStore openStore() {
+        return new LevelDBFullPrunedBlockStore(UNITTEST, dir.getPath(), 10, 1048576, 1048576, 1000, false,
+                Integer.MAX_VALUE, 10000, 0.01);
+    }
+
+    @Test
+    public void filter() throws Exception {
+        LevelDBFullPrunedBlockStore store = openStore();
+        List<UTXO> outputs = createOutputs(10);
+        for (UTXO output : outputs)
+            store.addUnspentTransactionOutput(output);
+        // Spent outputs are removed from the filter when the batch is committed.
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(outputs.get(0));
+        assertTrue(store.bloom.mightContain(outputs.get(0).getHash().getBytes()));
+        store.abortDatabaseBatchWrite();
+        assertTrue(store.hasUnspentOutputs(outputs.get(0).getHash(), 1));
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(outputs.get(0));
+        store.addUnspentTransactionOutput(createOutputs(11).get(10));
+        store.commitDatabaseBatchWrite();
+        assertFalse(store.bloom.mightContain(outputs.get(0).getHash().getBytes()));
+        assertFalse(store.hasUnspentOutputs(outputs.get(0).getHash(), 1));
+        store.close();
+        assertTrue(new File(dir, LevelDBFullPrunedBlockStore.FILTER_FILE_NAME).exists());
+
+        // The filter is read back instead of being rebuilt, and deleted until the store is closed again.
+        store = openStore();
+        try {
+            assertFalse(new File(dir, LevelDBFullPrunedBlockStore.FILTER_FILE_NAME).exists());
+            assertEquals(0, store.bloom.added);
+            for (UTXO output : createOutputs(11).subList(1, 11))
+                assertTrue(store.hasUnspentOutputs(output.getHash(), (int) output.getIndex() + 1));
+            assertFalse(store.hasUnspentOutputs(outputs.get(0).getHash(), 1));
+        } finally {
+            store.close();
+        }
+
+        // Without the file it is rebuilt from the outputs.
+        new File(dir, LevelDBFullPrunedBlockStore.FILTER_FILE_NAME).delete();
+        store = openStore();
+        try {
+            assertEquals(10, store.bloom.added);
+            assertFalse(store.bloom.mightContain(outputs.get(0).getHash().getBytes()));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void filterRebuiltWhenSaturated() throws Exception {
+        LevelDBFullPrunedBlockStore store = openStore();
+        List<UTXO> outputs = createOutputs(10);
+        for (UTXO output : outputs)
+            store.addUnspentTransactionOutput(output);
+        // Like transactions with many outputs that were spent since.
+        for (UTXO output : createOutputs(200).subList(10, 200)) {
+            for (int i = 0; i < 20; i++)
+                store.bloom.add(output.getHash().getBytes());
+            for (int i = 0; i < 20; i++)
+                store.bloom.remove(output.getHash().getBytes());
+        }
+        assertTrue(store.bloom.getSaturatedCounters() > store.bloom.getSize()
+                * LevelDBFullPrunedBlockStore.FILTER_MAX_SATURATED);
+        store.close();
+
+        store = openStore();
+        try {
+            assertEquals(10, store.bloom.added);
+            assertEquals(0, store.bloom.getSaturatedCounters());
+            for (UTXO output : outputs)
+                assertTrue(store.hasUnspentOutputs(output.getHash(), (int) output.getIndex() + 1));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void migratesVersion1() throws Exception {
+        new LevelDBFullPrunedBlockStore(UNITTEST, dir.getPath(), 10).close();
+        // Write the outputs like version 1 did.
+        List<UTXO> outputs = createOutputs(25000);
+        DB db = factory.open(dir, new Options());
+        try {
+            db.delete(new byte[] { (byte) LevelDBFullPrunedBlockStore.KeyType.VERSION_SETTING.ordinal() });
+            for (UTXO output : outputs) {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                output.serializeToStream(bos);
+                ByteBuffer outKey = ByteBuffer.allocate(37);
+                outKey.put((byte) LevelDBFullPrunedBlockStore.KeyType.OPENOUT_ALL.ordinal());
+                outKey.put(output.getHash().getBytes());
+                outKey.putInt((int) output.getIndex());
+                db.put(outKey.array(), bos.toByteArray());
+                ByteBuffer addressKey = ByteBuffer.allocate(57);
+                addressKey.put((byte) LevelDBFullPrunedBlockStore.KeyType.ADDRESS_HASHINDEX.ordinal());
+                addressKey.put(address.getHash());
+                addressKey.put(output.getHash().getBytes());
+                addressKey.putInt((int) output.getIndex());
+                db.put(addressKey.array(), new byte[0]);
+            }
+        } finally {
+            db.close();
+        }
+
+        LevelDBFullPrunedBlockStore store = new LevelDBFullPrunedBlockStore(UNITTEST, dir.getPath(), 10);
+        try {
+            for (UTXO output : outputs)
+                assertEquals(output, store.getTransactionOutput(output.getHash(), output.getIndex()));
+            assertEquals(outputs.size(), store.getOpenTransactionOutputs(Collections.singletonList(key)).size());
+            store.removeUnspentTransactionOutput(outputs.get(0));
+            assertEquals(outputs.size() - 1, store.getOpenTransactionOutputs(Collections.singletonList(key)).size());
+        } finally {
+            store.close();
+        }
+    }
+}
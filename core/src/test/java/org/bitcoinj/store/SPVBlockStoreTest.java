@@ -23,7 +23,13 @@ import static org.junit.Assert.assertNull;
 
 import java.io.File;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
+import java.util.Random;
 import java.util.concurrent.TimeUnit;
 
 import org.bitcoinj.core.Address;
@@ -49,6 +55,7 @@ public class SPVBlockStoreTest {
         blockStoreFile = File.createTempFile("spvblockstore", null);
         blockStoreFile.delete();
         blockStoreFile.deleteOnExit();
+        SPVBlockStoreIndex.fileFor(blockStoreFile).deleteOnExit();
     }
 
     @Test
@@ -164,4 +171,131 @@ public class SPVBlockStoreTest {
         assertEquals(UNITTEST.getGenesisBlock().getHash(), store.getChainHead().getHeader().getHash());
         store.close();
     }
+
+    @Test
+    public void getAfterWrapAround() throws Exception {
+        SPVBlockStore store = new SPVBlockStore(UNITTEST, blockStoreFile, 10, false);
+        List<StoredBlock> blocks = putBlocks(store, 35);
+        store.close();
+
+        store = new SPVBlockStore(UNITTEST, blockStoreFile, 10, false);
+        assertStoredExactlyLast(store, blocks, 10);
+        store.close();
+    }
+
+    @Test
+    public void getBlockStoredTwice() throws Exception {
+        SPVBlockStore store = new SPVBlockStore(UNITTEST, blockStoreFile, 10, false);
+        List<StoredBlock> blocks = putBlocks(store, 5);
+        StoredBlock twice = blocks.get(0);
+        store.put(twice);
+        // Overwrite the first copy, the second one must still be found.
+        putBlocks(store, 7);
+        store.close();
+        store = new SPVBlockStore(UNITTEST, blockStoreFile, 10, false);
+        assertEquals(twice, store.get(twice.getHeader().getHash()));
+        store.close();
+    }
+
+    @Test
+    public void indexRebuiltIfMissing() throws Exception {
+        SPVBlockStore store = new SPVBlockStore(UNITTEST, blockStoreFile, 10, false);
+        List<StoredBlock> blocks = putBlocks(store, 15);
+        store.close();
+        assertTrue(SPVBlockStoreIndex.fileFor(blockStoreFile).delete());
+
+        store = new SPVBlockStore(UNITTEST, blockStoreFile, 10, false);
+        assertStoredExactlyLast(store, blocks, 10);
+        store.close();
+    }
+
+    @Test
+    public void indexRebuiltIfOutOfSync() throws Exception {
+        File indexFile = SPVBlockStoreIndex.fileFor(blockStoreFile);
+        File staleIndexFile = File.createTempFile("spvblockstore", ".index");
+        staleIndexFile.deleteOnExit();
+        SPVBlockStore store = new SPVBlockStore(UNITTEST, blockStoreFile, 10, false);
+        List<StoredBlock> blocks = putBlocks(store, 5);
+        store.close();
+        Files.copy(indexFile.toPath(), staleIndexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        store = new SPVBlockStore(UNITTEST, blockStoreFile, 10, false);
+        blocks.addAll(putBlocks(store, 8));
+        store.close();
+        // As if the ring had been written to without updating the index.
+        Files.copy(staleIndexFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        store = new SPVBlockStore(UNITTEST, blockStoreFile, 10, false);
+        assertStoredExactlyLast(store, blocks, 10);
+        store.close();
+    }
+
+    @Test
+    public void indexRemovesCollidingEntries() throws Exception {
+        final int capacity = 8;
+        File indexFile = File.createTempFile("spvblockstore", ".index");
+        indexFile.deleteOnExit();
+        SPVBlockStoreIndex index = new SPVBlockStoreIndex(indexFile, capacity);
+        ByteBuffer ring = ByteBuffer.allocate(SPVBlockStore.getFileSize(capacity));
+        Random random = new Random(1);
+        try {
+            for (int round = 0; round < 1000; round++) {
+                // Write records whose hashes mostly share the same home slot, and index them.
+                index.clear();
+                List<byte[]> hashes = new ArrayList<>();
+                for (int i = 0; i < capacity; i++) {
+                    byte[] hash = new byte[32];
+                    random.nextBytes(hash);
+                    hash[31] = (byte) random.nextInt(3);
+                    ring.position(offset(i));
+                    ring.put(hash);
+                    index.put(ring, hash, offset(i));
+                    hashes.add(hash);
+                }
+                // Remove them in random order, everything not yet removed must still be found.
+                List<Integer> order = new ArrayList<>();
+                for (int i = 0; i < capacity; i++)
+                    order.add(i);
+                Collections.shuffle(order, random);
+                for (int removed = 0; removed < capacity; removed++) {
+                    index.removeRecord(ring, offset(order.get(removed)));
+                    for (int i = 0; i < capacity; i++) {
+                        int expected = order.indexOf(i) <= removed ? -1 : offset(i);
+                        assertEquals(expected, index.get(ring, hashes.get(i)));
+                    }
+                }
+            }
+        } finally {
+            index.close();
+        }
+    }
+
+    private static int offset(int record) {
+        return SPVBlockStore.FILE_PROLOGUE_BYTES + record * SPVBlockStore.RECORD_SIZE;
+    }
+
+    /** Puts the given number of new blocks that build on each other, starting at the chain head. */
+    private List<StoredBlock> putBlocks(SPVBlockStore store, int count) throws BlockStoreException {
+        Address to = LegacyAddress.fromKey(UNITTEST, new ECKey());
+        List<StoredBlock> blocks = new ArrayList<>();
+        StoredBlock prev = store.getChainHead();
+        for (int i = 0; i < count; i++) {
+            StoredBlock block = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(block);
+            store.setChainHead(block);
+            blocks.add(block);
+            prev = block;
+        }
+        return blocks;
+    }
+
+    private void assertStoredExactlyLast(SPVBlockStore store, List<StoredBlock> blocks, int count) throws Exception {
+        for (int i = 0; i < blocks.size(); i++) {
+            StoredBlock block = blocks.get(i);
+            if (i < blocks.size() - count)
+                assertNull("block " + i, store.get(block.getHeader().getHash()));
+            else
+                assertEquals("block " + i, block, store.get(block.getHeader().getHash()));
+        }
+    }
 }
@@ -0,0 +1,183 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bitcoinj.utils;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BlockFileLoaderTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+    private static final NetworkParameters MAINNET = MainNetParams.get();
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(UNITTEST));
+    }
+
+    @Test
+    public void blocksInFileOrder() throws Exception {
+        Context.propagate(new Context(MAINNET));
+        File blockFile = new File(getClass().getResource("/org/bitcoinj/core/first-100k-blocks.dat").getFile());
+        List<Sha256Hash> sequential = hashes(new BlockFileLoader(MAINNET, Arrays.asList(blockFile), 1, 1));
+        List<Sha256Hash> parallel = hashes(new BlockFileLoader(MAINNET, Arrays.asList(blockFile), 4, 3));
+        assertTrue(sequential.size() > 100);
+        assertEquals(sequential, parallel);
+        // The file holds the chain from the genesis block.
+        BlockFileLoader loader = new BlockFileLoader(MAINNET, Arrays.asList(blockFile));
+        Sha256Hash prevHash = Sha256Hash.ZERO_HASH;
+        for (Block block : loader) {
+            assertEquals(prevHash, block.getPrevBlockHash());
+            prevHash = block.getHash();
+        }
+    }
+
+    @Test
+    public void skipsGarbageAndInvalidBlocks() throws Exception {
+        LegacyAddress to = LegacyAddress.fromKey(UNITTEST, new ECKey());
+        Block block1 = UNITTEST.getGenesisBlock().createNextBlock(to);
+        Block block2 = block1.createNextBlock(to);
+        Block block3 = block2.createNextBlock(to);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bos.write(new byte[] { 1, 2, 3, (byte) (UNITTEST.getPacketMagic() >>> 24) });
+        writeBlock(bos, block1.bitcoinSerialize());
+        writeMagic(bos); // followed by an invalid size
+        Utils.uint32ToByteStreamLE(Block.MAX_BLOCK_SIZE * 3, bos);
+        writeBlock(bos, new byte[10]); // can't be parsed
+        writeBlock(bos, block2.bitcoinSerialize());
+        writeMagic(bos); // followed by a truncated block
+        Utils.uint32ToByteStreamLE(100, bos);
+        bos.write(new byte[50]);
+        File file1 = writeFile(bos.toByteArray());
+        File missing = new File(file1.getPath() + ".missing");
+        bos = new ByteArrayOutputStream();
+        writeBlock(bos, block3.bitcoinSerialize());
+        File file2 = writeFile(bos.toByteArray());
+
+        BlockFileLoader loader = new BlockFileLoader(UNITTEST, Arrays.asList(file1, missing, file2), 2, 1);
+        assertEquals(Arrays.asList(block1.getHash(), block2.getHash(), block3.getHash()), hashes(loader));
+    }
+
+    @Test
+    public void close() throws Exception {
+        LegacyAddress to = LegacyAddress.fromKey(UNITTEST, new ECKey());
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        Block block = UNITTEST.getGenesisBlock();
+        for (int i = 0; i < 10; i++) {
+            block = block.createNextBlock(to);
+            writeBlock(bos, block.bitcoinSerialize());
+        }
+        BlockFileLoader loader = new BlockFileLoader(UNITTEST, Arrays.asList(writeFile(bos.toByteArray())), 2, 2);
+        loader.start();
+        assertTrue(loader.hasNext());
+        loader.next();
+        loader.close();
+        assertFalse(loader.hasNext());
+        assertFalse(isScannerRunning());
+    }
+
+    @Test
+    public void startsOnFirstUseAsIterator() throws Exception {
+        LegacyAddress to = LegacyAddress.fromKey(UNITTEST, new ECKey());
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        Block block = UNITTEST.getGenesisBlock().createNextBlock(to);
+        writeBlock(bos, block.bitcoinSerialize());
+        BlockFileLoader loader = new BlockFileLoader(UNITTEST, Arrays.asList(writeFile(bos.toByteArray())));
+        assertFalse(isScannerRunning());
+        // Used as an Iterator directly, without calling start() or iterator().
+        Iterator<Block> blocks = loader;
+        assertTrue(blocks.hasNext());
+        assertEquals(block.getHash(), blocks.next().getHash());
+        assertFalse(blocks.hasNext());
+        assertFalse(isScannerRunning());
+    }
+
+    @Test
+    public void abandonedLoaderStops() throws Exception {
+        LegacyAddress to = LegacyAddress.fromKey(UNITTEST, new ECKey());
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        Block block = UNITTEST.getGenesisBlock();
+        for (int i = 0; i < 10; i++) {
+            block = block.createNextBlock(to);
+            writeBlock(bos, block.bitcoinSerialize());
+        }
+        Iterator<Block> blocks = new BlockFileLoader(UNITTEST, Arrays.asList(writeFile(bos.toByteArray())), 1, 1)
+                .iterator();
+        blocks.next();
+        assertTrue(isScannerRunning());
+        blocks = null;
+        for (int i = 0; i < 100 && isScannerRunning(); i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        assertFalse(isScannerRunning());
+    }
+
+    private static boolean isScannerRunning() {
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+            if (thread.getName().equals("BlockFileLoader scanner") && thread.isAlive())
+                return true;
+        return false;
+    }
+
+    private static List<Sha256Hash> hashes(BlockFileLoader loader) {
+        List<Sha256Hash> hashes = new ArrayList<>();
+        for (Block block : loader)
+            hashes.add(block.getHash());
+        return hashes;
+    }
+
+    private static void writeMagic(ByteArrayOutputStream bos) throws IOException {
+        Utils.uint32ToByteStreamBE(UNITTEST.getPacketMagic(), bos);
+    }
+
+    private static void writeBlock(ByteArrayOutputStream bos, byte[] bytes) throws IOException {
+        writeMagic(bos);
+        Utils.uint32ToByteStreamLE(bytes.length, bos);
+        bos.write(bytes);
+    }
+
+    private static File writeFile(byte[] bytes) throws IOException {
+        File file = File.createTempFile("blockfileloader", ".dat");
+        file.deleteOnExit();
+        try (FileOutputStream stream = new FileOutputStream(file)) {
+            stream.write(bytes);
+        }
+        return file;
+    }
+}
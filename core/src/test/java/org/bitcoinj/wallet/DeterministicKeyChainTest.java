@@ -389,6 +389,20 @@ public class DeterministicKeyChainTest {
         decChain.getKey(KeyChain.KeyPurpose.CHANGE).sign(Sha256Hash.ZERO_HASH);
     }
 
+    @Test
+    public void lookaheadExecutorKeptThroughEncryption() {
+        assertNull(chain.getLookaheadExecutor());
+        chain.setLookaheadExecutor(Threading.THREAD_POOL);
+        DeterministicKeyChain encChain = chain.toEncrypted("open secret");
+        assertSame(Threading.THREAD_POOL, encChain.getLookaheadExecutor());
+        DeterministicKeyChain decChain = encChain.toDecrypted("open secret");
+        assertSame(Threading.THREAD_POOL, decChain.getLookaheadExecutor());
+        // Keys derived in parallel are the same as the ones derived on the calling thread.
+        decChain.setLookaheadSize(100);
+        DeterministicKey key = decChain.getKey(KeyChain.KeyPurpose.RECEIVE_FUNDS);
+        assertEquals(chain.getKey(KeyChain.KeyPurpose.RECEIVE_FUNDS).getPubKeyPoint(), key.getPubKeyPoint());
+    }
+
     @Test
     public void watchingChain() throws UnreadableWalletException {
         Utils.setMockClock();
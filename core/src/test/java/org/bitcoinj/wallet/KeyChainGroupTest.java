@@ -38,6 +38,8 @@ import org.junit.Test;
 import org.bouncycastle.crypto.params.KeyParameter;
 
 import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicReference;
@@ -195,6 +197,47 @@ public class KeyChainGroupTest {
         assertNull(group.findKeyFromPubKeyHash(d.getPubKeyHash(), null));
     }
 
+    @Test
+    public void findKeyFollowsChanges() throws Exception {
+        // Lookahead keys are found as soon as they are derived.
+        group.getActiveKeyChain().maybeLookAhead();
+        DeterministicKey lookahead = group.getActiveKeyChain().getKeyByPath(
+                HDUtils.parsePath("M/0H/0/" + (LOOKAHEAD_SIZE - 1)), false);
+        assertEquals(lookahead, group.findKeyFromPubKeyHash(lookahead.getPubKeyHash(), ScriptType.P2PKH));
+        assertNull(group.findKeyFromPubKeyHash(lookahead.getPubKeyHash(), ScriptType.P2WPKH));
+
+        // Keys of chains activated later are found, limited to their output script type.
+        DeterministicKeyChain segwitChain = DeterministicKeyChain.builder().random(new SecureRandom())
+                .outputScriptType(ScriptType.P2WPKH).accountPath(DeterministicKeyChain.ACCOUNT_ONE_PATH).build();
+        group.addAndActivateHDChain(segwitChain);
+        DeterministicKey segwitKey = group.freshKey(KeyPurpose.RECEIVE_FUNDS);
+        assertEquals(segwitKey, group.findKeyFromPubKeyHash(segwitKey.getPubKeyHash(), ScriptType.P2WPKH));
+        assertNull(group.findKeyFromPubKeyHash(segwitKey.getPubKeyHash(), ScriptType.P2PKH));
+        assertEquals(lookahead, group.findKeyFromPubKey(lookahead.getPubKey()));
+
+        // Imported keys are found until they are removed.
+        List<ECKey> imported = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            imported.add(new ECKey());
+        group.importKeys(imported);
+        for (ECKey key : imported)
+            assertEquals(key, group.findKeyFromPubKeyHash(key.getPubKeyHash(), ScriptType.P2WPKH));
+        for (ECKey key : imported.subList(0, 50))
+            assertTrue(group.removeImportedKey(key));
+        for (ECKey key : imported.subList(0, 50))
+            assertFalse(group.hasKey(key));
+        for (ECKey key : imported.subList(50, 100))
+            assertEquals(key, group.findKeyFromPubKey(key.getPubKey()));
+
+        // Encryption replaces all keys.
+        group.encrypt(KEY_CRYPTER, AES_KEY);
+        ECKey encrypted = group.findKeyFromPubKeyHash(segwitKey.getPubKeyHash(), null);
+        assertTrue(encrypted.isEncrypted());
+        assertTrue(group.findKeyFromPubKey(imported.get(99).getPubKey()).isEncrypted());
+        DeterministicKey next = group.freshKey(KeyPurpose.RECEIVE_FUNDS);
+        assertEquals(next, group.findKeyFromPubKey(next.getPubKey()));
+    }
+
     @Test
     public void currentP2SHAddress() throws Exception {
         group = createMarriedKeyChainGroup();
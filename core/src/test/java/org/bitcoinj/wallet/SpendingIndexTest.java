@@ -0,0 +1,84 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SpendingIndexTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    private static Transaction spend(TransactionOutPoint... outpoints) {
+        Transaction tx = new Transaction(UNITTEST);
+        for (TransactionOutPoint outpoint : outpoints)
+            tx.addInput(outpoint.getHash(), outpoint.getIndex(), new Script(new byte[0]));
+        tx.addOutput(Coin.COIN, new Script(new byte[0]));
+        return tx;
+    }
+
+    @Test
+    public void spendersAndChildren() {
+        Sha256Hash parent = Sha256Hash.of(new byte[] { 1 });
+        TransactionOutPoint out0 = new TransactionOutPoint(UNITTEST, 0, parent);
+        TransactionOutPoint out1 = new TransactionOutPoint(UNITTEST, 1, parent);
+        Transaction tx1 = spend(out0);
+        Transaction tx2 = spend(out0, out1);
+        Transaction grandChild = spend(new TransactionOutPoint(UNITTEST, 0, tx2.getTxId()));
+
+        SpendingIndex index = new SpendingIndex();
+        index.add(tx1);
+        index.add(tx2);
+        index.add(grandChild);
+        assertEquals(2, index.getSpenders(out0).size());
+        assertEquals(Collections.singleton(tx2), index.getSpenders(out1));
+        assertEquals(2, index.getChildren(parent).size());
+        assertEquals(Collections.singleton(grandChild), index.getChildren(tx2.getTxId()));
+
+        index.remove(tx2);
+        assertEquals(Collections.singleton(tx1), index.getSpenders(out0));
+        assertTrue(index.getSpenders(out1).isEmpty());
+        assertEquals(Collections.singleton(tx1), index.getChildren(parent));
+
+        index.clear();
+        assertTrue(index.getSpenders(out0).isEmpty());
+        assertTrue(index.getChildren(tx2.getTxId()).isEmpty());
+    }
+
+    @Test
+    public void outpointChangedAfterAdding() {
+        Sha256Hash parent = Sha256Hash.of(new byte[] { 1 });
+        TransactionOutPoint out0 = new TransactionOutPoint(UNITTEST, 0, parent);
+        Transaction tx = spend(out0);
+        SpendingIndex index = new SpendingIndex();
+        index.add(tx);
+        // The index holds on to the output that was spent when it was added, not to the outpoint of the input.
+        tx.getInput(0).getOutpoint().setIndex(1);
+        assertEquals(Collections.singleton(tx), index.getSpenders(out0));
+        assertTrue(index.getSpenders(new TransactionOutPoint(UNITTEST, 1, parent)).isEmpty());
+    }
+}
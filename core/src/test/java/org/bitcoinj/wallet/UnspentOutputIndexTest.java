@@ -0,0 +1,97 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.BlockChain;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.testing.TestWithWallet;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.bitcoinj.testing.FakeTxBuilder.createFakeTx;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class UnspentOutputIndexTest extends TestWithWallet {
+    private static final Address OTHER_ADDRESS = LegacyAddress.fromKey(UNITTEST, new ECKey());
+
+    private Address watchedAddress;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        watchedAddress = LegacyAddress.fromKey(UNITTEST, new ECKey());
+        wallet.addWatchedAddress(watchedAddress);
+        // Blocks with a few outputs each, some of them the same value.
+        Random random = new Random(1);
+        for (int block = 0; block < 30; block++) {
+            Transaction[] transactions = new Transaction[1 + random.nextInt(3)];
+            for (int i = 0; i < transactions.length; i++) {
+                Coin value = Coin.valueOf(1000 * (1 + random.nextInt(block % 3 == 0 ? 5 : 1000)));
+                transactions[i] = createFakeTx(UNITTEST, value, random.nextInt(4) == 0 ? watchedAddress : myAddress);
+            }
+            sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, transactions);
+        }
+    }
+
+    @Test
+    public void selectsLikeDefaultCoinSelector() {
+        UnspentOutputIndex index = new UnspentOutputIndex(wallet);
+        CoinSelector selector = new DefaultCoinSelector();
+        for (boolean excludeUnsignable : new boolean[] { true, false }) {
+            Coin total = selector.select(Coin.valueOf(Long.MAX_VALUE),
+                    wallet.calculateAllSpendCandidates(true, excludeUnsignable)).valueGathered;
+            for (Coin target = Coin.ZERO; target.isLessThan(total.add(Coin.SATOSHI)); target = target.add(
+                    Coin.valueOf(total.value / 50))) {
+                CoinSelection expected = selector.select(target, wallet.calculateAllSpendCandidates(true,
+                        excludeUnsignable));
+                CoinSelection selection = index.select(target, excludeUnsignable);
+                assertEquals(expected.valueGathered, selection.valueGathered);
+                assertEquals(expected.gathered.size(), selection.gathered.size());
+            }
+            CoinSelection all = index.select(total.add(Coin.SATOSHI), excludeUnsignable);
+            assertEquals(total, all.valueGathered);
+        }
+    }
+
+    @Test
+    public void balances() throws Exception {
+        UnspentOutputIndex index = new UnspentOutputIndex(wallet);
+        for (Wallet.BalanceType type : Wallet.BalanceType.values())
+            assertEquals(wallet.getBalance(type), index.getBalance(type));
+        assertTrue(index.getBalance(Wallet.BalanceType.ESTIMATED).isGreaterThan(
+                index.getBalance(Wallet.BalanceType.ESTIMATED_SPENDABLE)));
+
+        // The wallet keeps its own index up to date while spending.
+        for (int i = 0; i < 5; i++) {
+            Transaction tx = wallet.createSend(OTHER_ADDRESS, Coin.valueOf(300000));
+            wallet.commitTx(tx);
+            if (i % 2 == 0)
+                sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, tx);
+            index.markStale();
+            for (Wallet.BalanceType type : Wallet.BalanceType.values())
+                assertEquals(wallet.getBalance(type), index.getBalance(type));
+        }
+    }
+}
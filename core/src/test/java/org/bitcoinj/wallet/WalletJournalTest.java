@@ -0,0 +1,247 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import com.google.protobuf.ByteString;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.BlockChain;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.testing.TestWithWallet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.bitcoinj.core.Coin.valueOf;
+import static org.bitcoinj.testing.FakeTxBuilder.createFakeTx;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WalletJournalTest extends TestWithWallet {
+    private static final Address OTHER_ADDRESS = LegacyAddress.fromKey(UNITTEST, new ECKey());
+
+    private File walletFile;
+    private File temp;
+    private WalletJournal journal;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        walletFile = File.createTempFile("walletjournal", null);
+        walletFile.deleteOnExit();
+        WalletJournal.fileFor(walletFile).deleteOnExit();
+        temp = File.createTempFile("walletjournal", null);
+        journal = new WalletJournal(walletFile, 100);
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+        walletFile.delete();
+        WalletJournal.fileFor(walletFile).delete();
+    }
+
+    @Test
+    public void appendsChangesAndReplaysThem() throws Exception {
+        assertFalse(journal.append(wallet)); // nothing to append to yet
+        journal.compact(wallet, temp);
+        Sha256Hash snapshot = Sha256Hash.of(walletFile);
+
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, Coin.COIN);
+        assertTrue(journal.append(wallet));
+        assertSameWallet(wallet, WalletJournal.readWallet(walletFile));
+
+        // Blocks without transactions only deepen the transaction, which is done when reading the journal.
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN);
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN);
+        long length = WalletJournal.fileFor(walletFile).length();
+        assertTrue(journal.append(wallet));
+        assertSameWallet(wallet, WalletJournal.readWallet(walletFile));
+
+        // Spending moves the spent transaction to another pool.
+        Transaction send = wallet.createSend(OTHER_ADDRESS, valueOf(0, 10));
+        wallet.commitTx(send);
+        wallet.freshReceiveKey();
+        assertTrue(journal.append(wallet));
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, send);
+        assertTrue(journal.append(wallet));
+        assertSameWallet(wallet, WalletJournal.readWallet(walletFile));
+
+        assertEquals(snapshot, Sha256Hash.of(walletFile));
+        assertTrue(WalletJournal.fileFor(walletFile).length() > length);
+        Wallet loaded = Wallet.loadFromFile(walletFile);
+        assertEquals(wallet.getBalance(), loaded.getBalance());
+        assertEquals(wallet.getIssuedReceiveAddresses(), loaded.getIssuedReceiveAddresses());
+    }
+
+    @Test
+    public void replaysInputConnectedToLaterParent() throws Exception {
+        journal.compact(wallet, temp);
+        Transaction parent = createFakeTx(UNITTEST, Coin.COIN, myAddress);
+        Transaction child = new Transaction(UNITTEST);
+        child.addInput(new TransactionInput(UNITTEST, child, new byte[0],
+                new TransactionOutPoint(UNITTEST, 0, parent.getTxId())));
+        child.addOutput(valueOf(0, 50), myAddress);
+
+        // The child arrives first, so the value of its input isn't known yet.
+        sendMoneyToWallet(null, child);
+        assertNull(wallet.getTransaction(child.getTxId()).getInput(0).getValue());
+        assertTrue(journal.append(wallet));
+
+        // The parent connects the input, which sets its value.
+        sendMoneyToWallet(null, parent);
+        assertEquals(Coin.COIN, wallet.getTransaction(child.getTxId()).getInput(0).getValue());
+        assertTrue(journal.append(wallet));
+        assertSameWallet(wallet, WalletJournal.readWallet(walletFile));
+    }
+
+    @Test
+    public void replaysImportedKeyReplacingAnother() throws Exception {
+        ECKey removed = new ECKey();
+        wallet.importKey(removed);
+        journal.compact(wallet, temp);
+
+        // The number of imported keys stays the same.
+        ECKey added = new ECKey();
+        wallet.removeKey(removed);
+        wallet.importKey(added);
+        assertTrue(journal.append(wallet));
+        Wallet loaded = Wallet.loadFromFile(walletFile);
+        assertTrue(loaded.hasKey(added));
+        assertFalse(loaded.hasKey(removed));
+    }
+
+    @Test
+    public void ignoresIncompleteRecord() throws Exception {
+        journal.compact(wallet, temp);
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, Coin.COIN);
+        assertTrue(journal.append(wallet));
+        Protos.Wallet expected = new WalletProtobufSerializer().walletToProto(wallet);
+        long length = WalletJournal.fileFor(walletFile).length();
+
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, Coin.COIN);
+        assertTrue(journal.append(wallet));
+        RandomAccessFile file = new RandomAccessFile(WalletJournal.fileFor(walletFile), "rw");
+        try {
+            file.setLength(file.length() - 10);
+        } finally {
+            file.close();
+        }
+        assertSameProto(expected, WalletJournal.readWallet(walletFile));
+
+        // Same for a record that is complete, but corrupt.
+        file = new RandomAccessFile(WalletJournal.fileFor(walletFile), "rw");
+        try {
+            file.seek(length - 1);
+            int b = file.read();
+            file.seek(length - 1);
+            file.write(b ^ 1);
+        } finally {
+            file.close();
+        }
+        assertSameProto(WalletProtobufSerializer.parseToProto(new FileInputStream(walletFile)),
+                WalletJournal.readWallet(walletFile));
+    }
+
+    @Test
+    public void ignoresJournalOfReplacedWalletFile() throws Exception {
+        journal.compact(wallet, temp);
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, Coin.COIN);
+        assertTrue(journal.append(wallet));
+        wallet.saveToFile(walletFile);
+        Protos.Wallet expected = new WalletProtobufSerializer().walletToProto(wallet);
+
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, Coin.COIN);
+        assertFalse(journal.append(wallet));
+        assertSameProto(expected, WalletJournal.readWallet(walletFile));
+    }
+
+    @Test
+    public void removingTransactionsRequiresCompaction() throws Exception {
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, Coin.COIN);
+        journal.compact(wallet, temp);
+        wallet.reset();
+        assertFalse(journal.append(wallet));
+        journal.compact(wallet, temp);
+        assertSameWallet(wallet, WalletJournal.readWallet(walletFile));
+    }
+
+    @Test
+    public void compactsWhenJournalGrows() throws Exception {
+        journal = new WalletJournal(walletFile, 0.1);
+        journal.compact(wallet, temp);
+        for (int i = 0; i < 10; i++) {
+            sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, Coin.COIN);
+            if (!journal.append(wallet))
+                journal.compact(wallet, temp);
+            assertSameWallet(wallet, WalletJournal.readWallet(walletFile));
+        }
+        assertTrue(WalletJournal.fileFor(walletFile).length() < walletFile.length() * 0.1);
+    }
+
+    @Test
+    public void autosaveToJournal() throws Exception {
+        WalletFiles files = wallet.autosaveToFile(walletFile, 1, TimeUnit.HOURS, null);
+        files.setJournalEnabled(true);
+        files.saveNow();
+        Sha256Hash snapshot = Sha256Hash.of(walletFile);
+        ECKey key = wallet.freshReceiveKey(); // saves immediately
+        Transaction tx = sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, Coin.COIN, key); // saves immediately
+        assertEquals(snapshot, Sha256Hash.of(walletFile));
+        Wallet loaded = Wallet.loadFromFile(walletFile);
+        assertEquals(Coin.COIN, loaded.getBalance());
+        assertEquals(tx, loaded.getTransaction(tx.getTxId()));
+        assertTrue(loaded.hasKey(key));
+        wallet.shutdownAutosaveAndWait();
+    }
+
+    private static void assertSameWallet(Wallet expected, Protos.Wallet actual) {
+        assertSameProto(new WalletProtobufSerializer().walletToProto(expected), actual);
+    }
+
+    // The order of transactions in the wallet protobuf isn't defined. Issuing keys when reading the journal can
+    // derive more lookahead keys than the wallet had.
+    private static void assertSameProto(Protos.Wallet expected, Protos.Wallet actual) {
+        assertEquals(expected.toBuilder().clearTransaction().clearKey().build(),
+                actual.toBuilder().clearTransaction().clearKey().build());
+        assertTrue(actual.getKeyList().containsAll(expected.getKeyList()));
+        assertEquals(transactions(expected), transactions(actual));
+    }
+
+    private static Map<ByteString, Protos.Transaction> transactions(Protos.Wallet wallet) {
+        Map<ByteString, Protos.Transaction> transactions = new HashMap<>();
+        for (Protos.Transaction tx : wallet.getTransactionList())
+            transactions.put(tx.getHash(), tx);
+        return transactions;
+    }
+}
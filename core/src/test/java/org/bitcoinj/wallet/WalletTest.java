@@ -1525,6 +1525,54 @@ public class WalletTest extends TestWithWallet {
         assertEquals(3, transactions.size());
     }
 
+    @Test
+    public void transactionsPages() throws Exception {
+        Utils.setMockClock();
+        List<Transaction> received = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            received.add(sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, valueOf(0, i + 1)));
+            Utils.rollMockClock(60);
+        }
+        // Most recent first, two per page.
+        List<Transaction> page = wallet.getRecentTransactions(null, 2, false);
+        assertEquals(Arrays.asList(received.get(4), received.get(3)), page);
+        page = wallet.getRecentTransactions(page.get(1).getTxId(), 2, false);
+        assertEquals(Arrays.asList(received.get(2), received.get(1)), page);
+        page = wallet.getRecentTransactions(page.get(1).getTxId(), 2, false);
+        assertEquals(Collections.singletonList(received.get(0)), page);
+        assertTrue(wallet.getRecentTransactions(page.get(0).getTxId(), 2, false).isEmpty());
+
+        // Each transaction appeared in a block of its own, so the height order is the same.
+        page = wallet.getTransactionsByHeight(null, 3, false);
+        assertEquals(Arrays.asList(received.get(4), received.get(3), received.get(2)), page);
+
+        // A pending spend comes first by time, and last by height.
+        Utils.rollMockClock(60);
+        Transaction send = wallet.createSend(OTHER_ADDRESS, valueOf(0, 1));
+        wallet.commitTx(send);
+        assertEquals(send, wallet.getRecentTransactions(null, 1, false).get(0));
+        page = wallet.getTransactionsByHeight(received.get(0).getTxId(), 10, false);
+        assertEquals(Collections.singletonList(send), page);
+    }
+
+    @Test
+    public void transactionsPageAfterUpdateTimeChanged() throws Exception {
+        Utils.setMockClock();
+        List<Transaction> received = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            received.add(sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, valueOf(0, i + 1)));
+            Utils.rollMockClock(60);
+        }
+        assertEquals(Arrays.asList(received.get(4), received.get(3)), wallet.getRecentTransactions(null, 2, false));
+        // Bumped without the wallet knowing, the oldest transaction becomes the most recent one once the wallet
+        // updates it for the next block, without the other transactions being looked at.
+        received.get(0).setUpdateTime(new Date(Utils.currentTimeMillis() + 60 * 60 * 1000));
+        Transaction next = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, valueOf(0, 6));
+        assertEquals(Arrays.asList(received.get(0), next), wallet.getRecentTransactions(null, 2, false));
+        List<Transaction> page = wallet.getRecentTransactions(received.get(2).getTxId(), 2, false);
+        assertEquals(Collections.singletonList(received.get(1)), page);
+    }
+
     @Test
     public void keyCreationTime() throws Exception {
         Utils.setMockClock();
@@ -1697,6 +1745,52 @@ public class WalletTest extends TestWithWallet {
         wallet.createSend(OTHER_ADDRESS, CENT);
     }
 
+    @Test
+    public void watchedBalanceBecomesSpendableByImportedKey() throws Exception {
+        ECKey key1 = new ECKey(), key2 = new ECKey();
+        Address watchedAddress1 = LegacyAddress.fromKey(UNITTEST, key1);
+        Address watchedAddress2 = LegacyAddress.fromKey(UNITTEST, key2);
+        wallet.addWatchedAddresses(Lists.newArrayList(watchedAddress1, watchedAddress2), 0);
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, CENT, watchedAddress1);
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, CENT, watchedAddress2);
+        assertEquals(CENT.multiply(2), wallet.getBalance(BalanceType.ESTIMATED));
+        assertEquals(ZERO, wallet.getBalance(BalanceType.ESTIMATED_SPENDABLE));
+        assertEquals(ZERO, wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE));
+
+        wallet.importKey(key1);
+        assertEquals(CENT, wallet.getBalance(BalanceType.ESTIMATED_SPENDABLE));
+        assertEquals(CENT, wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE));
+
+        // Also after encryption replaced the key chains.
+        wallet.encrypt(PASSWORD1);
+        wallet.importKeysAndEncrypt(Collections.singletonList(key2), PASSWORD1);
+        assertEquals(CENT.multiply(2), wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE));
+    }
+
+    @Test
+    public void removedKeyMakesBalanceUnspendable() throws Exception {
+        ECKey key = new ECKey();
+        wallet.importKey(key);
+        // The transaction keeps an output of the wallet after the key is gone, so that the wallet stays consistent.
+        Transaction tx = createFakeTx(UNITTEST, CENT, LegacyAddress.fromKey(UNITTEST, key));
+        tx.addOutput(CENT, myAddress);
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, tx);
+        assertEquals(CENT.multiply(2), wallet.getBalance(BalanceType.ESTIMATED_SPENDABLE));
+        assertEquals(CENT.multiply(2), wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE));
+
+        assertTrue(wallet.removeKey(key));
+        assertEquals(CENT, wallet.getBalance(BalanceType.ESTIMATED_SPENDABLE));
+        assertEquals(CENT, wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE));
+
+        // Spending the remaining output must not leave the output of the removed key counted.
+        Transaction send = wallet.createSend(OTHER_ADDRESS, valueOf(0, 1));
+        wallet.commitTx(send);
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, send);
+        Coin change = CENT.subtract(valueOf(0, 1)).subtract(send.getFee());
+        assertEquals(change, wallet.getBalance(BalanceType.ESTIMATED_SPENDABLE));
+        assertEquals(change, wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE));
+    }
+
     @Test
     public void watchingScriptsSentFrom() throws Exception {
         int baseElements = wallet.getBloomFilterElementCount();
@@ -44,7 +44,10 @@ public class BlockImporter {
         BlockStore store;
         if (args[1].equals("H2")) {
             Preconditions.checkArgument(args.length == 3);
-            store = new H2FullPrunedBlockStore(params, args[2], 100);
+            H2FullPrunedBlockStore h2Store = new H2FullPrunedBlockStore(params, args[2], 100);
+            // Committed when the store is closed at the end.
+            h2Store.setCommitInterval(100);
+            store = h2Store;
         } else if (args[1].equals("MemFull")) {
             Preconditions.checkArgument(args.length == 2);
             store = new MemoryFullPrunedBlockStore(params, 100);
@@ -67,7 +70,13 @@ public class BlockImporter {
         
         BlockFileLoader loader = new BlockFileLoader(params, BlockFileLoader.getReferenceClientBlockFileList());
         
-        for (Block block : loader)
-            chain.add(block);
+        if (chain instanceof FullPrunedBlockChain) {
+            // Prepares the next blocks while the current one is being verified.
+            ((FullPrunedBlockChain) chain).importBlocks(loader, 16);
+        } else {
+            for (Block block : loader)
+                chain.add(block);
+        }
+        store.close();
     }
 }